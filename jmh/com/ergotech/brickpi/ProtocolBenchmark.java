@@ -0,0 +1,127 @@
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.protocol.BrickPiCodec;
+import com.ergotech.brickpi.sim.SimulatedSpiDevice;
+
+/**
+ * ProtocolBenchmark measures the SPI transaction path against an in-memory
+ * device that answers every frame in place: building and sending a frame,
+ * verifying the response, the bit decoding of the legacy protocol and
+ * reading and decoding a motor status. Run with the gc profiler, as the
+ * jmh task does, the gc.alloc.rate.norm lines give the bytes allocated per
+ * operation.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	/**
+	 * Answers every frame with the success status and a motor status
+	 * payload, without simulating the board.
+	 */
+	private static class InMemorySpiDevice extends SimulatedSpiDevice {
+
+		@Override
+		protected void transfer(byte[] frame) {
+			if (frame.length > BrickPiCodec.STATUS_INDEX) {
+				frame[BrickPiCodec.STATUS_INDEX] = BrickPiCommunications.SPI_STATUS_OK;
+			}
+			for (int i = BrickPiCodec.DATA_INDEX; i < frame.length; i++) {
+				frame[i] = (byte)(i * 37);
+			}
+		}
+	}
+
+	private BrickPiSPI brickPi;
+	private byte[] frame;
+	private byte[] response;
+	private byte[] bits;
+	private MotorStatus status;
+
+	public ProtocolBenchmark() {
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		brickPi = new BrickPiSPI((byte)0x01, new InMemorySpiDevice());
+		frame = brickPi.buildByteMessageArray(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS.getPayloadSize());
+		response = new BrickPiCodec((byte)0x01).encodeRead(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS);
+		new InMemorySpiDevice().transfer(response);
+		bits = new byte[16];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = (byte)(i * 73);
+		}
+		status = new MotorStatus();
+	}
+
+	/**
+	 * A frame allocated per request, as the original transactions did.
+	 */
+	@Benchmark
+	public byte[] buildAndSend() {
+		byte[] request = brickPi.buildByteMessageArray(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS.getPayloadSize());
+		request[0] = 0x01;
+		request[1] = BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS.getByte();
+		return brickPi.sendToBrickPi(request);
+	}
+
+	/**
+	 * The same request sent in a reused frame.
+	 */
+	@Benchmark
+	public byte[] sendReused() {
+		frame[0] = 0x01;
+		frame[1] = BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS.getByte();
+		return brickPi.sendToBrickPi(frame);
+	}
+
+	@Benchmark
+	public boolean verifyTransaction() {
+		return brickPi.verifyTransaction(response);
+	}
+
+	/**
+	 * A 32 bit value starting part way through a byte, as the legacy
+	 * protocol packs the encoders.
+	 */
+	@Benchmark
+	public int decodeInt() {
+		return BrickPiCommunications.decodeInt(32, bits, 13);
+	}
+
+	@Benchmark
+	public MotorStatus decodeMotorStatus() {
+		return BrickPiCodec.decodeMotorStatus(response, status);
+	}
+
+	/**
+	 * Reading a motor status through the bus, into a reused holder.
+	 */
+	@Benchmark
+	public MotorStatus getMotorStatus() throws IOException {
+		return brickPi.getMotorStatus(MotorPort.MA, status);
+	}
+}
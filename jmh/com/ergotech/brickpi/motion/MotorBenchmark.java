@@ -0,0 +1,74 @@
+package com.ergotech.brickpi.motion;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ergotech.brickpi.protocol.BitStream;
+
+/**
+ * MotorBenchmark measures the legacy bit-packed motor encoding and
+ * decoding: a motor's enable, direction and speed into the outgoing BitSet,
+ * or a word at a time into a BitStream, and its encoder value out of an
+ * incoming message.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotorBenchmark {
+
+	private Motor motor;
+	private BitSet request;
+	private BitStream stream;
+	private byte[] message;
+
+	public MotorBenchmark() {
+	}
+
+	@Setup
+	public void setup() {
+		motor = new Motor();
+		motor.setEnabled(true);
+		motor.setCommandedOutput(200);
+		request = new BitSet();
+		stream = new BitStream(16);
+		message = new byte[16];
+		for (int i = 0; i < message.length; i++) {
+			message[i] = (byte)(i * 73);
+		}
+	}
+
+	/**
+	 * Encoding into a reused BitSet, as the legacy update message is built.
+	 */
+	@Benchmark
+	public int encodeToValueRequest() {
+		return motor.encodeToValueRequest(request, 21);
+	}
+
+	@Benchmark
+	public int encodeToBitStream() {
+		motor.encodeToValueRequest(stream.position(21));
+		return stream.position();
+	}
+
+	@Benchmark
+	public int decodeValues() {
+		motor.decodeValues(32, message, 13);
+		return motor.getCurrentEncoderValue();
+	}
+}
@@ -16,18 +16,23 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.diagnostics.BusStatistics;
+import com.ergotech.brickpi.diagnostics.FlightRecordDecoder;
+import com.ergotech.brickpi.diagnostics.SpiFlightRecorder;
 import com.ergotech.brickpi.motion.Motor;
 import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.protocol.BitStream;
 import com.ergotech.brickpi.sensors.Sensor;
 import com.ergotech.brickpi.sensors.SensorPort;
 import com.ergotech.brickpi.sensors.SensorType;
@@ -35,6 +40,8 @@ import com.pi4j.io.spi.SpiChannel;
 import com.pi4j.io.spi.SpiDevice;
 import com.pi4j.io.spi.SpiFactory;
 import com.pi4j.io.spi.SpiMode;
+import com.pi4j.io.spi.impl.SpiDeviceImpl;
+import com.pi4j.wiringpi.Spi;
 
 /**
  * This class provides utility method for communication with the brick pi.
@@ -45,10 +52,69 @@ public abstract class BrickPiCommunications {
             LoggerFactory.getLogger(BrickPiCommunications.class.getName());
     
     protected final SpiDevice spi;
-    private final int HEADER_SIZE = 4;
     
     /**
-     * The current debug level.
+     * The chip-select channel used for in-place transfers when talking to the
+     * real hardware. Null when an alternate SpiDevice has been supplied.
+     */
+    private final SpiChannel spiChannel;
+    
+    /**
+     * The lock held for each transfer, shared by every instance on the same
+     * channel or device. Operations hold it from encoding the request to
+     * decoding the response, and bulk operations across several transfers so
+     * that they run back to back. A lock rather than a monitor so that
+     * virtual threads waiting for the bus are not pinned to their carrier.
+     */
+    protected final ReentrantLock busLock;
+    
+    private static final Map<Object, ReentrantLock> BUS_LOCKS = new WeakHashMap<>();
+    
+    protected static final int HEADER_SIZE = 4;
+    
+    /**
+     * The index of the status byte in every response frame.
+     */
+    protected static final int STATUS_INDEX = 3;
+    
+    /**
+     * The status byte returned by the BrickPi for a successful transaction.
+     */
+    public static final byte SPI_STATUS_OK = (byte)0xA5;
+    
+    /**
+     * Records every frame sent and received. Failed transactions are flagged
+     * in the record.
+     */
+    protected final SpiFlightRecorder recorder = new SpiFlightRecorder();
+    
+    /**
+     * The transfer times, errors and retries of every frame, by message type.
+     */
+    protected final BusStatistics statistics = new BusStatistics();
+    
+    /**
+     * The message types that only read from the BrickPi, and so can be sent
+     * again if they fail. Indexed by the message byte.
+     */
+    private static final boolean[] READS = new boolean[256];
+    
+    static {
+    	for (BPSPI_MESSAGE_TYPE type : BPSPI_MESSAGE_TYPE.values()) {
+    		READS[type.getInt()] = type.name().startsWith("GET_");
+    	}
+    }
+    
+    /**
+     * The number of times a failed read is sent again. Zero by default,
+     * since a failure is usually reported sooner than it is recovered.
+     */
+    private volatile int readRetries;
+    
+    /**
+     * The current debug level. When greater than zero, and debug logging is
+     * enabled, every frame is logged. The frames are always available from
+     * the flight recorder.
      */
     public static int DEBUG_LEVEL = 1;
     
@@ -62,6 +128,33 @@ public abstract class BrickPiCommunications {
      */
     protected volatile int updateDelay;
     
+    /**
+     * The thread sending periodic updates, if any. Woken by
+     * {@link #wakeUpdateThread()}.
+     */
+    protected volatile Thread updateThread;
+    
+    private final Object updateLock = new Object();
+    
+    /**
+     * Notified at the end of each completed update.
+     */
+    protected final List<BrickPiUpdateListener> updateListeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * The tickets and recorder indices of the frames in flight in
+     * sendAllToBrickPi, guarded by the bus lock.
+     */
+    private int[] tickets = new int[8];
+    private long[] frameIndices = new long[8];
+    private long[] sendTimes = new long[8];
+    private byte[] messages = new byte[8];
+    
+    /**
+     * Copies of the requests that may be retried, guarded by the bus lock.
+     */
+    private byte[][] requests = new byte[8][];
+    
 
     /**
      * Create the brick pi instance. This will only occur on the "getBrickPi"
@@ -79,7 +172,29 @@ public abstract class BrickPiCommunications {
     		LOGGER.error(ex.getMessage(), ex);
     		throw new IOException("Failed to open spi to BrickPi");
     	}
-     	
+       	
+       	// the pi4j device copies every frame, so on the hardware we 
+       	// transfer in place through wiringPi on the same channel.
+       	this.spiChannel = (spi instanceof SpiDeviceImpl) ? spiChannel : null;
+       	this.busLock = busLock((this.spiChannel != null) ? this.spiChannel : spi);
+    }
+    
+    /**
+     * Create the brick pi instance on an already opened (or simulated) SPI
+     * device.
+     *
+     * @param spi the device to communicate through.
+     */
+    protected BrickPiCommunications(SpiDevice spi) {
+    	this.spi = spi;
+    	this.spiChannel = null;
+    	this.busLock = busLock(spi);
+    }
+    
+    private static ReentrantLock busLock(Object bus) {
+    	synchronized (BUS_LOCKS) {
+    		return BUS_LOCKS.computeIfAbsent(bus, key -> new ReentrantLock());
+    	}
     }
     
     protected byte[] buildByteMessageArray(int payloadSize) {
@@ -87,87 +202,382 @@ public abstract class BrickPiCommunications {
     	    	
     	return byteBuffer;
     }
-   
     
     /**
-     * Send a packet to the brick pi.
+     * Send a packet to the brick pi. The response is written back into the
+     * packet, which is also returned. If the transfer fails the packet is
+     * cleared so that it will not verify. A failed read is sent again up to
+     * {@link #getReadRetries()} times.
+     *
+     * @param toSend the packet, replaced by the response.
+     * @return the response, the same array as toSend.
+     */
+    protected final byte[] sendToBrickPi(byte[] toSend) {
+    	BPSPI_MESSAGE_TYPE type = messageType(toSend);
+    	int retries = isRead(toSend) ? readRetries : 0;
+    	if (retries == 0) {
+    		send(toSend, type);
+    		return toSend;
+    	}
+    	busLock.lock();
+    	try {
+    		byte[] request = copyRequest(0, toSend);
+    		if (!send(toSend, type)) {
+    			retry(toSend, type, request, retries);
+    		}
+    	} finally {
+    		busLock.unlock();
+    	}
+    	return toSend;
+    }
+    
+    /**
+     * Send a packet once, recording it.
      *
-     * @param destinationAddress
-     * @param packet
+     * @return true if the response verified.
      */
-    protected byte[] sendToBrickPi(byte[] toSend) {
+    private boolean send(byte[] toSend, BPSPI_MESSAGE_TYPE type) {
     	
-    	byte resultBytes[] = new byte[] {};
-    	    	
-    	if (DEBUG_LEVEL > 0) {
-            StringBuffer output = new StringBuffer();
-            output.append("Sending");
-            for (byte toAdd : toSend) {
-                output.append(" ");
-                output.append(Integer.toHexString(toAdd & 0xFF));
-            }
-            System.out.println(output.toString());
+    	boolean debug = DEBUG_LEVEL > 0 && LOGGER.isDebugEnabled();
+    	if (debug) {
+    		LOGGER.debug("Sending " + FlightRecordDecoder.describe(toSend, toSend.length));
         }
     	
+    	long start = System.nanoTime();
+    	long frameIndex = recorder.begin(start, toSend);
+    	boolean ok = false;
     	try {
-        	resultBytes = spi.write(toSend);
+    		transfer(toSend);
+    		ok = toSend.length > STATUS_INDEX && toSend[STATUS_INDEX] == SPI_STATUS_OK;
         	
-        	if (DEBUG_LEVEL > 0) {
-                StringBuffer input = new StringBuffer();
-                input.append("Received ");
-
-                for (byte received : resultBytes) {
-                    input.append(" ");
-                    input.append(Integer.toHexString(received & 0xFF));
-                }
-                System.out.println(input.toString());
+        	if (debug) {
+        		LOGGER.debug("Received " + FlightRecordDecoder.hex(toSend, toSend.length));
             }
         	
         }
         catch(IOException ex) {
     		LOGGER.error(ex.getMessage(), ex);        	
+    		Arrays.fill(toSend, (byte)0);
         }
+    	finally {
+    		recorder.end(frameIndex, toSend, ok);
+    		statistics.record(type, System.nanoTime() - start, ok);
+    	}
     	
-    	return resultBytes;
+    	return ok;
     }
     
-    protected boolean verifyTransaction(byte [] result) {
-    	String retCode = String.format("%02X",result[3]);
-    	
-    	if(DEBUG_LEVEL>0) {
-    		System.out.println(retCode);	
+    /**
+     * Send a failed read again until it verifies or the retries run out.
+     * Called holding the bus lock.
+     *
+     * @param frame the failed frame, replaced by the response.
+     * @param request a copy of the request.
+     * @param retries the number of retries left.
+     */
+    private void retry(byte[] frame, BPSPI_MESSAGE_TYPE type, byte[] request, int retries) {
+    	do {
+    		System.arraycopy(request, 0, frame, 0, frame.length);
+    		statistics.retry(type);
+    	} while (!send(frame, type) && --retries > 0);
+    }
+    
+    /**
+     * Copy a request into the numbered scratch buffer, so that it can be sent
+     * again. Called holding the bus lock.
+     */
+    private byte[] copyRequest(int slot, byte[] frame) {
+    	if (requests.length <= slot) {
+    		requests = Arrays.copyOf(requests, Math.max(slot + 1, requests.length * 2));
     	}
-    	
-    	if(retCode.compareTo("A5")==0) {
-    		return true;
+    	byte[] request = requests[slot];
+    	if (request == null || request.length < frame.length) {
+    		request = new byte[Math.max(frame.length, 32)];
+    		requests[slot] = request;
     	}
-    	
-    	return false;
+    	System.arraycopy(frame, 0, request, 0, frame.length);
+    	return request;
+    }
+    
+    private static BPSPI_MESSAGE_TYPE messageType(byte[] frame) {
+    	return frame.length > 1 ? BPSPI_MESSAGE_TYPE.fromInt(frame[1] & 0xFF) : null;
+    }
+    
+    private static boolean isRead(byte[] frame) {
+    	return frame.length > 1 && READS[frame[1] & 0xFF];
+    }
+    
+    /**
+     * Returns true if the device can have several requests in flight.
+     */
+    protected final boolean isPipelined() {
+    	return spi instanceof PipelinedSpiDevice;
+    }
+    
+    /**
+     * Send several independent frames, each replaced by its response as by
+     * {@link #sendToBrickPi(byte[])}. On a {@link PipelinedSpiDevice} the
+     * requests are sent ahead of the responses, up to the pipeline depth;
+     * otherwise they are sent one at a time. The frames must be distinct
+     * arrays. A failed read is sent again on its own, after the frames ahead
+     * of it have been received.
+     *
+     * @param frames the packets, replaced by the responses.
+     * @param count the number of frames to send.
+     */
+    protected void sendAllToBrickPi(byte[][] frames, int count) {
+    	if (!(spi instanceof PipelinedSpiDevice)) {
+    		for (int i = 0; i < count; i++) {
+    			sendToBrickPi(frames[i]);
+    		}
+    		return;
+    	}
+    	PipelinedSpiDevice link = (PipelinedSpiDevice) spi;
+    	int depth = Math.max(1, link.getPipelineDepth());
+    	int retries = readRetries;
+    	boolean debug = DEBUG_LEVEL > 0 && LOGGER.isDebugEnabled();
+    	busLock.lock();
+    	try {
+    		if (tickets.length < count) {
+    			tickets = new int[count];
+    			frameIndices = new long[count];
+    			sendTimes = new long[count];
+    			messages = new byte[count];
+    		}
+    		int sent = 0;
+    		for (int received = 0; received < count; received++) {
+    			for (; sent < count && sent - received < depth; sent++) {
+    				byte[] toSend = frames[sent];
+    				if (debug) {
+    					LOGGER.debug("Sending " + FlightRecordDecoder.describe(toSend, toSend.length));
+    				}
+    				// the response may be written into the frame before it
+    				// is received, so keep what is needed of the request
+    				messages[sent] = toSend.length > 1 ? toSend[1] : 0;
+    				if (retries > 0 && isRead(toSend)) {
+    					copyRequest(sent, toSend);
+    				}
+    				sendTimes[sent] = System.nanoTime();
+    				frameIndices[sent] = recorder.begin(sendTimes[sent], toSend);
+    				try {
+    					tickets[sent] = link.send(toSend);
+    				} catch (IOException ex) {
+    					LOGGER.error(ex.getMessage(), ex);
+    					tickets[sent] = -1;
+    				}
+    			}
+    			byte[] frame = frames[received];
+    			BPSPI_MESSAGE_TYPE type = BPSPI_MESSAGE_TYPE.fromInt(messages[received] & 0xFF);
+    			boolean read = retries > 0 && READS[messages[received] & 0xFF];
+    			boolean ok = false;
+    			try {
+    				if (tickets[received] < 0) {
+    					throw new IOException("Request not sent");
+    				}
+    				link.receive(tickets[received]);
+    				ok = frame.length > STATUS_INDEX && frame[STATUS_INDEX] == SPI_STATUS_OK;
+    				if (debug) {
+    					LOGGER.debug("Received " + FlightRecordDecoder.hex(frame, frame.length));
+    				}
+    			} catch (IOException ex) {
+    				LOGGER.error(ex.getMessage(), ex);
+    				Arrays.fill(frame, (byte)0);
+    			} finally {
+    				recorder.end(frameIndices[received], frame, ok);
+    				statistics.record(type, System.nanoTime() - sendTimes[received], ok);
+    			}
+    			if (!ok && read) {
+    				retry(frame, type, requests[received], retries);
+    			}
+    		}
+    	} finally {
+    		busLock.unlock();
+    	}
+    }
+    
+    /**
+     * Returns the recorder holding the most recent SPI frames.
+     *
+     * @return the flight recorder for this instance.
+     */
+    public SpiFlightRecorder getFlightRecorder() {
+    	return recorder;
+    }
+    
+    /**
+     * Returns the transfer times, errors and retries of this instance, by
+     * message type. Register them to see them in a JMX console.
+     *
+     * @return the bus statistics for this instance.
+     */
+    public BusStatistics getBusStatistics() {
+    	return statistics;
+    }
+    
+    /**
+     * Register the bus statistics with the platform MBean server, logging
+     * rather than failing if they can't be.
+     *
+     * @param name the name of the BrickPi, unique in the JVM.
+     */
+    protected void registerStatistics(String name) {
+    	try {
+    		statistics.register(name);
+    	} catch (JMException ex) {
+    		LOGGER.warn("Bus statistics not registered: " + ex.getMessage());
+    	}
+    }
+    
+    /**
+     * Set the number of times a read that fails, or does not verify, is
+     * sent again before the failure is reported. Only the GET_ messages are
+     * retried; a command that fails may still have been carried out.
+     *
+     * @param readRetries the number of retries, zero to report the first
+     * failure.
+     */
+    public void setReadRetries(int readRetries) {
+    	this.readRetries = Math.max(0, readRetries);
+    }
+    
+    public int getReadRetries() {
+    	return readRetries;
+    }
+    
+    /**
+     * Perform the full-duplex transfer, leaving the response in the frame.
+     *
+     * @param frame the request, replaced by the response.
+     * @throws IOException if the transfer failed.
+     */
+    private void transfer(byte[] frame) throws IOException {
+    	busLock.lock();
+    	try {
+    		if (spiChannel != null) {
+    			if (Spi.wiringPiSPIDataRW(spiChannel.getChannel(), frame, frame.length) <= 0) {
+    				throw new IOException("Failed to write data to SPI channel: " + spiChannel.getChannel());
+    			}
+    		} else {
+    			byte[] result = spi.write(frame);
+    			if (result != frame) {
+    				System.arraycopy(result, 0, frame, 0, Math.min(result.length, frame.length));
+    			}
+    		}
+    	} finally {
+    		busLock.unlock();
+    	}
+    }
+    
+    protected final boolean verifyTransaction(byte [] result) {
+    	return result.length > STATUS_INDEX && result[STATUS_INDEX] == SPI_STATUS_OK;
     }
    
 
+    /**
+     * Set the delay between updates and start or stop the update thread. 
+     * The thread calls {@link #updateValues()}, notifies the listeners and
+     * then waits updateDelay milliseconds, or until woken, before the next
+     * update.
+     *
+     * @param updateDelay the delay in milliseconds, zero (or less) to stop
+     * the updates.
+     */
     public void setUpdateDelay(int updateDelay) {
-    }    
+    	synchronized (updateLock) {
+    		this.updateDelay = updateDelay;
+    		if (updateDelay > 0 && updateThread == null) {
+    			Thread thread = new Thread(this::runUpdates, "BrickPi Update");
+    			thread.setDaemon(true);
+    			updateThread = thread;
+    			thread.start();
+    			return;
+    		}
+    	}
+    	// pick up the new delay, or stop
+    	wakeUpdateThread();
+    }
+    
+    public int getUpdateDelay() {
+    	return updateDelay;
+    }
+    
+    private void runUpdates() {
+    	while (true) {
+    		int delay = updateDelay;
+    		if (delay <= 0) {
+    			synchronized (updateLock) {
+    				if (updateDelay <= 0) {
+    					updateThread = null;
+    					return;
+    				}
+    			}
+    			continue;
+    		}
+    		try {
+    			updateValues();
+    			fireUpdateReceived();
+    		} catch (IOException ex) {
+    			LOGGER.error(ex.getMessage(), ex);
+    		}
+    		LockSupport.parkNanos(this, delay * 1000000L);
+    	}
+    }
+    
+    /**
+     * Read the values of every configured port. Called from the update
+     * thread.
+     *
+     * @throws IOException if the update could not be completed.
+     */
+    protected abstract void updateValues() throws IOException;
+    
+    private void fireUpdateReceived() {
+    	for (BrickPiUpdateListener listener : updateListeners) {
+    		try {
+    			listener.updateReceived(this);
+    		} catch (RuntimeException ex) {
+    			LOGGER.error("Update listener failed", ex);
+    		}
+    	}
+    }
+    
+    /**
+     * Add a listener notified at the end of each completed update.
+     *
+     * @param listener the listener to add.
+     */
+    public void addUpdateListener(BrickPiUpdateListener listener) {
+    	updateListeners.add(listener);
+    }
+    
+    public void removeUpdateListener(BrickPiUpdateListener listener) {
+    	updateListeners.remove(listener);
+    }
+    
+    /**
+     * Wake the update thread, if there is one, so that changed values are
+     * sent to the BrickPi immediately.
+     */
+    public void wakeUpdateThread() {
+    	Thread thread = updateThread;
+    	if (thread != null) {
+    		LockSupport.unpark(thread);
+    	}
+    }
     
     /**
      * Decode an arbitrary number of bits from the bitset.
      *
-     * @param bitLength the number of bits to decode
+     * @param bitLength the number of bits to decode, only the low 32 are returned
      * @param incoming the bitset to decode them from
      * @param startingBitLocation the starting bit location in the bitset
      * @return the decoded value
      */
     public static int decodeInt(int bitLength, byte[] incoming, int startingBitLocation) {
-        int value = 0;
-        while (bitLength-- > 0) {
-            value <<= 1;
-            int location = bitLength + startingBitLocation;
-            boolean set = ((incoming[location / 8] & (1 << (location % 8))) != 0);
-            if (set) {
-                value |= 1;
-            }
+        if (bitLength <= 0) {
+            return 0;
         }
-        return value;
+        return (int) BitStream.read(incoming, startingBitLocation, Math.min(bitLength, 32));
     }    
     
 
@@ -23,16 +23,16 @@ public class BrickPiConstants {
         NONE(0), //0
 
         GET_MANUFACTURER(1, 20), //1
-        GET_NAME(2),
-        GET_HARDWARE_VERSION(3),
-        GET_FIRMWARE_VERSION(4),
-        GET_ID(5),
+        GET_NAME(2, 20),
+        GET_HARDWARE_VERSION(3, 4),
+        GET_FIRMWARE_VERSION(4, 4),
+        GET_ID(5, 16),
         SET_LED(6),
-        GET_VOLTAGE_3V3(7),
-        GET_VOLTAGE_5V(8),
-        GET_VOLTAGE_9V(9),
-        GET_VOLTAGE_VCC(10),
-        SET_ADDRESS(11), //11
+        GET_VOLTAGE_3V3(7, 2),
+        GET_VOLTAGE_5V(8, 2),
+        GET_VOLTAGE_9V(9, 2),
+        GET_VOLTAGE_VCC(10, 2),
+        SET_ADDRESS(11, 15), //11
 
         SET_SENSOR_TYPE(12,0), //12
 
@@ -41,28 +41,28 @@ public class BrickPiConstants {
         GET_SENSOR_3(15),
         GET_SENSOR_4(16),
 
-        I2C_TRANSACT_1(17), //17
-        I2C_TRANSACT_2(18),
-        I2C_TRANSACT_3(19),
-        I2C_TRANSACT_4(20),
+        I2C_TRANSACT_1(17, 2), //17
+        I2C_TRANSACT_2(18, 2),
+        I2C_TRANSACT_3(19, 2),
+        I2C_TRANSACT_4(20, 2),
 
         SET_MOTOR_POWER(21),
 
-        SET_MOTOR_POSITION(22),
+        SET_MOTOR_POSITION(22, 3),
 
         SET_MOTOR_POSITION_KP(23),
 
         SET_MOTOR_POSITION_KD(24), //24
 
-        SET_MOTOR_DPS(25), //25
+        SET_MOTOR_DPS(25, 1), //25
 
         SET_MOTOR_DPS_KP(26),
 
         SET_MOTOR_DPS_KD(27),
 
-        SET_MOTOR_LIMITS(28),
+        SET_MOTOR_LIMITS(28, 2),
 
-        OFFSET_MOTOR_ENCODER(29), //29
+        OFFSET_MOTOR_ENCODER(29, 3), //29
 
         GET_MOTOR_A_ENCODER(30, 4), //30
         GET_MOTOR_B_ENCODER(31, 4),
@@ -75,8 +75,22 @@ public class BrickPiConstants {
         GET_MOTOR_D_STATUS(37, 8);
 		
 		private final int message;
+		
+		/**
+		 * The number of bytes following the four byte header. The header is
+		 * the address, the message type and two bytes that carry either 
+		 * arguments or the status of the response.
+		 */
 		private final int payloadSize;
 		
+		private static final BPSPI_MESSAGE_TYPE[] BY_MESSAGE = new BPSPI_MESSAGE_TYPE[GET_MOTOR_D_STATUS.message + 1];
+		
+		static {
+			for (BPSPI_MESSAGE_TYPE type : values()) {
+				BY_MESSAGE[type.message] = type;
+			}
+		}
+		
 		BPSPI_MESSAGE_TYPE(int message) {
 			this(message, 0);
 		}
@@ -97,6 +111,18 @@ public class BrickPiConstants {
 		public int getPayloadSize() {
 			return this.payloadSize;
 		}
+		
+		/**
+		 * Returns the message type for the message byte of a frame.
+		 * @param message the message byte, 0-255
+		 * @return the message type or null if the message is unknown.
+		 */
+		public static BPSPI_MESSAGE_TYPE fromInt(int message) {
+			if (message < 0 || message >= BY_MESSAGE.length) {
+				return null;
+			}
+			return BY_MESSAGE[message];
+		}
 	}
 	
 }
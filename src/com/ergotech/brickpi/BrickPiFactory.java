@@ -1,5 +1,7 @@
 package com.ergotech.brickpi;
 
+import com.pi4j.io.spi.SpiChannel;
+
 public class BrickPiFactory {
 	
 	private static BrickPiFactory piFactory = new BrickPiFactory();
@@ -12,16 +14,32 @@ public class BrickPiFactory {
 	}
 	
 	public IBrickPi getBrick(BrickPiConstants.COMTYPE comType) throws Exception {
+		return getBrick(comType, (byte)0x01, SpiChannel.CS1);
+	}
+	
+	/**
+	 * Returns the BrickPi at an address. Each address and chip-select is a
+	 * separate board with its own instance.
+	 * @param comType
+	 * @param address the board address, 1 unless it has been changed.
+	 * @param spiChannel the chip-select of the board (SPI only).
+	 * @throws Exception for RS232, which released BrickPi firmware can't be
+	 * driven over yet; see the experimental BrickPiSerial.
+	 */
+	public IBrickPi getBrick(BrickPiConstants.COMTYPE comType, byte address, SpiChannel spiChannel) throws Exception {
 		IBrickPi retInterface = null;
 		
 		switch(comType) {
 		case RS232:
-			//retInterface = BrickPi.getBrickPi();
+			// BrickPiSerial needs custom firmware, it can't talk to a stock RS232 board
 			throw new Exception("Not Implemented");
 			
 		default:
 		case SPI:
-			retInterface = BrickPiSPI.getBrickPi((byte)0x01); //hardcode for now
+			retInterface = BrickPiSPI.getBrickPi(address, spiChannel);
+			if (retInterface == null) {
+				throw new Exception("Unable to open BrickPi at address " + address);
+			}
 			break;
 		}
 		
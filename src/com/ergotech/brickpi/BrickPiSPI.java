@@ -8,23 +8,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.diagnostics.TelemetryLog;
 import com.ergotech.brickpi.motion.Motor;
 import com.ergotech.brickpi.motion.MotorPort;
 import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.protocol.BrickPiCodec;
 import com.ergotech.brickpi.sensors.Sensor;
 import com.ergotech.brickpi.sensors.SensorPort;
 import com.ergotech.brickpi.sensors.SensorType;
 import com.pi4j.io.spi.SpiChannel;
+import com.pi4j.io.spi.SpiDevice;
 
 public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BrickPiSPI.class.getName());
-    private final byte brickPiAddress = 0x01;
+    /**
+     * Builds the requests and decodes the responses, owns the frames.
+     */
+    protected final BrickPiCodec codec;
+    
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
 
     /**
-     * The singleton instance of this class.
+     * The instances opened on the hardware, one per chip-select and address.
      */
-    protected static BrickPiSPI brickPi;
+    private static final Map<Integer, BrickPiSPI> boards = new HashMap<Integer, BrickPiSPI>();
     
     private Map<SensorPort, Sensor> sensorMap;
     
@@ -33,20 +42,88 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
     //encoder returns
     private Motor[] motorPortSettings = new Motor[4];
     
+    /**
+     * The port state published by the update thread, and the copy it is
+     * built in while the bus is held.
+     */
+    private final PortSnapshot portSnapshot = new PortSnapshot();
+    private final PortSnapshot pollSnapshot = new PortSnapshot();
+    private final MotorStatus pollStatus = new MotorStatus();
+    
+    /**
+     * The log each poll and sweep is appended to, and the copy of a sweep
+     * it is appended from. Guarded by the bus lock.
+     */
+    private TelemetryLog telemetryLog;
+    private final PortSnapshot logSnapshot = new PortSnapshot();
+    
+    /**
+     * The requests of a bulk operation, sent together so that they can be
+     * pipelined. Each port has its own message type and so its own frame.
+     * Guarded by the bus lock.
+     */
+    private final byte[][] pipeline = new byte[SENSOR_PORTS.length + 2 * MOTOR_PORTS.length][];
+    
+    /**
+     * The motor power commands of a sweep. The codec has one frame for every
+     * port's power, so each is copied to its own frame to share the
+     * pipeline. Guarded by the bus lock.
+     */
+    private final byte[][] powerFrames = new byte[MOTOR_PORTS.length][];
+    
+    /**
+     * The number of frames in the pipeline, between encoding and decoding a
+     * sweep of several boards. Guarded by the bus lock.
+     */
+    private int pipelineCount;
+    
+    /**
+     * The frames of several boards' sweeps, sent as one batch on a pipelined
+     * device. Guarded by the bus lock.
+     */
+    private byte[][] busBatch = new byte[0][];
     
     /**
-     * Return the brick pi singleton.
+     * The batch that setMotor, setMotorDps and setMotorPositionRelative 
+     * build their commands in, with the frames, one per group of ports, and
+     * the encoders read for relative targets of a batch being sent. Guarded
+     * by the bus lock.
+     */
+    private final MotorBatch motorBatch = new MotorBatch();
+    private final byte[][] batchFrames = new byte[MOTOR_PORTS.length][];
+    private final int[] batchEncoders = new int[MOTOR_PORTS.length];
+    
+    
+    /**
+     * Return the brick pi at the address on chip-select 1.
      *
      * @return the brick pi instance.
      */
     public static IBrickPi getBrickPi(byte address) {
+        return getBrickPi(address, SpiChannel.CS1);
+    }
+    
+    /**
+     * Return the brick pi at the address on the chip-select, opening it on
+     * first use. Each board has its own buffers; boards on the same
+     * chip-select share the bus lock.
+     *
+     * @param address the address of the BrickPi on the bus.
+     * @param spiChannel the chip-select.
+     * @return the brick pi instance, or null if it could not be opened.
+     */
+    public static synchronized BrickPiSPI getBrickPi(byte address, SpiChannel spiChannel) {
+        Integer key = (spiChannel.getChannel() << 8) | (address & 0xFF);
+        BrickPiSPI brickPi = boards.get(key);
         if (brickPi == null) {
             try {
                 // we'll try/catch the exception and log it here.
                 // the "getBrickPi" could be called often and should not
                 // fail (at least after initial debugging) and catch the 
                 // exception externally might be irritating after a while...
-                brickPi = new BrickPiSPI(address, SpiChannel.CS1);
+                brickPi = new BrickPiSPI(address, spiChannel);
+                boards.put(key, brickPi);
+                brickPi.registerStatistics("SPI" + spiChannel.getChannel() + "-" + (address & 0xFF));
 
             } catch (IOException ex) {
                 LOGGER.error(ex.getMessage(), ex);
@@ -58,18 +135,37 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
     private BrickPiSPI(byte address, SpiChannel spiChannel) throws IOException {
     	super(spiChannel);
     	
+    	codec = new BrickPiCodec(address);
     	sensorMap = new HashMap<SensorPort, Sensor>();
-		getManufacturer();
+		readManufacturer();
 		
 		//motorTest();
     }
     
-    private byte getMotorPortsFromArray(MotorPort motorPorts[]) {
+    /**
+     * Create a brick pi instance on the supplied SPI device. This bypasses the
+     * singleton and is intended for simulated or otherwise pre-opened devices.
+     *
+     * @param address the address of the BrickPi on the bus.
+     * @param spi the device to communicate through.
+     */
+    // the handshake only goes through private and final methods, which a
+    // subclass can't reach before it is constructed
+    @SuppressWarnings("this-escape")
+    public BrickPiSPI(byte address, SpiDevice spi) throws IOException {
+    	super(spi);
+    	
+    	codec = new BrickPiCodec(address);
+    	sensorMap = new HashMap<SensorPort, Sensor>();
+		readManufacturer();
+    }
+    
+    private int getMotorPortsFromArray(MotorPort motorPorts[]) {
     	int motorPortByte = 0x00;
     	for(MotorPort motorPort : motorPorts) {
     		motorPortByte = motorPortByte | motorPort.getPort();
     	}
-    	return (byte)motorPortByte;
+    	return motorPortByte;
     }
 
     /**
@@ -82,20 +178,21 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
      */
     public void setSensor(Sensor sensor, SensorPort port) throws IOException {
     	        
-    	//Keep internal structure
-    	sensorMap.put(port, sensor);
-    	
-    	//Setup in the Brick Pi
-        byte[] packet = buildByteMessageArray(BPSPI_MESSAGE_TYPE.SET_SENSOR_TYPE.getPayloadSize());
-        packet[0] = brickPiAddress;
-        packet[1] = BPSPI_MESSAGE_TYPE.SET_SENSOR_TYPE.getByte();
-        packet[2] = (byte)port.getPort();
-        packet[3] = (byte)sensor.getSensorType();
-        
-        byte [] ret = sendToBrickPi(packet);           
-        
-    	if(verifyTransaction(ret)==false) {
-    		throw new IOException("failed setSensor");
+    	busLock.lock();
+    	try {
+    		//Keep internal structure
+    		sensorMap.put(port, sensor);
+    		
+    		//Setup in the Brick Pi
+    		byte[] packet = codec.encodeSetSensorType(port.getPort(), sensor.getSensorType());
+    		
+    		byte [] ret = sendToBrickPi(packet);           
+    		
+    		if(verifyTransaction(ret)==false) {
+    			throw new IOException("failed setSensor");
+    		}
+    	} finally {
+    		busLock.unlock();
     	}
     }
 
@@ -112,50 +209,52 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
     @SuppressWarnings("unchecked")
     public <T extends Sensor> T getSensor(SensorPort sensorPort) throws IOException {
     	
-    	Sensor sensor = sensorMap.get(sensorPort);
+    	busLock.lock();
+    	try {
+    		Sensor sensor = sensorMap.get(sensorPort);
+    		readSensor(sensorPort, sensor);
+    		
+    		return (T) sensor;
+    	} finally {
+    		busLock.unlock();
+    	}
+    }
+    
+    private boolean readSensor(SensorPort sensorPort, Sensor sensor) throws IOException {
+    	return transactSensor(sensorPort, sensor) != null;
+    }
+    
+    /**
+     * Read the sensor and update it from the response.
+     *
+     * @return the response frame, or null if it did not verify.
+     */
+    private byte[] transactSensor(SensorPort sensorPort, Sensor sensor) throws IOException {
+        return sensorResult(sensor, sendToBrickPi(encodeSensorRead(sensorPort, sensor)));
+    }
+    
+    private byte[] encodeSensorRead(SensorPort sensorPort, Sensor sensor) {
     	SensorType sensorType = sensor.getSensorTypeEnum();
-        BPSPI_MESSAGE_TYPE sensorMessage = MapSensorPortToSPICommand(sensorPort);
-        byte sensorCommand = sensorMessage.getByte();
-        int payloadSize = sensorType.getPayloadSize();
-        
-        byte[] packet = buildByteMessageArray(payloadSize);
-
-        packet[0] = brickPiAddress;
-        packet[1] = sensorCommand;
-        
-        byte[] result = sendToBrickPi(packet);
-        
+        return codec.encodeSensorRead(sensorPort, sensorType.getPayloadSize());
+    }
+    
+    /**
+     * Update the sensor from a response.
+     *
+     * @return the response frame, or null if it did not verify.
+     */
+    private byte[] sensorResult(Sensor sensor, byte[] result) throws IOException {
         if(verifyTransaction(result)) {
         	//Set the Sensor result value
         	//Get the value for the sensor
         	//Need to hand this in for the appropriate decoding type
         	sensor.processResult(result);
+        	return result;
         }
         
-        return (T) sensor;
+        return null;
     }
 
-    private BPSPI_MESSAGE_TYPE MapSensorPortToSPICommand(SensorPort sensorPort) throws IOException {
-    	BPSPI_MESSAGE_TYPE spiCommand;
-    	switch(sensorPort) {
-    	case S1:
-    		spiCommand = BPSPI_MESSAGE_TYPE.GET_SENSOR_1;
-    		break;
-    	case S2:
-    		spiCommand = BPSPI_MESSAGE_TYPE.GET_SENSOR_2;
-    		break;
-    	case S3:
-    		spiCommand = BPSPI_MESSAGE_TYPE.GET_SENSOR_3;
-    		break;
-    	case S4:
-    		spiCommand = BPSPI_MESSAGE_TYPE.GET_SENSOR_4;
-    		break;
-    	default:
-    		throw new IOException("Unknown Command");
-    	}
-    	return spiCommand;
-    }
-    
     /**
      * Initialize the motor ports.
      */
@@ -177,6 +276,11 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
     		break;
     	}
     	
+    	if (motor != null && motor.getTicksPerRevolution() == Motor.DEFAULT_TICKS_PER_REVOLUTION) {
+    		// the firmware reports the encoders in degrees; keep a resolution
+    		// the caller chose
+    		motor.setTicksPerRevolution(360);
+    	}
     	motorPortSettings[index] = motor;    	
     	return;
     }
@@ -204,30 +308,337 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
      * @param port the port. 
      */
     public void setMotor(MotorPort motorPort[], int power) throws IOException {
-    	byte[] packet; 
-        byte[] ret;
-        Motor mConfig;
-    	
-    	for(MotorPort mPort:motorPort) {
-    		mConfig = motorPortSettings[getMBIndex(mPort)];
-    		if(mConfig==null) {
-    			throw new IOException("Motor not initialize");
+    	busLock.lock();
+    	try {
+    		// one message for the motors turning each way
+    		motorBatch.clear();
+    		for(MotorPort mPort:motorPort) {
+    			motorBatch.setPower(mPort, power);
     		}
-    		
-    		packet = buildByteMessageArray(BPSPI_MESSAGE_TYPE.SET_MOTOR_POWER.getPayloadSize()); 
-            
-            packet[0] = brickPiAddress;
-            packet[1] = BPSPI_MESSAGE_TYPE.SET_MOTOR_POWER.getByte();
-            packet[2] = (byte)mPort.getPort();
-            packet[3] = (byte)(power * mConfig.getDirectionVector());
-            
-            ret = sendToBrickPi(packet);
-                    
-        	if(verifyTransaction(ret)==false) {
-        		throw new IOException("failed setSensor");
-        	}    		
+    		sendMotorBatch(motorBatch, "setMotor");
+    	} finally {
+    		busLock.unlock();
+    	}
+    }
+    
+    /**
+     * Encode a power command into the port's own frame, for the pipeline.
+     */
+    private byte[] encodeMotorPower(MotorPort mPort, int power) throws IOException {
+		Motor mConfig = motorPortSettings[getMBIndex(mPort)];
+		if(mConfig==null) {
+			throw new IOException("Motor not initialize");
+		}
+		byte[] packet = codec.encodeSetMotorPower(mPort.getPort(), power * mConfig.getDirectionVector());
+		return copyFrame(powerFrames, mPort.ordinal(), packet);
+    }
+    
+    /**
+     * Copy an encoded packet out of the codec's frame for its message type
+     * into one of a set of frames, so that several messages of the same
+     * type can share the pipeline.
+     */
+    private static byte[] copyFrame(byte[][] frames, int slot, byte[] packet) {
+		byte[] frame = frames[slot];
+		if (frame == null || frame.length != packet.length) {
+			frame = frames[slot] = new byte[packet.length];
+		}
+		System.arraycopy(packet, 0, frame, 0, packet.length);
+		return frame;
+    }
+    
+    /**
+     * Perform a bulk sweep. The pending motor power changes are sent first,
+     * followed by the configured sensor and motor status reads, all back to
+     * back in one batch while holding the bus. The batch is pipelined where
+     * the device allows. If a power change fails the reads are still
+     * completed, the change is left pending and an IOException is thrown.
+     *
+     * @param sweep the sweep to perform, updated with the results.
+     * @return the sweep
+     */
+    @Override
+    public PortSweep sweep(PortSweep sweep) throws IOException {
+    	busLock.lock();
+    	try {
+    		sweep.start(System.nanoTime());
+    		int count = encodeSweep(sweep);
+    		sendAllToBrickPi(pipeline, count);
+    		if (!decodeSweep(sweep, System.nanoTime())) {
+    			throw new IOException("failed setMotorPower");
+    		}
+    	} finally {
+    		busLock.unlock();
+    	}
+    	return sweep;
+    }
+    
+    /**
+     * Sweep several boards on the same bus as one batch, holding the bus
+     * once for all of them. Every board's frames are encoded first, then
+     * sent back to back; on a {@link PipelinedSpiDevice} they share one
+     * pipeline, recorded by the first board, so the link stays busy from
+     * one board to the next. If a board's sweep can't be encoded nothing is
+     * sent. If a power change fails every board's reads are still completed
+     * and an IOException is thrown at the end.
+     *
+     * @param boards the boards, all sharing one bus.
+     * @param sweeps the sweep of each board, updated with the results.
+     * @throws IllegalArgumentException if the boards are not on one bus.
+     */
+    public static void sweepAll(BrickPiSPI[] boards, PortSweep[] sweeps) throws IOException {
+    	if (boards.length == 0) {
+    		return;
+    	}
+    	BrickPiSPI first = boards[0];
+    	for (BrickPiSPI board : boards) {
+    		if (board.busLock != first.busLock) {
+    			throw new IllegalArgumentException("BrickPis are on different buses");
+    		}
+    	}
+    	first.busLock.lock();
+    	try {
+    		long start = System.nanoTime();
+    		int total = 0;
+    		for (int i = 0; i < boards.length; i++) {
+    			sweeps[i].start(start);
+    			boards[i].pipelineCount = boards[i].encodeSweep(sweeps[i]);
+    			total += boards[i].pipelineCount;
+    		}
+    		if (first.isPipelined()) {
+    			if (first.busBatch.length < total) {
+    				first.busBatch = new byte[total][];
+    			}
+    			int count = 0;
+    			for (BrickPiSPI board : boards) {
+    				System.arraycopy(board.pipeline, 0, first.busBatch, count, board.pipelineCount);
+    				count += board.pipelineCount;
+    			}
+    			first.sendAllToBrickPi(first.busBatch, total);
+    		} else {
+    			// one frame at a time anyway, so each board records its own
+    			for (BrickPiSPI board : boards) {
+    				board.sendAllToBrickPi(board.pipeline, board.pipelineCount);
+    			}
+    		}
+    		long readTime = System.nanoTime();
+    		boolean ok = true;
+    		for (int i = 0; i < boards.length; i++) {
+    			ok &= boards[i].decodeSweep(sweeps[i], readTime);
+    		}
+    		if (!ok) {
+    			throw new IOException("failed setMotorPower");
+    		}
+    	} finally {
+    		first.busLock.unlock();
+    	}
+    }
+    
+    /**
+     * Returns true if the other BrickPi shares this one's bus, so the two
+     * can be swept together by {@link #sweepAll(BrickPiSPI[], PortSweep[])}.
+     */
+    public boolean sharesBus(BrickPiSPI other) {
+    	return busLock == other.busLock;
+    }
+    
+    /**
+     * Encode a sweep's power changes and reads into the pipeline. Called
+     * holding the bus lock.
+     *
+     * @return the number of frames.
+     */
+    private int encodeSweep(PortSweep sweep) throws IOException {
+    	int count = 0;
+    	for (MotorPort mPort : MOTOR_PORTS) {
+    		if (sweep.isMotorPowerPending(mPort)) {
+    			pipeline[count++] = encodeMotorPower(mPort, sweep.getMotorPower(mPort));
+    		}
+    	}
+    	for (SensorPort sPort : SENSOR_PORTS) {
+    		if (sweep.isSensorRead(sPort)) {
+    			Sensor sensor = sensorMap.get(sPort);
+    			if (sensor == null) {
+    				throw new IOException("Sensor not initialized on " + sPort);
+    			}
+    			pipeline[count++] = encodeSensorRead(sPort, sensor);
+    		}
+    	}
+    	for (MotorPort mPort : MOTOR_PORTS) {
+    		if (sweep.isMotorRead(mPort)) {
+    			pipeline[count++] = codec.encodeRead(BrickPiCodec.getStatusMessage(mPort));
+    		}
+    	}
+    	return count;
+    }
+    
+    /**
+     * Take a sweep's results out of the answered pipeline. Called holding
+     * the bus lock.
+     *
+     * @param readTime when the responses were received.
+     * @return false if a power change failed.
+     */
+    private boolean decodeSweep(PortSweep sweep, long readTime) throws IOException {
+    	TelemetryLog log = telemetryLog;
+    	if (log != null) {
+    		logSnapshot.start(sweep.getStartTime());
+    	}
+    	int count = 0;
+    	boolean powerFailed = false;
+    	for (MotorPort mPort : MOTOR_PORTS) {
+    		if (sweep.isMotorPowerPending(mPort)) {
+    			if (verifyTransaction(pipeline[count++])) {
+    				sweep.powerSent(mPort);
+    			} else {
+    				powerFailed = true;
+    			}
+    		}
+    	}
+    	for (SensorPort sPort : SENSOR_PORTS) {
+    		byte[] result = null;
+    		Sensor sensor = sensorMap.get(sPort);
+    		if (sweep.isSensorRead(sPort)) {
+    			result = sensorResult(sensor, pipeline[count++]);
+    			sweep.sensorRead(sPort, sensor, result != null);
+    		}
+    		if (log != null) {
+    			snapshotSensor(logSnapshot, sPort, sensor, result);
+    		}
+    	}
+    	for (MotorPort mPort : MOTOR_PORTS) {
+    		if (sweep.isMotorRead(mPort)) {
+    			MotorStatus status = sweep.getMotorStatus(mPort);
+    			boolean valid = motorStatusResult(pipeline[count++], status);
+    			sweep.motorRead(mPort, valid);
+    			if (valid) {
+    				updateMotor(mPort, readTime, status);
+    			}
+    			if (log != null) {
+    				logSnapshot.motorRead(mPort.ordinal(), valid, status);
+    			}
+    		} else if (log != null) {
+    			logSnapshot.motorRead(mPort.ordinal(), false, null);
+    		}
+    	}
+    	sweep.end(System.nanoTime());
+    	if (log != null) {
+    		logSnapshot.end(sweep.getEndTime());
+    		log.append(logSnapshot);
+    	}
+    	return !powerFailed;
+    }
+    
+    /**
+     * Poll every configured sensor and motor, holding the bus, then publish
+     * the results to the port snapshot. Called from the update thread
+     * started by setUpdateDelay.
+     */
+    @Override
+    protected void updateValues() throws IOException {
+    	busLock.lock();
+    	try {
+    		pollSnapshot.start(System.nanoTime());
+    		int count = 0;
+    		for (SensorPort sPort : SENSOR_PORTS) {
+    			Sensor sensor = sensorMap.get(sPort);
+    			if (sensor != null) {
+    				pipeline[count++] = encodeSensorRead(sPort, sensor);
+    			}
+    		}
+    		for (MotorPort mPort : MOTOR_PORTS) {
+    			if (motorPortSettings[mPort.ordinal()] != null) {
+    				pipeline[count++] = codec.encodeRead(BrickPiCodec.getStatusMessage(mPort));
+    			}
+    		}
+    		sendAllToBrickPi(pipeline, count);
+    		long readTime = System.nanoTime();
+    		count = 0;
+    		for (SensorPort sPort : SENSOR_PORTS) {
+    			Sensor sensor = sensorMap.get(sPort);
+    			byte[] result = sensor == null ? null : sensorResult(sensor, pipeline[count++]);
+    			snapshotSensor(pollSnapshot, sPort, sensor, result);
+    		}
+    		for (MotorPort mPort : MOTOR_PORTS) {
+    			boolean valid = motorPortSettings[mPort.ordinal()] != null
+    					&& motorStatusResult(pipeline[count++], pollStatus);
+    			if (valid) {
+    				updateMotor(mPort, readTime, pollStatus);
+    			}
+    			pollSnapshot.motorRead(mPort.ordinal(), valid, pollStatus);
+    		}
+    		pollSnapshot.end(System.nanoTime());
+    		if (telemetryLog != null) {
+    			telemetryLog.append(pollSnapshot);
+    		}
+    	} finally {
+    		busLock.unlock();
+    	}
+    	portSnapshot.publish(pollSnapshot);
+    }
+    
+    /**
+     * Pass a polled position to the port's motor, for its speed estimate.
+     */
+    private void updateMotor(MotorPort mPort, long readTime, MotorStatus status) {
+    	Motor motor = motorPortSettings[mPort.ordinal()];
+    	if (motor != null) {
+    		motor.updateEncoder(readTime, status.position);
+    	}
+    }
+    
+    /**
+     * Returns the live port snapshot, updated by the update thread. Take a
+     * copy with {@link PortSnapshot#copyTo(PortSnapshot)} to read it.
+     *
+     * @see #setUpdateDelay(int)
+     */
+    public PortSnapshot getPortSnapshot() {
+    	return portSnapshot;
+    }
+    
+    /**
+     * Record a sensor read in a snapshot.
+     *
+     * @param result the verified response, or null if the read failed or
+     * the port was not read.
+     */
+    private static void snapshotSensor(PortSnapshot into, SensorPort sPort, Sensor sensor, byte[] result) {
+    	if (result == null) {
+    		into.sensorRead(sPort.ordinal(), false, 0, 0, 0, 0);
+    	} else {
+    		int valueLength = sensor.getSensorTypeEnum().getPayloadSize() - 2;
+    		into.sensorRead(sPort.ordinal(), true,
+    				BrickPiCodec.decodeSensorType(result),
+    				BrickPiCodec.decodeSensorState(result),
+    				BrickPiCodec.decodeSensorValue(result, valueLength),
+    				BrickPiCodec.decodeSensorRaw(result, valueLength));
+    	}
+    }
+    
+    /**
+     * Log every poll of the update thread, and every sweep, to a telemetry
+     * log. The log is written while the bus is held and must not be shared
+     * with another BrickPi.
+     *
+     * @param telemetryLog the log, or null to stop logging.
+     */
+    public void setTelemetryLog(TelemetryLog telemetryLog) {
+    	busLock.lock();
+    	try {
+    		this.telemetryLog = telemetryLog;
+    	} finally {
+    		busLock.unlock();
+    	}
+    }
+    
+    public TelemetryLog getTelemetryLog() {
+    	busLock.lock();
+    	try {
+    		return telemetryLog;
+    	} finally {
+    		busLock.unlock();
     	}
-        
     }
     
     /*
@@ -248,156 +659,318 @@ public class BrickPiSPI extends BrickPiCommunications implements IBrickPi {
     
     //Custom message
     public void getManufacturer() throws IOException {
-    	byte[] packet = buildByteMessageArray(BPSPI_MESSAGE_TYPE.GET_MANUFACTURER.getPayloadSize());
-    	
-    	packet[0] = brickPiAddress;
-    	packet[1] = BPSPI_MESSAGE_TYPE.GET_MANUFACTURER.getByte();
-    	
-    	byte[] result = sendToBrickPi(packet);
-    	
-    	if(verifyTransaction(result)==false) {
-    		throw new IOException("get Manufacturer failed");
-    	}
-
-    	if(DEBUG_LEVEL>0) {
-    		for(int i=4;i<result.length;i++) {
-    			System.out.print(Character.toString((char)result[i]));		
+    	readManufacturer();
+    }
+    
+    // called from the constructors, so subclasses can't override it
+    private void readManufacturer() throws IOException {
+    	busLock.lock();
+    	try {
+    		byte[] packet = codec.encodeRead(BPSPI_MESSAGE_TYPE.GET_MANUFACTURER);
+    		
+    		byte[] result = sendToBrickPi(packet);
+    		
+    		if(verifyTransaction(result)==false) {
+    			throw new IOException("get Manufacturer failed");
     		}
-    		System.out.println("");    		
+    		
+    		if(DEBUG_LEVEL>0) {
+    			LOGGER.info("Manufacturer " + BrickPiCodec.decodeString(result, new StringBuilder()));
+    		}
+    	} finally {
+    		busLock.unlock();
     	}
-    	
-    	return;
     }
 
 	@Override
 	public void setMotorPosition(MotorPort motorPort[], int position) throws IOException {
-    	byte[] packet = buildByteMessageArray(BPSPI_MESSAGE_TYPE.SET_MOTOR_POSITION.getPayloadSize());
-    	
-    	packet[0] = brickPiAddress;
-    	packet[1] = BPSPI_MESSAGE_TYPE.SET_MOTOR_POSITION.getByte();
-    	packet[2] = (byte)getMotorPortsFromArray(motorPort);
-    	packet[3] = (byte)((position >> 24) & 0xFF);
-    	packet[4] = (byte)((position >> 16) & 0xFF);
-    	packet[5] = (byte)((position >> 8) & 0xFF);
-    	packet[6] = (byte)(position & 0xFF);
-    	byte[] result = sendToBrickPi(packet);
-    	
-    	if(verifyTransaction(result)==false) {
-    		throw new IOException("get Manufacturer failed");
-    	}
+		setMotorPosition(getMotorPortsFromArray(motorPort), position);
+	}
+	
+	private void setMotorPosition(int motorPorts, int position) throws IOException {
+		busLock.lock();
+		try {
+			byte[] packet = codec.encodeSetMotorPosition(motorPorts, position);
+			byte[] result = sendToBrickPi(packet);
+			
+			if(verifyTransaction(result)==false) {
+				throw new IOException("get Manufacturer failed");
+			}
+		} finally {
+			busLock.unlock();
+		}
 	}
 
 	@Override
 	public void setMotorEncoderOffset(MotorPort motorPort[], int offset) throws IOException {
-    	byte[] packet = buildByteMessageArray(BPSPI_MESSAGE_TYPE.OFFSET_MOTOR_ENCODER.getPayloadSize());
-
-		packet[0] = brickPiAddress;
-		packet[1] = BPSPI_MESSAGE_TYPE.OFFSET_MOTOR_ENCODER.getByte();
-		packet[2] = (byte)getMotorPortsFromArray(motorPort);
-		packet[3] = (byte)((offset >> 24) & 0xFF);
-		packet[4] = (byte)((offset >> 16) & 0xFF);
-		packet[5] = (byte)((offset >> 8) & 0xFF);
-		packet[6] = (byte)(offset & 0xFF);
-		
+		busLock.lock();
+		try {
+			byte[] packet = codec.encodeOffsetMotorEncoder(getMotorPortsFromArray(motorPort), offset);
+			
+			byte[] result = sendToBrickPi(packet);
+			
+			if(verifyTransaction(result)==false) {
+				throw new IOException("get Manufacturer failed");
+			}
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setMotorDps(MotorPort motorPort[], int dps) throws IOException {
+		busLock.lock();
+		try {
+			// one message for the motors turning each way
+			motorBatch.clear();
+			for(MotorPort mPort : motorPort) {
+				motorBatch.setDps(mPort, dps);
+			}
+			sendMotorBatch(motorBatch, "setMotorDps");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setMotorPositionKp(MotorPort motorPort[], int kp) throws IOException {
+		busLock.lock();
+		try {
+			sendMotorCommand(codec.encodeSetMotorPositionKp(getMotorPortsFromArray(motorPort), kp), "setMotorPositionKp");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setMotorPositionKd(MotorPort motorPort[], int kd) throws IOException {
+		busLock.lock();
+		try {
+			sendMotorCommand(codec.encodeSetMotorPositionKd(getMotorPortsFromArray(motorPort), kd), "setMotorPositionKd");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setMotorDpsKp(MotorPort motorPort[], int kp) throws IOException {
+		busLock.lock();
+		try {
+			sendMotorCommand(codec.encodeSetMotorDpsKp(getMotorPortsFromArray(motorPort), kp), "setMotorDpsKp");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setMotorDpsKd(MotorPort motorPort[], int kd) throws IOException {
+		busLock.lock();
+		try {
+			sendMotorCommand(codec.encodeSetMotorDpsKd(getMotorPortsFromArray(motorPort), kd), "setMotorDpsKd");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setMotorLimits(MotorPort motorPort[], int power, int dps) throws IOException {
+		busLock.lock();
+		try {
+			sendMotorCommand(codec.encodeSetMotorLimits(getMotorPortsFromArray(motorPort), power, dps), "setMotorLimits");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send an encoded motor command. The caller holds the bus from encoding
+	 * to the response, since the codec reuses the frame.
+	 */
+	private void sendMotorCommand(byte[] packet, String name) throws IOException {
 		byte[] result = sendToBrickPi(packet);
-    	
-    	if(verifyTransaction(result)==false) {
-    		throw new IOException("get Manufacturer failed");
-    	}
+		
+		if(verifyTransaction(result)==false) {
+			throw new IOException(name + " failed");
+		}
 	}
 	
 	@Override
 	public void setMotorPositionRelative(MotorPort motorPorts[], int degrees) throws IOException {
-		for(MotorPort motorPort : motorPorts) {
-			// assign error to the error value returned by get_motor_encoder, and if not 0:
-			int encoder = getMotorEncoder(motorPort);
-		
-			// assign error to the error value returned by get_motor_encoder, and if not 0:
-			setMotorPosition(new MotorPort[] {motorPort}, (encoder + degrees));
-	    }
+		// hold the bus so that nothing moves the target between read and write
+		busLock.lock();
+		try {
+			motorBatch.clear();
+			for(MotorPort motorPort : motorPorts) {
+				motorBatch.setPositionRelative(motorPort, degrees);
+			}
+			sendMotorBatch(motorBatch, "setMotorPositionRelative");
+		} finally {
+			busLock.unlock();
+		}
 	}	
+	
+	@Override
+	public void setMotors(MotorBatch batch) throws IOException {
+		busLock.lock();
+		try {
+			sendMotorBatch(batch, "setMotors");
+		} finally {
+			busLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send a batch of motor commands in as few messages as the values 
+	 * allow, back to back: the ports given the same message and value share
+	 * its mask. The encoders of the relative targets are read together 
+	 * first. The caller holds the bus.
+	 */
+	private void sendMotorBatch(MotorBatch batch, String name) throws IOException {
+		int count = 0;
+		for(MotorPort mPort : MOTOR_PORTS) {
+			if(batch.getTarget(mPort) == MotorBatch.Target.RELATIVE) {
+				pipeline[count++] = codec.encodeRead(BrickPiCodec.getEncoderMessage(mPort));
+			}
+		}
+		if(count > 0) {
+			sendAllToBrickPi(pipeline, count);
+			count = 0;
+			for(MotorPort mPort : MOTOR_PORTS) {
+				if(batch.getTarget(mPort) == MotorBatch.Target.RELATIVE) {
+					byte[] result = pipeline[count++];
+					if(verifyTransaction(result)==false) {
+						throw new IOException(name + " failed to read the encoder");
+					}
+					batchEncoders[mPort.ordinal()] = BrickPiCodec.decodeEncoder(result);
+				}
+			}
+		}
+		int grouped = 0;
+		count = 0;
+		for(MotorPort mPort : MOTOR_PORTS) {
+			MotorBatch.Target target = batch.getTarget(mPort);
+			if(target == MotorBatch.Target.NONE || (grouped & mPort.getPort()) != 0) {
+				continue;
+			}
+			int value = batchValue(batch, mPort);
+			int mask = 0;
+			for(int i = mPort.ordinal(); i < MOTOR_PORTS.length; i++) {
+				MotorPort other = MOTOR_PORTS[i];
+				if(sameMessage(target, batch.getTarget(other)) && batchValue(batch, other) == value) {
+					mask |= other.getPort();
+				}
+			}
+			grouped |= mask;
+			byte[] packet;
+			switch(target) {
+			case POWER:
+				packet = codec.encodeSetMotorPower(mask, value);
+				break;
+			case DPS:
+				packet = codec.encodeSetMotorDps(mask, value);
+				break;
+			default:
+				packet = codec.encodeSetMotorPosition(mask, value);
+				break;
+			}
+			pipeline[count] = copyFrame(batchFrames, count, packet);
+			count++;
+		}
+		if(count == 0) {
+			return;
+		}
+		sendAllToBrickPi(pipeline, count);
+		boolean failed = false;
+		for(int i = 0; i < count; i++) {
+			if(verifyTransaction(pipeline[i])==false) {
+				failed = true;
+			}
+		}
+		if(failed) {
+			throw new IOException(name + " failed");
+		}
+	}
+	
+	/**
+	 * The value a port's command is sent with: powers and speeds in the 
+	 * board's direction, relative targets added to the encoder read.
+	 */
+	private int batchValue(MotorBatch batch, MotorPort mPort) throws IOException {
+		int value = batch.getValue(mPort);
+		Motor mConfig = motorPortSettings[mPort.ordinal()];
+		switch(batch.getTarget(mPort)) {
+		case POWER:
+			if(mConfig==null) {
+				throw new IOException("Motor not initialize");
+			}
+			return value * mConfig.getDirectionVector();
+		case DPS:
+			return mConfig == null ? value : value * mConfig.getDirectionVector();
+		case RELATIVE:
+			return batchEncoders[mPort.ordinal()] + value;
+		default:
+			return value;
+		}
+	}
+	
+	/**
+	 * Relative and absolute positions are both SET_MOTOR_POSITION.
+	 */
+	private static boolean sameMessage(MotorBatch.Target target, MotorBatch.Target other) {
+		if(target == MotorBatch.Target.RELATIVE) {
+			target = MotorBatch.Target.POSITION;
+		}
+		if(other == MotorBatch.Target.RELATIVE) {
+			other = MotorBatch.Target.POSITION;
+		}
+		return target == other;
+	}
 
 	@Override
 	public int getMotorEncoder(MotorPort motorPort) throws IOException {
 		int value = 0;
-		BPSPI_MESSAGE_TYPE msg = getMotorEncodeFromPort(motorPort);
-    	byte[] packet = buildByteMessageArray(msg.getPayloadSize());
-
-		packet[0] = brickPiAddress;
-		packet[1] = msg.getByte();
-		
-		byte[] result = sendToBrickPi(packet);
-    	
-    	if(verifyTransaction(result)==true) {
-    		//If this result verifies
-    		value = ((result[4] << 24) | 
-    				(result[5] << 16) | 
-    				(result[6] << 8) | 
-    				result[7]);
-    	}
-    	
+		busLock.lock();
+		try {
+			byte[] packet = codec.encodeRead(BrickPiCodec.getEncoderMessage(motorPort));
+			
+			byte[] result = sendToBrickPi(packet);
+			
+			if(verifyTransaction(result)==true) {
+				//If this result verifies
+				value = BrickPiCodec.decodeEncoder(result);
+			}
+		} finally {
+			busLock.unlock();
+		}
 		return value;
 	}
 
 	@Override
 	public MotorStatus getMotorStatus(MotorPort motorPort) throws IOException {
-		BPSPI_MESSAGE_TYPE msg = getMotorStatusFromPort(motorPort);
-    	byte[] packet = buildByteMessageArray(msg.getPayloadSize());		
-		packet[0] = brickPiAddress;
-		packet[1] = msg.getByte();		
-		byte[] result = sendToBrickPi(packet);
-
-		int state = result[4];
-		int power = result[5];
-		int position = ((result[6] << 24) | 
-						(result[7] << 16) | 
-						(result[8] << 8) | 
-						result[9]);
-		int dps = ((result[10] << 8) | result[11]);
-		
-		MotorStatus motorStatus = new MotorStatus(state, power, position, dps);
-		return motorStatus;
+		return getMotorStatus(motorPort, new MotorStatus());
 	}
 	
-	private BPSPI_MESSAGE_TYPE getMotorEncodeFromPort(MotorPort motorPort) throws IOException {
-		BPSPI_MESSAGE_TYPE msg;
-		switch(motorPort) {
-		case MA:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_A_ENCODER;
-			break;
-		case MB:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_B_ENCODER;
-			break;
-		case MC:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_C_ENCODER;
-			break;
-		case MD:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_D_ENCODER;
-			break;
-		default:
-			throw new IOException("Incorrect Port");
+	@Override
+	public MotorStatus getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException {
+		busLock.lock();
+		try {
+			readMotorStatus(motorPort, motorStatus);
+		} finally {
+			busLock.unlock();
 		}
-		return msg;
+		return motorStatus;
 	}
 	
-	private BPSPI_MESSAGE_TYPE getMotorStatusFromPort(MotorPort motorPort) throws IOException {
-		BPSPI_MESSAGE_TYPE msg;
-		switch(motorPort) {
-		case MA:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS;
-			break;
-		case MB:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_B_STATUS;
-			break;
-		case MC:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_C_STATUS;
-			break;
-		case MD:
-			msg = BPSPI_MESSAGE_TYPE.GET_MOTOR_D_STATUS;
-			break;
-		default:
-			throw new IOException("Incorrect Port");
+	private boolean readMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException {
+    	byte[] packet = codec.encodeRead(BrickPiCodec.getStatusMessage(motorPort));		
+		return motorStatusResult(sendToBrickPi(packet), motorStatus);
+	}
+	
+	private boolean motorStatusResult(byte[] result, MotorStatus motorStatus) {
+		if (verifyTransaction(result)) {
+			BrickPiCodec.decodeMotorStatus(result, motorStatus);
+			return true;
 		}
-		return msg;
-	}	
+		return false;
+	}
 }
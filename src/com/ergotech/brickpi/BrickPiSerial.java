@@ -0,0 +1,105 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.serial.SerialLink;
+
+/**
+ * Experimental: a BrickPi on a serial port. The commands are exactly those
+ * of BrickPiSPI, carried over a {@link SerialLink}, and the bulk reads are
+ * pipelined on the link.
+ *
+ * This needs custom firmware on the board that takes BrickPi3 SPI messages
+ * in the {@link com.ergotech.brickpi.serial.SerialFraming} framing. It does
+ * not speak the original RS232 BrickPi protocol, and a board running the
+ * stock firmware will not answer, so {@link BrickPiFactory} does not hand
+ * it out for RS232. Construct it directly only for a board running such
+ * firmware.
+ */
+public class BrickPiSerial extends BrickPiSPI {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrickPiSerial.class.getName());
+
+    /**
+     * The serial port used when none is given, unless the
+     * brickpi.serial.port system property is set.
+     */
+    public static final String DEFAULT_PORT = "/dev/ttyAMA0";
+
+    /**
+     * The instances opened, one per port and address.
+     */
+    private static final Map<String, BrickPiSerial> boards = new HashMap<String, BrickPiSerial>();
+
+    private final SerialLink link;
+
+    /**
+     * Return the brick pi at the address on the default serial port.
+     *
+     * @param address the address of the BrickPi.
+     * @return the brick pi instance, or null if it could not be opened.
+     */
+    public static BrickPiSerial getBrickPi(byte address) {
+        return getBrickPi(System.getProperty("brickpi.serial.port", DEFAULT_PORT), address);
+    }
+
+    /**
+     * Return the brick pi at the address on a serial port, opening it on
+     * first use.
+     *
+     * @param port the serial device.
+     * @param address the address of the BrickPi.
+     * @return the brick pi instance, or null if it could not be opened.
+     */
+    public static synchronized BrickPiSerial getBrickPi(String port, byte address) {
+        String key = port + "#" + (address & 0xFF);
+        BrickPiSerial brickPi = boards.get(key);
+        if (brickPi == null) {
+            SerialLink link = null;
+            try {
+                link = SerialLink.open(port, SerialLink.DEFAULT_BAUD);
+                brickPi = new BrickPiSerial(address, link);
+                boards.put(key, brickPi);
+                brickPi.registerStatistics(key);
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+                if (link != null) {
+                    try {
+                        link.close();
+                    } catch (IOException closeEx) {
+                        LOGGER.error(closeEx.getMessage(), closeEx);
+                    }
+                }
+            }
+        }
+        return brickPi;
+    }
+
+    /**
+     * Create a brick pi instance on an open link.
+     *
+     * @param address the address of the BrickPi.
+     * @param link the link to communicate through.
+     */
+    public BrickPiSerial(byte address, SerialLink link) throws IOException {
+        super(address, link);
+        this.link = link;
+    }
+
+    public SerialLink getLink() {
+        return link;
+    }
+}
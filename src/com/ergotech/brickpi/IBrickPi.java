@@ -12,7 +12,10 @@ public interface IBrickPi {
 	
 	/**
 	 * Initialize a new motor.  Use this to set the direction
-	 * and resolution.
+	 * and resolution. A motor still at
+	 * {@link Motor#DEFAULT_TICKS_PER_REVOLUTION} is set to 360 ticks, as
+	 * the BrickPi reports its encoders in degrees; a resolution the caller
+	 * has set is kept.
 	 * @param motor
 	 * @param motorPort
 	 */
@@ -56,6 +59,72 @@ public interface IBrickPi {
 	 */
 	public void setMotorEncoderOffset(MotorPort motorPort[], int offset) throws IOException;
 	
+	/**
+	 * Hold the motors at a speed. The speed loop runs in the BrickPi 
+	 * firmware, so no further traffic is needed to keep the speed.
+	 * @param motorPort
+	 * @param dps A 16-bit signed value to specify the target speed in 
+	 * degrees per second, -32,768 to 32,767. Reversed for a motor set 
+	 * counter clockwise, as for setMotor.
+	 * @throws IOException
+	 */
+	public void setMotorDps(MotorPort motorPort[], int dps) throws IOException;
+	
+	/**
+	 * Set the proportional gain of the firmware position loop.
+	 * @param motorPort
+	 * @param kp 0 to 255.
+	 * @throws IOException
+	 */
+	public void setMotorPositionKp(MotorPort motorPort[], int kp) throws IOException;
+	
+	/**
+	 * Set the derivative gain of the firmware position loop.
+	 * @param motorPort
+	 * @param kd 0 to 255.
+	 * @throws IOException
+	 */
+	public void setMotorPositionKd(MotorPort motorPort[], int kd) throws IOException;
+	
+	/**
+	 * Set the proportional gain of the firmware speed loop.
+	 * @param motorPort
+	 * @param kp 0 to 255.
+	 * @throws IOException
+	 */
+	public void setMotorDpsKp(MotorPort motorPort[], int kp) throws IOException;
+	
+	/**
+	 * Set the derivative gain of the firmware speed loop.
+	 * @param motorPort
+	 * @param kd 0 to 255.
+	 * @throws IOException
+	 */
+	public void setMotorDpsKd(MotorPort motorPort[], int kd) throws IOException;
+	
+	/**
+	 * Limit the power and speed the firmware uses to reach a position or 
+	 * speed.
+	 * @param motorPort
+	 * @param power the largest power, 0 to 100, or 0 for no limit.
+	 * @param dps the largest speed in degrees per second, 0 to 32,767, or 
+	 * 0 for no limit.
+	 * @throws IOException
+	 */
+	public void setMotorLimits(MotorPort motorPort[], int power, int dps) throws IOException;
+
+	/**
+	 * Give several motors their commands together. Only motors given the
+	 * same command with the same value, after each motor's direction is
+	 * applied, share one message and start on the same tick. Every other
+	 * value gets a message of its own, sent back to back without releasing
+	 * the bus, so eg the two sides of a differential drive given unequal
+	 * powers start at least one transfer apart.
+	 * @param batch the command for each port. Left unchanged.
+	 * @throws IOException
+	 */
+	public void setMotors(MotorBatch batch) throws IOException;
+
 	/**
 	 * Set the sensor type on the port
 	 * @param sensor
@@ -87,4 +156,29 @@ public interface IBrickPi {
 	 * @throws IOException
 	 */
 	public MotorStatus getMotorStatus(MotorPort motorPort) throws IOException;
+	
+	/**
+	 * Get the current status of a motor into an existing holder, so that 
+	 * polling does not allocate.
+	 * @param motorPort
+	 * @param motorStatus the holder to update. Left unchanged if the read 
+	 * fails.
+	 * @return motorStatus
+	 * @throws IOException
+	 */
+	public MotorStatus getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException;
+	
+	/**
+	 * Perform a bulk sweep of the ports. Pending motor power changes are 
+	 * sent, then every configured sensor and motor status is read, in back 
+	 * to back transfers without releasing the bus. The BrickPi answers one 
+	 * message per transfer, so on plain SPI a sweep makes the same transfers 
+	 * as the individual calls and is no faster; what it adds is that no 
+	 * other caller's transfer lands between its reads.
+	 * @param sweep the ports to read and power changes to send. Updated 
+	 * with the results.
+	 * @return the sweep
+	 * @throws IOException
+	 */
+	public PortSweep sweep(PortSweep sweep) throws IOException;
 }
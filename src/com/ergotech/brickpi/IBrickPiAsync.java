@@ -0,0 +1,144 @@
+package com.ergotech.brickpi;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * The asynchronous counterpart of {@link IBrickPi}. Every call returns as
+ * soon as the request has been queued; the future completes when it has
+ * been executed on the bus, or completes exceptionally with the
+ * IOException that it raised.
+ *
+ * Requests are sent in the order submitted within each priority, so
+ * independent requests can be submitted back to back and overlapped
+ * with the caller's own work.
+ */
+public interface IBrickPiAsync {
+
+	/**
+	 * Initialize a new motor.  Use this to set the direction
+	 * and resolution.
+	 * @param motorPort
+	 * @param motor
+	 */
+	public CompletableFuture<Void> initializeMotor(MotorPort motorPort, Motor motor);
+
+	/**
+	 * Fire the motor
+	 * @param motorPort
+	 * @param power -100 to 100 for reverse full to
+	 * forward full, or greater than 100 for float.
+	 */
+	public CompletableFuture<Void> setMotor(MotorPort motorPort[], int power);
+
+	/**
+	 * @param motorPort
+	 * @param position target position in degrees.
+	 */
+	public CompletableFuture<Void> setMotorPosition(MotorPort motorPort[], int position);
+
+	/**
+	 * @param motorPort
+	 * @param degrees The relative target position in degrees
+	 */
+	public CompletableFuture<Void> setMotorPositionRelative(MotorPort motorPort[], int degrees);
+
+	/**
+	 * @param motorPort
+	 * @param offset motor encoder offset in degrees.
+	 */
+	public CompletableFuture<Void> setMotorEncoderOffset(MotorPort motorPort[], int offset);
+
+	/**
+	 * @param motorPort
+	 * @param dps the speed for the firmware to hold, in degrees per second.
+	 * @see IBrickPi#setMotorDps(MotorPort[], int)
+	 */
+	public CompletableFuture<Void> setMotorDps(MotorPort motorPort[], int dps);
+
+	/**
+	 * @param motorPort
+	 * @param kp the firmware position loop proportional gain, 0 to 255.
+	 */
+	public CompletableFuture<Void> setMotorPositionKp(MotorPort motorPort[], int kp);
+
+	/**
+	 * @param motorPort
+	 * @param kd the firmware position loop derivative gain, 0 to 255.
+	 */
+	public CompletableFuture<Void> setMotorPositionKd(MotorPort motorPort[], int kd);
+
+	/**
+	 * @param motorPort
+	 * @param kp the firmware speed loop proportional gain, 0 to 255.
+	 */
+	public CompletableFuture<Void> setMotorDpsKp(MotorPort motorPort[], int kp);
+
+	/**
+	 * @param motorPort
+	 * @param kd the firmware speed loop derivative gain, 0 to 255.
+	 */
+	public CompletableFuture<Void> setMotorDpsKd(MotorPort motorPort[], int kd);
+
+	/**
+	 * @param motorPort
+	 * @param power the largest power, or 0 for no limit.
+	 * @param dps the largest speed in degrees per second, or 0 for no limit.
+	 * @see IBrickPi#setMotorLimits(MotorPort[], int, int)
+	 */
+	public CompletableFuture<Void> setMotorLimits(MotorPort motorPort[], int power, int dps);
+
+	/**
+	 * Give several motors their commands together. The batch is copied, so
+	 * it may be reused as soon as this returns.
+	 * @param batch the command for each port.
+	 * @see IBrickPi#setMotors(MotorBatch)
+	 */
+	public CompletableFuture<Void> setMotors(MotorBatch batch);
+
+	/**
+	 * Set the sensor type on the port
+	 * @param sensor
+	 * @param port
+	 */
+	public CompletableFuture<Void> setSensor(Sensor sensor, SensorPort port);
+
+	/**
+	 * @param port
+	 * @return the sensor, updated with the value read.
+	 */
+	public <T extends Sensor> CompletableFuture<T> getSensor(SensorPort port);
+
+	/**
+	 * @param motorPort
+	 * @return the encoder position in degrees
+	 */
+	public CompletableFuture<Integer> getMotorEncoder(MotorPort motorPort);
+
+	/**
+	 * Get the current status of a motor.
+	 * @param motorPort
+	 */
+	public CompletableFuture<MotorStatus> getMotorStatus(MotorPort motorPort);
+
+	/**
+	 * Get the current status of a motor into an existing holder.
+	 * @param motorPort
+	 * @param motorStatus the holder to update. It must not be read until
+	 * the future completes.
+	 */
+	public CompletableFuture<MotorStatus> getMotorStatus(MotorPort motorPort, MotorStatus motorStatus);
+
+	/**
+	 * Perform a bulk sweep of the ports.
+	 * @param sweep the ports to read and power changes to send. It must not
+	 * be read or changed until the future completes.
+	 * @see IBrickPi#sweep(PortSweep)
+	 */
+	public CompletableFuture<PortSweep> sweep(PortSweep sweep);
+}
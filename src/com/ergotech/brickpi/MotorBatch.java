@@ -0,0 +1,155 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi;
+
+import java.util.Arrays;
+
+import com.ergotech.brickpi.motion.MotorPort;
+
+/**
+ * A set of motor commands to start together: a power, speed, position or
+ * relative position for any of the motor ports. Pass the batch to
+ * {@link IBrickPi#setMotors(MotorBatch)}. The firmware messages take a mask
+ * of ports and one value, so only the motors given the same command and
+ * value share one message and start on the same tick; motors given other
+ * values follow back to back, a transfer or more later, while holding the
+ * bus. The encoders of relative targets are read together first.
+ *
+ * Powers and speeds are in the motor's direction, as setMotor and
+ * setMotorDps take them; positions are in encoder degrees, as
+ * setMotorPosition takes them.
+ *
+ * A batch is intended to be created once and reused; it does not allocate
+ * once created. Sending it leaves the commands in place.
+ */
+public class MotorBatch {
+
+    /**
+     * The kinds of command a port can be given.
+     */
+    public enum Target {
+        NONE, POWER, DPS, POSITION, RELATIVE
+    };
+
+    private static final MotorPort[] PORTS = MotorPort.values();
+
+    private final Target[] targets = new Target[PORTS.length];
+    private final int[] values = new int[PORTS.length];
+
+    /**
+     * Create an empty batch.
+     */
+    public MotorBatch() {
+        Arrays.fill(targets, Target.NONE);
+    }
+
+    /**
+     * Set the power of a motor.
+     *
+     * @param port the motor port
+     * @param power -100 to 100, or greater than 100 for float.
+     * @return this batch
+     */
+    public MotorBatch setPower(MotorPort port, int power) {
+        return set(port, Target.POWER, power);
+    }
+
+    /**
+     * Hold a motor at a speed in the firmware's speed loop.
+     *
+     * @param port the motor port
+     * @param dps the speed in degrees per second.
+     * @return this batch
+     */
+    public MotorBatch setDps(MotorPort port, int dps) {
+        return set(port, Target.DPS, dps);
+    }
+
+    /**
+     * Send a motor to a position in the firmware's position loop.
+     *
+     * @param port the motor port
+     * @param position the target encoder position in degrees.
+     * @return this batch
+     */
+    public MotorBatch setPosition(MotorPort port, int position) {
+        return set(port, Target.POSITION, position);
+    }
+
+    /**
+     * Send a motor to a position relative to its encoder when the batch is
+     * sent.
+     *
+     * @param port the motor port
+     * @param degrees the degrees to add to the encoder.
+     * @return this batch
+     */
+    public MotorBatch setPositionRelative(MotorPort port, int degrees) {
+        return set(port, Target.RELATIVE, degrees);
+    }
+
+    /**
+     * Give a motor a command. A later command for the same port replaces
+     * the earlier one.
+     *
+     * @param port the motor port
+     * @param target the kind of command, NONE to leave the port out.
+     * @param value the power, speed, position or degrees.
+     * @return this batch
+     */
+    public MotorBatch set(MotorPort port, Target target, int value) {
+        targets[port.ordinal()] = target;
+        values[port.ordinal()] = target == Target.NONE ? 0 : value;
+        return this;
+    }
+
+    /**
+     * Remove every command.
+     *
+     * @return this batch
+     */
+    public MotorBatch clear() {
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = Target.NONE;
+            values[i] = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Replace the commands with another batch's.
+     *
+     * @return this batch
+     */
+    public MotorBatch copyFrom(MotorBatch batch) {
+        System.arraycopy(batch.targets, 0, targets, 0, targets.length);
+        System.arraycopy(batch.values, 0, values, 0, values.length);
+        return this;
+    }
+
+    public Target getTarget(MotorPort port) {
+        return targets[port.ordinal()];
+    }
+
+    public int getValue(MotorPort port) {
+        return values[port.ordinal()];
+    }
+
+    /**
+     * Returns true if no port has a command.
+     */
+    public boolean isEmpty() {
+        for (Target target : targets) {
+            if (target != Target.NONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
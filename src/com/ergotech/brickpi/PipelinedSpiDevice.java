@@ -0,0 +1,49 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+
+import com.pi4j.io.spi.SpiDevice;
+
+/**
+ * A device that can have several requests in flight, such as a serial link
+ * where each request is written as it is made and the responses follow. The
+ * bulk operations send up to {@link #getPipelineDepth()} requests before
+ * waiting for the first response, so that a slow link is not left idle
+ * between them. {@link SpiDevice#write(byte...)} still performs one
+ * transaction in place.
+ */
+public interface PipelinedSpiDevice extends SpiDevice {
+
+    /**
+     * Send a request without waiting for its response.
+     *
+     * @param frame the request. The response is written back into it by
+     * the time {@link #receive(int)} returns, so it must not be reused
+     * until then.
+     * @return the ticket to pass to receive.
+     * @throws IOException if the request could not be sent.
+     */
+    int send(byte[] frame) throws IOException;
+
+    /**
+     * Wait for the response to a request. Every ticket must be received,
+     * in any order.
+     *
+     * @param ticket the ticket returned by send.
+     * @throws IOException if no valid response arrived in time.
+     */
+    void receive(int ticket) throws IOException;
+
+    /**
+     * Returns the most requests that may be in flight at once.
+     */
+    int getPipelineDepth();
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * The state of every port as of the last completed poll. The poller
+ * publishes each poll into the live snapshot under a sequence lock, and
+ * readers take a consistent copy with {@link #copyTo(PortSnapshot)}: no bus
+ * access, no locks and no allocation. A reader that is overlapped by a
+ * publish simply copies again.
+ *
+ * The getters are intended for a reader's own copy. On the live snapshot
+ * each value may come from a different poll, and the long values may tear
+ * on a 32 bit VM.
+ *
+ * <pre>
+ * PortSnapshot mine = new PortSnapshot();
+ * brickPi.getPortSnapshot().copyTo(mine);
+ * int position = mine.getMotorPosition(MotorPort.MA);
+ * </pre>
+ */
+public final class PortSnapshot {
+
+    private static final VarHandle SEQUENCE;
+
+    static {
+        try {
+            SEQUENCE = MethodHandles.lookup().findVarHandle(PortSnapshot.class, "sequence", long.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static final int MOTORS = MotorPort.values().length;
+    private static final int SENSORS = SensorPort.values().length;
+
+    /**
+     * Even when stable, odd while a publish is in progress. Accessed through
+     * SEQUENCE.
+     */
+    @SuppressWarnings("unused")
+    private long sequence;
+
+    private long pollCount;
+    private long startTime;
+    private long endTime;
+
+    private final boolean[] motorValid = new boolean[MOTORS];
+    private final int[] motorState = new int[MOTORS];
+    private final int[] motorPower = new int[MOTORS];
+    private final int[] motorPosition = new int[MOTORS];
+    private final int[] motorDps = new int[MOTORS];
+
+    private final boolean[] sensorValid = new boolean[SENSORS];
+    private final int[] sensorType = new int[SENSORS];
+    private final int[] sensorState = new int[SENSORS];
+    private final int[] sensorValue = new int[SENSORS];
+    private final long[] sensorRaw = new long[SENSORS];
+
+    /**
+     * Take a consistent copy of this snapshot. Safe to call from any number
+     * of threads at once.
+     *
+     * @param into the reader's own snapshot.
+     * @return the sequence of the copy, which changes with every publish.
+     */
+    public long copyTo(PortSnapshot into) {
+        while (true) {
+            long stamp = (long) SEQUENCE.getAcquire(this);
+            if ((stamp & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            copy(this, into);
+            VarHandle.acquireFence();
+            if ((long) SEQUENCE.getOpaque(this) == stamp) {
+                SEQUENCE.setOpaque(into, stamp);
+                return stamp;
+            }
+        }
+    }
+
+    /**
+     * Publish a poll. Only ever called by the single poller thread.
+     *
+     * @param from the poll results.
+     */
+    void publish(PortSnapshot from) {
+        long stamp = (long) SEQUENCE.getOpaque(this);
+        SEQUENCE.setOpaque(this, stamp + 1);
+        VarHandle.releaseFence();
+        copy(from, this);
+        SEQUENCE.setRelease(this, stamp + 2);
+    }
+
+    private static void copy(PortSnapshot from, PortSnapshot to) {
+        to.pollCount = from.pollCount;
+        to.startTime = from.startTime;
+        to.endTime = from.endTime;
+        System.arraycopy(from.motorValid, 0, to.motorValid, 0, MOTORS);
+        System.arraycopy(from.motorState, 0, to.motorState, 0, MOTORS);
+        System.arraycopy(from.motorPower, 0, to.motorPower, 0, MOTORS);
+        System.arraycopy(from.motorPosition, 0, to.motorPosition, 0, MOTORS);
+        System.arraycopy(from.motorDps, 0, to.motorDps, 0, MOTORS);
+        System.arraycopy(from.sensorValid, 0, to.sensorValid, 0, SENSORS);
+        System.arraycopy(from.sensorType, 0, to.sensorType, 0, SENSORS);
+        System.arraycopy(from.sensorState, 0, to.sensorState, 0, SENSORS);
+        System.arraycopy(from.sensorValue, 0, to.sensorValue, 0, SENSORS);
+        System.arraycopy(from.sensorRaw, 0, to.sensorRaw, 0, SENSORS);
+    }
+
+    void start(long nanoTime) {
+        startTime = nanoTime;
+    }
+
+    void end(long nanoTime) {
+        endTime = nanoTime;
+        pollCount++;
+    }
+
+    void motorRead(int index, boolean valid, MotorStatus status) {
+        motorValid[index] = valid;
+        if (valid) {
+            motorState[index] = status.state;
+            motorPower[index] = status.power;
+            motorPosition[index] = status.position;
+            motorDps[index] = status.dps;
+        }
+    }
+
+    void sensorRead(int index, boolean valid, int type, int state, int value, long raw) {
+        sensorValid[index] = valid;
+        if (valid) {
+            sensorType[index] = type;
+            sensorState[index] = state;
+            sensorValue[index] = value;
+            sensorRaw[index] = raw;
+        }
+    }
+
+    /**
+     * Returns the sequence at which this copy was taken.
+     */
+    public long getSequence() {
+        return (long) SEQUENCE.getOpaque(this);
+    }
+
+    /**
+     * Returns the number of polls completed.
+     */
+    public long getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * Returns the System.nanoTime at the start of the poll.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the System.nanoTime at the end of the poll.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Returns true if the motor is configured and its last read verified.
+     * Otherwise the values are from the last good read, or zero.
+     */
+    public boolean isValid(MotorPort port) {
+        return motorValid[port.ordinal()];
+    }
+
+    public int getMotorState(MotorPort port) {
+        return motorState[port.ordinal()];
+    }
+
+    public int getMotorPower(MotorPort port) {
+        return motorPower[port.ordinal()];
+    }
+
+    /**
+     * Returns the encoder position in degrees.
+     */
+    public int getMotorPosition(MotorPort port) {
+        return motorPosition[port.ordinal()];
+    }
+
+    /**
+     * Returns the speed in degrees per second.
+     */
+    public int getMotorDps(MotorPort port) {
+        return motorDps[port.ordinal()];
+    }
+
+    /**
+     * Returns true if the sensor is configured and its last read verified.
+     * Otherwise the values are from the last good read, or zero.
+     */
+    public boolean isValid(SensorPort port) {
+        return sensorValid[port.ordinal()];
+    }
+
+    /**
+     * Returns the sensor type reported by the BrickPi.
+     */
+    public int getSensorType(SensorPort port) {
+        return sensorType[port.ordinal()];
+    }
+
+    /**
+     * Returns the sensor state, see Sensor.SENSOR_STATE.
+     */
+    public int getSensorState(SensorPort port) {
+        return sensorState[port.ordinal()];
+    }
+
+    /**
+     * Returns the sensor value as a signed integer of up to its first four
+     * bytes.
+     */
+    public int getSensorValue(SensorPort port) {
+        return sensorValue[port.ordinal()];
+    }
+
+    /**
+     * Returns up to the first eight value bytes of the sensor, big endian.
+     */
+    public long getSensorRaw(SensorPort port) {
+        return sensorRaw[port.ordinal()];
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi;
+
+import java.util.Arrays;
+
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * The request and result of a bulk sweep of the BrickPi ports. Configure the
+ * sensor and motor ports to read, queue any motor power changes, and pass
+ * the sweep to {@link IBrickPi#sweep(PortSweep)}. The pending power changes
+ * are sent first, then all of the reads, back to back, while holding the bus.
+ * Each read is still a transfer of its own, so the sweep takes the bus time
+ * of the individual reads; it keeps them together, it doesn't speed them up.
+ * 
+ * A sweep is intended to be created once and reused for every cycle; it
+ * does not allocate once created.
+ */
+public class PortSweep {
+
+    private final boolean[] sensorReads = new boolean[SensorPort.values().length];
+    private final boolean[] motorReads = new boolean[MotorPort.values().length];
+    private final boolean[] powerPending = new boolean[MotorPort.values().length];
+    private final int[] power = new int[MotorPort.values().length];
+
+    private final Sensor[] sensors = new Sensor[SensorPort.values().length];
+    private final MotorStatus[] motorStatus = new MotorStatus[MotorPort.values().length];
+    private final boolean[] valid = new boolean[SensorPort.values().length + MotorPort.values().length];
+
+    /**
+     * The System.nanoTime at the start and end of the last sweep.
+     */
+    private long startTime;
+    private long endTime;
+
+    /**
+     * Create an empty sweep.
+     */
+    public PortSweep() {
+        for (int i = 0; i < motorStatus.length; i++) {
+            motorStatus[i] = new MotorStatus();
+        }
+    }
+
+    /**
+     * Include or exclude the sensor port in each sweep.
+     *
+     * @param port the sensor port
+     * @param read true to read the port.
+     * @return this sweep
+     */
+    public PortSweep readSensor(SensorPort port, boolean read) {
+        sensorReads[port.ordinal()] = read;
+        return this;
+    }
+
+    /**
+     * Include or exclude the status of the motor port in each sweep.
+     *
+     * @param port the motor port
+     * @param read true to read the motor status.
+     * @return this sweep
+     */
+    public PortSweep readMotor(MotorPort port, boolean read) {
+        motorReads[port.ordinal()] = read;
+        return this;
+    }
+
+    /**
+     * Queue a motor power change to be sent with the next sweep. A later
+     * call for the same port replaces the earlier value.
+     *
+     * @param port the motor port
+     * @param power -100 to 100, or greater than 100 for float.
+     * @return this sweep
+     */
+    public PortSweep setMotorPower(MotorPort port, int power) {
+        this.power[port.ordinal()] = power;
+        powerPending[port.ordinal()] = true;
+        return this;
+    }
+
+    /**
+     * Drop every read and pending motor power change.
+     *
+     * @return this sweep
+     */
+    public PortSweep clear() {
+        Arrays.fill(sensorReads, false);
+        Arrays.fill(motorReads, false);
+        Arrays.fill(powerPending, false);
+        return this;
+    }
+
+    public boolean isSensorRead(SensorPort port) {
+        return sensorReads[port.ordinal()];
+    }
+
+    public boolean isMotorRead(MotorPort port) {
+        return motorReads[port.ordinal()];
+    }
+
+    public boolean isMotorPowerPending(MotorPort port) {
+        return powerPending[port.ordinal()];
+    }
+
+    public int getMotorPower(MotorPort port) {
+        return power[port.ordinal()];
+    }
+
+    /**
+     * Returns the sensor updated by the last sweep, or null if the port was
+     * not read.
+     *
+     * @param <T> the sensor associated with the port
+     * @param port the sensor port
+     * @return the sensor
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Sensor> T getSensor(SensorPort port) {
+        return (T) sensors[port.ordinal()];
+    }
+
+    /**
+     * Returns the status read by the last sweep. The instance is reused by
+     * every sweep.
+     *
+     * @param port the motor port
+     * @return the motor status
+     */
+    public MotorStatus getMotorStatus(MotorPort port) {
+        return motorStatus[port.ordinal()];
+    }
+
+    /**
+     * Whether the last sweep received a valid response for the sensor port.
+     */
+    public boolean isValid(SensorPort port) {
+        return valid[port.ordinal()];
+    }
+
+    /**
+     * Whether the last sweep received a valid response for the motor port.
+     */
+    public boolean isValid(MotorPort port) {
+        return valid[sensorReads.length + port.ordinal()];
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /*
+     * The results are filled in by the IBrickPi performing the sweep.
+     */
+
+    public void start(long time) {
+        startTime = time;
+    }
+
+    public void end(long time) {
+        endTime = time;
+    }
+
+    public void powerSent(MotorPort port) {
+        powerPending[port.ordinal()] = false;
+    }
+
+    public void sensorRead(SensorPort port, Sensor sensor, boolean isValid) {
+        sensors[port.ordinal()] = sensor;
+        valid[port.ordinal()] = isValid;
+    }
+
+    public void motorRead(MotorPort port, boolean isValid) {
+        valid[sensorReads.length + port.ordinal()] = isValid;
+    }
+}
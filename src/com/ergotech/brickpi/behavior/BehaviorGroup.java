@@ -0,0 +1,258 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.behavior;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A group of robot behaviours, each running in its own thread, that are
+ * started, cancelled and waited for together. By default every behaviour
+ * runs on a virtual thread, so a program can run thousands of small
+ * behaviours (watchdogs, blinkers, monitors) that simply block in IBrickPi
+ * calls or sleep.
+ *
+ * Groups nest: cancelling a group cancels its children, and joining it
+ * waits for them. If a behaviour fails the whole group is cancelled and the
+ * first failure is kept. Use with try-with-resources so that no behaviour
+ * outlives the block that started it:
+ * <pre>
+ * try (BehaviorGroup group = new BehaviorGroup("drive")) {
+ *     group.start("watchdog", () -&gt; ...);
+ *     group.start("blinker", () -&gt; ...);
+ *     group.join();
+ * }
+ * </pre>
+ */
+public class BehaviorGroup implements AutoCloseable {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(BehaviorGroup.class.getName());
+
+    /**
+     * The body of a behaviour. Behaviours should return promptly when
+     * interrupted, which is how they are cancelled. An exception thrown
+     * once the group has been cancelled, eg the InterruptedException of the
+     * cancel, is ignored; before that, even an InterruptedException from a
+     * stray interrupt is the behaviour's failure.
+     */
+    @FunctionalInterface
+    public interface Behavior {
+
+        void run() throws Exception;
+    }
+
+    private final String name;
+    private final Thread.Builder builder;
+    private final BehaviorGroup parent;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final Set<BehaviorGroup> children = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+
+    /**
+     * Create a group running each behaviour on a virtual thread.
+     *
+     * @param name the group name, used to name the threads.
+     */
+    public BehaviorGroup(String name) {
+        this(name, Thread.ofVirtual());
+    }
+
+    /**
+     * Create a group running each behaviour on a thread from the builder,
+     * eg Thread.ofPlatform().daemon() for a behaviour that must not share a
+     * carrier.
+     *
+     * @param name the group name, used to name the threads.
+     * @param builder builds the behaviour threads.
+     */
+    public BehaviorGroup(String name, Thread.Builder builder) {
+        this(name, builder, null);
+    }
+
+    private BehaviorGroup(String name, Thread.Builder builder, BehaviorGroup parent) {
+        this.name = name;
+        this.builder = builder;
+        this.parent = parent;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Create a group that is cancelled with this one and waited for by
+     * {@link #join()}. A failure in the child cancels this group too.
+     *
+     * @param name the child group name.
+     * @return the new group.
+     */
+    public BehaviorGroup newChild(String name) {
+        BehaviorGroup child = new BehaviorGroup(this.name + "/" + name, builder, this);
+        children.add(child);
+        if (cancelled) {
+            child.cancel();
+        }
+        return child;
+    }
+
+    /**
+     * Start a behaviour.
+     *
+     * @param name the behaviour name, used to name the thread.
+     * @param behavior the behaviour.
+     * @return the thread running it.
+     * @throws IllegalStateException if the group has been cancelled.
+     */
+    public Thread start(String name, Behavior behavior) {
+        if (cancelled) {
+            throw new IllegalStateException("Behavior group " + this.name + " cancelled");
+        }
+        Thread thread;
+        // builders are not thread safe
+        synchronized (builder) {
+            thread = builder.name(this.name + "/" + name).unstarted(() -> run(behavior));
+        }
+        threads.add(thread);
+        thread.start();
+        // a cancel racing with the start must still reach the new thread
+        if (cancelled) {
+            thread.interrupt();
+        }
+        return thread;
+    }
+
+    private void run(Behavior behavior) {
+        try {
+            behavior.run();
+        } catch (Throwable ex) {
+            // cancel sets the flag before it interrupts, so an interrupt
+            // that finds it clear came from somewhere else
+            if (!cancelled) {
+                fail(ex);
+            }
+        } finally {
+            threads.remove(Thread.currentThread());
+        }
+    }
+
+    private void fail(Throwable ex) {
+        if (failure == null) {
+            failure = ex;
+            LOGGER.error("Behavior failed in " + name, ex);
+        }
+        cancel();
+        if (parent != null) {
+            parent.fail(ex);
+        }
+    }
+
+    /**
+     * Cancel the group: interrupt every behaviour, here and in the child
+     * groups, and refuse new ones. Does not wait for them to finish.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (BehaviorGroup child : children) {
+            child.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the first failure of a behaviour in the group or its children,
+     * or null.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of behaviours still running in this group and its
+     * children.
+     */
+    public int getActiveCount() {
+        int count = threads.size();
+        for (BehaviorGroup child : children) {
+            count += child.getActiveCount();
+        }
+        return count;
+    }
+
+    /**
+     * Wait for every behaviour in the group and its children to finish.
+     *
+     * @throws InterruptedException if the caller is interrupted.
+     */
+    public void join() throws InterruptedException {
+        join(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait for every behaviour in the group and its children to finish.
+     *
+     * @param timeout the longest time to wait.
+     * @param unit the unit of timeout.
+     * @return true if they have all finished.
+     * @throws InterruptedException if the caller is interrupted.
+     */
+    public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        for (BehaviorGroup child : children) {
+            if (!child.join(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        while (!threads.isEmpty()) {
+            for (Thread thread : threads) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                thread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cancel the group and wait for its behaviours to finish. An interrupt
+     * while waiting is restored rather than thrown.
+     */
+    @Override
+    public void close() {
+        cancel();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (parent != null) {
+            parent.children.remove(this);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.cache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * A read-through cache in front of an IBrickPi. Each sensor, encoder and
+ * motor status read may pass the oldest reading it will accept; a reading
+ * that young is served from per-port slots without going to the BrickPi,
+ * and anything older is read and kept for the next caller. The IBrickPi
+ * methods without an age use the default age, which is 0 (always read)
+ * unless set.
+ *
+ * A reading is aged from the time its read was started, so it is never
+ * younger than it claims. A status read also refreshes the encoder, and a
+ * sweep refreshes every port it reads. Motor commands mark the status of
+ * their ports stale, since the power and state change, but not the encoder;
+ * an encoder offset, a new motor or a new sensor mark their slots stale.
+ * A read that was under way when its port was marked stale is returned but
+ * not kept, as it may predate the change.
+ *
+ * Relative positions are worked out from the cached encoder when it is
+ * young enough, and sent as absolute positions, saving the encoder read
+ * the BrickPi would make before the write.
+ *
+ * Any number of threads may share the cache. Each port has its own lock,
+ * so threads missing on the same port make one read between them, and a
+ * hit takes the lock only long enough to copy the slot. Hits do not
+ * allocate. The cache should be the only user of the target.
+ */
+public class CachedBrickPi implements IBrickPi {
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+
+    private final IBrickPi target;
+    private final LongSupplier clock;
+    private final ReadCacheStatistics statistics = new ReadCacheStatistics();
+    private volatile long defaultMaxAge;
+
+    private final ReentrantLock[] sensorLocks = new ReentrantLock[SENSOR_PORTS.length];
+    private final Sensor[] sensors = new Sensor[SENSOR_PORTS.length];
+    private final boolean[] sensorValid = new boolean[SENSOR_PORTS.length];
+    private final long[] sensorTimes = new long[SENSOR_PORTS.length];
+
+    private final ReentrantLock[] motorLocks = new ReentrantLock[MOTOR_PORTS.length];
+    private final int[] encoders = new int[MOTOR_PORTS.length];
+    private final boolean[] encoderValid = new boolean[MOTOR_PORTS.length];
+    private final long[] encoderTimes = new long[MOTOR_PORTS.length];
+    private final int[] states = new int[MOTOR_PORTS.length];
+    private final int[] powers = new int[MOTOR_PORTS.length];
+    private final int[] positions = new int[MOTOR_PORTS.length];
+    private final int[] speeds = new int[MOTOR_PORTS.length];
+    private final boolean[] statusValid = new boolean[MOTOR_PORTS.length];
+    private final long[] statusTimes = new long[MOTOR_PORTS.length];
+
+    // counted up, under the port's lock, each time a port is marked stale;
+    // a read is only kept if its port's count hasn't moved since it started
+    private final AtomicLongArray sensorGenerations = new AtomicLongArray(SENSOR_PORTS.length);
+    private final AtomicLongArray motorGenerations = new AtomicLongArray(MOTOR_PORTS.length);
+
+    /**
+     * One batch per calling thread for resolving relative positions.
+     */
+    private final ThreadLocal<MotorBatch> batches = ThreadLocal.withInitial(MotorBatch::new);
+
+    /**
+     * One set of port generations per calling thread, taken as a sweep
+     * starts, sensors then motors.
+     */
+    private final ThreadLocal<long[]> sweepGenerations =
+            ThreadLocal.withInitial(() -> new long[SENSOR_PORTS.length + MOTOR_PORTS.length]);
+
+    /**
+     * Create a cache that always reads unless a call passes an age.
+     *
+     * @param target the BrickPi to read.
+     */
+    public CachedBrickPi(IBrickPi target) {
+        this(target, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param target the BrickPi to read.
+     * @param defaultMaxAge the oldest reading served by the calls without
+     * an age.
+     * @param unit the unit of the age.
+     */
+    public CachedBrickPi(IBrickPi target, long defaultMaxAge, TimeUnit unit) {
+        this(target, defaultMaxAge, unit, System::nanoTime);
+    }
+
+    /**
+     * @param target the BrickPi to read.
+     * @param defaultMaxAge the oldest reading served by the calls without
+     * an age.
+     * @param unit the unit of the age.
+     * @param clock the time in nanoseconds, System.nanoTime or the clock
+     * the target runs on.
+     */
+    public CachedBrickPi(IBrickPi target, long defaultMaxAge, TimeUnit unit, LongSupplier clock) {
+        this.target = target;
+        this.clock = clock;
+        this.defaultMaxAge = unit.toNanos(defaultMaxAge);
+        for (int i = 0; i < sensorLocks.length; i++) {
+            sensorLocks[i] = new ReentrantLock();
+        }
+        for (int i = 0; i < motorLocks.length; i++) {
+            motorLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public IBrickPi getTarget() {
+        return target;
+    }
+
+    public ReadCacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Set the oldest reading served by the calls without an age, 0 to
+     * always read.
+     */
+    public void setDefaultMaxAge(long maxAge, TimeUnit unit) {
+        defaultMaxAge = unit.toNanos(maxAge);
+    }
+
+    /**
+     * Returns the default age in nanoseconds.
+     */
+    public long getDefaultMaxAge() {
+        return defaultMaxAge;
+    }
+
+    /**
+     * Returns the sensor on the port, read no longer than the age ago.
+     *
+     * @param <T> the sensor associated with the port
+     * @param port the sensor port
+     * @param maxAgeNanos the oldest reading to accept, 0 to always read.
+     * @return the sensor
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Sensor> T getSensor(SensorPort port, long maxAgeNanos) throws IOException {
+        int index = port.ordinal();
+        ReentrantLock lock = sensorLocks[index];
+        lock.lock();
+        try {
+            long now = clock.getAsLong();
+            if (sensorValid[index] && maxAgeNanos > 0 && now - sensorTimes[index] <= maxAgeNanos) {
+                statistics.hit(ReadCacheStatistics.Read.SENSOR, now - sensorTimes[index]);
+                return (T) sensors[index];
+            }
+            statistics.miss(ReadCacheStatistics.Read.SENSOR);
+            long generation = sensorGenerations.get(index);
+            Sensor sensor = target.getSensor(port);
+            storeSensor(index, sensor, now, generation);
+            return (T) sensor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the encoder position in degrees, read no longer than the age
+     * ago.
+     *
+     * @param port the motor port
+     * @param maxAgeNanos the oldest reading to accept, 0 to always read.
+     * @return the encoder position
+     * @throws IOException
+     */
+    public int getMotorEncoder(MotorPort port, long maxAgeNanos) throws IOException {
+        int index = port.ordinal();
+        ReentrantLock lock = motorLocks[index];
+        lock.lock();
+        try {
+            long now = clock.getAsLong();
+            if (encoderValid[index] && maxAgeNanos > 0 && now - encoderTimes[index] <= maxAgeNanos) {
+                statistics.hit(ReadCacheStatistics.Read.ENCODER, now - encoderTimes[index]);
+                return encoders[index];
+            }
+            statistics.miss(ReadCacheStatistics.Read.ENCODER);
+            long generation = motorGenerations.get(index);
+            int encoder = target.getMotorEncoder(port);
+            if (motorGenerations.get(index) == generation) {
+                encoders[index] = encoder;
+                encoderTimes[index] = now;
+                encoderValid[index] = true;
+            }
+            return encoder;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the status of a motor, read no longer than the age ago, into an
+     * existing holder.
+     *
+     * @param port the motor port
+     * @param motorStatus the holder to update.
+     * @param maxAgeNanos the oldest reading to accept, 0 to always read.
+     * @return motorStatus
+     * @throws IOException
+     */
+    public MotorStatus getMotorStatus(MotorPort port, MotorStatus motorStatus, long maxAgeNanos) throws IOException {
+        int index = port.ordinal();
+        ReentrantLock lock = motorLocks[index];
+        lock.lock();
+        try {
+            long now = clock.getAsLong();
+            if (statusValid[index] && maxAgeNanos > 0 && now - statusTimes[index] <= maxAgeNanos) {
+                statistics.hit(ReadCacheStatistics.Read.STATUS, now - statusTimes[index]);
+            } else {
+                statistics.miss(ReadCacheStatistics.Read.STATUS);
+                long generation = motorGenerations.get(index);
+                MotorStatus read = target.getMotorStatus(port, motorStatus);
+                if (!storeStatus(index, read, now, generation)) {
+                    return read;
+                }
+            }
+            motorStatus.state = states[index];
+            motorStatus.power = powers[index];
+            motorStatus.position = positions[index];
+            motorStatus.dps = speeds[index];
+            return motorStatus;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the motor target positions relative to encoders read no longer
+     * than the age ago. Ports with a young enough encoder are sent an
+     * absolute position without reading the encoder again.
+     *
+     * @param motorPort the motor ports
+     * @param degrees the relative target position in degrees
+     * @param maxAgeNanos the oldest encoder reading to accept, 0 to always
+     * read.
+     * @throws IOException
+     */
+    public void setMotorPositionRelative(MotorPort motorPort[], int degrees, long maxAgeNanos) throws IOException {
+        MotorBatch batch = batches.get().clear();
+        for (MotorPort port : motorPort) {
+            batch.setPositionRelative(port, degrees);
+        }
+        sendMotors(batch, maxAgeNanos);
+    }
+
+    /**
+     * Give several motors their commands together, working out relative
+     * positions from encoders read no longer than the age ago.
+     *
+     * @param batch the command for each port. Left unchanged.
+     * @param maxAgeNanos the oldest encoder reading to accept, 0 to always
+     * read.
+     * @throws IOException
+     */
+    public void setMotors(MotorBatch batch, long maxAgeNanos) throws IOException {
+        sendMotors(batches.get().copyFrom(batch), maxAgeNanos);
+    }
+
+    /**
+     * Mark every reading stale, so the next read of each port goes to the
+     * BrickPi.
+     */
+    public void invalidate() {
+        for (SensorPort port : SENSOR_PORTS) {
+            invalidate(port);
+        }
+        for (MotorPort port : MOTOR_PORTS) {
+            invalidate(port, true);
+        }
+    }
+
+    @Override
+    public void initializeMotor(MotorPort motorPort, Motor motor) {
+        target.initializeMotor(motorPort, motor);
+        invalidate(motorPort, true);
+    }
+
+    @Override
+    public void setMotor(MotorPort[] motorPort, int power) throws IOException {
+        try {
+            target.setMotor(motorPort, power);
+        } finally {
+            invalidate(motorPort, false);
+        }
+    }
+
+    @Override
+    public void setMotorPosition(MotorPort[] motorPort, int position) throws IOException {
+        try {
+            target.setMotorPosition(motorPort, position);
+        } finally {
+            invalidate(motorPort, false);
+        }
+    }
+
+    @Override
+    public void setMotorPositionRelative(MotorPort[] motorPort, int degrees) throws IOException {
+        setMotorPositionRelative(motorPort, degrees, defaultMaxAge);
+    }
+
+    @Override
+    public void setMotorEncoderOffset(MotorPort[] motorPort, int offset) throws IOException {
+        try {
+            target.setMotorEncoderOffset(motorPort, offset);
+        } finally {
+            invalidate(motorPort, true);
+        }
+    }
+
+    @Override
+    public void setMotorDps(MotorPort[] motorPort, int dps) throws IOException {
+        try {
+            target.setMotorDps(motorPort, dps);
+        } finally {
+            invalidate(motorPort, false);
+        }
+    }
+
+    @Override
+    public void setMotorPositionKp(MotorPort[] motorPort, int kp) throws IOException {
+        target.setMotorPositionKp(motorPort, kp);
+    }
+
+    @Override
+    public void setMotorPositionKd(MotorPort[] motorPort, int kd) throws IOException {
+        target.setMotorPositionKd(motorPort, kd);
+    }
+
+    @Override
+    public void setMotorDpsKp(MotorPort[] motorPort, int kp) throws IOException {
+        target.setMotorDpsKp(motorPort, kp);
+    }
+
+    @Override
+    public void setMotorDpsKd(MotorPort[] motorPort, int kd) throws IOException {
+        target.setMotorDpsKd(motorPort, kd);
+    }
+
+    @Override
+    public void setMotorLimits(MotorPort[] motorPort, int power, int dps) throws IOException {
+        target.setMotorLimits(motorPort, power, dps);
+    }
+
+    @Override
+    public void setMotors(MotorBatch batch) throws IOException {
+        setMotors(batch, defaultMaxAge);
+    }
+
+    @Override
+    public void setSensor(Sensor sensor, SensorPort port) throws IOException {
+        try {
+            target.setSensor(sensor, port);
+        } finally {
+            invalidate(port);
+        }
+    }
+
+    @Override
+    public <T extends Sensor> T getSensor(SensorPort port) throws IOException {
+        return getSensor(port, defaultMaxAge);
+    }
+
+    @Override
+    public int getMotorEncoder(MotorPort motorPort) throws IOException {
+        return getMotorEncoder(motorPort, defaultMaxAge);
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort) throws IOException {
+        return getMotorStatus(motorPort, new MotorStatus(), defaultMaxAge);
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException {
+        return getMotorStatus(motorPort, motorStatus, defaultMaxAge);
+    }
+
+    /**
+     * Sweep the target and keep the valid readings of the ports that were
+     * not marked stale while it ran. The sweep always goes to the BrickPi.
+     */
+    @Override
+    public PortSweep sweep(PortSweep sweep) throws IOException {
+        long[] generations = sweepGenerations.get();
+        long now = clock.getAsLong();
+        for (int i = 0; i < SENSOR_PORTS.length; i++) {
+            generations[i] = sensorGenerations.get(i);
+        }
+        for (int i = 0; i < MOTOR_PORTS.length; i++) {
+            generations[SENSOR_PORTS.length + i] = motorGenerations.get(i);
+        }
+        target.sweep(sweep);
+        for (SensorPort port : SENSOR_PORTS) {
+            if (sweep.isSensorRead(port) && sweep.isValid(port)) {
+                int index = port.ordinal();
+                sensorLocks[index].lock();
+                try {
+                    storeSensor(index, sweep.getSensor(port), now, generations[index]);
+                } finally {
+                    sensorLocks[index].unlock();
+                }
+            }
+        }
+        for (MotorPort port : MOTOR_PORTS) {
+            int index = port.ordinal();
+            if (sweep.isMotorRead(port) && sweep.isValid(port)) {
+                motorLocks[index].lock();
+                try {
+                    storeStatus(index, sweep.getMotorStatus(port), now, generations[SENSOR_PORTS.length + index]);
+                } finally {
+                    motorLocks[index].unlock();
+                }
+            }
+        }
+        return sweep;
+    }
+
+    /**
+     * Replace the relative positions that have a young enough encoder with
+     * absolute ones and send the batch.
+     */
+    private void sendMotors(MotorBatch batch, long maxAgeNanos) throws IOException {
+        long now = clock.getAsLong();
+        for (MotorPort port : MOTOR_PORTS) {
+            if (batch.getTarget(port) != MotorBatch.Target.RELATIVE) {
+                continue;
+            }
+            int index = port.ordinal();
+            motorLocks[index].lock();
+            try {
+                if (encoderValid[index] && maxAgeNanos > 0 && now - encoderTimes[index] <= maxAgeNanos) {
+                    statistics.hit(ReadCacheStatistics.Read.RELATIVE, now - encoderTimes[index]);
+                    batch.setPosition(port, encoders[index] + batch.getValue(port));
+                } else {
+                    statistics.miss(ReadCacheStatistics.Read.RELATIVE);
+                }
+            } finally {
+                motorLocks[index].unlock();
+            }
+        }
+        try {
+            target.setMotors(batch);
+        } finally {
+            for (MotorPort port : MOTOR_PORTS) {
+                if (batch.getTarget(port) != MotorBatch.Target.NONE) {
+                    invalidate(port, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep a sensor reading, unless the port was marked stale after the read
+     * started. Called holding the port's lock.
+     */
+    private void storeSensor(int index, Sensor sensor, long time, long generation) {
+        if (sensorGenerations.get(index) != generation) {
+            return;
+        }
+        sensors[index] = sensor;
+        sensorTimes[index] = time;
+        sensorValid[index] = true;
+    }
+
+    /**
+     * Keep a status, and its position as the encoder, unless the port was
+     * marked stale after the read started. Called holding the port's lock.
+     *
+     * @return false if the status was not kept.
+     */
+    private boolean storeStatus(int index, MotorStatus status, long time, long generation) {
+        if (motorGenerations.get(index) != generation) {
+            return false;
+        }
+        states[index] = status.state;
+        powers[index] = status.power;
+        positions[index] = status.position;
+        speeds[index] = status.dps;
+        statusTimes[index] = time;
+        statusValid[index] = true;
+        encoders[index] = status.position;
+        encoderTimes[index] = time;
+        encoderValid[index] = true;
+        return true;
+    }
+
+    private void invalidate(SensorPort port) {
+        int index = port.ordinal();
+        sensorLocks[index].lock();
+        try {
+            sensorGenerations.incrementAndGet(index);
+            sensorValid[index] = false;
+            sensors[index] = null;
+        } finally {
+            sensorLocks[index].unlock();
+        }
+    }
+
+    private void invalidate(MotorPort[] motorPort, boolean encoder) {
+        for (MotorPort port : motorPort) {
+            invalidate(port, encoder);
+        }
+    }
+
+    /**
+     * Mark the status of the port stale, and the encoder too if it has
+     * changed.
+     */
+    private void invalidate(MotorPort port, boolean encoder) {
+        int index = port.ordinal();
+        motorLocks[index].lock();
+        try {
+            motorGenerations.incrementAndGet(index);
+            statusValid[index] = false;
+            if (encoder) {
+                encoderValid[index] = false;
+            }
+        } finally {
+            motorLocks[index].unlock();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.ergotech.brickpi.diagnostics.BusStatistics;
+import com.ergotech.brickpi.diagnostics.LatencyHistogram;
+
+/**
+ * The hits and misses of a {@link CachedBrickPi} for each kind of read, and
+ * the age of the readings served, so the maximum ages can be tuned against
+ * the bus load in {@link BusStatistics}. Recording does not allocate and
+ * may be done from any number of threads.
+ *
+ * Registered with the platform MBean server it appears as
+ * <pre>
+ * com.ergotech.brickpi:type=ReadCache,name=&lt;name&gt;
+ * </pre>
+ */
+public class ReadCacheStatistics implements ReadCacheStatisticsMBean {
+
+    /**
+     * The kinds of read counted.
+     */
+    public enum Read {
+        SENSOR, ENCODER, STATUS, RELATIVE
+    };
+
+    private final AtomicLongArray hits = new AtomicLongArray(Read.values().length);
+    private final AtomicLongArray misses = new AtomicLongArray(Read.values().length);
+    private final LatencyHistogram ages = new LatencyHistogram();
+    private ObjectName registered;
+
+    /**
+     * Count a read served from the cache.
+     *
+     * @param read the kind of read.
+     * @param age the age of the reading served, in nanoseconds.
+     */
+    void hit(Read read, long age) {
+        hits.incrementAndGet(read.ordinal());
+        ages.record(age);
+    }
+
+    /**
+     * Count a read passed on to the BrickPi.
+     */
+    void miss(Read read) {
+        misses.incrementAndGet(read.ordinal());
+    }
+
+    public long getHits(Read read) {
+        return hits.get(read.ordinal());
+    }
+
+    public long getMisses(Read read) {
+        return misses.get(read.ordinal());
+    }
+
+    /**
+     * Returns the histogram of the ages of the readings served, in
+     * nanoseconds.
+     */
+    public LatencyHistogram getAges() {
+        return ages;
+    }
+
+    @Override
+    public long getHits() {
+        long total = 0;
+        for (int i = 0; i < hits.length(); i++) {
+            total += hits.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public long getMisses() {
+        long total = 0;
+        for (int i = 0; i < misses.length(); i++) {
+            total += misses.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hit = getHits();
+        long total = hit + getMisses();
+        return total == 0 ? 0 : hit / (double) total;
+    }
+
+    @Override
+    public long getSensorHits() {
+        return getHits(Read.SENSOR);
+    }
+
+    @Override
+    public long getSensorMisses() {
+        return getMisses(Read.SENSOR);
+    }
+
+    @Override
+    public long getEncoderHits() {
+        return getHits(Read.ENCODER);
+    }
+
+    @Override
+    public long getEncoderMisses() {
+        return getMisses(Read.ENCODER);
+    }
+
+    @Override
+    public long getStatusHits() {
+        return getHits(Read.STATUS);
+    }
+
+    @Override
+    public long getStatusMisses() {
+        return getMisses(Read.STATUS);
+    }
+
+    @Override
+    public long getRelativeHits() {
+        return getHits(Read.RELATIVE);
+    }
+
+    @Override
+    public double getMeanAgeMicros() {
+        return ages.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getP50AgeMicros() {
+        return ages.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99AgeMicros() {
+        return ages.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxAgeMicros() {
+        return ages.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < hits.length(); i++) {
+            hits.set(i, 0);
+            misses.set(i, 0);
+        }
+        ages.reset();
+    }
+
+    /**
+     * Register the statistics with the platform MBean server, replacing any
+     * earlier registration of this instance.
+     *
+     * @param name the name of the cache, unique in the JVM.
+     * @throws JMException if the statistics can't be registered, eg the name
+     * is already in use.
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName(BusStatistics.DOMAIN + ":type=ReadCache,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(this, ReadCacheStatisticsMBean.class), objectName);
+        registered = objectName;
+    }
+
+    /**
+     * Remove the statistics from the platform MBean server.
+     */
+    public synchronized void unregister() {
+        if (registered == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registered);
+        } catch (JMException ex) {
+            // already gone
+        }
+        registered = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder output = new StringBuilder("hits=").append(getHits()).append(" misses=").append(getMisses());
+        for (Read read : Read.values()) {
+            output.append(' ').append(read.name().toLowerCase()).append('=')
+                    .append(getHits(read)).append('/').append(getMisses(read));
+        }
+        return output.append(" ages ").append(ages).toString();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.cache;
+
+/**
+ * The JMX view of a read cache. Ages are of the readings served from the
+ * cache, in microseconds.
+ */
+public interface ReadCacheStatisticsMBean {
+
+    /**
+     * Returns the number of reads served without going to the BrickPi.
+     */
+    long getHits();
+
+    /**
+     * Returns the number of reads passed on to the BrickPi.
+     */
+    long getMisses();
+
+    /**
+     * Returns the fraction of reads that were hits, 0 if there have been
+     * none.
+     */
+    double getHitRatio();
+
+    long getSensorHits();
+
+    long getSensorMisses();
+
+    long getEncoderHits();
+
+    long getEncoderMisses();
+
+    long getStatusHits();
+
+    long getStatusMisses();
+
+    /**
+     * Returns the number of relative position targets worked out from a
+     * cached encoder.
+     */
+    long getRelativeHits();
+
+    double getMeanAgeMicros();
+
+    double getP50AgeMicros();
+
+    double getP99AgeMicros();
+
+    double getMaxAgeMicros();
+
+    /**
+     * Clear the counts and the histogram.
+     */
+    void reset();
+}
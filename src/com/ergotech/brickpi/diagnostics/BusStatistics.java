@@ -0,0 +1,165 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+
+/**
+ * The transfer times, errors and retries of a BrickPi, per message type and
+ * in total. Every transfer is recorded, from the request being sent to the
+ * response being received, so a slow control loop can be put down to the
+ * bus and the firmware, or not. Recording does not allocate once a message
+ * type has been seen.
+ *
+ * Registered with the platform MBean server, each message type appears as
+ * <pre>
+ * com.ergotech.brickpi:type=BusStatistics,name=&lt;name&gt;,message=GET_MOTOR_A_STATUS
+ * </pre>
+ * and the totals as message=ALL, whose reset operation clears every message
+ * type.
+ */
+public class BusStatistics {
+
+    public static final String DOMAIN = "com.ergotech.brickpi";
+
+    private static final BPSPI_MESSAGE_TYPE[] TYPES = BPSPI_MESSAGE_TYPE.values();
+
+    private final MessageStatistics[] messages = new MessageStatistics[TYPES.length];
+    private final MessageStatistics all = new MessageStatistics("ALL") {
+        @Override
+        public void reset() {
+            BusStatistics.this.reset();
+        }
+    };
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public BusStatistics() {
+        for (BPSPI_MESSAGE_TYPE type : TYPES) {
+            messages[type.ordinal()] = new MessageStatistics(type.name());
+        }
+    }
+
+    /**
+     * Record a transfer.
+     *
+     * @param type the message type of the request, or null if unknown.
+     * @param nanos the time from sending the request to receiving the
+     * response.
+     * @param ok false if the transfer failed or did not verify.
+     */
+    public void record(BPSPI_MESSAGE_TYPE type, long nanos, boolean ok) {
+        all.record(nanos, ok);
+        if (type != null) {
+            messages[type.ordinal()].record(nanos, ok);
+        }
+    }
+
+    /**
+     * Count a transfer that is the retry of a failed one.
+     *
+     * @param type the message type of the request, or null if unknown.
+     */
+    public void retry(BPSPI_MESSAGE_TYPE type) {
+        all.retry();
+        if (type != null) {
+            messages[type.ordinal()].retry();
+        }
+    }
+
+    public MessageStatistics get(BPSPI_MESSAGE_TYPE type) {
+        return messages[type.ordinal()];
+    }
+
+    /**
+     * Returns the totals over every message type.
+     */
+    public MessageStatistics getAll() {
+        return all;
+    }
+
+    /**
+     * Clear the statistics of every message type.
+     */
+    public void reset() {
+        for (MessageStatistics message : messages) {
+            message.reset();
+        }
+        MessageStatistics total = all;
+        LatencyHistogram histogram = total.getLatency();
+        if (histogram != null) {
+            histogram.reset();
+        }
+        total.resetCounts();
+    }
+
+    /**
+     * Register the statistics with the platform MBean server, replacing any
+     * earlier registration of this instance.
+     *
+     * @param name the name of the BrickPi, unique in the JVM.
+     * @throws JMException if the statistics can't be registered, eg the name
+     * is already in use.
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = DOMAIN + ":type=BusStatistics,name=" + ObjectName.quote(name) + ",message=";
+        try {
+            ObjectName objectName = new ObjectName(prefix + "ALL");
+            server.registerMBean(new StandardMBean(all, MessageStatisticsMBean.class), objectName);
+            registered.add(objectName);
+            for (MessageStatistics message : messages) {
+                objectName = new ObjectName(prefix + message.getMessageType());
+                server.registerMBean(new StandardMBean(message, MessageStatisticsMBean.class), objectName);
+                registered.add(objectName);
+            }
+        } catch (JMException ex) {
+            unregister();
+            throw ex;
+        }
+    }
+
+    /**
+     * Remove the statistics from the platform MBean server.
+     */
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException ex) {
+                // already gone
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Summarise the message types that have been used, one per line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder output = new StringBuilder(all.toString());
+        for (MessageStatistics message : messages) {
+            if (message.getCount() > 0) {
+                output.append('\n').append(message);
+            }
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+
+/**
+ * Reads the dumps written by {@link SpiFlightRecorder} and turns the frames
+ * back into BPSPI_MESSAGE_TYPE names and hex. Run from the command line with
+ * the dump file as the argument to print it.
+ */
+public class FlightRecordDecoder {
+
+    /**
+     * One recorded frame.
+     */
+    public static class Frame {
+
+        public final long sequence;
+        public final long nanoTime;
+        public final int length;
+        public final boolean error;
+        public final byte[] request;
+        public final byte[] response;
+
+        Frame(long sequence, long nanoTime, int length, boolean error, byte[] request, byte[] response) {
+            this.sequence = sequence;
+            this.nanoTime = nanoTime;
+            this.length = length;
+            this.error = error;
+            this.request = request;
+            this.response = response;
+        }
+
+        /**
+         * Returns the message type of the request, or null if unknown.
+         */
+        public BPSPI_MESSAGE_TYPE getMessageType() {
+            return request.length > 1 ? BPSPI_MESSAGE_TYPE.fromInt(request[1] & 0xFF) : null;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + (error ? " ERROR " : " ") + describe(request, request.length)
+                    + " -> " + hex(response, response.length);
+        }
+    }
+
+    private FlightRecordDecoder() {
+    }
+
+    /**
+     * Read a dump.
+     *
+     * @param file the dump file
+     * @return the frames, oldest first.
+     * @throws IOException if the file can't be read or is not a dump.
+     */
+    public static List<Frame> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < SpiFlightRecorder.HEADER_SIZE || buffer.getInt() != SpiFlightRecorder.MAGIC) {
+            throw new IOException("Not a BrickPi flight record: " + file);
+        }
+        short version = buffer.getShort();
+        if (version != SpiFlightRecorder.VERSION) {
+            throw new IOException("Unsupported flight record version " + version);
+        }
+        int slotSize = buffer.getShort();
+        int count = buffer.getInt();
+        int maxFrame = (slotSize - SpiFlightRecorder.REQUEST_OFFSET) / 2;
+        List<Frame> frames = new ArrayList<>(count);
+        for (int i = 0; i < count && buffer.remaining() >= slotSize; i++) {
+            int slot = buffer.position();
+            int length = buffer.getShort(slot + SpiFlightRecorder.LENGTH_OFFSET);
+            int recorded = Math.min(length, maxFrame);
+            byte[] request = new byte[recorded];
+            byte[] response = new byte[recorded];
+            buffer.get(slot + SpiFlightRecorder.REQUEST_OFFSET, request);
+            buffer.get(slot + SpiFlightRecorder.REQUEST_OFFSET + maxFrame, response);
+            frames.add(new Frame(buffer.getLong(slot + SpiFlightRecorder.SEQUENCE_OFFSET) - 1,
+                    buffer.getLong(slot + SpiFlightRecorder.TIME_OFFSET),
+                    length,
+                    (buffer.get(slot + SpiFlightRecorder.FLAGS_OFFSET) & SpiFlightRecorder.FLAG_ERROR) != 0,
+                    request, response));
+            buffer.position(slot + slotSize);
+        }
+        return frames;
+    }
+
+    /**
+     * Describe a request frame, eg "GET_MOTOR_A_ENCODER 01 1e 00 00 ...".
+     *
+     * @param frame the frame
+     * @param length the number of bytes to show
+     * @return the message name followed by the frame in hex.
+     */
+    public static String describe(byte[] frame, int length) {
+        BPSPI_MESSAGE_TYPE type = frame.length > 1 ? BPSPI_MESSAGE_TYPE.fromInt(frame[1] & 0xFF) : null;
+        return (type == null ? "UNKNOWN" : type.name()) + " " + hex(frame, length);
+    }
+
+    /**
+     * Returns the bytes as space separated hex.
+     */
+    public static String hex(byte[] frame, int length) {
+        StringBuilder output = new StringBuilder(length * 3);
+        for (int i = 0; i < length && i < frame.length; i++) {
+            if (i > 0) {
+                output.append(' ');
+            }
+            output.append(Character.forDigit((frame[i] >> 4) & 0xF, 16));
+            output.append(Character.forDigit(frame[i] & 0xF, 16));
+        }
+        return output.toString();
+    }
+
+    /**
+     * Print a dump, one frame per line with the time relative to the first
+     * frame in microseconds.
+     *
+     * @param args the dump file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args == null || args.length != 1) {
+            System.err.println("usage: FlightRecordDecoder <dump file>");
+            System.exit(1);
+        }
+        List<Frame> frames = read(Paths.get(args[0]));
+        long start = frames.isEmpty() ? 0 : frames.get(0).nanoTime;
+        for (Frame frame : frames) {
+            System.out.println(String.format("%10d %12.1fus %s", frame.sequence,
+                    (frame.nanoTime - start) / 1000.0, frame));
+        }
+        System.out.println(frames.size() + " frames");
+    }
+}
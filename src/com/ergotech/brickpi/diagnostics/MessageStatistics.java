@@ -0,0 +1,142 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The transfer times, errors and retries of one message type. The histogram
+ * is created on the first transfer, so unused message types cost little.
+ */
+public class MessageStatistics implements MessageStatisticsMBean {
+
+    private final String messageType;
+    private volatile LatencyHistogram latency;
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    MessageStatistics(String messageType) {
+        this.messageType = messageType;
+    }
+
+    /**
+     * Record a transfer.
+     *
+     * @param nanos the time from sending the request to receiving the
+     * response.
+     * @param ok false if the transfer failed or did not verify.
+     */
+    void record(long nanos, boolean ok) {
+        LatencyHistogram histogram = latency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (latency == null) {
+                    latency = new LatencyHistogram();
+                }
+                histogram = latency;
+            }
+        }
+        histogram.record(nanos);
+        if (!ok) {
+            errors.incrementAndGet();
+        }
+    }
+
+    void retry() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Returns the histogram of transfer times in nanoseconds, or null if
+     * there have been none.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String getMessageType() {
+        return messageType;
+    }
+
+    @Override
+    public long getCount() {
+        LatencyHistogram histogram = latency;
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public double getMinMicros() {
+        LatencyHistogram histogram = latency;
+        return histogram == null ? 0 : histogram.getMin() / 1000.0;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        LatencyHistogram histogram = latency;
+        return histogram == null ? 0 : histogram.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return percentile(50);
+    }
+
+    @Override
+    public double getP99Micros() {
+        return percentile(99);
+    }
+
+    @Override
+    public double getP999Micros() {
+        return percentile(99.9);
+    }
+
+    @Override
+    public double getMaxMicros() {
+        LatencyHistogram histogram = latency;
+        return histogram == null ? 0 : histogram.getMax() / 1000.0;
+    }
+
+    private double percentile(double percentile) {
+        LatencyHistogram histogram = latency;
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        LatencyHistogram histogram = latency;
+        if (histogram != null) {
+            histogram.reset();
+        }
+        resetCounts();
+    }
+
+    void resetCounts() {
+        errors.set(0);
+        retries.set(0);
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram histogram = latency;
+        return messageType + " errors=" + getErrors() + " retries=" + getRetries() + " "
+                + (histogram == null ? "n=0" : histogram.toString());
+    }
+}
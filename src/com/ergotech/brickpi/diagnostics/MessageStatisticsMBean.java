@@ -0,0 +1,53 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+/**
+ * The JMX view of the transfers of one message type, or of all of them.
+ * Times are in microseconds.
+ */
+public interface MessageStatisticsMBean {
+
+    /**
+     * Returns the message type, or ALL for the totals.
+     */
+    String getMessageType();
+
+    /**
+     * Returns the number of transfers, including failed ones and retries.
+     */
+    long getCount();
+
+    /**
+     * Returns the number of transfers that failed or did not verify.
+     */
+    long getErrors();
+
+    /**
+     * Returns the number of transfers that were retries of a failed read.
+     */
+    long getRetries();
+
+    double getMinMicros();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    /**
+     * Clear the counts and the histogram.
+     */
+    void reset();
+}
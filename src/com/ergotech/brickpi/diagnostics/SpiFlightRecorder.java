@@ -0,0 +1,263 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An always-on recorder of the raw SPI frames. Each transaction claims the
+ * next slot of a fixed-size ring held off-heap and stores the request, the
+ * response and the System.nanoTime at which it started. Writers never block
+ * each other or readers; the oldest frames are overwritten when the ring
+ * wraps.
+ *
+ * The ring can be dumped to a file at any time, and is dumped automatically
+ * on a transfer error if a dump directory has been set. The automatic dump
+ * copies the ring on the transfer path and writes the file on a background
+ * thread, so the bus is not held for the file write. Dumps are read with
+ * {@link FlightRecordDecoder}.
+ *
+ * Slot layout (big endian):
+ * <pre>
+ *  0  long  sequence, index + 1 of the frame, written last
+ *  8  long  nanoTime at the start of the transfer
+ * 16  short frame length
+ * 18  byte  flags, FLAG_ERROR if the transfer failed or did not verify
+ * 19  byte  unused
+ * 20  MAX_FRAME bytes of request
+ * 20 + MAX_FRAME  MAX_FRAME bytes of response
+ * </pre>
+ * Frames longer than MAX_FRAME are truncated.
+ */
+public class SpiFlightRecorder {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(SpiFlightRecorder.class.getName());
+
+    public static final int MAGIC = 0x42504652; // BPFR
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+
+    public static final int SLOT_SIZE = 128;
+    public static final int MAX_FRAME = (SLOT_SIZE - 20) / 2;
+
+    public static final int SEQUENCE_OFFSET = 0;
+    public static final int TIME_OFFSET = 8;
+    public static final int LENGTH_OFFSET = 16;
+    public static final int FLAGS_OFFSET = 18;
+    public static final int REQUEST_OFFSET = 20;
+    public static final int RESPONSE_OFFSET = REQUEST_OFFSET + MAX_FRAME;
+
+    public static final byte FLAG_ERROR = 0x01;
+
+    /**
+     * The default number of frames held.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The minimum time between automatic dumps, in nanoseconds.
+     */
+    private static final long DUMP_INTERVAL = 1000000000L;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Writes the automatic dumps of every recorder, off the transfer path.
+     */
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "SpiFlightRecorder dump");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ByteBuffer ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    private volatile Path dumpDirectory;
+    private final AtomicLong lastDump = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Create a recorder holding the default number of frames.
+     */
+    public SpiFlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a recorder.
+     *
+     * @param capacity the number of frames held, rounded up to a power of
+     * two.
+     */
+    public SpiFlightRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = ByteBuffer.allocateDirect(size * SLOT_SIZE).order(ByteOrder.BIG_ENDIAN);
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the total number of frames recorded, including those that have
+     * been overwritten.
+     */
+    public long getFrameCount() {
+        return next.get();
+    }
+
+    /**
+     * Set the directory into which the ring is dumped when an error is
+     * recorded. Automatic dumps are limited to one a second.
+     *
+     * @param dumpDirectory the directory, or null to disable dumps on error.
+     */
+    public void setDumpDirectory(Path dumpDirectory) {
+        this.dumpDirectory = dumpDirectory;
+    }
+
+    public Path getDumpDirectory() {
+        return dumpDirectory;
+    }
+
+    /**
+     * Record the request of a frame, before it is replaced by the response.
+     *
+     * @param nanoTime the start of the transfer.
+     * @param frame the request
+     * @return the frame index to pass to {@link #end(long, byte[], boolean)}
+     */
+    public long begin(long nanoTime, byte[] frame) {
+        long index = next.getAndIncrement();
+        int slot = (int) (index & mask) * SLOT_SIZE;
+        int length = Math.min(frame.length, MAX_FRAME);
+        // invalidate the slot while it is rewritten
+        LONGS.setRelease(ring, slot + SEQUENCE_OFFSET, 0L);
+        // and keep the stores below from becoming visible before it
+        VarHandle.storeStoreFence();
+        ring.putLong(slot + TIME_OFFSET, nanoTime);
+        ring.putShort(slot + LENGTH_OFFSET, (short) frame.length);
+        ring.put(slot + FLAGS_OFFSET, (byte) 0);
+        ring.put(slot + REQUEST_OFFSET, frame, 0, length);
+        return index;
+    }
+
+    /**
+     * Record the response of a frame and publish it.
+     *
+     * @param index the index returned by begin.
+     * @param frame the response
+     * @param ok false if the transfer failed or did not verify.
+     */
+    public void end(long index, byte[] frame, boolean ok) {
+        int slot = (int) (index & mask) * SLOT_SIZE;
+        int length = Math.min(frame.length, MAX_FRAME);
+        ring.put(slot + RESPONSE_OFFSET, frame, 0, length);
+        if (!ok) {
+            ring.put(slot + FLAGS_OFFSET, FLAG_ERROR);
+        }
+        LONGS.setRelease(ring, slot + SEQUENCE_OFFSET, index + 1);
+        if (!ok) {
+            dumpOnError();
+        }
+    }
+
+    private void dumpOnError() {
+        Path directory = dumpDirectory;
+        if (directory == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastDump.get();
+        if (last != Long.MIN_VALUE && now - last < DUMP_INTERVAL) {
+            return;
+        }
+        if (!lastDump.compareAndSet(last, now)) {
+            return;
+        }
+        Path file = directory.resolve("brickpi-" + System.currentTimeMillis() + ".bpfr");
+        ByteBuffer frames = snapshot();
+        WRITER.execute(() -> {
+            try {
+                write(file, frames);
+            } catch (IOException ex) {
+                LOGGER.error("Unable to dump the flight recorder to " + file, ex);
+            }
+        });
+    }
+
+    /**
+     * Write the frames currently in the ring to a file, oldest first. Frames
+     * being written, or overwritten during the dump, are skipped.
+     *
+     * @param file the file to write.
+     * @return the number of frames written.
+     * @throws IOException if the file can't be written.
+     */
+    public int dump(Path file) throws IOException {
+        return write(file, snapshot());
+    }
+
+    /**
+     * Copy the complete frames in the ring, oldest first.
+     */
+    private ByteBuffer snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - getCapacity());
+        ByteBuffer frames = ByteBuffer.allocate((int) (end - start) * SLOT_SIZE);
+        byte[] slotCopy = new byte[SLOT_SIZE];
+        for (long index = start; index < end; index++) {
+            int slot = (int) (index & mask) * SLOT_SIZE;
+            if ((long) LONGS.getAcquire(ring, slot + SEQUENCE_OFFSET) != index + 1) {
+                continue;
+            }
+            ring.get(slot, slotCopy);
+            VarHandle.acquireFence();
+            if ((long) LONGS.getAcquire(ring, slot + SEQUENCE_OFFSET) != index + 1) {
+                continue;
+            }
+            frames.put(slotCopy);
+        }
+        frames.flip();
+        return frames;
+    }
+
+    private static int write(Path file, ByteBuffer frames) throws IOException {
+        int count = frames.remaining() / SLOT_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) SLOT_SIZE).putInt(count).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (frames.hasRemaining()) {
+                channel.write(frames);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.ergotech.brickpi.PortSnapshot;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.protocol.Varint;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * A log of every poll of a BrickPi, written to a memory-mapped file of fixed
+ * size. Appending a poll is a handful of stores into the mapping: nothing is
+ * formatted, nothing allocated and there is no system call, so the log can
+ * stay on at the full poll rate. The stores land in the page cache as they
+ * are made, so the log survives the JVM crashing; call {@link #force()} to
+ * survive the machine losing power.
+ *
+ * The file is a ring of blocks, each block filled with records and then
+ * overwritten once the ring wraps. Each record holds the time of the poll,
+ * and the state, power, position and speed of every motor and the type,
+ * state, value and raw value bytes of every sensor. Records are stored
+ * either at a fixed layout, or compressed: only the fields that changed
+ * since the previous record in the block, each as a zigzag varint of the
+ * difference. A compressed block starts from zero, so each block can be
+ * read on its own. Reopening a log continues after its newest block. Logs
+ * are read with {@link TelemetryLogReader}.
+ *
+ * File layout (big endian), a header in the first block:
+ * <pre>
+ *  0  int   MAGIC
+ *  4  short VERSION
+ *  6  short flags, FLAG_COMPRESSED
+ *  8  int   BLOCK_SIZE
+ * 12  int   number of blocks after the header
+ * 16  int   RECORD_SIZE
+ * </pre>
+ * then each block:
+ * <pre>
+ *  0  long  sequence, index + 1 of the block, written when it is started
+ *  8  long  System.currentTimeMillis when the block was started
+ * 16  long  System.nanoTime when the block was started
+ * 24  int   bytes of records in the block, written after each record
+ * 28  int   unused
+ * 32  records
+ * </pre>
+ * and each fixed layout record:
+ * <pre>
+ *  0  long  System.nanoTime at the start of the poll
+ *  8  int   duration of the poll in nanoseconds
+ * 12  byte  bit mask of the motors read, by MotorPort ordinal
+ * 13  byte  bit mask of the sensors read, by SensorPort ordinal
+ * 14  short unused
+ * 16  per motor: int state, int power, int position, int dps
+ * 80  per sensor: byte type, byte state, short unused, int value, long raw
+ * </pre>
+ * The values of a port that was not read are those of its last read.
+ *
+ * A log is written by one BrickPi, under its bus lock, and is not thread
+ * safe.
+ * <pre>
+ * brickPi.setTelemetryLog(new TelemetryLog(Paths.get("run.bptl"), 64 &lt;&lt; 20, true));
+ * </pre>
+ */
+public class TelemetryLog implements AutoCloseable {
+
+    public static final int MAGIC = 0x4250544C; // BPTL
+    public static final short VERSION = 1;
+    public static final short FLAG_COMPRESSED = 0x01;
+
+    public static final int BLOCK_SIZE = 4096;
+    public static final int BLOCK_SEQUENCE_OFFSET = 0;
+    public static final int BLOCK_WALL_TIME_OFFSET = 8;
+    public static final int BLOCK_TIME_OFFSET = 16;
+    public static final int BLOCK_USED_OFFSET = 24;
+    public static final int BLOCK_HEADER_SIZE = 32;
+
+    static final int MOTORS = MotorPort.values().length;
+    static final int SENSORS = SensorPort.values().length;
+
+    public static final int START_OFFSET = 0;
+    public static final int DURATION_OFFSET = 8;
+    public static final int MOTOR_VALID_OFFSET = 12;
+    public static final int SENSOR_VALID_OFFSET = 13;
+    public static final int MOTOR_OFFSET = 16;
+    public static final int MOTOR_SIZE = 16;
+    public static final int SENSOR_OFFSET = MOTOR_OFFSET + MOTORS * MOTOR_SIZE;
+    public static final int SENSOR_SIZE = 16;
+    public static final int RECORD_SIZE = SENSOR_OFFSET + SENSORS * SENSOR_SIZE;
+
+    /*
+     * The fields of a record, in the order they are compressed.
+     */
+    static final int START = 0;
+    static final int DURATION = 1;
+    static final int MOTOR_VALID = 2;
+    static final int SENSOR_VALID = 3;
+    static final int MOTOR_BASE = 4;
+    static final int MOTOR_STATE = 0;
+    static final int MOTOR_POWER = 1;
+    static final int MOTOR_POSITION = 2;
+    static final int MOTOR_DPS = 3;
+    static final int MOTOR_FIELDS = 4;
+    static final int SENSOR_BASE = MOTOR_BASE + MOTORS * MOTOR_FIELDS;
+    static final int SENSOR_TYPE = 0;
+    static final int SENSOR_STATE = 1;
+    static final int SENSOR_VALUE = 2;
+    static final int SENSOR_RAW = 3;
+    static final int SENSOR_FIELDS = 4;
+    static final int FIELDS = SENSOR_BASE + SENSORS * SENSOR_FIELDS;
+
+    /**
+     * The longest compressed record.
+     */
+    static final int MAX_ENCODED = (1 + FIELDS) * Varint.MAX_LENGTH;
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer ring;
+    private final int blockCount;
+    private final boolean compressed;
+
+    private final long[] values = new long[FIELDS];
+    private final long[] previous = new long[FIELDS];
+    private final ByteBuffer encoded = ByteBuffer.allocate(MAX_ENCODED);
+
+    /**
+     * The index of the block being filled, -1 before the first append.
+     */
+    private long blockIndex;
+    private int block;
+    private int used;
+    private long recordCount;
+    private long bytesWritten;
+    private volatile boolean closed;
+
+    /**
+     * Open a log, creating the file or continuing an existing log of the
+     * same size and layout. Any other file is overwritten.
+     *
+     * @param file the file.
+     * @param size the size of the file in bytes, rounded down to a whole
+     * number of blocks.
+     * @param compressed true to delta encode the records.
+     * @throws IOException if the file can't be created or mapped.
+     */
+    public TelemetryLog(Path file, long size, boolean compressed) throws IOException {
+        long blocks = Math.min(size, Integer.MAX_VALUE) / BLOCK_SIZE - 1;
+        if (blocks < 2) {
+            throw new IllegalArgumentException("A telemetry log must be at least " + 3 * BLOCK_SIZE + " bytes");
+        }
+        this.file = file;
+        this.blockCount = (int) blocks;
+        this.compressed = compressed;
+        long length = (blocks + 1) * BLOCK_SIZE;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() > length) {
+                channel.truncate(length);
+            }
+            ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        short flags = compressed ? FLAG_COMPRESSED : 0;
+        if (ring.getInt(0) == MAGIC && ring.getShort(4) == VERSION && ring.getShort(6) == flags
+                && ring.getInt(8) == BLOCK_SIZE && ring.getInt(12) == blockCount
+                && ring.getInt(16) == RECORD_SIZE) {
+            long newest = 0;
+            for (int i = 1; i <= blockCount; i++) {
+                newest = Math.max(newest, ring.getLong(i * BLOCK_SIZE + BLOCK_SEQUENCE_OFFSET));
+            }
+            blockIndex = newest - 1;
+        } else {
+            // touching every block allocates the whole file now rather than
+            // while polling
+            for (int i = 1; i <= blockCount; i++) {
+                ring.putLong(i * BLOCK_SIZE + BLOCK_SEQUENCE_OFFSET, 0L);
+            }
+            ring.putInt(0, MAGIC).putShort(4, VERSION).putShort(6, flags)
+                    .putInt(8, BLOCK_SIZE).putInt(12, blockCount).putInt(16, RECORD_SIZE);
+            blockIndex = -1;
+        }
+        // start a new block on the first append
+        used = BLOCK_SIZE;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the number of blocks in the ring.
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Returns the number of records appended since the log was opened.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the bytes of records appended since the log was opened, not
+     * counting the block headers.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Append a poll. Ignored once the log is closed.
+     *
+     * @param snapshot the poll, or the BrickPi's own copy of a sweep.
+     */
+    public void append(PortSnapshot snapshot) {
+        if (closed) {
+            return;
+        }
+        long[] values = this.values;
+        values[START] = snapshot.getStartTime();
+        values[DURATION] = snapshot.getEndTime() - snapshot.getStartTime();
+        int motorValid = 0;
+        for (MotorPort port : MOTOR_PORTS) {
+            int field = MOTOR_BASE + port.ordinal() * MOTOR_FIELDS;
+            if (snapshot.isValid(port)) {
+                motorValid |= 1 << port.ordinal();
+            }
+            values[field + MOTOR_STATE] = snapshot.getMotorState(port);
+            values[field + MOTOR_POWER] = snapshot.getMotorPower(port);
+            values[field + MOTOR_POSITION] = snapshot.getMotorPosition(port);
+            values[field + MOTOR_DPS] = snapshot.getMotorDps(port);
+        }
+        values[MOTOR_VALID] = motorValid;
+        int sensorValid = 0;
+        for (SensorPort port : SENSOR_PORTS) {
+            int field = SENSOR_BASE + port.ordinal() * SENSOR_FIELDS;
+            if (snapshot.isValid(port)) {
+                sensorValid |= 1 << port.ordinal();
+            }
+            values[field + SENSOR_TYPE] = snapshot.getSensorType(port);
+            values[field + SENSOR_STATE] = snapshot.getSensorState(port);
+            values[field + SENSOR_VALUE] = snapshot.getSensorValue(port);
+            values[field + SENSOR_RAW] = snapshot.getSensorRaw(port);
+        }
+        values[SENSOR_VALID] = sensorValid;
+
+        int length = compressed ? encode(encoded, values, used == 0 ? null : previous) : RECORD_SIZE;
+        if (BLOCK_HEADER_SIZE + used + length > BLOCK_SIZE) {
+            startBlock();
+            if (compressed) {
+                length = encode(encoded, values, null);
+            }
+        }
+        int at = block + BLOCK_HEADER_SIZE + used;
+        if (compressed) {
+            ring.put(at, encoded.array(), 0, length);
+            System.arraycopy(values, 0, previous, 0, FIELDS);
+        } else {
+            writeRecord(ring, at, values);
+        }
+        used += length;
+        INTS.setRelease(ring, block + BLOCK_USED_OFFSET, used);
+        recordCount++;
+        bytesWritten += length;
+    }
+
+    private void startBlock() {
+        blockIndex++;
+        block = (int) (blockIndex % blockCount + 1) * BLOCK_SIZE;
+        // invalidate the block while its header is rewritten
+        LONGS.setRelease(ring, block + BLOCK_SEQUENCE_OFFSET, 0L);
+        ring.putLong(block + BLOCK_WALL_TIME_OFFSET, System.currentTimeMillis());
+        ring.putLong(block + BLOCK_TIME_OFFSET, System.nanoTime());
+        ring.putInt(block + BLOCK_USED_OFFSET, 0);
+        LONGS.setRelease(ring, block + BLOCK_SEQUENCE_OFFSET, blockIndex + 1);
+        used = 0;
+    }
+
+    /**
+     * Write the log through to the disk.
+     */
+    public void force() {
+        ring.force();
+    }
+
+    /**
+     * Stop appending, write the log through to the disk and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ring.force();
+        channel.close();
+    }
+
+    static void writeRecord(ByteBuffer into, int at, long[] values) {
+        into.putLong(at + START_OFFSET, values[START]);
+        into.putInt(at + DURATION_OFFSET, (int) Math.min(values[DURATION], Integer.MAX_VALUE));
+        into.put(at + MOTOR_VALID_OFFSET, (byte) values[MOTOR_VALID]);
+        into.put(at + SENSOR_VALID_OFFSET, (byte) values[SENSOR_VALID]);
+        for (int i = 0; i < MOTORS; i++) {
+            int field = MOTOR_BASE + i * MOTOR_FIELDS;
+            int motor = at + MOTOR_OFFSET + i * MOTOR_SIZE;
+            into.putInt(motor, (int) values[field + MOTOR_STATE]);
+            into.putInt(motor + 4, (int) values[field + MOTOR_POWER]);
+            into.putInt(motor + 8, (int) values[field + MOTOR_POSITION]);
+            into.putInt(motor + 12, (int) values[field + MOTOR_DPS]);
+        }
+        for (int i = 0; i < SENSORS; i++) {
+            int field = SENSOR_BASE + i * SENSOR_FIELDS;
+            int sensor = at + SENSOR_OFFSET + i * SENSOR_SIZE;
+            into.put(sensor, (byte) values[field + SENSOR_TYPE]);
+            into.put(sensor + 1, (byte) values[field + SENSOR_STATE]);
+            into.putInt(sensor + 4, (int) values[field + SENSOR_VALUE]);
+            into.putLong(sensor + 8, values[field + SENSOR_RAW]);
+        }
+    }
+
+    static void readRecord(ByteBuffer from, int at, long[] values) {
+        values[START] = from.getLong(at + START_OFFSET);
+        values[DURATION] = from.getInt(at + DURATION_OFFSET);
+        values[MOTOR_VALID] = from.get(at + MOTOR_VALID_OFFSET) & 0xFF;
+        values[SENSOR_VALID] = from.get(at + SENSOR_VALID_OFFSET) & 0xFF;
+        for (int i = 0; i < MOTORS; i++) {
+            int field = MOTOR_BASE + i * MOTOR_FIELDS;
+            int motor = at + MOTOR_OFFSET + i * MOTOR_SIZE;
+            values[field + MOTOR_STATE] = from.getInt(motor);
+            values[field + MOTOR_POWER] = from.getInt(motor + 4);
+            values[field + MOTOR_POSITION] = from.getInt(motor + 8);
+            values[field + MOTOR_DPS] = from.getInt(motor + 12);
+        }
+        for (int i = 0; i < SENSORS; i++) {
+            int field = SENSOR_BASE + i * SENSOR_FIELDS;
+            int sensor = at + SENSOR_OFFSET + i * SENSOR_SIZE;
+            values[field + SENSOR_TYPE] = from.get(sensor) & 0xFF;
+            values[field + SENSOR_STATE] = from.get(sensor + 1) & 0xFF;
+            values[field + SENSOR_VALUE] = from.getInt(sensor + 4);
+            values[field + SENSOR_RAW] = from.getLong(sensor + 8);
+        }
+    }
+
+    /**
+     * Compress a record: a varint bit mask of the fields that differ from the
+     * previous record, then the differences.
+     *
+     * @param into the buffer, written from the start.
+     * @param previous the previous record in the block, or null for the first.
+     * @return the length of the compressed record.
+     */
+    static int encode(ByteBuffer into, long[] values, long[] previous) {
+        into.clear();
+        long changed = 0;
+        for (int i = 0; i < FIELDS; i++) {
+            if (values[i] != (previous == null ? 0 : previous[i])) {
+                changed |= 1L << i;
+            }
+        }
+        Varint.put(into, changed);
+        for (int i = 0; i < FIELDS; i++) {
+            if ((changed & (1L << i)) != 0) {
+                Varint.putSigned(into, values[i] - (previous == null ? 0 : previous[i]));
+            }
+        }
+        return into.position();
+    }
+
+    /**
+     * Apply a compressed record to the previous one.
+     *
+     * @param from the buffer, positioned at the record.
+     * @param values the previous record, zero for the first in a block.
+     */
+    static void decode(ByteBuffer from, long[] values) {
+        long changed = Varint.get(from);
+        for (int i = 0; i < FIELDS; i++) {
+            if ((changed & (1L << i)) != 0) {
+                values[i] += Varint.getSigned(from);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * Reads the logs written by {@link TelemetryLog}, including the log of a
+ * process that crashed while writing it. Run from the command line with the
+ * log file as the argument to print it.
+ */
+public class TelemetryLogReader {
+
+    /**
+     * One logged poll. The arrays are indexed by port ordinal.
+     */
+    public static class Record {
+
+        /**
+         * The System.nanoTime at the start of the poll.
+         */
+        public final long nanoTime;
+        /**
+         * The wall clock time of the poll, in microseconds since the epoch.
+         */
+        public final long epochMicros;
+        public final long duration;
+        public final boolean[] motorValid = new boolean[TelemetryLog.MOTORS];
+        public final int[] motorState = new int[TelemetryLog.MOTORS];
+        public final int[] motorPower = new int[TelemetryLog.MOTORS];
+        public final int[] motorPosition = new int[TelemetryLog.MOTORS];
+        public final int[] motorDps = new int[TelemetryLog.MOTORS];
+        public final boolean[] sensorValid = new boolean[TelemetryLog.SENSORS];
+        public final int[] sensorType = new int[TelemetryLog.SENSORS];
+        public final int[] sensorState = new int[TelemetryLog.SENSORS];
+        public final int[] sensorValue = new int[TelemetryLog.SENSORS];
+        public final long[] sensorRaw = new long[TelemetryLog.SENSORS];
+
+        Record(long[] values, long blockWallTime, long blockTime) {
+            nanoTime = values[TelemetryLog.START];
+            epochMicros = blockWallTime * 1000 + (nanoTime - blockTime) / 1000;
+            duration = values[TelemetryLog.DURATION];
+            for (int i = 0; i < TelemetryLog.MOTORS; i++) {
+                int field = TelemetryLog.MOTOR_BASE + i * TelemetryLog.MOTOR_FIELDS;
+                motorValid[i] = (values[TelemetryLog.MOTOR_VALID] & (1 << i)) != 0;
+                motorState[i] = (int) values[field + TelemetryLog.MOTOR_STATE];
+                motorPower[i] = (int) values[field + TelemetryLog.MOTOR_POWER];
+                motorPosition[i] = (int) values[field + TelemetryLog.MOTOR_POSITION];
+                motorDps[i] = (int) values[field + TelemetryLog.MOTOR_DPS];
+            }
+            for (int i = 0; i < TelemetryLog.SENSORS; i++) {
+                int field = TelemetryLog.SENSOR_BASE + i * TelemetryLog.SENSOR_FIELDS;
+                sensorValid[i] = (values[TelemetryLog.SENSOR_VALID] & (1 << i)) != 0;
+                sensorType[i] = (int) values[field + TelemetryLog.SENSOR_TYPE];
+                sensorState[i] = (int) values[field + TelemetryLog.SENSOR_STATE];
+                sensorValue[i] = (int) values[field + TelemetryLog.SENSOR_VALUE];
+                sensorRaw[i] = values[field + TelemetryLog.SENSOR_RAW];
+            }
+        }
+
+        public int getMotorPosition(MotorPort port) {
+            return motorPosition[port.ordinal()];
+        }
+
+        public int getSensorValue(SensorPort port) {
+            return sensorValue[port.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder();
+            output.append(duration / 1000).append("us");
+            for (MotorPort port : MotorPort.values()) {
+                int i = port.ordinal();
+                if (motorValid[i]) {
+                    output.append(' ').append(port).append('=').append(motorPosition[i])
+                            .append('/').append(motorDps[i]).append("dps/").append(motorPower[i]);
+                }
+            }
+            for (SensorPort port : SensorPort.values()) {
+                int i = port.ordinal();
+                if (sensorValid[i]) {
+                    output.append(' ').append(port).append('=').append(sensorValue[i]);
+                }
+            }
+            return output.toString();
+        }
+    }
+
+    private TelemetryLogReader() {
+    }
+
+    /**
+     * Read a log.
+     *
+     * @param file the log file
+     * @return the records, oldest first.
+     * @throws IOException if the file can't be read or is not a log.
+     */
+    public static List<Record> read(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < TelemetryLog.BLOCK_SIZE || buffer.getInt(0) != TelemetryLog.MAGIC) {
+            throw new IOException("Not a BrickPi telemetry log: " + file);
+        }
+        short version = buffer.getShort(4);
+        if (version != TelemetryLog.VERSION) {
+            throw new IOException("Unsupported telemetry log version " + version);
+        }
+        boolean compressed = (buffer.getShort(6) & TelemetryLog.FLAG_COMPRESSED) != 0;
+        int blockSize = buffer.getInt(8);
+        int blockCount = Math.min(buffer.getInt(12), buffer.capacity() / blockSize - 1);
+        int recordSize = buffer.getInt(16);
+
+        // the blocks in the order they were written
+        long newest = 0;
+        for (int i = 1; i <= blockCount; i++) {
+            newest = Math.max(newest, buffer.getLong(i * blockSize + TelemetryLog.BLOCK_SEQUENCE_OFFSET));
+        }
+        List<Record> records = new ArrayList<>();
+        long[] values = new long[TelemetryLog.FIELDS];
+        for (long sequence = Math.max(1, newest - blockCount + 1); sequence <= newest; sequence++) {
+            int offset = (int) ((sequence - 1) % blockCount + 1) * blockSize;
+            if (buffer.getLong(offset + TelemetryLog.BLOCK_SEQUENCE_OFFSET) != sequence) {
+                continue;
+            }
+            long wallTime = buffer.getLong(offset + TelemetryLog.BLOCK_WALL_TIME_OFFSET);
+            long time = buffer.getLong(offset + TelemetryLog.BLOCK_TIME_OFFSET);
+            int start = offset + TelemetryLog.BLOCK_HEADER_SIZE;
+            int end = start + Math.min(buffer.getInt(offset + TelemetryLog.BLOCK_USED_OFFSET),
+                    blockSize - TelemetryLog.BLOCK_HEADER_SIZE);
+            if (compressed) {
+                ByteBuffer block = buffer.duplicate();
+                block.limit(end).position(start);
+                Arrays.fill(values, 0);
+                while (block.hasRemaining()) {
+                    TelemetryLog.decode(block, values);
+                    records.add(new Record(values, wallTime, time));
+                }
+            } else {
+                for (int at = start; at + recordSize <= end; at += recordSize) {
+                    TelemetryLog.readRecord(buffer, at, values);
+                    records.add(new Record(values, wallTime, time));
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Print a log, one poll per line with the time relative to the first
+     * poll in microseconds.
+     *
+     * @param args the log file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args == null || args.length != 1) {
+            System.err.println("usage: TelemetryLogReader <log file>");
+            System.exit(1);
+        }
+        List<Record> records = read(Paths.get(args[0]));
+        long start = records.isEmpty() ? 0 : records.get(0).nanoTime;
+        for (Record record : records) {
+            System.out.println(String.format("%12.1fus %s", (record.nanoTime - start) / 1000.0, record));
+        }
+        System.out.println(records.size() + " records");
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.motion;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.PortSweep;
+
+/**
+ * Sends motors to positions in the BrickPi+ position loop and tells the
+ * caller when they get there. Each move returns a future that completes
+ * with the motor's status once the position is within the tolerance of the
+ * target and the speed is near zero.
+ *
+ * The motor status is polled, but not at a fixed rate: each poll is
+ * scheduled half the estimated time to the target ahead, within the
+ * shortest and longest intervals, so a motor far from its target is read
+ * rarely and one arriving or settling is read often. A motor that has not
+ * started moving is read at twice the last interval. The motors due at
+ * the same time are read in one sweep.
+ *
+ * The monitor is driven by the caller's clock, like {@link ProfiledMove}:
+ * call poll, from one thread at a time, at or after each time it returns,
+ * or start it to poll on its own thread. The futures are completed on the
+ * polling thread. A new move on a port cancels the future of the move it
+ * replaces; cancelling a future stops the polling but not the motor. Moves
+ * may be started from any thread.
+ */
+public class MotionMonitor implements AutoCloseable {
+
+    /**
+     * The time returned by poll when no move is being watched.
+     */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    public static final int DEFAULT_TOLERANCE = 2;
+    public static final int DEFAULT_SPEED_TOLERANCE = 10;
+    public static final long DEFAULT_MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(2);
+    public static final long DEFAULT_MAX_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final MotorPort[] PORTS = MotorPort.values();
+
+    private final IBrickPi brickPi;
+    private final LongSupplier clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PortSweep sweep = new PortSweep();
+
+    /*
+     * The move on each port, guarded by the lock. A new move bumps the
+     * generation, so a read made for the move it replaced is ignored.
+     */
+    private final CompletableFuture<MotorStatus>[] futures = newFutures();
+    private final int[] targets = new int[PORTS.length];
+    private final long[] due = new long[PORTS.length];
+    private final long[] intervals = new long[PORTS.length];
+    private final long[] deadlines = new long[PORTS.length];
+    private final boolean[] limited = new boolean[PORTS.length];
+    private final int[] generations = new int[PORTS.length];
+    private final int[] reading = new int[PORTS.length];
+
+    private volatile int tolerance = DEFAULT_TOLERANCE;
+    private volatile int speedTolerance = DEFAULT_SPEED_TOLERANCE;
+    private volatile long minInterval = DEFAULT_MIN_INTERVAL;
+    private volatile long maxInterval = DEFAULT_MAX_INTERVAL;
+    private volatile long timeout;
+
+    private volatile long reads;
+    private volatile long completed;
+
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Create a monitor on System.nanoTime.
+     *
+     * @param brickPi the board, with its motors initialized.
+     */
+    public MotionMonitor(IBrickPi brickPi) {
+        this(brickPi, System::nanoTime);
+    }
+
+    /**
+     * @param brickPi the board, with its motors initialized.
+     * @param clock the time in nanoseconds, System.nanoTime or the clock
+     * the board runs on.
+     */
+    public MotionMonitor(IBrickPi brickPi, LongSupplier clock) {
+        this.brickPi = brickPi;
+        this.clock = clock;
+    }
+
+    /**
+     * Send the motor to a position and watch it get there.
+     *
+     * @param port the motor port
+     * @param position the target encoder position in degrees.
+     * @return the future of the move, completed with the final status.
+     * @throws IOException if the position can't be sent.
+     */
+    public CompletableFuture<MotorStatus> setMotorPosition(MotorPort port, int position) throws IOException {
+        brickPi.setMotorPosition(new MotorPort[] { port }, position);
+        return watch(port, position);
+    }
+
+    /**
+     * Send the motor to a position relative to its encoder and watch it
+     * get there.
+     *
+     * @param port the motor port
+     * @param degrees the degrees to add to the encoder.
+     * @return the future of the move, completed with the final status.
+     * @throws IOException if the encoder can't be read or the position sent.
+     */
+    public CompletableFuture<MotorStatus> setMotorPositionRelative(MotorPort port, int degrees) throws IOException {
+        return setMotorPosition(port, brickPi.getMotorEncoder(port) + degrees);
+    }
+
+    /**
+     * Turn the motor a number of rotations in its direction, as
+     * {@link Motor#rotate(double, int)} does, and watch it get there.
+     *
+     * @param port the motor port
+     * @param motor the motor initialized on the port.
+     * @param rotations the number of rotations, negative for the other way.
+     * @return the future of the move, completed with the final status.
+     * @throws IOException if the encoder can't be read or the position sent.
+     */
+    public CompletableFuture<MotorStatus> rotate(MotorPort port, Motor motor, double rotations) throws IOException {
+        int degrees = (int) Math.round(rotations * motor.getTicksPerRevolution());
+        return setMotorPositionRelative(port, degrees * motor.getDirectionVector());
+    }
+
+    /**
+     * Watch a motor already sent to a position, for instance by a
+     * {@link ProfiledMove} or a {@link com.ergotech.brickpi.MotorBatch}.
+     *
+     * @param port the motor port
+     * @param position the target encoder position in degrees.
+     * @return the future of the move, completed with the final status.
+     */
+    public CompletableFuture<MotorStatus> watch(MotorPort port, int position) {
+        CompletableFuture<MotorStatus> future = new CompletableFuture<>();
+        CompletableFuture<MotorStatus> replaced;
+        int index = port.ordinal();
+        long now = clock.getAsLong();
+        lock.lock();
+        try {
+            replaced = futures[index];
+            futures[index] = future;
+            targets[index] = position;
+            intervals[index] = minInterval;
+            due[index] = now + minInterval;
+            deadlines[index] = now + timeout;
+            limited[index] = timeout > 0;
+            generations[index]++;
+        } finally {
+            lock.unlock();
+        }
+        if (replaced != null) {
+            replaced.cancel(false);
+        }
+        Thread poller = thread;
+        if (poller != null) {
+            LockSupport.unpark(poller);
+        }
+        return future;
+    }
+
+    /**
+     * Read the motors that are due and complete the moves that have
+     * arrived or run out of time. A failed read fails the moves it was
+     * for.
+     *
+     * @param nanoTime the current time.
+     * @return the time to poll again, or IDLE.
+     */
+    public long poll(long nanoTime) {
+        int count = 0;
+        lock.lock();
+        try {
+            for (MotorPort port : PORTS) {
+                int index = port.ordinal();
+                if (futures[index] != null && futures[index].isDone()) {
+                    // cancelled by the caller
+                    futures[index] = null;
+                }
+                boolean read = futures[index] != null && nanoTime - due[index] >= 0;
+                sweep.readMotor(port, read);
+                if (read) {
+                    reading[index] = generations[index];
+                    count++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (count == 0) {
+            return next();
+        }
+
+        IOException error = null;
+        try {
+            brickPi.sweep(sweep);
+        } catch (IOException ex) {
+            error = ex;
+        }
+        reads += count;
+
+        CompletableFuture<MotorStatus>[] finished = null;
+        Object[] results = null;
+        lock.lock();
+        try {
+            for (MotorPort port : PORTS) {
+                int index = port.ordinal();
+                if (!sweep.isMotorRead(port) || futures[index] == null || reading[index] != generations[index]) {
+                    continue;
+                }
+                Object result = null;
+                if (error != null) {
+                    result = error;
+                } else if (sweep.isValid(port)) {
+                    MotorStatus status = sweep.getMotorStatus(port);
+                    int remaining = Math.abs(status.position - targets[index]);
+                    int speed = Math.abs(status.dps);
+                    if (remaining <= tolerance && speed <= speedTolerance) {
+                        result = new MotorStatus(status.state, status.power, status.position, status.dps);
+                    } else {
+                        intervals[index] = interval(intervals[index], remaining, speed);
+                        due[index] = nanoTime + intervals[index];
+                    }
+                } else {
+                    due[index] = nanoTime + minInterval;
+                }
+                if (result == null && limited[index] && nanoTime - deadlines[index] >= 0) {
+                    result = new TimeoutException("Motor " + port + " did not reach " + targets[index]);
+                }
+                if (result != null) {
+                    if (finished == null) {
+                        finished = newFutures();
+                        results = new Object[PORTS.length];
+                    }
+                    finished[index] = futures[index];
+                    results[index] = result;
+                    futures[index] = null;
+                } else if (limited[index] && deadlines[index] - due[index] < 0) {
+                    due[index] = deadlines[index];
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (finished != null) {
+            for (int i = 0; i < finished.length; i++) {
+                if (finished[i] == null) {
+                    continue;
+                }
+                if (results[i] instanceof MotorStatus) {
+                    completed++;
+                    finished[i].complete((MotorStatus) results[i]);
+                } else {
+                    finished[i].completeExceptionally((Exception) results[i]);
+                }
+            }
+        }
+        return next();
+    }
+
+    /**
+     * Poll on a thread of the monitor's own, on its clock, until closed.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "MotionMonitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the polling thread, if started, and cancel the moves being
+     * watched. The motors carry on to their targets.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        Thread poller = thread;
+        thread = null;
+        if (poller != null) {
+            LockSupport.unpark(poller);
+            try {
+                poller.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (MotorPort port : PORTS) {
+            CompletableFuture<MotorStatus> future;
+            lock.lock();
+            try {
+                future = futures[port.ordinal()];
+                futures[port.ordinal()] = null;
+            } finally {
+                lock.unlock();
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Set how close a move must come to its target to be complete.
+     *
+     * @param degrees the largest position error.
+     * @param dps the largest speed in degrees per second.
+     */
+    public void setTolerance(int degrees, int dps) {
+        tolerance = degrees;
+        speedTolerance = dps;
+    }
+
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    public int getSpeedTolerance() {
+        return speedTolerance;
+    }
+
+    /**
+     * Set the shortest and longest times between reads of a motor.
+     */
+    public void setPollInterval(long min, long max, TimeUnit unit) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("The intervals must be positive, the shortest first");
+        }
+        minInterval = unit.toNanos(min);
+        maxInterval = unit.toNanos(max);
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * Fail the moves started after this call with a TimeoutException if
+     * they have not arrived in time.
+     *
+     * @param time the longest move, 0 for no limit.
+     * @param unit the unit of the time.
+     */
+    public void setTimeout(long time, TimeUnit unit) {
+        timeout = unit.toNanos(time);
+    }
+
+    /**
+     * Returns the number of motor status reads made.
+     */
+    public long getReadCount() {
+        return reads;
+    }
+
+    /**
+     * Returns the number of moves that have arrived.
+     */
+    public long getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Returns the number of moves being watched.
+     */
+    public int getPendingCount() {
+        int count = 0;
+        lock.lock();
+        try {
+            for (CompletableFuture<MotorStatus> future : futures) {
+                if (future != null) {
+                    count++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Half the estimated time to the target, or twice the last interval if
+     * the motor is not moving, within the shortest and longest intervals.
+     */
+    private long interval(long last, int remaining, int speed) {
+        long interval;
+        if (remaining <= tolerance) {
+            // settling on the target
+            interval = minInterval;
+        } else if (speed > speedTolerance) {
+            interval = TimeUnit.SECONDS.toNanos(remaining) / speed / 2;
+        } else {
+            interval = last * 2;
+        }
+        return Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    private long next() {
+        long next = IDLE;
+        boolean watching = false;
+        lock.lock();
+        try {
+            for (int i = 0; i < futures.length; i++) {
+                if (futures[i] != null && (!watching || due[i] - next < 0)) {
+                    next = due[i];
+                    watching = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return next;
+    }
+
+    private void run() {
+        while (running) {
+            long next = poll(clock.getAsLong());
+            long wait = next == IDLE ? Long.MAX_VALUE : next - clock.getAsLong();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     * Returns an empty slot per port. A generic array can only be created
+     * raw.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static CompletableFuture<MotorStatus>[] newFutures() {
+        return new CompletableFuture[PORTS.length];
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.motion;
+
+import java.util.Arrays;
+
+/**
+ * A planned move of a motor: the speed ramps up to a peak, cruises and
+ * ramps down again so that it stops at the distance. The ramps are straight
+ * (trapezoidal) or follow half a cosine (S-curve), which has no step in the
+ * acceleration and so no jolt at the start and end of each ramp. A move too
+ * short to reach the maximum speed peaks lower and does not cruise.
+ *
+ * The plan is worked out once into tables of breakpoints, the time and
+ * position of each with the speed to hold until the next. Each ramp is cut
+ * into a number of equal segments and the cruise is one, so a move has at
+ * most 2 * segments + 1 setpoints however long it is. The speed of a
+ * segment is its average, so a motor that follows the speeds passes through
+ * the breakpoint positions. Times are in nanoseconds from the start of the
+ * move, positions in degrees from the start position and speeds in degrees
+ * per second, all negative for a negative distance.
+ *
+ * A profile is immutable and may be shared between threads and moves.
+ *
+ * @see ProfiledMove
+ */
+public final class MotionProfile {
+
+    public enum Shape {
+        TRAPEZOIDAL, S_CURVE
+    };
+
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    private final Shape shape;
+    private final int distance;
+    private final double peakDps;
+    private final long[] times;
+    private final int[] positions;
+    private final int[] speeds;
+
+    private MotionProfile(Shape shape, int distance, double peakDps, long[] times, int[] positions, int[] speeds) {
+        this.shape = shape;
+        this.distance = distance;
+        this.peakDps = peakDps;
+        this.times = times;
+        this.positions = positions;
+        this.speeds = speeds;
+    }
+
+    /**
+     * Plan a move with the default number of segments per ramp.
+     *
+     * @see #plan(Shape, int, int, int, int)
+     */
+    public static MotionProfile plan(Shape shape, int distance, int maxDps, int acceleration) {
+        return plan(shape, distance, maxDps, acceleration, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Plan a move.
+     *
+     * @param shape the shape of the ramps.
+     * @param distance the distance to move in degrees, negative to move
+     * backwards.
+     * @param maxDps the highest speed in degrees per second.
+     * @param acceleration the highest acceleration in degrees per second per
+     * second.
+     * @param segments the number of setpoints on each ramp, at least 1.
+     * @return the profile.
+     */
+    public static MotionProfile plan(Shape shape, int distance, int maxDps, int acceleration, int segments) {
+        if (maxDps <= 0 || acceleration <= 0) {
+            throw new IllegalArgumentException("Speed and acceleration must be positive: " + maxDps + ", " + acceleration);
+        }
+        if (segments < 1) {
+            throw new IllegalArgumentException("At least one segment per ramp: " + segments);
+        }
+        if (distance == 0) {
+            return new MotionProfile(shape, 0, 0, new long[] { 0 }, new int[] { 0 }, new int[] { 0 });
+        }
+        double length = Math.abs((double) distance);
+        // the ramp time and distance for a peak speed: a straight ramp at the
+        // acceleration, or a cosine ramp peaking at it
+        double rampFactor = shape == Shape.S_CURVE ? Math.PI / 2 : 1;
+        double peak = Math.min(maxDps, Math.sqrt(acceleration * length / rampFactor));
+        double rampTime = rampFactor * peak / acceleration;
+        double rampDistance = peak * rampTime / 2;
+        double cruiseTime = (length - 2 * rampDistance) / peak;
+        boolean cruise = cruiseTime > 1e-9;
+        int count = 2 * segments + (cruise ? 2 : 1);
+        double[] at = new double[count];
+        double[] exact = new double[count];
+        int next = 0;
+        for (int i = 0; i <= segments; i++) {
+            double t = rampTime * i / segments;
+            at[next] = t;
+            exact[next++] = ramp(shape, peak, rampTime, t);
+        }
+        double decelerate = rampTime + (cruise ? cruiseTime : 0);
+        if (cruise) {
+            at[next] = decelerate;
+            exact[next++] = length - rampDistance;
+        }
+        for (int i = 1; i <= segments; i++) {
+            double t = rampTime * i / segments;
+            at[next] = decelerate + t;
+            // the ramp down is the ramp up backwards
+            exact[next++] = length - ramp(shape, peak, rampTime, rampTime - t);
+        }
+        exact[count - 1] = length;
+
+        int sign = distance < 0 ? -1 : 1;
+        long[] times = new long[count];
+        int[] positions = new int[count];
+        int[] speeds = new int[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = Math.round(at[i] * 1e9);
+            positions[i] = sign * (int) Math.round(exact[i]);
+            if (i + 1 < count) {
+                speeds[i] = sign * (int) Math.round((exact[i + 1] - exact[i]) / (at[i + 1] - at[i]));
+            }
+        }
+        return new MotionProfile(shape, distance, sign * peak, times, positions, speeds);
+    }
+
+    /**
+     * The distance covered a time into a ramp up.
+     */
+    private static double ramp(Shape shape, double peak, double rampTime, double t) {
+        if (shape == Shape.S_CURVE) {
+            return peak / 2 * (t - rampTime / Math.PI * Math.sin(Math.PI * t / rampTime));
+        }
+        return peak * t * t / (2 * rampTime);
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Returns the distance of the move in degrees.
+     */
+    public int getDistance() {
+        return distance;
+    }
+
+    /**
+     * Returns the highest speed of the move in degrees per second, which is
+     * below the maximum when the move is too short to reach it.
+     */
+    public double getPeakDps() {
+        return peakDps;
+    }
+
+    /**
+     * Returns the time the move takes in nanoseconds.
+     */
+    public long getDuration() {
+        return times[times.length - 1];
+    }
+
+    /**
+     * Returns the number of breakpoints, including the start and the end.
+     */
+    public int getBreakpointCount() {
+        return times.length;
+    }
+
+    /**
+     * Returns the time of a breakpoint in nanoseconds from the start.
+     */
+    public long getTime(int breakpoint) {
+        return times[breakpoint];
+    }
+
+    /**
+     * Returns the position of a breakpoint in degrees from the start.
+     */
+    public int getPosition(int breakpoint) {
+        return positions[breakpoint];
+    }
+
+    /**
+     * Returns the speed to hold from a breakpoint to the next, zero for the
+     * last.
+     */
+    public int getDps(int breakpoint) {
+        return speeds[breakpoint];
+    }
+
+    /**
+     * Returns the last breakpoint at or before a time, 0 before the start
+     * and the last after the end.
+     *
+     * @param nanos the time from the start of the move.
+     */
+    public int getBreakpoint(long nanos) {
+        int found = Arrays.binarySearch(times, nanos);
+        if (found >= 0) {
+            // a zero length move has one breakpoint at every time
+            while (found + 1 < times.length && times[found + 1] == nanos) {
+                found++;
+            }
+            return found;
+        }
+        return Math.max(0, -found - 2);
+    }
+
+    /**
+     * Returns the position at a time, in degrees from the start, of a motor
+     * that follows the speeds exactly.
+     *
+     * @param nanos the time from the start of the move.
+     */
+    public double getPositionAt(long nanos) {
+        int breakpoint = getBreakpoint(nanos);
+        if (breakpoint == times.length - 1 || nanos <= 0) {
+            return positions[breakpoint];
+        }
+        return positions[breakpoint] + speeds[breakpoint] * ((nanos - times[breakpoint]) / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return shape + " " + distance + " degrees in " + times.length + " breakpoints over "
+                + getDuration() / 1000000 + "ms peaking at " + Math.round(peakDps) + " dps";
+    }
+}
@@ -9,6 +9,8 @@
 package com.ergotech.brickpi.motion;
 
 import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.protocol.BitStream;
+import com.ergotech.brickpi.protocol.LegacyCodec;
 import java.util.BitSet;
 
 /**
@@ -26,6 +28,11 @@ public class Motor {
      */
     protected int commandedOutput;
 
+    /**
+     * The number of ticks per revolution a new motor starts with.
+     */
+    public static final int DEFAULT_TICKS_PER_REVOLUTION = 1440;
+
     /**
      * The number of ticks per revolution of the motor.
      */
@@ -40,13 +47,18 @@ public class Motor {
     protected volatile int currentEncoderValue;
 
     /**
-     * The current speed as read from the encoder. This value may be
-     * Integer.MAX_VALUE if the encoder has not been read, does not exist or is
-     * otherwise invalid.
+     * The current speed in RPM as estimated from the encoder. This value may
+     * be Double.MAX_VALUE if the encoder has not been read, does not exist or
+     * is otherwise invalid.
      *
      */
     protected volatile double currentSpeed;
 
+    /**
+     * Estimates the speed from the encoder readings.
+     */
+    protected final SpeedEstimator speedEstimator = new SpeedEstimator();
+
     /**
      * Last reading time. The last time the encoder value was update. Used to
      * calculate the speed.
@@ -89,7 +101,7 @@ public class Motor {
     public Motor() {
         currentSpeed = Double.MAX_VALUE;
         currentEncoderValue = Integer.MAX_VALUE;
-        ticksPerRevolution = 1440;  // according to everything I've read, this should be 720;  The reality seems to be 1440 (for me)
+        ticksPerRevolution = DEFAULT_TICKS_PER_REVOLUTION;  // according to everything I've read, this should be 720;  The reality seems to be 1440 (for me)
         direction = Direction.CLOCKWISE;
     }
 
@@ -144,20 +156,17 @@ public class Motor {
     }
 
     /**
-     * The calculated current speed. This will return -1 if the speed is
-     * unknown. Counter clockwise speeds will be negative.
+     * The estimated current speed in RPM, from the encoder readings. Speeds
+     * are negative while the encoder counts down. This will return -1 if the
+     * speed is unknown, before there have been two readings.
      *
-     * @return the current calculated speed or -1 if the speed is unknown.
+     * @return the current estimated speed or -1 if the speed is unknown.
+     * @see #getSpeedEstimator()
      */
     public double getCurrentSpeed() {
-        // internally we keep a positive speed.
         double tmp = currentSpeed;
         if (currentSpeed == Double.MAX_VALUE) {
             tmp = -1;
-        } else {
-            if (getDirection() == Direction.COUNTER_CLOCKWISE) {
-                tmp = -tmp;
-            }
         }
         return tmp;
     }
@@ -215,6 +224,20 @@ public class Motor {
         return startLocation; // nothing to encode.
     }
 
+    /**
+     * Encode the data associated with the motor to the outgoing message, ten
+     * bits as {@link #encodeToValueRequest(BitSet, int)} does, in one write.
+     *
+     * @param message the stream representing the outgoing message, advanced
+     * past the motor.
+     */
+    public void encodeToValueRequest(BitStream message) {
+        int word = (enabled ? 1 : 0)
+                | (direction == Direction.CLOCKWISE ? 2 : 0)
+                | ((commandedOutput & 0xFF) << 2);
+        message.put(word, LegacyCodec.MOTOR_BITS);
+    }
+
     /**
      * Decode the encoder data associated with the motor from the incoming
      * message. This will set the currentSpeed variable.
@@ -225,33 +248,31 @@ public class Motor {
      * begin decoding
      */
     public void decodeValues(int wordLength, byte[] message, int startLocation) {
-        long currentTime = System.currentTimeMillis();
-        int tmpEncoderValue = BrickPiCommunications.decodeInt(wordLength, message, startLocation);
+        updateEncoder(System.nanoTime(), BrickPiCommunications.decodeInt(wordLength, message, startLocation));
+    }
+
+    /**
+     * Record an encoder reading, updating the speed estimate and any
+     * requested rotation. Called for every poll of the motor.
+     *
+     * @param nanoTime the System.nanoTime at which the encoder was read.
+     * @param encoderValue the raw encoder value.
+     */
+    public void updateEncoder(long nanoTime, int encoderValue) {
         // if the encoder was reset before there was an encoder value, then this next clause 
         // kicks in as soon as we have a value.
         if (encoderOffset == Integer.MAX_VALUE) {
-            encoderOffset = tmpEncoderValue;
+            encoderOffset = encoderValue;
         }
-        if (isEnabled()) { // don't calculate the speed if we're not enabled...
-            if (currentEncoderValue != Integer.MAX_VALUE) {
-                double readingDifference = currentEncoderValue - tmpEncoderValue;
-                long timeDifference = currentTime - lastReadingTime;
-                //System.out.println(" Motor Speed " + readingDifference + " " + timeDifference);
-                double immediateSpeed = Math.abs(readingDifference / timeDifference / ticksPerRevolution * 1000 * 60);
-//            // could run a little low-pass filtering here, but it needs to be corrected
-//            // for direction changes, etc.  - Just set currentEncoderValue and currentSpeed when speed or direction are set
-//            if (currentSpeed == Double.MAX_VALUE) {
-//                currentSpeed = immediateSpeed;
-//            } else {
-//                currentSpeed = Math.abs((currentSpeed * 4 + immediateSpeed) / 5);
-//            }
-                currentSpeed = immediateSpeed;
-            }
+        speedEstimator.update(nanoTime, encoderValue);
+        if (speedEstimator.isValid()) {
+            currentSpeed = speedEstimator.getSpeed() / ticksPerRevolution * 60;
         } else {
-            currentSpeed = 0;
+            // after a long gap the estimate starts again; the old speed is stale
+            currentSpeed = Double.MAX_VALUE;
         }
-        lastReadingTime = currentTime;
-        currentEncoderValue = tmpEncoderValue;
+        lastReadingTime = System.currentTimeMillis();
+        currentEncoderValue = encoderValue;
         if (rotations != 0) {
             if (encoderAtStartOfRotation == Integer.MAX_VALUE) {
                 encoderAtStartOfRotation = currentEncoderValue;
@@ -267,6 +288,14 @@ public class Motor {
         }
     }
 
+    /**
+     * Returns the estimator of the motor's speed and acceleration in encoder
+     * ticks, fed by every poll.
+     */
+    public SpeedEstimator getSpeedEstimator() {
+        return speedEstimator;
+    }
+
     /**
      * Returns the commanded output
      *
@@ -300,9 +329,7 @@ public class Motor {
         }
         if (brickPi != null) {
             // wake up the update thread so that the values are immediately send to the brick pi
-            synchronized (brickPi) {
-                brickPi.notify();
-            }
+            brickPi.wakeUpdateThread();
         }
 
     }
@@ -350,9 +377,7 @@ public class Motor {
         this.enabled = enabled;
         if (brickPi != null) {
             // wake up the update thread so that the values are immediately send to the brick pi
-            synchronized (brickPi) {
-                brickPi.notify();
-            }
+            brickPi.wakeUpdateThread();
         }
     }
 
@@ -361,6 +386,14 @@ public class Motor {
      * rotation (eg 0.25) are acceptable. Negative values imply
      * counter-clockwise rotation.
      *
+     * The motor runs at the commanded output until a poll finds that it has
+     * gone far enough, so it overshoots by however far it travels in a poll
+     * and in coming to a stop. On a BrickPi+ use a {@link ProfiledMove},
+     * which ramps the speed up and down in the board's speed loop and holds
+     * the target at the end, or {@link MotionMonitor#rotate}, which leaves
+     * the move to the position loop and returns a future completed when the
+     * motor has arrived.
+     *
      * @param rotations the number of rotations to complete.
      * @param commandedOutput the speed at which to perform the rotation.
      *
@@ -7,6 +7,9 @@ public class MotorStatus {
 	public int position;
 	public int dps;
 	
+	public MotorStatus() {
+	}
+	
 	public MotorStatus(int state, int power, int position, int dps) {
 		this.state = state;
 		this.power = power;
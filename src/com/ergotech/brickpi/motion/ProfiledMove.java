@@ -0,0 +1,169 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.motion;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ergotech.brickpi.IBrickPi;
+
+/**
+ * Moves a motor along a motion profile by handing the firmware's speed loop
+ * a new setpoint at each breakpoint, then its position loop the target to
+ * hold at the end. Nothing is polled during the move: a move costs an
+ * encoder read, one setMotorDps per segment and a setMotorPosition,
+ * however far it goes. The speed loop lags the setpoints a little, and the
+ * lag is made up on the way down, so the motor comes to the target without
+ * passing it.
+ *
+ * The distance is in the motor's direction, as setMotor and setMotorDps
+ * take it, so the motor must be initialized on its port.
+ *
+ * The move is driven by the caller's clock: start it, then call update at or
+ * after each time it returns, or call run to do both on System.nanoTime. An
+ * update that is late skips to the current segment. Not thread safe.
+ */
+public class ProfiledMove {
+
+    /**
+     * The time returned once the move is finished.
+     */
+    public static final long FINISHED = Long.MAX_VALUE;
+
+    private final IBrickPi brickPi;
+    private final MotorPort[] ports;
+    private final Motor motor;
+    private final MotionProfile profile;
+
+    private long startTime;
+    private int target;
+    private int breakpoint;
+    private int lastDps;
+    private int commands;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * @param brickPi the board.
+     * @param port the port of the motor.
+     * @param motor the motor initialized on the port, for its direction.
+     * @param profile the move.
+     */
+    public ProfiledMove(IBrickPi brickPi, MotorPort port, Motor motor, MotionProfile profile) {
+        this.brickPi = brickPi;
+        this.ports = new MotorPort[] { port };
+        this.motor = motor;
+        this.profile = profile;
+    }
+
+    /**
+     * Read the position to move from and send the first setpoint.
+     *
+     * @param nanoTime the current time.
+     * @return the time to call update, or FINISHED.
+     */
+    public long start(long nanoTime) throws IOException {
+        int origin = brickPi.getMotorEncoder(ports[0]);
+        target = origin + profile.getDistance() * motor.getDirectionVector();
+        startTime = nanoTime;
+        breakpoint = -1;
+        lastDps = 0;
+        commands = 0;
+        started = true;
+        finished = false;
+        return update(nanoTime);
+    }
+
+    /**
+     * Send the setpoint of the segment the time falls in, if it is not
+     * already set, or the target once the move has run its time.
+     *
+     * @param nanoTime the current time.
+     * @return the time of the next breakpoint, or FINISHED.
+     */
+    public long update(long nanoTime) throws IOException {
+        if (!started) {
+            throw new IllegalStateException("The move has not been started");
+        }
+        if (finished) {
+            return FINISHED;
+        }
+        int at = profile.getBreakpoint(nanoTime - startTime);
+        if (at == profile.getBreakpointCount() - 1) {
+            // hold the exact target, whatever the speed loop left
+            brickPi.setMotorPosition(ports, target);
+            commands++;
+            finished = true;
+            return FINISHED;
+        }
+        if (at != breakpoint) {
+            breakpoint = at;
+            int dps = profile.getDps(at);
+            if (dps != lastDps) {
+                brickPi.setMotorDps(ports, dps);
+                commands++;
+                lastDps = dps;
+            }
+        }
+        return startTime + profile.getTime(at + 1);
+    }
+
+    /**
+     * Make the move on System.nanoTime, parking the thread between
+     * breakpoints. An interrupted move stops the motor.
+     */
+    public void run() throws IOException, InterruptedException {
+        long next = start(System.nanoTime());
+        while (next != FINISHED) {
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (Thread.interrupted()) {
+                    stop();
+                    throw new InterruptedException();
+                }
+            }
+            next = update(System.nanoTime());
+        }
+    }
+
+    /**
+     * Abandon the move, stopping the motor where it is.
+     */
+    public void stop() throws IOException {
+        if (started && !finished) {
+            finished = true;
+            brickPi.setMotorDps(ports, 0);
+            commands++;
+        }
+    }
+
+    public MotionProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the encoder position the move ends at, once started.
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns the number of commands sent since the start, not counting the
+     * encoder read.
+     */
+    public int getCommandCount() {
+        return commands;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.motion;
+
+/**
+ * Estimates the speed and acceleration of a motor from its encoder
+ * readings. The 32 bit encoder is unwrapped into a 64 bit position, so a
+ * motor that runs through the overflow keeps a continuous position and
+ * speed. Each reading is timed with System.nanoTime, so polls that run late
+ * or early are weighted by the time that actually passed.
+ *
+ * The estimate is an alpha-beta-gamma filter with the gains of a fading
+ * memory polynomial filter: the smaller theta, the faster it follows and
+ * the noisier it is. The filter lags a sudden change, such as a reversal or
+ * a stall, so when consecutive readings miss the prediction on the same
+ * side by more than the maneuver threshold in total, the speed is re-seeded
+ * from a least squares fit over the recent readings that move the way the
+ * newest does. The speed is signed, positive when the encoder counts up.
+ *
+ * Updates come from a single thread, the one polling the board, and do not
+ * allocate. Other threads may read the estimate, and each getter returns the
+ * latest value of its own field, but the values of two getters may come
+ * from different updates: a speed read just after a time may already be the
+ * next reading's.
+ */
+public class SpeedEstimator {
+
+    public static final double DEFAULT_THETA = 0.7;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final double DEFAULT_MANEUVER_TICKS = 4;
+    public static final long DEFAULT_MAX_GAP_NANOS = 500000000L;
+
+    private final double alpha;
+    private final double beta;
+    private final double gamma;
+
+    // the ring of recent readings, times relative to the first reading
+    private final long[] times;
+    private final long[] positions;
+    private int count;
+    private int next;
+
+    private double maneuverTicks = DEFAULT_MANEUVER_TICKS;
+    private long maxGapNanos = DEFAULT_MAX_GAP_NANOS;
+
+    private boolean started;
+    private int lastEncoder;
+    private long origin;
+    private double filteredPosition;
+    // the sum of the residuals since they last changed sign
+    private double drift;
+
+    private volatile long time;
+    private volatile long position;
+    private volatile double speed;
+    private volatile double acceleration;
+    private volatile boolean valid;
+
+    /**
+     * Create an estimator with the default gains and window.
+     */
+    public SpeedEstimator() {
+        this(DEFAULT_THETA, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param theta the fading memory factor, 0 to 1 exclusive.
+     * @param window the number of recent readings kept for re-seeding, at
+     * least 2.
+     */
+    public SpeedEstimator(double theta, int window) {
+        if (!(theta > 0 && theta < 1)) {
+            throw new IllegalArgumentException("theta must be between 0 and 1: " + theta);
+        }
+        if (window < 2) {
+            throw new IllegalArgumentException("window must be at least 2: " + window);
+        }
+        double discount = 1 - theta;
+        alpha = 1 - theta * theta * theta;
+        beta = 1.5 * discount * discount * (1 + theta);
+        gamma = 0.5 * discount * discount * discount;
+        times = new long[window];
+        positions = new long[window];
+    }
+
+    /**
+     * Sets how far, in encoder ticks, consecutive readings may miss the
+     * prediction on the same side before the speed is re-seeded from the
+     * recent readings.
+     */
+    public void setManeuverThreshold(double maneuverTicks) {
+        this.maneuverTicks = maneuverTicks;
+    }
+
+    /**
+     * Sets the longest time between readings that the filter carries across.
+     * After a longer gap the estimate starts again from the new reading.
+     */
+    public void setMaxGap(long maxGapNanos) {
+        this.maxGapNanos = maxGapNanos;
+    }
+
+    /**
+     * Forget every reading. The unwrapped position is kept.
+     */
+    public void reset() {
+        count = 0;
+        next = 0;
+        drift = 0;
+        speed = 0;
+        acceleration = 0;
+        valid = false;
+    }
+
+    /**
+     * Add a reading.
+     *
+     * @param nanoTime the System.nanoTime at which the encoder was read.
+     * @param encoder the encoder value as the board reports it.
+     */
+    public void update(long nanoTime, int encoder) {
+        // the int difference is right across the overflow
+        long unwrapped = started ? position + (encoder - lastEncoder) : encoder;
+        started = true;
+        lastEncoder = encoder;
+        long dtNanos = nanoTime - time;
+        if (count > 0) {
+            if (dtNanos <= 0) {
+                // the same poll twice, or a clock step; keep the position
+                position = unwrapped;
+                return;
+            }
+            if (dtNanos > maxGapNanos) {
+                reset();
+            }
+        }
+        if (count == 0) {
+            origin = nanoTime;
+        }
+        record(nanoTime, unwrapped);
+        position = unwrapped;
+        time = nanoTime;
+
+        if (count == 1) {
+            filteredPosition = unwrapped;
+            return;
+        }
+        if (count == 2 && !valid) {
+            filteredPosition = unwrapped;
+            speed = slope();
+            acceleration = 0;
+            valid = true;
+            return;
+        }
+
+        double dt = dtNanos / 1e9;
+        double v = speed;
+        double a = acceleration;
+        double predicted = filteredPosition + v * dt + 0.5 * a * dt * dt;
+        double residual = unwrapped - predicted;
+        drift = (drift > 0) == (residual > 0) ? drift + residual : residual;
+        if (Math.abs(drift) > maneuverTicks) {
+            // a reversal, stall or knock; start again from the recent readings
+            filteredPosition = unwrapped;
+            speed = slope();
+            acceleration = 0;
+            drift = 0;
+            return;
+        }
+        filteredPosition = predicted + alpha * residual;
+        speed = v + a * dt + beta * residual / dt;
+        acceleration = a + 2 * gamma * residual / (dt * dt);
+    }
+
+    private void record(long nanoTime, long unwrapped) {
+        times[next] = nanoTime - origin;
+        positions[next] = unwrapped;
+        next = (next + 1) % times.length;
+        if (count < times.length) {
+            count++;
+        }
+    }
+
+    /**
+     * The least squares slope of the readings since the motor last changed
+     * direction or stopped, in ticks per second.
+     */
+    private double slope() {
+        int newest = (next - 1 + times.length) % times.length;
+        // only the readings moving the way the newest is, back to where it turned
+        int used = 1;
+        long direction = 0;
+        for (int i = 1; i < count; i++) {
+            int at = (newest - i + times.length) % times.length;
+            int after = (at + 1) % times.length;
+            long step = Long.signum(positions[after] - positions[at]);
+            if (i > 1 && step != direction) {
+                break;
+            }
+            direction = step;
+            used++;
+        }
+        double meanTime = 0;
+        double meanPosition = 0;
+        for (int i = 0; i < used; i++) {
+            int at = (newest - i + times.length) % times.length;
+            meanTime += times[at];
+            meanPosition += positions[at] - positions[newest];
+        }
+        meanTime /= used;
+        meanPosition /= used;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < used; i++) {
+            int at = (newest - i + times.length) % times.length;
+            double t = times[at] - meanTime;
+            covariance += t * (positions[at] - positions[newest] - meanPosition);
+            variance += t * t;
+        }
+        return variance == 0 ? 0 : covariance / variance * 1e9;
+    }
+
+    /**
+     * Returns true once there have been two readings to estimate from.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Returns the System.nanoTime of the latest reading.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the latest reading, unwrapped across encoder overflows.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the estimated speed in encoder ticks per second, positive when
+     * the encoder counts up.
+     */
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Returns the estimated acceleration in encoder ticks per second per
+     * second.
+     */
+    public double getAcceleration() {
+        return acceleration;
+    }
+}
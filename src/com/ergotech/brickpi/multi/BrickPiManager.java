@@ -0,0 +1,387 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.multi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.IBrickPiAsync;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.queue.AsyncBrickPi;
+import com.ergotech.brickpi.queue.BrickPiCommandQueue;
+import com.ergotech.brickpi.queue.QueuedBrickPi;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.pi4j.io.spi.SpiChannel;
+import com.pi4j.io.spi.SpiDevice;
+
+/**
+ * Drives several stacked BrickPi boards as one. Each board is opened at its
+ * own address and chip-select, has its own frames and its own command queue
+ * and I/O thread, so a board's requests never wait in another board's
+ * queue, and a stop for one board goes ahead of routine reads on it without
+ * waiting for the others.
+ *
+ * Boards on the same chip-select share one bus lock, and a request holds it
+ * from encoding to decoding, so their queued transfers take turns rather
+ * than interleave. {@link #sweepAll(PortSweep[])} instead sweeps the
+ * BrickPiSPI boards of each bus as one batch on the calling thread, every
+ * board's frames sent back to back (pipelined where the device allows)
+ * while holding the bus once, without going through the queues.
+ *
+ * Ports are numbered across the boards: motor port n is port n % 4 (MA to
+ * MD) of board n / 4, in the order the boards were added, and the same for
+ * sensor ports (S1 to S4).
+ */
+public class BrickPiManager implements AutoCloseable {
+
+    /**
+     * The number of motor ports, and of sensor ports, on each board.
+     */
+    public static final int PORTS_PER_BOARD = 4;
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+
+    private static final class Board {
+
+        final AsyncBrickPi async;
+        final QueuedBrickPi blocking;
+
+        Board(AsyncBrickPi async) {
+            this.async = async;
+            this.blocking = new QueuedBrickPi(async);
+        }
+    }
+
+    /**
+     * The BrickPiSPI boards sharing one bus, swept together.
+     */
+    private static final class Bus {
+
+        final BrickPiSPI[] boards;
+        /** the index of each board */
+        final int[] indices;
+
+        Bus(BrickPiSPI[] boards, int[] indices) {
+            this.boards = boards;
+            this.indices = indices;
+        }
+    }
+
+    /**
+     * The result of a sweep that went through without a failure.
+     */
+    private static final CompletableFuture<Void> SWEPT = CompletableFuture.completedFuture(null);
+
+    private final List<Board> boards = new CopyOnWriteArrayList<>();
+
+    /**
+     * The buses, replaced as boards are added.
+     */
+    private volatile Bus[] buses = new Bus[0];
+
+    /**
+     * The boards that are not on a bus and are swept through their queues.
+     */
+    private volatile int[] queuedBoards = new int[0];
+
+    /**
+     * Open the board at an address on a chip-select and add it.
+     *
+     * @param address the board address.
+     * @param spiChannel the chip-select.
+     * @return the index of the board.
+     * @throws IOException if the board can't be opened.
+     */
+    public int addBoard(byte address, SpiChannel spiChannel) throws IOException {
+        BrickPiSPI brickPi = BrickPiSPI.getBrickPi(address, spiChannel);
+        if (brickPi == null) {
+            throw new IOException("Unable to open BrickPi at address " + address + " on " + spiChannel);
+        }
+        return addBoard(brickPi);
+    }
+
+    /**
+     * Add the board at an address on an already opened (or simulated) SPI
+     * device.
+     *
+     * @param address the board address.
+     * @param spi the device.
+     * @return the index of the board.
+     * @throws IOException if the board does not answer.
+     */
+    public int addBoard(byte address, SpiDevice spi) throws IOException {
+        return addBoard(new BrickPiSPI(address, spi));
+    }
+
+    /**
+     * Add a board. It should only be used through the manager from now on.
+     *
+     * @param brickPi the board.
+     * @return the index of the board.
+     */
+    public synchronized int addBoard(IBrickPi brickPi) {
+        int index = boards.size();
+        BrickPiCommandQueue queue = new BrickPiCommandQueue(brickPi, BrickPiCommandQueue.DEFAULT_CAPACITY,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "BrickPi I/O " + index);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        boards.add(new Board(new AsyncBrickPi(queue)));
+        if (brickPi instanceof BrickPiSPI) {
+            addToBus((BrickPiSPI)brickPi, index);
+        } else {
+            int[] queued = Arrays.copyOf(queuedBoards, queuedBoards.length + 1);
+            queued[queued.length - 1] = index;
+            queuedBoards = queued;
+        }
+        return index;
+    }
+
+    private void addToBus(BrickPiSPI brickPi, int index) {
+        Bus[] updated = buses.clone();
+        for (int i = 0; i < updated.length; i++) {
+            Bus bus = updated[i];
+            if (bus.boards[0].sharesBus(brickPi)) {
+                BrickPiSPI[] busBoards = Arrays.copyOf(bus.boards, bus.boards.length + 1);
+                int[] indices = Arrays.copyOf(bus.indices, bus.indices.length + 1);
+                busBoards[busBoards.length - 1] = brickPi;
+                indices[indices.length - 1] = index;
+                updated[i] = new Bus(busBoards, indices);
+                buses = updated;
+                return;
+            }
+        }
+        updated = Arrays.copyOf(updated, updated.length + 1);
+        updated[updated.length - 1] = new Bus(new BrickPiSPI[] { brickPi }, new int[] { index });
+        buses = updated;
+    }
+
+    public int getBoardCount() {
+        return boards.size();
+    }
+
+    /**
+     * Returns the asynchronous interface to a board.
+     */
+    public IBrickPiAsync getBoard(int board) {
+        return boards.get(board).async;
+    }
+
+    /**
+     * Returns a blocking interface to a board, through its queue.
+     */
+    public IBrickPi getBlockingBoard(int board) {
+        return boards.get(board).blocking;
+    }
+
+    /**
+     * Returns the command queue of a board, eg for its metrics.
+     */
+    public BrickPiCommandQueue getQueue(int board) {
+        return boards.get(board).async.getQueue();
+    }
+
+    public int getMotorPortCount() {
+        return boards.size() * PORTS_PER_BOARD;
+    }
+
+    public int getSensorPortCount() {
+        return boards.size() * PORTS_PER_BOARD;
+    }
+
+    /**
+     * Returns the unified index of a motor port.
+     */
+    public static int motorIndex(int board, MotorPort port) {
+        return board * PORTS_PER_BOARD + port.ordinal();
+    }
+
+    /**
+     * Returns the unified index of a sensor port.
+     */
+    public static int sensorIndex(int board, SensorPort port) {
+        return board * PORTS_PER_BOARD + port.ordinal();
+    }
+
+    /**
+     * Returns the board of a unified port index.
+     */
+    public static int boardOf(int index) {
+        return index / PORTS_PER_BOARD;
+    }
+
+    public static MotorPort motorPortOf(int motor) {
+        return MOTOR_PORTS[motor % PORTS_PER_BOARD];
+    }
+
+    public static SensorPort sensorPortOf(int sensor) {
+        return SENSOR_PORTS[sensor % PORTS_PER_BOARD];
+    }
+
+    private AsyncBrickPi board(int index) {
+        return boards.get(boardOf(index)).async;
+    }
+
+    public CompletableFuture<Void> initializeMotor(int motor, Motor settings) {
+        return board(motor).initializeMotor(motorPortOf(motor), settings);
+    }
+
+    /**
+     * Set the power of several motors, on any boards. One request is queued
+     * for each board involved.
+     *
+     * @param motors the unified motor indices.
+     * @param power the power, see IBrickPi.setMotor.
+     * @return completes when every board has applied the power.
+     */
+    public CompletableFuture<Void> setMotor(int[] motors, int power) {
+        int boardCount = boards.size();
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[boardCount];
+        int count = 0;
+        for (int board = 0; board < boardCount; board++) {
+            int ports = 0;
+            for (int motor : motors) {
+                if (boardOf(motor) == board) {
+                    ports |= 1 << (motor % PORTS_PER_BOARD);
+                }
+            }
+            if (ports != 0) {
+                MotorPort[] portArray = new MotorPort[Integer.bitCount(ports)];
+                for (int port = 0, i = 0; port < PORTS_PER_BOARD; port++) {
+                    if ((ports & (1 << port)) != 0) {
+                        portArray[i++] = MOTOR_PORTS[port];
+                    }
+                }
+                sent[count++] = boards.get(board).async.setMotor(portArray, power);
+            }
+        }
+        return CompletableFuture.allOf(Arrays.copyOf(sent, count));
+    }
+
+    public CompletableFuture<Void> setMotor(int motor, int power) {
+        return board(motor).setMotor(new MotorPort[] { motorPortOf(motor) }, power);
+    }
+
+    public CompletableFuture<Void> setMotorPosition(int motor, int position) {
+        return board(motor).setMotorPosition(new MotorPort[] { motorPortOf(motor) }, position);
+    }
+
+    public CompletableFuture<Void> setMotorDps(int motor, int dps) {
+        return board(motor).setMotorDps(new MotorPort[] { motorPortOf(motor) }, dps);
+    }
+
+    public CompletableFuture<Void> setMotorEncoderOffset(int motor, int offset) {
+        return board(motor).setMotorEncoderOffset(new MotorPort[] { motorPortOf(motor) }, offset);
+    }
+
+    public CompletableFuture<Integer> getMotorEncoder(int motor) {
+        return board(motor).getMotorEncoder(motorPortOf(motor));
+    }
+
+    public CompletableFuture<MotorStatus> getMotorStatus(int motor, MotorStatus motorStatus) {
+        return board(motor).getMotorStatus(motorPortOf(motor), motorStatus);
+    }
+
+    public CompletableFuture<Void> setSensor(int sensor, Sensor settings) {
+        return board(sensor).setSensor(settings, sensorPortOf(sensor));
+    }
+
+    public <T extends Sensor> CompletableFuture<T> getSensor(int sensor) {
+        return board(sensor).getSensor(sensorPortOf(sensor));
+    }
+
+    /**
+     * Returns a new sweep for each board, to be configured and passed to
+     * {@link #sweepAll(PortSweep[])}.
+     */
+    public PortSweep[] newSweeps() {
+        PortSweep[] sweeps = new PortSweep[boards.size()];
+        for (int i = 0; i < sweeps.length; i++) {
+            sweeps[i] = new PortSweep();
+        }
+        return sweeps;
+    }
+
+    /**
+     * Sweep every board. The BrickPiSPI boards of each bus are swept as one
+     * batch on the calling thread, see
+     * {@link BrickPiSPI#sweepAll(BrickPiSPI[], PortSweep[])}, so their
+     * sweeps don't wait behind commands in their queues. Any other board's
+     * sweep is queued on its own I/O thread.
+     *
+     * @param sweeps one sweep per board, in board order.
+     * @return completes when every board has been swept, exceptionally if
+     * any sweep failed.
+     */
+    public CompletableFuture<Void> sweepAll(PortSweep[] sweeps) {
+        Bus[] buses = this.buses;
+        int[] queued = queuedBoards;
+        CompletableFuture<?>[] swept = null;
+        if (queued.length > 0) {
+            swept = new CompletableFuture<?>[queued.length + 1];
+            for (int i = 0; i < queued.length; i++) {
+                swept[i] = boards.get(queued[i]).async.sweep(sweeps[queued[i]]);
+            }
+        }
+        CompletableFuture<Void> done = SWEPT;
+        for (Bus bus : buses) {
+            try {
+                BrickPiSPI.sweepAll(bus.boards, busSweeps(bus, sweeps));
+            } catch (IOException | RuntimeException e) {
+                if (done == SWEPT) {
+                    done = new CompletableFuture<>();
+                    done.completeExceptionally(e);
+                }
+            }
+        }
+        if (swept == null) {
+            return done;
+        }
+        swept[queued.length] = done;
+        return CompletableFuture.allOf(swept);
+    }
+
+    /**
+     * Returns the sweeps of a bus's boards, the sweeps themselves when the
+     * bus has every board from the first.
+     */
+    private static PortSweep[] busSweeps(Bus bus, PortSweep[] sweeps) {
+        int[] indices = bus.indices;
+        if (indices.length == sweeps.length && indices[indices.length - 1] == indices.length - 1) {
+            // indices are ascending, so they are 0 to n - 1
+            return sweeps;
+        }
+        PortSweep[] busSweeps = new PortSweep[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            busSweeps[i] = sweeps[indices[i]];
+        }
+        return busSweeps;
+    }
+
+    /**
+     * Stop every board's I/O thread.
+     */
+    @Override
+    public void close() {
+        for (Board board : boards) {
+            board.async.close();
+        }
+    }
+}
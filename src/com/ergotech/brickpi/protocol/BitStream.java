@@ -0,0 +1,211 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.protocol;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Objects;
+
+/**
+ * A stream of bits over a byte array, as the original BrickPi firmware packs
+ * its messages: each value low bit first, bit n of the stream in bit n % 8
+ * of byte n / 8. Up to 64 bits are read or written per operation through an
+ * unaligned little endian long view of the array, falling back to single
+ * bytes only in the last seven bytes.
+ *
+ * A stream wraps an array and is reused by resetting it; it does not
+ * allocate. Writes replace the bits written and leave the others, so the
+ * array need not be cleared first. Not thread safe.
+ */
+public final class BitStream {
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private byte[] buffer;
+    private int position;
+
+    /**
+     * Create a stream over a new array.
+     *
+     * @param capacity the size of the array in bytes.
+     */
+    public BitStream(int capacity) {
+        this(new byte[capacity], 0);
+    }
+
+    /**
+     * Create a stream over an array.
+     *
+     * @param buffer the array.
+     * @param bitPosition the bit of the array to start at.
+     */
+    public BitStream(byte[] buffer, int bitPosition) {
+        wrap(buffer, bitPosition);
+    }
+
+    /**
+     * Continue over another array.
+     *
+     * @param buffer the array.
+     * @param bitPosition the bit of the array to start at.
+     * @return this stream.
+     */
+    public BitStream wrap(byte[] buffer, int bitPosition) {
+        this.buffer = Objects.requireNonNull(buffer);
+        position(bitPosition);
+        return this;
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Returns the bit of the array that will be read or written next.
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Move to a bit of the array.
+     *
+     * @param bitPosition the bit to read or write next.
+     * @return this stream.
+     */
+    public BitStream position(int bitPosition) {
+        this.position = Objects.checkIndex(bitPosition, (buffer.length << 3) + 1);
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes of the array holding the bits up to the
+     * position, including a partly filled last byte.
+     */
+    public int byteLength() {
+        return (position + 7) >>> 3;
+    }
+
+    /**
+     * Returns the number of bits left in the array.
+     */
+    public int remaining() {
+        return (buffer.length << 3) - position;
+    }
+
+    /**
+     * Write the low bits of a value.
+     *
+     * @param value the value, the bits above the length are ignored.
+     * @param bits the number of bits, 0-64.
+     * @return this stream.
+     */
+    public BitStream put(long value, int bits) {
+        write(buffer, position, bits, value);
+        position += bits;
+        return this;
+    }
+
+    /**
+     * Read an unsigned value.
+     *
+     * @param bits the number of bits, 0-64.
+     * @return the value, zero extended.
+     */
+    public long get(int bits) {
+        long value = read(buffer, position, bits);
+        position += bits;
+        return value;
+    }
+
+    /**
+     * Read an unsigned value of up to 32 bits.
+     */
+    public int getInt(int bits) {
+        return (int) get(bits);
+    }
+
+    /**
+     * Read bits from an array.
+     *
+     * @param buffer the array.
+     * @param bitPosition the first bit.
+     * @param bits the number of bits, 0-64.
+     * @return the value, zero extended.
+     */
+    public static long read(byte[] buffer, int bitPosition, int bits) {
+        check(buffer, bitPosition, bits);
+        if (bits == 0) {
+            return 0;
+        }
+        int index = bitPosition >>> 3;
+        int shift = bitPosition & 7;
+        long value = load(buffer, index) >>> shift;
+        if (shift + bits > 64) {
+            value |= (buffer[index + 8] & 0xFFL) << (64 - shift);
+        }
+        return bits == 64 ? value : value & ((1L << bits) - 1);
+    }
+
+    /**
+     * Write bits into an array, leaving the bits around them.
+     *
+     * @param buffer the array.
+     * @param bitPosition the first bit.
+     * @param bits the number of bits, 0-64.
+     * @param value the value, the bits above the length are ignored.
+     */
+    public static void write(byte[] buffer, int bitPosition, int bits, long value) {
+        check(buffer, bitPosition, bits);
+        if (bits == 0) {
+            return;
+        }
+        int index = bitPosition >>> 3;
+        int shift = bitPosition & 7;
+        long mask = bits == 64 ? -1L : (1L << bits) - 1;
+        value &= mask;
+        if (index + 8 <= buffer.length) {
+            long word = (long) LONGS.get(buffer, index);
+            LONGS.set(buffer, index, (word & ~(mask << shift)) | (value << shift));
+        } else {
+            long shiftedMask = mask << shift;
+            long shiftedValue = value << shift;
+            for (int i = index; i < buffer.length; i++) {
+                buffer[i] = (byte) ((buffer[i] & ~shiftedMask) | (shiftedValue & shiftedMask));
+                shiftedMask >>>= 8;
+                shiftedValue >>>= 8;
+            }
+        }
+        if (shift + bits > 64) {
+            // the top bits of a long that starts part way through a byte
+            int spill = (1 << (shift + bits - 64)) - 1;
+            buffer[index + 8] = (byte) ((buffer[index + 8] & ~spill) | ((value >>> (64 - shift)) & spill));
+        }
+    }
+
+    private static long load(byte[] buffer, int index) {
+        if (index + 8 <= buffer.length) {
+            return (long) LONGS.get(buffer, index);
+        }
+        long word = 0;
+        for (int i = buffer.length - 1; i >= index; i--) {
+            word = (word << 8) | (buffer[i] & 0xFF);
+        }
+        return word;
+    }
+
+    private static void check(byte[] buffer, int bitPosition, int bits) {
+        if (bits < 0 || bits > 64) {
+            throw new IllegalArgumentException("Bit length " + bits + " is not 0-64");
+        }
+        Objects.checkFromIndexSize(bitPosition, bits, buffer.length << 3);
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.protocol;
+
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * Encodes and decodes the BrickPi SPI messages. Every frame starts with a
+ * four byte header: the board address, the message type, and two bytes that
+ * carry the first arguments of a request or, in byte 3, the status of the
+ * response. The frame lengths come from {@link BPSPI_MESSAGE_TYPE#getPayloadSize()}.
+ *
+ * Each message type has one frame, reused by every transaction of that type
+ * and reset from a precomputed template holding the address and message
+ * type. Multi-byte values are big endian; every byte but the most
+ * significant is masked before it is shifted so that negative values decode
+ * correctly. Most fields sit at unaligned offsets, where byte array VarHandle
+ * views are several times slower than the shifts.
+ *
+ * A codec belongs to one board and, like the frames it hands out, is not
+ * thread safe.
+ *
+ * Request layouts, after the address and message type:
+ * <pre>
+ * SET_LED               value
+ * SET_ADDRESS           new address, 16 byte id
+ * SET_SENSOR_TYPE       port mask, sensor type
+ * I2C_TRANSACT_n        device address, speed, read count, write count, write bytes
+ * SET_MOTOR_POWER       port mask, power
+ * SET_MOTOR_POSITION    port mask, int32 position
+ * SET_MOTOR_POSITION_KP port mask, kp
+ * SET_MOTOR_POSITION_KD port mask, kd
+ * SET_MOTOR_DPS         port mask, int16 dps
+ * SET_MOTOR_DPS_KP      port mask, kp
+ * SET_MOTOR_DPS_KD      port mask, kd
+ * SET_MOTOR_LIMITS      port mask, power, uint16 dps
+ * OFFSET_MOTOR_ENCODER  port mask, int32 offset
+ * </pre>
+ * Response layouts, from byte 4:
+ * <pre>
+ * GET_MANUFACTURER, GET_NAME   20 ascii characters, zero padded
+ * GET_HARDWARE_VERSION, GET_FIRMWARE_VERSION   int32
+ * GET_ID                16 bytes
+ * GET_VOLTAGE_*         uint16 millivolts
+ * GET_SENSOR_n          sensor type, state, value bytes
+ * GET_MOTOR_n_ENCODER   int32 degrees
+ * GET_MOTOR_n_STATUS    state, int8 power, int32 position, int16 dps
+ * </pre>
+ */
+public final class BrickPiCodec {
+
+    public static final int HEADER_SIZE = 4;
+    public static final int STATUS_INDEX = 3;
+    public static final int DATA_INDEX = 4;
+
+    private static final BPSPI_MESSAGE_TYPE[] GET_SENSOR = {
+        BPSPI_MESSAGE_TYPE.GET_SENSOR_1,
+        BPSPI_MESSAGE_TYPE.GET_SENSOR_2,
+        BPSPI_MESSAGE_TYPE.GET_SENSOR_3,
+        BPSPI_MESSAGE_TYPE.GET_SENSOR_4
+    };
+
+    private static final BPSPI_MESSAGE_TYPE[] I2C_TRANSACT = {
+        BPSPI_MESSAGE_TYPE.I2C_TRANSACT_1,
+        BPSPI_MESSAGE_TYPE.I2C_TRANSACT_2,
+        BPSPI_MESSAGE_TYPE.I2C_TRANSACT_3,
+        BPSPI_MESSAGE_TYPE.I2C_TRANSACT_4
+    };
+
+    private static final BPSPI_MESSAGE_TYPE[] GET_MOTOR_ENCODER = {
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_A_ENCODER,
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_B_ENCODER,
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_C_ENCODER,
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_D_ENCODER
+    };
+
+    private static final BPSPI_MESSAGE_TYPE[] GET_MOTOR_STATUS = {
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS,
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_B_STATUS,
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_C_STATUS,
+        BPSPI_MESSAGE_TYPE.GET_MOTOR_D_STATUS
+    };
+
+    private final byte address;
+    private final byte[][] templates = new byte[BPSPI_MESSAGE_TYPE.values().length][];
+    private final byte[][] frames = new byte[BPSPI_MESSAGE_TYPE.values().length][];
+
+    /**
+     * Create a codec for the board at the address.
+     *
+     * @param address the board address.
+     */
+    public BrickPiCodec(byte address) {
+        this.address = address;
+        for (BPSPI_MESSAGE_TYPE type : BPSPI_MESSAGE_TYPE.values()) {
+            templates[type.ordinal()] = template(type, type.getPayloadSize());
+            frames[type.ordinal()] = new byte[HEADER_SIZE + type.getPayloadSize()];
+        }
+    }
+
+    public byte getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the reusable frame for the message type, reset from the
+     * template.
+     *
+     * @param type the message type
+     * @return the frame
+     */
+    public byte[] frame(BPSPI_MESSAGE_TYPE type) {
+        return frame(type, type.getPayloadSize());
+    }
+
+    /**
+     * Returns the reusable frame for the message type with a payload size
+     * other than the default, eg for a sensor read. The frame and template
+     * are only reallocated when the size changes.
+     *
+     * @param type the message type
+     * @param payloadSize the number of bytes following the header.
+     * @return the frame
+     */
+    public byte[] frame(BPSPI_MESSAGE_TYPE type, int payloadSize) {
+        int index = type.ordinal();
+        byte[] template = templates[index];
+        if (template.length != HEADER_SIZE + payloadSize) {
+            template = template(type, payloadSize);
+            templates[index] = template;
+            frames[index] = new byte[template.length];
+        }
+        byte[] frame = frames[index];
+        System.arraycopy(template, 0, frame, 0, template.length);
+        return frame;
+    }
+
+    private byte[] template(BPSPI_MESSAGE_TYPE type, int payloadSize) {
+        byte[] template = new byte[HEADER_SIZE + payloadSize];
+        template[0] = type == BPSPI_MESSAGE_TYPE.SET_ADDRESS ? 0 : address;
+        template[1] = type.getByte();
+        return template;
+    }
+
+    // ---- message lookup
+
+    public static BPSPI_MESSAGE_TYPE getSensorMessage(SensorPort port) {
+        return GET_SENSOR[port.ordinal()];
+    }
+
+    public static BPSPI_MESSAGE_TYPE getI2cMessage(SensorPort port) {
+        return I2C_TRANSACT[port.ordinal()];
+    }
+
+    public static BPSPI_MESSAGE_TYPE getEncoderMessage(MotorPort port) {
+        return GET_MOTOR_ENCODER[port.ordinal()];
+    }
+
+    public static BPSPI_MESSAGE_TYPE getStatusMessage(MotorPort port) {
+        return GET_MOTOR_STATUS[port.ordinal()];
+    }
+
+    // ---- requests
+
+    /**
+     * A request with no arguments, eg any of the GET messages.
+     */
+    public byte[] encodeRead(BPSPI_MESSAGE_TYPE type) {
+        return frame(type);
+    }
+
+    public byte[] encodeSensorRead(SensorPort port, int payloadSize) {
+        return frame(GET_SENSOR[port.ordinal()], payloadSize);
+    }
+
+    public byte[] encodeSetLed(int value) {
+        byte[] frame = frame(BPSPI_MESSAGE_TYPE.SET_LED);
+        frame[2] = (byte) value;
+        return frame;
+    }
+
+    /**
+     * Set the address of the board with the id, or of every board if the id
+     * is null.
+     */
+    public byte[] encodeSetAddress(int newAddress, byte[] id) {
+        byte[] frame = frame(BPSPI_MESSAGE_TYPE.SET_ADDRESS);
+        frame[2] = (byte) newAddress;
+        if (id != null) {
+            System.arraycopy(id, 0, frame, 3, Math.min(id.length, frame.length - 3));
+        }
+        return frame;
+    }
+
+    public byte[] encodeSetSensorType(int portMask, int sensorType) {
+        byte[] frame = frame(BPSPI_MESSAGE_TYPE.SET_SENSOR_TYPE);
+        frame[2] = (byte) portMask;
+        frame[3] = (byte) sensorType;
+        return frame;
+    }
+
+    /**
+     * An I2C transaction. The bytes read are returned by the next
+     * GET_SENSOR for the port.
+     */
+    public byte[] encodeI2cTransact(SensorPort port, int deviceAddress, int speed,
+            int readCount, byte[] write, int writeCount) {
+        byte[] frame = frame(I2C_TRANSACT[port.ordinal()],
+                BPSPI_MESSAGE_TYPE.I2C_TRANSACT_1.getPayloadSize() + writeCount);
+        frame[2] = (byte) deviceAddress;
+        frame[3] = (byte) speed;
+        frame[4] = (byte) readCount;
+        frame[5] = (byte) writeCount;
+        System.arraycopy(write, 0, frame, 6, writeCount);
+        return frame;
+    }
+
+    public byte[] encodeSetMotorPower(int portMask, int power) {
+        return portAndByte(BPSPI_MESSAGE_TYPE.SET_MOTOR_POWER, portMask, power);
+    }
+
+    public byte[] encodeSetMotorPosition(int portMask, int position) {
+        return portAndInt(BPSPI_MESSAGE_TYPE.SET_MOTOR_POSITION, portMask, position);
+    }
+
+    public byte[] encodeSetMotorPositionKp(int portMask, int kp) {
+        return portAndByte(BPSPI_MESSAGE_TYPE.SET_MOTOR_POSITION_KP, portMask, kp);
+    }
+
+    public byte[] encodeSetMotorPositionKd(int portMask, int kd) {
+        return portAndByte(BPSPI_MESSAGE_TYPE.SET_MOTOR_POSITION_KD, portMask, kd);
+    }
+
+    public byte[] encodeSetMotorDps(int portMask, int dps) {
+        byte[] frame = frame(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS);
+        frame[2] = (byte) portMask;
+        encodeShort(frame, 3, dps);
+        return frame;
+    }
+
+    public byte[] encodeSetMotorDpsKp(int portMask, int kp) {
+        return portAndByte(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS_KP, portMask, kp);
+    }
+
+    public byte[] encodeSetMotorDpsKd(int portMask, int kd) {
+        return portAndByte(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS_KD, portMask, kd);
+    }
+
+    public byte[] encodeSetMotorLimits(int portMask, int power, int dps) {
+        byte[] frame = frame(BPSPI_MESSAGE_TYPE.SET_MOTOR_LIMITS);
+        frame[2] = (byte) portMask;
+        frame[3] = (byte) power;
+        encodeShort(frame, 4, dps);
+        return frame;
+    }
+
+    public byte[] encodeOffsetMotorEncoder(int portMask, int offset) {
+        return portAndInt(BPSPI_MESSAGE_TYPE.OFFSET_MOTOR_ENCODER, portMask, offset);
+    }
+
+    private byte[] portAndByte(BPSPI_MESSAGE_TYPE type, int portMask, int value) {
+        byte[] frame = frame(type);
+        frame[2] = (byte) portMask;
+        frame[3] = (byte) value;
+        return frame;
+    }
+
+    private byte[] portAndInt(BPSPI_MESSAGE_TYPE type, int portMask, int value) {
+        byte[] frame = frame(type);
+        frame[2] = (byte) portMask;
+        encodeInt(frame, 3, value);
+        return frame;
+    }
+
+    public static void encodeShort(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >> 8);
+        frame[offset + 1] = (byte) value;
+    }
+
+    public static void encodeInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >> 24);
+        frame[offset + 1] = (byte) (value >> 16);
+        frame[offset + 2] = (byte) (value >> 8);
+        frame[offset + 3] = (byte) value;
+    }
+
+    // ---- responses
+
+    /**
+     * Whether the response carries the success status.
+     */
+    public static boolean isValid(byte[] frame) {
+        return frame.length > STATUS_INDEX && frame[STATUS_INDEX] == (byte) 0xA5;
+    }
+
+    public static int decodeInt(byte[] frame, int offset) {
+        return (frame[offset] << 24)
+                | ((frame[offset + 1] & 0xFF) << 16)
+                | ((frame[offset + 2] & 0xFF) << 8)
+                | (frame[offset + 3] & 0xFF);
+    }
+
+    public static int decodeShort(byte[] frame, int offset) {
+        return (frame[offset] << 8) | (frame[offset + 1] & 0xFF);
+    }
+
+    public static int decodeUnsignedShort(byte[] frame, int offset) {
+        return ((frame[offset] & 0xFF) << 8) | (frame[offset + 1] & 0xFF);
+    }
+
+    /**
+     * GET_HARDWARE_VERSION and GET_FIRMWARE_VERSION, eg 3002000 for 3.2.0.
+     */
+    public static int decodeVersion(byte[] frame) {
+        return decodeInt(frame, DATA_INDEX);
+    }
+
+    /**
+     * Any of the GET_VOLTAGE messages.
+     *
+     * @return the voltage in millivolts.
+     */
+    public static int decodeVoltage(byte[] frame) {
+        return decodeUnsignedShort(frame, DATA_INDEX);
+    }
+
+    /**
+     * GET_MANUFACTURER and GET_NAME.
+     *
+     * @param frame the response
+     * @param into receives the characters up to the first zero.
+     * @return into
+     */
+    public static StringBuilder decodeString(byte[] frame, StringBuilder into) {
+        into.setLength(0);
+        for (int i = DATA_INDEX; i < frame.length && frame[i] != 0; i++) {
+            into.append((char) (frame[i] & 0xFF));
+        }
+        return into;
+    }
+
+    /**
+     * GET_ID.
+     *
+     * @param frame the response
+     * @param into receives the 16 byte id.
+     * @return into
+     */
+    public static byte[] decodeId(byte[] frame, byte[] into) {
+        System.arraycopy(frame, DATA_INDEX, into, 0, Math.min(into.length, frame.length - DATA_INDEX));
+        return into;
+    }
+
+    /**
+     * GET_MOTOR_n_ENCODER.
+     */
+    public static int decodeEncoder(byte[] frame) {
+        return decodeInt(frame, DATA_INDEX);
+    }
+
+    /**
+     * GET_MOTOR_n_STATUS.
+     *
+     * @param frame the response
+     * @param into the holder to update.
+     * @return into
+     */
+    public static MotorStatus decodeMotorStatus(byte[] frame, MotorStatus into) {
+        into.state = frame[DATA_INDEX] & 0xFF;
+        into.power = frame[DATA_INDEX + 1];
+        into.position = decodeInt(frame, DATA_INDEX + 2);
+        into.dps = decodeShort(frame, DATA_INDEX + 6);
+        return into;
+    }
+
+    /**
+     * The sensor type byte of a GET_SENSOR response.
+     */
+    public static int decodeSensorType(byte[] frame) {
+        return frame[DATA_INDEX] & 0xFF;
+    }
+
+    /**
+     * The sensor state byte of a GET_SENSOR response, see
+     * Sensor.SENSOR_STATE.
+     */
+    public static int decodeSensorState(byte[] frame) {
+        return frame[DATA_INDEX + 1] & 0xFF;
+    }
+
+    /**
+     * The value of a GET_SENSOR response as a signed big endian integer.
+     * At most the first four value bytes are used.
+     *
+     * @param length the number of value bytes, following the state.
+     */
+    public static int decodeSensorValue(byte[] frame, int length) {
+        int end = DATA_INDEX + 2 + Math.min(length, 4);
+        if (end > frame.length || length <= 0) {
+            return 0;
+        }
+        int value = frame[DATA_INDEX + 2];
+        for (int i = DATA_INDEX + 3; i < end; i++) {
+            value = (value << 8) | (frame[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * The raw value bytes of a GET_SENSOR response packed big endian into a
+     * long. At most the first eight value bytes are used.
+     *
+     * @param length the number of value bytes, following the state.
+     */
+    public static long decodeSensorRaw(byte[] frame, int length) {
+        int end = Math.min(DATA_INDEX + 2 + Math.min(length, 8), frame.length);
+        long raw = 0;
+        for (int i = DATA_INDEX + 2; i < end; i++) {
+            raw = (raw << 8) | (frame[i] & 0xFF);
+        }
+        return raw;
+    }
+
+    /**
+     * Rebuild a successful GET_SENSOR response from its decoded fields, so
+     * that a Sensor can process values that did not come from the bus. The
+     * inverse of decodeSensorType, decodeSensorState and decodeSensorRaw.
+     *
+     * @param length the number of value bytes, following the state. At most
+     * eight are filled in.
+     */
+    public static void encodeSensorResponse(byte[] frame, int type, int state, long raw, int length) {
+        frame[STATUS_INDEX] = (byte) 0xA5;
+        frame[DATA_INDEX] = (byte) type;
+        frame[DATA_INDEX + 1] = (byte) state;
+        int end = Math.min(DATA_INDEX + 2 + Math.min(length, 8), frame.length);
+        for (int i = end - 1; i >= DATA_INDEX + 2; i--) {
+            frame[i] = (byte) raw;
+            raw >>>= 8;
+        }
+    }
+}
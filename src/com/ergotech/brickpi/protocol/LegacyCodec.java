@@ -0,0 +1,281 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.protocol;
+
+import com.ergotech.brickpi.sensors.Sensor;
+
+/**
+ * Encodes and decodes the bit packed values message of the original
+ * BrickPi, whose two processors each drive two motors and two sensors. The
+ * fields follow each other without padding, each low bit first, from the
+ * bit after the message type byte; see {@link BitStream}.
+ *
+ * Request, per processor:
+ * <pre>
+ * for each port  1 bit, set if an encoder offset follows
+ *                  5 bits length n, n bits offset, sign in the low bit
+ * for each port  10 bits, speed (8) &lt;&lt; 2 | reverse &lt;&lt; 1 | enable
+ * for each port  for each I2C device not repeating its transaction
+ *                  4 bits write length, 4 bits read length, the write bytes
+ * </pre>
+ * Response, per processor:
+ * <pre>
+ * for each port  5 bits encoder length n
+ * for each port  n bits encoder, sign in the low bit
+ * for each port  the sensor value, its length set by the sensor type, see
+ *                {@link #sensorBits(int)}; for I2C sensors a bit per device
+ *                that answered, then the read bytes of each
+ * </pre>
+ * The codec keeps no state and does not allocate.
+ */
+public final class LegacyCodec {
+
+    public static final int ENCODER_LENGTH_BITS = 5;
+    public static final int MOTOR_BITS = 10;
+    public static final int MAX_SPEED = 255;
+
+    /**
+     * The largest encoder magnitude, whose sign and magnitude fit the 31 bits
+     * a five bit length allows.
+     */
+    public static final int MAX_ENCODER = (1 << 30) - 1;
+
+    private static final int I2C_LENGTH_BITS = 4;
+    private static final int COLOR_BITS = 3;
+    private static final int COLOR_COMPONENT_BITS = 10;
+    private static final int COLOR_COMPONENTS_BITS = LegacyValues.COLOR_COMPONENTS * COLOR_COMPONENT_BITS;
+
+    private LegacyCodec() {
+    }
+
+    /**
+     * Encode the request for the two ports of one processor.
+     *
+     * @param out the stream, positioned after the message type.
+     * @param values the values to send.
+     * @param processor 0 for ports 1 and 2, 1 for ports 3 and 4.
+     */
+    public static void encodeValueRequest(BitStream out, LegacyValues values, int processor) {
+        int first = processor * 2;
+        for (int port = first; port < first + 2; port++) {
+            int offset = values.encoderOffset[port];
+            if (offset == 0) {
+                out.put(0, 1);
+            } else {
+                long word = signMagnitude(offset);
+                int bits = wordBits(word);
+                out.put(1 | (bits << 1), 1 + ENCODER_LENGTH_BITS);
+                out.put(word, bits);
+            }
+        }
+        for (int port = first; port < first + 2; port++) {
+            encodeMotor(out, values.motorSpeed[port], values.motorEnable[port]);
+        }
+        for (int port = first; port < first + 2; port++) {
+            if (!isI2c(values.sensorType[port])) {
+                continue;
+            }
+            for (int device = 0; device < values.i2cDevices[port]; device++) {
+                if (values.i2cSame[port][device]) {
+                    continue;
+                }
+                int write = values.i2cWrite[port][device];
+                out.put(write | (values.i2cRead[port][device] << I2C_LENGTH_BITS), 2 * I2C_LENGTH_BITS);
+                putBytes(out, values.i2cOut[port][device], write);
+            }
+        }
+    }
+
+    /**
+     * Encode the motor field of a request.
+     *
+     * @param speed the speed, negative for reverse, limited to
+     * {@link #MAX_SPEED}.
+     * @param enable whether the motor is enabled.
+     */
+    public static void encodeMotor(BitStream out, int speed, boolean enable) {
+        int reverse = speed < 0 ? 1 : 0;
+        int magnitude = Math.min(Math.abs(speed), MAX_SPEED);
+        out.put((magnitude << 2) | (reverse << 1) | (enable ? 1 : 0), MOTOR_BITS);
+    }
+
+    /**
+     * Decode the response for the two ports of one processor, as the board
+     * sends it for the sensor types and I2C settings in the values.
+     *
+     * @param in the stream, positioned after the message type.
+     * @param values the values, updated with the encoders and sensors.
+     * @param processor 0 for ports 1 and 2, 1 for ports 3 and 4.
+     */
+    public static void decodeValueResponse(BitStream in, LegacyValues values, int processor) {
+        int first = processor * 2;
+        int lengths = in.getInt(2 * ENCODER_LENGTH_BITS);
+        values.encoder[first] = fromSignMagnitude(in.get(lengths & 0x1F));
+        values.encoder[first + 1] = fromSignMagnitude(in.get(lengths >>> ENCODER_LENGTH_BITS));
+        for (int port = first; port < first + 2; port++) {
+            int type = values.sensorType[port];
+            if (type == Sensor.TYPE_SENSOR_COLOR_FULL) {
+                values.sensor[port] = in.get(COLOR_BITS);
+                long components = in.get(COLOR_COMPONENTS_BITS);
+                int[] array = values.sensorArray[port];
+                for (int i = 0; i < LegacyValues.COLOR_COMPONENTS; i++) {
+                    array[i] = (int) (components & 0x3FF);
+                    components >>>= COLOR_COMPONENT_BITS;
+                }
+            } else if (isI2c(type)) {
+                int devices = values.i2cDevices[port];
+                long answered = in.get(devices);
+                values.sensor[port] = answered;
+                for (int device = 0; device < devices; device++) {
+                    if ((answered & (1 << device)) != 0) {
+                        getBytes(in, values.i2cIn[port][device], values.i2cRead[port][device]);
+                    }
+                }
+            } else {
+                values.sensor[port] = in.get(sensorBits(type));
+            }
+        }
+    }
+
+    /**
+     * Encode the response for the two ports of one processor, as the board
+     * does. For simulating a board.
+     *
+     * @param out the stream, positioned after the message type.
+     * @param values the encoders and sensors to send.
+     * @param processor 0 for ports 1 and 2, 1 for ports 3 and 4.
+     */
+    public static void encodeValueResponse(BitStream out, LegacyValues values, int processor) {
+        int first = processor * 2;
+        long word0 = signMagnitude(values.encoder[first]);
+        long word1 = signMagnitude(values.encoder[first + 1]);
+        int bits0 = wordBits(word0);
+        int bits1 = wordBits(word1);
+        out.put(bits0 | (bits1 << ENCODER_LENGTH_BITS), 2 * ENCODER_LENGTH_BITS);
+        out.put(word0, bits0);
+        out.put(word1, bits1);
+        for (int port = first; port < first + 2; port++) {
+            int type = values.sensorType[port];
+            if (type == Sensor.TYPE_SENSOR_COLOR_FULL) {
+                out.put(values.sensor[port], COLOR_BITS);
+                long components = 0;
+                int[] array = values.sensorArray[port];
+                for (int i = LegacyValues.COLOR_COMPONENTS - 1; i >= 0; i--) {
+                    components = (components << COLOR_COMPONENT_BITS) | (array[i] & 0x3FF);
+                }
+                out.put(components, COLOR_COMPONENTS_BITS);
+            } else if (isI2c(type)) {
+                int devices = values.i2cDevices[port];
+                long answered = values.sensor[port];
+                out.put(answered, devices);
+                for (int device = 0; device < devices; device++) {
+                    if ((answered & (1 << device)) != 0) {
+                        putBytes(out, values.i2cIn[port][device], values.i2cRead[port][device]);
+                    }
+                }
+            } else {
+                out.put(values.sensor[port], sensorBits(type));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bits of a sensor's value in the response. A full
+     * color sensor sends its color and then its four components; an I2C
+     * sensor's length depends on its devices.
+     *
+     * @param sensorType the sensor type, one of the Sensor.TYPE_SENSOR
+     * constants.
+     * @return the number of bits, or -1 for I2C sensors.
+     */
+    public static int sensorBits(int sensorType) {
+        switch (sensorType) {
+            case Sensor.TYPE_SENSOR_TOUCH:
+                return 1;
+            case Sensor.TYPE_SENSOR_ULTRASONIC_CONT:
+            case Sensor.TYPE_SENSOR_ULTRASONIC_SS:
+                return 8;
+            case Sensor.TYPE_SENSOR_COLOR_FULL:
+                return COLOR_BITS + COLOR_COMPONENTS_BITS;
+            case Sensor.TYPE_SENSOR_I2C:
+            case Sensor.TYPE_SENSOR_I2C_9V:
+                return -1;
+            case Sensor.TYPE_SENSOR_EV3_COLOR_M3:
+            case Sensor.TYPE_SENSOR_EV3_GYRO_M3:
+            case Sensor.TYPE_SENSOR_EV3_INFRARED_M2:
+                return 32;
+            default:
+                if (sensorType >= Sensor.TYPE_SENSOR_EV3_US_M0 && sensorType <= Sensor.TYPE_SENSOR_EV3_TOUCH_DEBOUNCE) {
+                    return 16;
+                }
+                // the analog sensors
+                return 10;
+        }
+    }
+
+    /**
+     * Returns the length of an encoder field, the fewest bits that hold its
+     * magnitude shifted up past the sign bit.
+     */
+    public static int encoderBits(int value) {
+        return wordBits(signMagnitude(value));
+    }
+
+    private static boolean isI2c(int sensorType) {
+        return sensorType == Sensor.TYPE_SENSOR_I2C || sensorType == Sensor.TYPE_SENSOR_I2C_9V;
+    }
+
+    private static long signMagnitude(int value) {
+        if (value < -MAX_ENCODER || value > MAX_ENCODER) {
+            throw new IllegalArgumentException("Encoder value " + value + " does not fit 31 bits");
+        }
+        return value < 0 ? ((long) -value << 1) | 1 : (long) value << 1;
+    }
+
+    private static int fromSignMagnitude(long word) {
+        int magnitude = (int) (word >>> 1);
+        return (word & 1) != 0 ? -magnitude : magnitude;
+    }
+
+    private static int wordBits(long word) {
+        return 64 - Long.numberOfLeadingZeros(word);
+    }
+
+    /**
+     * Bytes are packed eight to a long, the first byte lowest, as they would
+     * be one at a time.
+     */
+    private static void putBytes(BitStream out, byte[] bytes, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = 0;
+            for (int j = 7; j >= 0; j--) {
+                word = (word << 8) | (bytes[i + j] & 0xFF);
+            }
+            out.put(word, 64);
+        }
+        for (; i < length; i++) {
+            out.put(bytes[i], 8);
+        }
+    }
+
+    private static void getBytes(BitStream in, byte[] bytes, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = in.get(64);
+            for (int j = 0; j < 8; j++) {
+                bytes[i + j] = (byte) word;
+                word >>>= 8;
+            }
+        }
+        for (; i < length; i++) {
+            bytes[i] = (byte) in.get(8);
+        }
+    }
+}
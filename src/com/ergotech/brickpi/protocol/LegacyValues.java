@@ -0,0 +1,56 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.protocol;
+
+/**
+ * The values exchanged by the original BrickPi's values message, for all
+ * four ports: what is sent to the board and what it returns. Laid out as the
+ * firmware's own structure so that the arrays are indexed by port, and
+ * reused for every exchange. The speeds follow the firmware convention,
+ * negative for the reverse direction.
+ */
+public class LegacyValues {
+
+    public static final int PORTS = 4;
+    public static final int I2C_DEVICES = 8;
+    public static final int I2C_BYTES = 16;
+
+    /**
+     * The components of a full color reading, blank, red, green and blue.
+     */
+    public static final int COLOR_COMPONENTS = 4;
+
+    // sent to the board
+    public final int[] encoderOffset = new int[PORTS];
+    public final int[] motorSpeed = new int[PORTS];
+    public final boolean[] motorEnable = new boolean[PORTS];
+    public final int[] sensorType = new int[PORTS];
+    public final int[] i2cDevices = new int[PORTS];
+    /**
+     * Set when a device repeats its previous transaction, whose lengths and
+     * output bytes are then not sent again.
+     */
+    public final boolean[][] i2cSame = new boolean[PORTS][I2C_DEVICES];
+    public final int[][] i2cWrite = new int[PORTS][I2C_DEVICES];
+    public final int[][] i2cRead = new int[PORTS][I2C_DEVICES];
+    public final byte[][][] i2cOut = new byte[PORTS][I2C_DEVICES][I2C_BYTES];
+
+    // returned by the board
+    public final int[] encoder = new int[PORTS];
+    /**
+     * The sensor value, or for I2C sensors the mask of the devices that
+     * answered.
+     */
+    public final long[] sensor = new long[PORTS];
+    public final int[][] sensorArray = new int[PORTS][COLOR_COMPONENTS];
+    public final byte[][][] i2cIn = new byte[PORTS][I2C_DEVICES][I2C_BYTES];
+
+    public LegacyValues() {
+    }
+}
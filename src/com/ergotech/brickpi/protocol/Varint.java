@@ -0,0 +1,72 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integers, seven bits per byte, low bits first, with the
+ * top bit set on every byte but the last. Signed values are zigzag encoded
+ * first so that small negative values are short too. Used wherever values
+ * are sent or stored as differences from the previous sample.
+ */
+public final class Varint {
+
+    /**
+     * The longest encoding of a long.
+     */
+    public static final int MAX_LENGTH = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * Append an unsigned varint.
+     */
+    public static void put(ByteBuffer into, long value) {
+        while ((value & ~0x7FL) != 0) {
+            into.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        into.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @throws IllegalArgumentException if the varint is longer than
+     * MAX_LENGTH.
+     */
+    public static long get(ByteBuffer from) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = from.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Append a signed, zigzag encoded, varint.
+     */
+    public static void putSigned(ByteBuffer into, long value) {
+        put(into, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Read a signed, zigzag encoded, varint.
+     */
+    public static long getSigned(ByteBuffer from) {
+        long value = get(from);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
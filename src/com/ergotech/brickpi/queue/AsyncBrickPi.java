@@ -0,0 +1,328 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.IBrickPiAsync;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * An IBrickPiAsync over a {@link BrickPiCommandQueue}. Each call is queued
+ * and returns at once, so a thread can have several requests outstanding.
+ * Reads and power changes that are waiting together are sent to the board
+ * as one batch, see {@link BrickPiCommandQueue}; other requests are
+ * executed one at a time.
+ *
+ * The futures are completed on the I/O thread. Dependent stages attached
+ * with the non-async CompletableFuture methods also run there and hold up
+ * the bus, so anything more than a few field updates should use the
+ * *Async variants.
+ *
+ * The lane for each request is chosen here and shared with the blocking
+ * {@link QueuedBrickPi}: stopping or floating a motor, by power or by a
+ * speed of zero, is URGENT, as is a motor batch that does nothing else,
+ * other writes and configuration are NORMAL, and reads and sweeps are
+ * ROUTINE. A stop overtakes motor commands queued before it, and the queue
+ * drops those for the ports it stopped, so each port still sees its
+ * commands take effect in the order they were made.
+ */
+public class AsyncBrickPi implements IBrickPiAsync, AutoCloseable {
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+
+    /**
+     * Every set of motor ports, by mask. The arrays are shared and never
+     * written, so a queued command holds one of these rather than the
+     * caller's array, which the caller may change before it runs.
+     */
+    private static final MotorPort[][] MOTOR_SETS = new MotorPort[1 << MOTOR_PORTS.length][];
+
+    static {
+        for (int mask = 0; mask < MOTOR_SETS.length; mask++) {
+            MotorPort[] ports = new MotorPort[Integer.bitCount(mask)];
+            for (int i = 0, port = 0; port < MOTOR_PORTS.length; port++) {
+                if ((mask & (1 << port)) != 0) {
+                    ports[i++] = MOTOR_PORTS[port];
+                }
+            }
+            MOTOR_SETS[mask] = ports;
+        }
+    }
+
+    private final BrickPiCommandQueue queue;
+
+    /**
+     * Create a queue in front of the BrickPi. Once wrapped, the BrickPi
+     * should only be used through the queue.
+     *
+     * @param target the BrickPi to drive.
+     */
+    public AsyncBrickPi(IBrickPi target) {
+        this(new BrickPiCommandQueue(target));
+    }
+
+    public AsyncBrickPi(BrickPiCommandQueue queue) {
+        this.queue = queue;
+    }
+
+    public BrickPiCommandQueue getQueue() {
+        return queue;
+    }
+
+    private <T> CompletableFuture<T> submit(FutureCommand<T> command) {
+        try {
+            queue.submit(command);
+        } catch (IOException ex) {
+            command.future.completeExceptionally(ex);
+        }
+        return command.future;
+    }
+
+    /**
+     * Returns the shared array of the ports in the mask, one bit per port
+     * ordinal.
+     */
+    static MotorPort[] motorSet(int mask) {
+        return MOTOR_SETS[mask];
+    }
+
+    private static MotorPort[] motorSet(MotorPort[] motorPort) {
+        int mask = 0;
+        for (MotorPort port : motorPort) {
+            mask |= 1 << port.ordinal();
+        }
+        return MOTOR_SETS[mask];
+    }
+
+    static void initializeMotor(BrickPiCommand command, MotorPort motorPort, Motor motor) {
+        command.reset(BrickPiCommand.Operation.INITIALIZE_MOTOR, CommandPriority.NORMAL);
+        command.motorPort = motorPort;
+        command.motor = motor;
+    }
+
+    static void setMotor(BrickPiCommand command, MotorPort[] motorPort, int power) {
+        // stop and float pre-empt everything else
+        command.reset(BrickPiCommand.Operation.SET_MOTOR, power == 0 || power > 100 || power < -100
+                ? CommandPriority.URGENT : CommandPriority.NORMAL);
+        command.motorPorts = motorSet(motorPort);
+        command.value = power;
+    }
+
+    static void setMotors(BrickPiCommand command, BrickPiCommand.Operation operation, MotorPort[] motorPort, int value) {
+        command.reset(operation, CommandPriority.NORMAL);
+        command.motorPorts = motorSet(motorPort);
+        command.value = value;
+    }
+
+    static void setMotorDps(BrickPiCommand command, MotorPort[] motorPort, int dps) {
+        // holding zero speed is a stop
+        command.reset(BrickPiCommand.Operation.SET_MOTOR_DPS, dps == 0 ? CommandPriority.URGENT : CommandPriority.NORMAL);
+        command.motorPorts = motorSet(motorPort);
+        command.value = dps;
+    }
+
+    static void setMotorLimits(BrickPiCommand command, MotorPort[] motorPort, int power, int dps) {
+        command.reset(BrickPiCommand.Operation.SET_MOTOR_LIMITS, CommandPriority.NORMAL);
+        command.motorPorts = motorSet(motorPort);
+        command.value = power;
+        command.secondValue = dps;
+    }
+
+    static void setMotorBatch(BrickPiCommand command, MotorBatch batch) {
+        // urgent only if every motor in it is stopping or floating
+        boolean stop = true;
+        for (MotorPort port : MotorPort.values()) {
+            int value = batch.getValue(port);
+            switch (batch.getTarget(port)) {
+                case NONE:
+                    break;
+                case POWER:
+                    stop &= value == 0 || value > 100 || value < -100;
+                    break;
+                case DPS:
+                    stop &= value == 0;
+                    break;
+                default:
+                    stop = false;
+                    break;
+            }
+        }
+        command.reset(BrickPiCommand.Operation.SET_MOTORS, stop ? CommandPriority.URGENT : CommandPriority.NORMAL);
+        command.batch = batch;
+    }
+
+    static void setSensor(BrickPiCommand command, Sensor sensor, SensorPort port) {
+        command.reset(BrickPiCommand.Operation.SET_SENSOR, CommandPriority.NORMAL);
+        command.sensor = sensor;
+        command.sensorPort = port;
+    }
+
+    static void getSensor(BrickPiCommand command, SensorPort port) {
+        command.reset(BrickPiCommand.Operation.GET_SENSOR, CommandPriority.ROUTINE);
+        command.sensorPort = port;
+    }
+
+    static void getMotorEncoder(BrickPiCommand command, MotorPort motorPort) {
+        command.reset(BrickPiCommand.Operation.GET_MOTOR_ENCODER, CommandPriority.ROUTINE);
+        command.motorPort = motorPort;
+    }
+
+    static void getMotorStatus(BrickPiCommand command, MotorPort motorPort, MotorStatus motorStatus) {
+        command.reset(BrickPiCommand.Operation.GET_MOTOR_STATUS, CommandPriority.ROUTINE);
+        command.motorPort = motorPort;
+        command.motorStatus = motorStatus;
+    }
+
+    static void sweep(BrickPiCommand command, PortSweep sweep) {
+        command.reset(BrickPiCommand.Operation.SWEEP, CommandPriority.ROUTINE);
+        command.sweep = sweep;
+    }
+
+    @Override
+    public CompletableFuture<Void> initializeMotor(MotorPort motorPort, Motor motor) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        initializeMotor(command, motorPort, motor);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotor(MotorPort[] motorPort, int power) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotor(command, motorPort, power);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorPosition(MotorPort[] motorPort, int position) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION, motorPort, position);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorPositionRelative(MotorPort[] motorPort, int degrees) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION_RELATIVE, motorPort, degrees);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorEncoderOffset(MotorPort[] motorPort, int offset) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_ENCODER_OFFSET, motorPort, offset);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorDps(MotorPort[] motorPort, int dps) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotorDps(command, motorPort, dps);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorPositionKp(MotorPort[] motorPort, int kp) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION_KP, motorPort, kp);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorPositionKd(MotorPort[] motorPort, int kd) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION_KD, motorPort, kd);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorDpsKp(MotorPort[] motorPort, int kp) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_DPS_KP, motorPort, kp);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorDpsKd(MotorPort[] motorPort, int kd) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotors(command, BrickPiCommand.Operation.SET_MOTOR_DPS_KD, motorPort, kd);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotorLimits(MotorPort[] motorPort, int power, int dps) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setMotorLimits(command, motorPort, power, dps);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setMotors(MotorBatch batch) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        // the caller may refill the batch before the command runs
+        setMotorBatch(command, new MotorBatch().copyFrom(batch));
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Void> setSensor(Sensor sensor, SensorPort port) {
+        FutureCommand<Void> command = new FutureCommand<>();
+        setSensor(command, sensor, port);
+        return submit(command);
+    }
+
+    @Override
+    public <T extends Sensor> CompletableFuture<T> getSensor(SensorPort port) {
+        FutureCommand<T> command = new FutureCommand<>();
+        getSensor(command, port);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<Integer> getMotorEncoder(MotorPort motorPort) {
+        FutureCommand<Integer> command = new FutureCommand<>();
+        getMotorEncoder(command, motorPort);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<MotorStatus> getMotorStatus(MotorPort motorPort) {
+        return getMotorStatus(motorPort, null);
+    }
+
+    @Override
+    public CompletableFuture<MotorStatus> getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) {
+        FutureCommand<MotorStatus> command = new FutureCommand<>();
+        getMotorStatus(command, motorPort, motorStatus);
+        return submit(command);
+    }
+
+    @Override
+    public CompletableFuture<PortSweep> sweep(PortSweep sweep) {
+        FutureCommand<PortSweep> command = new FutureCommand<>();
+        sweep(command, sweep);
+        return submit(command);
+    }
+
+    /**
+     * Stop the I/O thread. Queued requests complete exceptionally.
+     */
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
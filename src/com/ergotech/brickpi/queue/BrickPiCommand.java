@@ -0,0 +1,177 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * A descriptor of one IBrickPi operation passed through the command queue.
+ * The submitting thread fills in the operation and arguments, the I/O thread
+ * executes it and fills in the result, then releases the waiter.
+ *
+ * Descriptors are reused: a thread keeps one and refills it for each call,
+ * so a queued call does not allocate. A descriptor must not be refilled
+ * until the previous operation has completed.
+ */
+public class BrickPiCommand {
+
+    /**
+     * The operations, one per IBrickPi method.
+     */
+    public enum Operation {
+        INITIALIZE_MOTOR,
+        SET_MOTOR,
+        SET_MOTOR_POSITION,
+        SET_MOTOR_POSITION_RELATIVE,
+        SET_MOTOR_ENCODER_OFFSET,
+        SET_MOTOR_DPS,
+        SET_MOTOR_POSITION_KP,
+        SET_MOTOR_POSITION_KD,
+        SET_MOTOR_DPS_KP,
+        SET_MOTOR_DPS_KD,
+        SET_MOTOR_LIMITS,
+        SET_MOTORS,
+        SET_SENSOR,
+        GET_SENSOR,
+        GET_MOTOR_ENCODER,
+        GET_MOTOR_STATUS,
+        SWEEP
+    }
+
+    Operation operation;
+    CommandPriority priority;
+    MotorPort[] motorPorts;
+    MotorPort motorPort;
+    Motor motor;
+    SensorPort sensorPort;
+    Sensor sensor;
+    int value;
+    // the dps limit of SET_MOTOR_LIMITS
+    int secondValue;
+    MotorBatch batch;
+    MotorStatus motorStatus;
+    PortSweep sweep;
+
+    int intResult;
+    Object result;
+    IOException error;
+
+    // the order the command was submitted in, across every lane
+    long sequence;
+    long enqueueTime;
+    long startTime;
+    long endTime;
+
+    private volatile boolean done;
+    private volatile Thread waiter;
+
+    /**
+     * Clear the descriptor for a new operation.
+     */
+    BrickPiCommand reset(Operation operation, CommandPriority priority) {
+        this.operation = operation;
+        this.priority = priority;
+        motorPorts = null;
+        motorPort = null;
+        motor = null;
+        sensorPort = null;
+        sensor = null;
+        value = 0;
+        secondValue = 0;
+        batch = null;
+        motorStatus = null;
+        sweep = null;
+        intResult = 0;
+        result = null;
+        error = null;
+        done = false;
+        return this;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public CommandPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * The time spent in the queue, in nanoseconds.
+     */
+    public long getWaitNanos() {
+        return startTime - enqueueTime;
+    }
+
+    /**
+     * The time spent executing, in nanoseconds.
+     */
+    public long getExecuteNanos() {
+        return endTime - startTime;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Called by the I/O thread when the operation has completed, successfully
+     * or not.
+     */
+    void complete() {
+        done = true;
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        onComplete();
+    }
+
+    /**
+     * A hook for descriptors that complete asynchronously. Runs on the I/O
+     * thread after the waiter, if any, has been released, or on the thread
+     * that submitted it if the queue had already closed.
+     */
+    protected void onComplete() {
+    }
+
+    /**
+     * Park the calling thread until the operation completes. An interrupt
+     * does not abandon the wait, since the I/O thread still owns the
+     * descriptor, but the interrupt status is restored on return.
+     *
+     * @throws IOException the error raised by the operation.
+     */
+    void await() throws IOException {
+        waiter = Thread.currentThread();
+        boolean interrupted = false;
+        while (!done) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+        }
+        waiter = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
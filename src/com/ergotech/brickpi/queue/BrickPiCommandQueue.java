@@ -0,0 +1,642 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+
+/**
+ * Serialises every operation on a BrickPi through a single I/O thread. Any
+ * number of threads submit command descriptors into lock-free rings, one per
+ * {@link CommandPriority}; the I/O thread is the only thread that touches
+ * the underlying IBrickPi, and always drains the urgent lane first, so a
+ * motor stop never waits behind routine sensor reads.
+ *
+ * An urgent motor command still keeps each port's commands in the order
+ * they were submitted: motor commands for the same ports that were queued
+ * before it on a slower lane are dropped when they come up, and complete
+ * without error. So a setMotor(port, 50) followed by a stop never runs as
+ * stop then go.
+ *
+ * When the target talks to the board directly, sensor reads, motor status
+ * reads and normal priority power changes that are ready together are
+ * drained into one {@link IBrickPi#sweep(PortSweep)}, so their frames go out
+ * as one pipelined batch rather than one transaction per command. A batch
+ * ends at the first command that can't join it, which then runs after the
+ * batch; a power change for a port that already has one in the batch ends
+ * it too, so each port's writes stay in order.
+ *
+ * The queue keeps per-lane depth and wait time figures. They are written by
+ * the I/O thread only and may be read at any time.
+ *
+ * Closing the queue fails every command that has not run, including any a
+ * producer manages to add after the I/O thread has stopped.
+ */
+public final class BrickPiCommandQueue implements AutoCloseable {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(BrickPiCommandQueue.class.getName());
+
+    /**
+     * The default number of commands each lane can hold.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The number of empty polls the I/O thread spins through before parking.
+     */
+    private static final int IDLE_SPINS = 100;
+
+    /**
+     * The most commands sent in one batch, bounding how long a command that
+     * ends the batch, eg an urgent stop, waits for it.
+     */
+    private static final int MAX_BATCH = 16;
+
+    private static final CommandPriority[] PRIORITIES = CommandPriority.values();
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+
+    private final IBrickPi target;
+    private final MpscCommandRing[] lanes = new MpscCommandRing[PRIORITIES.length];
+    private final Thread ioThread;
+    private volatile boolean running = true;
+    private volatile boolean ioParked;
+    // set once the I/O thread has stopped taking commands; whoever sees it
+    // fails what is left, one at a time under the lock
+    private volatile boolean drained;
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final AtomicLong sequence = new AtomicLong();
+    // the sequence of the last urgent motor command on each port, I/O
+    // thread only
+    private final long[] stoppedAt = new long[MOTOR_PORTS.length];
+    // the commands being batched into one sweep, I/O thread only
+    private final boolean pipelined;
+    private final PortSweep batchSweep = new PortSweep();
+    private final BrickPiCommand[] batch = new BrickPiCommand[MAX_BATCH];
+    private int batchSize;
+
+    // metrics, written by the I/O thread only
+    private final AtomicLongArray executed = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicLongArray totalWaitNanos = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicLongArray maxWaitNanos = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicIntegerArray maxDepth = new AtomicIntegerArray(PRIORITIES.length);
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    /**
+     * Create the queue with the default capacity and start the I/O thread.
+     *
+     * @param target the BrickPi to drive. Once the queue is started nothing
+     * else should call it directly.
+     */
+    public BrickPiCommandQueue(IBrickPi target) {
+        this(target, DEFAULT_CAPACITY, runnable -> {
+            Thread thread = new Thread(runnable, "BrickPi I/O");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create the queue and start the I/O thread.
+     *
+     * @param target the BrickPi to drive.
+     * @param capacity the number of commands each lane can hold.
+     * @param threadFactory creates the I/O thread.
+     */
+    public BrickPiCommandQueue(IBrickPi target, int capacity, ThreadFactory threadFactory) {
+        this.target = target;
+        pipelined = target instanceof BrickPiCommunications;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new MpscCommandRing(capacity);
+        }
+        ioThread = threadFactory.newThread(this::run);
+        ioThread.start();
+    }
+
+    public IBrickPi getTarget() {
+        return target;
+    }
+
+    /**
+     * Submit a command without waiting for it. If the lane is full the
+     * caller spins, then yields, until there is room.
+     *
+     * @param command the filled in descriptor. If the queue is closed while
+     * it waits it completes with an error.
+     * @throws IOException if the queue has been closed.
+     */
+    public void submit(BrickPiCommand command) throws IOException {
+        if (!running) {
+            throw new IOException("BrickPi command queue closed");
+        }
+        command.sequence = sequence.incrementAndGet();
+        command.enqueueTime = System.nanoTime();
+        MpscCommandRing lane = lanes[command.priority.ordinal()];
+        int attempts = 0;
+        while (!lane.offer(command)) {
+            wakeIoThread();
+            if (++attempts < IDLE_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            if (!running) {
+                throw new IOException("BrickPi command queue closed");
+            }
+        }
+        wakeIoThread();
+        if (drained) {
+            // the I/O thread stopped after we checked running
+            failQueued();
+        }
+    }
+
+    /**
+     * Submit a command and park until it has been executed.
+     *
+     * @param command the filled in descriptor.
+     * @throws IOException the error raised by the command, or if the queue
+     * has been closed.
+     */
+    public void execute(BrickPiCommand command) throws IOException {
+        submit(command);
+        command.await();
+    }
+
+    private void wakeIoThread() {
+        // the offer was a full store, so this read can't be reordered ahead
+        // of it and miss a consumer that has just parked
+        if (ioParked) {
+            LockSupport.unpark(ioThread);
+        }
+    }
+
+    private void run() {
+        int idle = 0;
+        while (running) {
+            BrickPiCommand command = next();
+            if (command == null) {
+                if (++idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                ioParked = true;
+                // check again, a producer may have missed the flag
+                command = next();
+                if (command == null) {
+                    LockSupport.park(this);
+                    ioParked = false;
+                    continue;
+                }
+                ioParked = false;
+            }
+            idle = 0;
+            if (pipelined && joinsBatch(command)) {
+                command = sendBatch(command);
+                if (command == null) {
+                    continue;
+                }
+            }
+            dispatch(command);
+        }
+        // fail anything left behind. A producer that offers after this
+        // sees drained and fails its own command
+        drained = true;
+        failQueued();
+    }
+
+    private void failQueued() {
+        drainLock.lock();
+        try {
+            for (MpscCommandRing lane : lanes) {
+                BrickPiCommand command;
+                while ((command = lane.poll()) != null) {
+                    command.error = new IOException("BrickPi command queue closed");
+                    command.complete();
+                }
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private BrickPiCommand next() {
+        for (int i = 0; i < lanes.length; i++) {
+            int depth = lanes[i].size();
+            if (depth > maxDepth.get(i)) {
+                maxDepth.set(i, depth);
+            }
+            BrickPiCommand command = lanes[i].poll();
+            if (command != null) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private void dispatch(BrickPiCommand command) {
+        if (start(command)) {
+            runCommand(command);
+        }
+    }
+
+    /**
+     * Count a command as taken from its lane, and drop it if an urgent
+     * command has already covered it.
+     *
+     * @return false if the command has been completed without running.
+     */
+    private boolean start(BrickPiCommand command) {
+        int lane = command.priority.ordinal();
+        command.startTime = System.nanoTime();
+        long wait = command.startTime - command.enqueueTime;
+        totalWaitNanos.set(lane, totalWaitNanos.get(lane) + wait);
+        if (wait > maxWaitNanos.get(lane)) {
+            maxWaitNanos.set(lane, wait);
+        }
+        executed.set(lane, executed.get(lane) + 1);
+        if (supersede(command)) {
+            superseded.set(superseded.get() + 1);
+            command.endTime = command.startTime;
+            command.complete();
+            return false;
+        }
+        return true;
+    }
+
+    private void runCommand(BrickPiCommand command) {
+        try {
+            executeOnTarget(command);
+        } catch (IOException ex) {
+            command.error = ex;
+            errors.incrementAndGet();
+        } catch (RuntimeException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            command.error = new IOException(ex.getMessage(), ex);
+            errors.incrementAndGet();
+        }
+        command.endTime = System.nanoTime();
+        command.complete();
+    }
+
+    /**
+     * Returns true if the command can be sent as part of a sweep.
+     */
+    private boolean joinsBatch(BrickPiCommand command) {
+        switch (command.operation) {
+            case GET_SENSOR:
+            case GET_MOTOR_STATUS:
+                return true;
+            case SET_MOTOR:
+                if (command.priority != CommandPriority.NORMAL) {
+                    return false;
+                }
+                for (MotorPort port : command.motorPorts) {
+                    if (batchSweep.isMotorPowerPending(port)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Drain the ready commands that can join the first into one sweep and
+     * send it.
+     *
+     * @return the command that ended the batch, still to be run, or null.
+     */
+    private BrickPiCommand sendBatch(BrickPiCommand first) {
+        BrickPiCommand command = first;
+        while (command != null && joinsBatch(command)) {
+            if (start(command)) {
+                addToBatch(command);
+                if (batchSize == MAX_BATCH) {
+                    command = null;
+                    break;
+                }
+            }
+            command = next();
+        }
+        if (batchSize > 0) {
+            flushBatch();
+        }
+        return command;
+    }
+
+    private void addToBatch(BrickPiCommand command) {
+        switch (command.operation) {
+            case GET_SENSOR:
+                batchSweep.readSensor(command.sensorPort, true);
+                break;
+            case GET_MOTOR_STATUS:
+                batchSweep.readMotor(command.motorPort, true);
+                break;
+            default:
+                for (MotorPort port : command.motorPorts) {
+                    batchSweep.setMotorPower(port, command.value);
+                }
+                break;
+        }
+        batch[batchSize++] = command;
+    }
+
+    private void flushBatch() {
+        boolean swept;
+        try {
+            target.sweep(batchSweep);
+            swept = true;
+        } catch (IOException | RuntimeException ex) {
+            // eg a sensor that was never set up; run the commands one by
+            // one so each gets its own result
+            swept = false;
+        }
+        long endTime = System.nanoTime();
+        for (int i = 0; i < batchSize; i++) {
+            BrickPiCommand command = batch[i];
+            batch[i] = null;
+            if (!swept && !sentBy(command)) {
+                runCommand(command);
+                continue;
+            }
+            if (command.operation == BrickPiCommand.Operation.GET_SENSOR) {
+                command.result = batchSweep.getSensor(command.sensorPort);
+            } else if (command.operation == BrickPiCommand.Operation.GET_MOTOR_STATUS) {
+                MotorStatus status = command.motorStatus == null ? new MotorStatus() : command.motorStatus;
+                if (batchSweep.isValid(command.motorPort)) {
+                    MotorStatus read = batchSweep.getMotorStatus(command.motorPort);
+                    status.state = read.state;
+                    status.power = read.power;
+                    status.position = read.position;
+                    status.dps = read.dps;
+                }
+                command.result = status;
+            }
+            command.endTime = endTime;
+            command.complete();
+        }
+        batchSize = 0;
+        batchSweep.clear();
+    }
+
+    /**
+     * Returns true if a failed sweep still sent every power change of the
+     * command. Reads are always run again.
+     */
+    private boolean sentBy(BrickPiCommand command) {
+        if (command.operation != BrickPiCommand.Operation.SET_MOTOR) {
+            return false;
+        }
+        for (MotorPort port : command.motorPorts) {
+            if (batchSweep.isMotorPowerPending(port)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record an urgent motor command against its ports, or take the ports
+     * an urgent command submitted later has already covered out of a motor
+     * command from a slower lane.
+     *
+     * @return true if none of the command's ports are left to drive.
+     */
+    private boolean supersede(BrickPiCommand command) {
+        switch (command.operation) {
+            case SET_MOTOR:
+            case SET_MOTOR_POSITION:
+            case SET_MOTOR_POSITION_RELATIVE:
+            case SET_MOTOR_DPS:
+            case SET_MOTORS:
+                break;
+            default:
+                return false;
+        }
+        if (command.priority == CommandPriority.URGENT) {
+            for (MotorPort port : MOTOR_PORTS) {
+                if (drives(command, port)) {
+                    stoppedAt[port.ordinal()] = command.sequence;
+                }
+            }
+            return false;
+        }
+        int covered = 0;
+        int left = 0;
+        for (MotorPort port : MOTOR_PORTS) {
+            if (drives(command, port)) {
+                if (stoppedAt[port.ordinal()] > command.sequence) {
+                    covered++;
+                } else {
+                    left++;
+                }
+            }
+        }
+        if (covered == 0) {
+            return false;
+        }
+        if (left == 0) {
+            return true;
+        }
+        // rare: copy the rest, the caller's batch is its own
+        if (command.batch != null) {
+            MotorBatch batch = new MotorBatch().copyFrom(command.batch);
+            for (MotorPort port : MOTOR_PORTS) {
+                if (stoppedAt[port.ordinal()] > command.sequence) {
+                    batch.set(port, MotorBatch.Target.NONE, 0);
+                }
+            }
+            command.batch = batch;
+        } else {
+            int ports = 0;
+            for (MotorPort port : MOTOR_PORTS) {
+                if (drives(command, port) && stoppedAt[port.ordinal()] <= command.sequence) {
+                    ports |= 1 << port.ordinal();
+                }
+            }
+            command.motorPorts = AsyncBrickPi.motorSet(ports);
+        }
+        return false;
+    }
+
+    private static boolean drives(BrickPiCommand command, MotorPort port) {
+        if (command.batch != null) {
+            return command.batch.getTarget(port) != MotorBatch.Target.NONE;
+        }
+        for (MotorPort motorPort : command.motorPorts) {
+            if (motorPort == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void executeOnTarget(BrickPiCommand command) throws IOException {
+        switch (command.operation) {
+            case INITIALIZE_MOTOR:
+                target.initializeMotor(command.motorPort, command.motor);
+                break;
+            case SET_MOTOR:
+                target.setMotor(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_POSITION:
+                target.setMotorPosition(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_POSITION_RELATIVE:
+                target.setMotorPositionRelative(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_ENCODER_OFFSET:
+                target.setMotorEncoderOffset(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_DPS:
+                target.setMotorDps(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_POSITION_KP:
+                target.setMotorPositionKp(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_POSITION_KD:
+                target.setMotorPositionKd(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_DPS_KP:
+                target.setMotorDpsKp(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_DPS_KD:
+                target.setMotorDpsKd(command.motorPorts, command.value);
+                break;
+            case SET_MOTOR_LIMITS:
+                target.setMotorLimits(command.motorPorts, command.value, command.secondValue);
+                break;
+            case SET_MOTORS:
+                target.setMotors(command.batch);
+                break;
+            case SET_SENSOR:
+                target.setSensor(command.sensor, command.sensorPort);
+                break;
+            case GET_SENSOR:
+                command.result = target.getSensor(command.sensorPort);
+                break;
+            case GET_MOTOR_ENCODER:
+                command.intResult = target.getMotorEncoder(command.motorPort);
+                break;
+            case GET_MOTOR_STATUS:
+                command.result = command.motorStatus == null
+                        ? target.getMotorStatus(command.motorPort)
+                        : target.getMotorStatus(command.motorPort, command.motorStatus);
+                break;
+            case SWEEP:
+                command.result = target.sweep(command.sweep);
+                break;
+            default:
+                throw new IOException("Unknown operation " + command.operation);
+        }
+    }
+
+    /**
+     * Returns the number of commands waiting in the lane.
+     */
+    public int getDepth(CommandPriority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    /**
+     * Returns the largest number of commands seen waiting in the lane.
+     */
+    public int getMaxDepth(CommandPriority priority) {
+        return maxDepth.get(priority.ordinal());
+    }
+
+    /**
+     * Returns the number of commands executed from the lane.
+     */
+    public long getExecuted(CommandPriority priority) {
+        return executed.get(priority.ordinal());
+    }
+
+    /**
+     * Returns the mean time a command waited in the lane, in nanoseconds.
+     */
+    public long getAverageWaitNanos(CommandPriority priority) {
+        long count = executed.get(priority.ordinal());
+        return count == 0 ? 0 : totalWaitNanos.get(priority.ordinal()) / count;
+    }
+
+    /**
+     * Returns the longest time a command waited in the lane, in nanoseconds.
+     */
+    public long getMaxWaitNanos(CommandPriority priority) {
+        return maxWaitNanos.get(priority.ordinal());
+    }
+
+    /**
+     * Returns the number of commands that completed with an error.
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Returns the number of motor commands dropped because a later urgent
+     * command had already driven their ports.
+     */
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    /**
+     * Clear the depth and wait time figures.
+     */
+    public void resetMetrics() {
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            executed.set(i, 0);
+            totalWaitNanos.set(i, 0);
+            maxWaitNanos.set(i, 0);
+            maxDepth.set(i, 0);
+        }
+        errors.set(0);
+        superseded.set(0);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the I/O thread. Commands still queued complete with an error.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ioThread);
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
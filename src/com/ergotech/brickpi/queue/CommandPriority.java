@@ -0,0 +1,29 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+/**
+ * The lanes of the command queue. The I/O thread always drains a higher
+ * priority lane before taking anything from a lower one.
+ */
+public enum CommandPriority {
+    /**
+     * Motor stop and float, anything that must not wait behind routine
+     * traffic.
+     */
+    URGENT,
+    /**
+     * Motor commands and configuration.
+     */
+    NORMAL,
+    /**
+     * Sensor, encoder and status reads.
+     */
+    ROUTINE
+}
@@ -0,0 +1,32 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A command whose result is delivered through a CompletableFuture. Unlike
+ * the blocking descriptors, one is created for each call and never reused.
+ */
+final class FutureCommand<T> extends BrickPiCommand {
+
+    final CompletableFuture<T> future = new CompletableFuture<>();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void onComplete() {
+        if (error != null) {
+            future.completeExceptionally(error);
+        } else if (operation == Operation.GET_MOTOR_ENCODER) {
+            future.complete((T) Integer.valueOf(intResult));
+        } else {
+            future.complete((T) result);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer ring of commands.
+ * Each slot carries a sequence number: producers claim a slot by advancing
+ * the tail and publish it by setting the sequence, the consumer frees it by
+ * moving the sequence on a lap.
+ */
+final class MpscCommandRing {
+
+    private final BrickPiCommand[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    MpscCommandRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new BrickPiCommand[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add a command. May be called from any thread.
+     *
+     * @return false if the ring is full.
+     */
+    boolean offer(BrickPiCommand command) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = command;
+                    // a full store, so the producer's following read of
+                    // the consumer's parked flag can't move ahead of it
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Take the oldest command. Only called from the consumer thread.
+     *
+     * @return the command or null if the ring is empty.
+     */
+    BrickPiCommand poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        BrickPiCommand command = buffer[index];
+        buffer[index] = null;
+        sequences.lazySet(index, position + mask + 1);
+        head = position + 1;
+        return command;
+    }
+
+    /**
+     * Returns the number of commands claimed but not yet taken.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.queue;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * An IBrickPi that may be shared by any number of threads. This is a
+ * blocking adapter over {@link AsyncBrickPi}: each call is queued on the
+ * same lanes and the caller parks until it has been executed. No monitor is
+ * shared between callers, and since each thread reuses one descriptor the
+ * blocking calls do not allocate.
+ */
+public class QueuedBrickPi implements IBrickPi, AutoCloseable {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(QueuedBrickPi.class.getName());
+
+    private final AsyncBrickPi async;
+    private final BrickPiCommandQueue queue;
+
+    /**
+     * One descriptor per calling thread, reused for each call.
+     */
+    private final ThreadLocal<BrickPiCommand> commands =
+            ThreadLocal.withInitial(BrickPiCommand::new);
+
+    /**
+     * Create a queue in front of the BrickPi. Once wrapped, the BrickPi
+     * should only be used through this object.
+     *
+     * @param target the BrickPi to drive.
+     */
+    public QueuedBrickPi(IBrickPi target) {
+        this(new AsyncBrickPi(target));
+    }
+
+    /**
+     * Create a blocking view of an asynchronous BrickPi. Both may be used
+     * at the same time.
+     *
+     * @param async the asynchronous BrickPi.
+     */
+    public QueuedBrickPi(AsyncBrickPi async) {
+        this.async = async;
+        this.queue = async.getQueue();
+    }
+
+    public BrickPiCommandQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns the asynchronous interface to the same queue.
+     */
+    public AsyncBrickPi getAsync() {
+        return async;
+    }
+
+    @Override
+    public void initializeMotor(MotorPort motorPort, Motor motor) {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.initializeMotor(command, motorPort, motor);
+        try {
+            queue.execute(command);
+        } catch (IOException ex) {
+            LOGGER.error("Unable to initialize motor " + motorPort, ex);
+        }
+    }
+
+    @Override
+    public void setMotor(MotorPort[] motorPort, int power) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotor(command, motorPort, power);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorPosition(MotorPort[] motorPort, int position) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION, motorPort, position);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorPositionRelative(MotorPort[] motorPort, int degrees) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION_RELATIVE, motorPort, degrees);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorEncoderOffset(MotorPort[] motorPort, int offset) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_ENCODER_OFFSET, motorPort, offset);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorDps(MotorPort[] motorPort, int dps) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotorDps(command, motorPort, dps);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorPositionKp(MotorPort[] motorPort, int kp) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION_KP, motorPort, kp);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorPositionKd(MotorPort[] motorPort, int kd) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_POSITION_KD, motorPort, kd);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorDpsKp(MotorPort[] motorPort, int kp) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_DPS_KP, motorPort, kp);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorDpsKd(MotorPort[] motorPort, int kd) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotors(command, BrickPiCommand.Operation.SET_MOTOR_DPS_KD, motorPort, kd);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotorLimits(MotorPort[] motorPort, int power, int dps) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotorLimits(command, motorPort, power, dps);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setMotors(MotorBatch batch) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setMotorBatch(command, batch);
+        queue.execute(command);
+    }
+
+    @Override
+    public void setSensor(Sensor sensor, SensorPort port) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.setSensor(command, sensor, port);
+        queue.execute(command);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Sensor> T getSensor(SensorPort port) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.getSensor(command, port);
+        queue.execute(command);
+        return (T) command.result;
+    }
+
+    @Override
+    public int getMotorEncoder(MotorPort motorPort) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.getMotorEncoder(command, motorPort);
+        queue.execute(command);
+        return command.intResult;
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort) throws IOException {
+        return getMotorStatus(motorPort, null);
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.getMotorStatus(command, motorPort, motorStatus);
+        queue.execute(command);
+        return (MotorStatus) command.result;
+    }
+
+    @Override
+    public PortSweep sweep(PortSweep sweep) throws IOException {
+        BrickPiCommand command = commands.get();
+        AsyncBrickPi.sweep(command, sweep);
+        queue.execute(command);
+        return sweep;
+    }
+
+    /**
+     * Stop the I/O thread.
+     */
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.remote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.protocol.Varint;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.SensorType;
+
+/**
+ * Serves a BrickPi to {@link RemoteBrickPi} clients. Each client connection
+ * carries commands over TCP, see {@link RemoteProtocol}, and may subscribe
+ * to telemetry: a sweep of every configured port at a fixed rate, sent by
+ * UDP to the client as {@link TelemetryFrame}s encoded against the previous
+ * sweep, with a key frame every {@link #KEY_FRAME_INTERVAL} frames.
+ *
+ * The sensors and motors must be configured through the server, which
+ * keeps the configuration for every client.
+ *
+ * The protocol has no authentication: anyone who can connect can drive the
+ * motors. By default the server only listens on the loopback address, so
+ * only programs on the same machine can reach it; give a bind address to
+ * serve other machines, ideally only on a trusted network.
+ * <pre>
+ * BrickPiServer server = new BrickPiServer(BrickPiSPI.getBrickPi((byte)1), RemoteProtocol.DEFAULT_PORT);
+ * // or, to every interface
+ * BrickPiServer server = new BrickPiServer(BrickPiSPI.getBrickPi((byte)1), null, RemoteProtocol.DEFAULT_PORT);
+ * </pre>
+ */
+public class BrickPiServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrickPiServer.class.getName());
+
+    /**
+     * The number of frames from one key frame to the next.
+     */
+    public static final int KEY_FRAME_INTERVAL = 64;
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+    private static final MotorBatch.Target[] TARGETS = MotorBatch.Target.values();
+    private static final Motor.Direction[] DIRECTIONS = Motor.Direction.values();
+
+    /**
+     * The motor ports for each bit mask, so that commands don't allocate.
+     */
+    private static final MotorPort[][] MOTOR_SETS = new MotorPort[1 << MOTOR_PORTS.length][];
+
+    static {
+        for (int mask = 0; mask < MOTOR_SETS.length; mask++) {
+            MotorPort[] ports = new MotorPort[Integer.bitCount(mask)];
+            for (int i = 0, port = 0; port < MOTOR_PORTS.length; port++) {
+                if ((mask & (1 << port)) != 0) {
+                    ports[i++] = MOTOR_PORTS[port];
+                }
+            }
+            MOTOR_SETS[mask] = ports;
+        }
+    }
+
+    private final IBrickPi brickPi;
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private final AtomicReferenceArray<FrameSensor> sensors = new AtomicReferenceArray<>(SENSOR_PORTS.length);
+    private final AtomicReferenceArray<Motor> motors = new AtomicReferenceArray<>(MOTOR_PORTS.length);
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Start serving a BrickPi on the loopback address, to clients on the
+     * same machine only.
+     *
+     * @param brickPi the BrickPi.
+     * @param port the TCP port, zero for any free port.
+     * @throws IOException if the port can't be opened.
+     */
+    public BrickPiServer(IBrickPi brickPi, int port) throws IOException {
+        this(brickPi, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Start serving a BrickPi.
+     *
+     * @param brickPi the BrickPi.
+     * @param bindAddress the local address to listen on, null for every
+     * interface.
+     * @param port the TCP port, zero for any free port.
+     * @throws IOException if the port can't be opened.
+     */
+    public BrickPiServer(IBrickPi brickPi, InetAddress bindAddress, int port) throws IOException {
+        this.brickPi = brickPi;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(bindAddress, port));
+        acceptor = new Thread(this::accept, "BrickPi Server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the TCP port the server is listening on.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of commands served.
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Returns the number of telemetry frames sent to all clients.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * Returns the number of telemetry bytes sent to all clients, not
+     * counting the UDP and IP headers.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void accept() {
+        try {
+            while (running) {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connections.add(connection);
+                Thread thread = new Thread(connection, "BrickPi Server " + channel.getRemoteAddress());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (AsynchronousCloseException ex) {
+            // closed
+        } catch (IOException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * One client.
+     */
+    private final class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(RemoteProtocol.HEADER_SIZE + RemoteProtocol.MAX_PAYLOAD);
+        private final ByteBuffer response = ByteBuffer.allocate(RemoteProtocol.HEADER_SIZE + RemoteProtocol.MAX_PAYLOAD);
+        private final MotorStatus status = new MotorStatus();
+        private final PortSweep sweep = new PortSweep();
+        private final MotorBatch batch = new MotorBatch();
+        // the sensors a sweep reads into, taken before it starts
+        private final FrameSensor[] swept = new FrameSensor[SENSOR_PORTS.length];
+        private volatile Telemetry telemetry;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    byte opcode = RemoteProtocol.receive(channel, request);
+                    RemoteProtocol.begin(response);
+                    String error = null;
+                    try {
+                        execute(opcode);
+                    } catch (IOException | RuntimeException ex) {
+                        error = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+                    }
+                    commands.incrementAndGet();
+                    if (error == null) {
+                        RemoteProtocol.send(channel, response, RemoteProtocol.OK);
+                    } else {
+                        RemoteProtocol.sendError(channel, response, error);
+                    }
+                }
+            } catch (EOFException | AsynchronousCloseException ex) {
+                // client went away
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+            } finally {
+                close();
+            }
+        }
+
+        private void execute(byte opcode) throws IOException {
+            switch (opcode) {
+                case RemoteProtocol.INITIALIZE_MOTOR: {
+                    MotorPort port = motorPort(request.get());
+                    int direction = request.get();
+                    if (direction < 0 || direction >= DIRECTIONS.length) {
+                        throw new IOException("Unknown motor direction " + direction);
+                    }
+                    Motor motor = new Motor();
+                    motor.setDirection(DIRECTIONS[direction]);
+                    brickPi.initializeMotor(port, motor);
+                    motors.set(port.ordinal(), motor);
+                    break;
+                }
+                case RemoteProtocol.SET_MOTOR:
+                    brickPi.setMotor(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_POSITION:
+                    brickPi.setMotorPosition(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_POSITION_RELATIVE:
+                    brickPi.setMotorPositionRelative(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_ENCODER_OFFSET:
+                    brickPi.setMotorEncoderOffset(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_DPS:
+                    brickPi.setMotorDps(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_POSITION_KP:
+                    brickPi.setMotorPositionKp(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_POSITION_KD:
+                    brickPi.setMotorPositionKd(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_DPS_KP:
+                    brickPi.setMotorDpsKp(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_DPS_KD:
+                    brickPi.setMotorDpsKd(motorPorts(request.get()), (int) Varint.getSigned(request));
+                    break;
+                case RemoteProtocol.SET_MOTOR_LIMITS: {
+                    MotorPort[] ports = motorPorts(request.get());
+                    int power = (int) Varint.getSigned(request);
+                    brickPi.setMotorLimits(ports, power, (int) Varint.getSigned(request));
+                    break;
+                }
+                case RemoteProtocol.SET_MOTORS:
+                    // a target ordinal and value for every port
+                    for (MotorPort port : MOTOR_PORTS) {
+                        int target = request.get();
+                        if (target < 0 || target >= TARGETS.length) {
+                            throw new IOException("Unknown motor target " + target);
+                        }
+                        batch.set(port, TARGETS[target], (int) Varint.getSigned(request));
+                    }
+                    brickPi.setMotors(batch);
+                    break;
+                case RemoteProtocol.SET_SENSOR: {
+                    SensorPort port = sensorPort(request.get());
+                    int type = (int) Varint.get(request);
+                    SensorType sensorType = FrameSensor.sensorType(type);
+                    if (sensorType == null) {
+                        throw new IOException("Unknown sensor type " + type);
+                    }
+                    FrameSensor sensor = new FrameSensor(sensorType);
+                    brickPi.setSensor(sensor, port);
+                    sensors.set(port.ordinal(), sensor);
+                    break;
+                }
+                case RemoteProtocol.GET_SENSOR: {
+                    SensorPort port = sensorPort(request.get());
+                    FrameSensor sensor = sensors.get(port.ordinal());
+                    if (sensor == null) {
+                        throw new IOException("Sensor not initialized on " + port);
+                    }
+                    brickPi.getSensor(port);
+                    sensor.writeTo(response);
+                    break;
+                }
+                case RemoteProtocol.GET_MOTOR_ENCODER:
+                    Varint.putSigned(response, brickPi.getMotorEncoder(motorPort(request.get())));
+                    break;
+                case RemoteProtocol.GET_MOTOR_STATUS:
+                    brickPi.getMotorStatus(motorPort(request.get()), status);
+                    putStatus(response, status);
+                    break;
+                case RemoteProtocol.SWEEP:
+                    sweep();
+                    break;
+                case RemoteProtocol.SUBSCRIBE: {
+                    int udpPort = request.getShort() & 0xFFFF;
+                    long periodNanos = Varint.get(request) * 1000;
+                    unsubscribe();
+                    InetSocketAddress client = (InetSocketAddress) channel.getRemoteAddress();
+                    Telemetry subscription = new Telemetry(new InetSocketAddress(client.getAddress(), udpPort), periodNanos);
+                    telemetry = subscription;
+                    subscription.start();
+                    break;
+                }
+                case RemoteProtocol.UNSUBSCRIBE:
+                    unsubscribe();
+                    break;
+                default:
+                    throw new IOException("Unknown command " + opcode);
+            }
+        }
+
+        private void sweep() throws IOException {
+            int sensorMask = request.get();
+            int motorMask = request.get();
+            int powerMask = request.get();
+            for (SensorPort port : SENSOR_PORTS) {
+                boolean read = (sensorMask & port.getPort()) != 0;
+                swept[port.ordinal()] = read ? sensors.get(port.ordinal()) : null;
+                if (read && swept[port.ordinal()] == null) {
+                    throw new IOException("Sensor not initialized on " + port);
+                }
+                sweep.readSensor(port, read);
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                sweep.readMotor(port, (motorMask & port.getPort()) != 0);
+                if ((powerMask & port.getPort()) != 0) {
+                    sweep.setMotorPower(port, (int) Varint.getSigned(request));
+                }
+            }
+            brickPi.sweep(sweep);
+            for (SensorPort port : SENSOR_PORTS) {
+                if (sweep.isSensorRead(port)) {
+                    response.put((byte) (sweep.isValid(port) ? 1 : 0));
+                    swept[port.ordinal()].writeTo(response);
+                }
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                if (sweep.isMotorRead(port)) {
+                    response.put((byte) (sweep.isValid(port) ? 1 : 0));
+                    putStatus(response, sweep.getMotorStatus(port));
+                }
+            }
+        }
+
+        private void unsubscribe() {
+            Telemetry current = telemetry;
+            telemetry = null;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        void close() {
+            unsubscribe();
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Streams sweeps to one client.
+     */
+    private final class Telemetry implements Runnable {
+
+        private final InetSocketAddress target;
+        private final long periodNanos;
+        private final PortSweep sweep = new PortSweep();
+        private final TelemetryFrame current = new TelemetryFrame();
+        private final TelemetryFrame previous = new TelemetryFrame();
+        private final ByteBuffer datagram = ByteBuffer.allocateDirect(TelemetryFrame.MAX_ENCODED);
+        private volatile boolean streaming = true;
+        private Thread thread;
+
+        Telemetry(InetSocketAddress target, long periodNanos) {
+            this.target = target;
+            this.periodNanos = periodNanos;
+        }
+
+        void start() {
+            thread = new Thread(this, "BrickPi Telemetry " + target);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try (DatagramChannel udp = DatagramChannel.open()) {
+                udp.connect(target);
+                long sequence = 0;
+                long next = System.nanoTime();
+                while (streaming && running) {
+                    if (!poll()) {
+                        LockSupport.parkNanos(this, Math.max(periodNanos, 1000000));
+                        continue;
+                    }
+                    current.setSequence(sequence);
+                    datagram.clear();
+                    current.encode(datagram, sequence % KEY_FRAME_INTERVAL == 0 ? null : previous);
+                    datagram.flip();
+                    int length = datagram.remaining();
+                    try {
+                        udp.write(datagram);
+                    } catch (PortUnreachableException ex) {
+                        // the client isn't listening yet, or any more
+                    }
+                    current.copyTo(previous);
+                    sequence++;
+                    framesSent.incrementAndGet();
+                    bytesSent.addAndGet(length);
+                    if (periodNanos > 0) {
+                        // fixed rate, but don't try to catch up a backlog
+                        next += periodNanos;
+                        long now = System.nanoTime();
+                        if (next - now < -periodNanos) {
+                            next = now;
+                        }
+                        while (streaming && (now = System.nanoTime()) - next < 0) {
+                            LockSupport.parkNanos(this, next - now);
+                        }
+                    }
+                }
+            } catch (AsynchronousCloseException ex) {
+                // unsubscribed
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+            }
+        }
+
+        /**
+         * Sweep every configured port into the current frame.
+         *
+         * @return false if nothing could be read.
+         */
+        private boolean poll() {
+            boolean any = false;
+            for (SensorPort port : SENSOR_PORTS) {
+                boolean read = sensors.get(port.ordinal()) != null;
+                sweep.readSensor(port, read);
+                any |= read;
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                boolean read = motors.get(port.ordinal()) != null;
+                sweep.readMotor(port, read);
+                any |= read;
+            }
+            if (!any) {
+                return false;
+            }
+            try {
+                brickPi.sweep(sweep);
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+                return false;
+            }
+            current.setTime(sweep.getStartTime() / 1000);
+            for (SensorPort port : SENSOR_PORTS) {
+                FrameSensor sensor = sensors.get(port.ordinal());
+                if (sweep.isSensorRead(port) && sensor != null) {
+                    sensor.writeTo(current, port, sweep.isValid(port));
+                } else {
+                    current.setSensor(port, false, null, 0);
+                }
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                current.setMotor(port, sweep.isMotorRead(port) && sweep.isValid(port), sweep.getMotorStatus(port));
+            }
+            return true;
+        }
+
+        void close() {
+            streaming = false;
+            Thread current = thread;
+            if (current != null) {
+                LockSupport.unpark(current);
+                try {
+                    current.join(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    static void putStatus(ByteBuffer into, MotorStatus status) {
+        Varint.putSigned(into, status.state);
+        Varint.putSigned(into, status.power);
+        Varint.putSigned(into, status.position);
+        Varint.putSigned(into, status.dps);
+    }
+
+    static MotorPort motorPort(byte mask) throws IOException {
+        for (MotorPort port : MOTOR_PORTS) {
+            if (port.getPort() == mask) {
+                return port;
+            }
+        }
+        throw new IOException("Bad motor port " + mask);
+    }
+
+    static MotorPort[] motorPorts(byte mask) {
+        return MOTOR_SETS[mask & (MOTOR_SETS.length - 1)];
+    }
+
+    static SensorPort sensorPort(byte mask) throws IOException {
+        for (SensorPort port : SENSOR_PORTS) {
+            if (port.getPort() == mask) {
+                return port;
+            }
+        }
+        throw new IOException("Bad sensor port " + mask);
+    }
+
+    /**
+     * Stop serving and disconnect every client.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
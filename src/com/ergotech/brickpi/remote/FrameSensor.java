@@ -0,0 +1,65 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.remote;
+
+import java.nio.ByteBuffer;
+
+import com.ergotech.brickpi.protocol.BrickPiCodec;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.SensorType;
+
+/**
+ * The server's stand-in for a client's sensor. It keeps the last response
+ * frame as it came from the BrickPi, to be passed on to the client's own
+ * sensor instance to decode.
+ */
+final class FrameSensor extends Sensor {
+
+    private final byte[] frame;
+    private int length;
+
+    FrameSensor(SensorType sensorType) {
+        super(sensorType);
+        frame = new byte[BrickPiCodec.HEADER_SIZE + sensorType.getPayloadSize()];
+    }
+
+    /**
+     * Returns the sensor type with the given type id, or null.
+     */
+    static SensorType sensorType(int type) {
+        for (SensorType sensorType : SensorType.values()) {
+            if (sensorType.getInt() == type) {
+                return sensorType;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void processResult(byte[] message) {
+        length = Math.min(message.length, frame.length);
+        System.arraycopy(message, 0, frame, 0, length);
+    }
+
+    /**
+     * Append the last frame, preceded by its length.
+     */
+    synchronized void writeTo(ByteBuffer into) {
+        into.put((byte) length);
+        into.put(frame, 0, length);
+    }
+
+    /**
+     * Record the last frame in a telemetry frame.
+     */
+    synchronized void writeTo(TelemetryFrame into, SensorPort port, boolean valid) {
+        into.setSensor(port, valid && length > 0, frame, sensorType.getPayloadSize() - 2);
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.remote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.protocol.BrickPiCodec;
+import com.ergotech.brickpi.protocol.Varint;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * A BrickPi served by a {@link BrickPiServer}, used as if it were local.
+ * Each call is one round trip to the server. The sensors passed to
+ * setSensor stay on the client and are updated from the responses the
+ * server passes back.
+ *
+ * For reading at the full poll rate, {@link #subscribe(long, TimeUnit)} has
+ * the server stream every sweep; the latest is available from
+ * {@link #copyTelemetry(TelemetryFrame)} and is passed to the
+ * {@link TelemetryListener}s as it arrives.
+ * <pre>
+ * RemoteBrickPi brickPi = new RemoteBrickPi("robot.local", RemoteProtocol.DEFAULT_PORT);
+ * brickPi.subscribe(10, TimeUnit.MILLISECONDS);
+ * </pre>
+ */
+public class RemoteBrickPi implements IBrickPi, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteBrickPi.class.getName());
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+
+    /**
+     * Notified on the telemetry thread as each frame arrives.
+     */
+    public interface TelemetryListener {
+
+        /**
+         * @param frame the frame, valid only until the listener returns.
+         */
+        void telemetryReceived(TelemetryFrame frame);
+    }
+
+    private final SocketChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer request = ByteBuffer.allocate(RemoteProtocol.HEADER_SIZE + RemoteProtocol.MAX_PAYLOAD);
+    private final ByteBuffer response = ByteBuffer.allocate(RemoteProtocol.HEADER_SIZE + RemoteProtocol.MAX_PAYLOAD);
+    private final Sensor[] sensors = new Sensor[SENSOR_PORTS.length];
+    private final byte[][] sensorFrames = new byte[SENSOR_PORTS.length][];
+
+    private final List<TelemetryListener> listeners = new CopyOnWriteArrayList<>();
+    private final TelemetryFrame received = new TelemetryFrame();
+    private final TelemetryFrame latest = new TelemetryFrame();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong framesLost = new AtomicLong();
+    private volatile DatagramChannel telemetry;
+    private volatile boolean hasTelemetry;
+
+    /**
+     * Connect to a server.
+     *
+     * @param host the host of the server.
+     * @param port the TCP port of the server.
+     * @throws IOException if the server can't be reached.
+     */
+    public RemoteBrickPi(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Send the request in the request buffer and wait for the response. The
+     * lock must be held.
+     */
+    private void call(byte opcode) throws IOException {
+        RemoteProtocol.send(channel, request, opcode);
+        if (RemoteProtocol.receive(channel, response) != RemoteProtocol.OK) {
+            throw new IOException(RemoteProtocol.errorMessage(response));
+        }
+    }
+
+    private static int mask(MotorPort[] ports) {
+        int mask = 0;
+        for (MotorPort port : ports) {
+            mask |= port.getPort();
+        }
+        return mask;
+    }
+
+    private void sendPorts(byte opcode, MotorPort[] ports, int value) throws IOException {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.put((byte) mask(ports));
+            Varint.putSigned(request, value);
+            call(opcode);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Initialize the motor on the server. A failure is logged, as the
+     * interface does not allow it to be thrown.
+     */
+    @Override
+    public void initializeMotor(MotorPort motorPort, Motor motor) {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.put((byte) motorPort.getPort());
+            request.put((byte) motor.getDirection().ordinal());
+            call(RemoteProtocol.INITIALIZE_MOTOR);
+        } catch (IOException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setMotor(MotorPort[] motorPort, int power) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR, motorPort, power);
+    }
+
+    @Override
+    public void setMotorPosition(MotorPort[] motorPort, int position) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_POSITION, motorPort, position);
+    }
+
+    @Override
+    public void setMotorPositionRelative(MotorPort[] motorPort, int degrees) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_POSITION_RELATIVE, motorPort, degrees);
+    }
+
+    @Override
+    public void setMotorEncoderOffset(MotorPort[] motorPort, int offset) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_ENCODER_OFFSET, motorPort, offset);
+    }
+
+    @Override
+    public void setMotorDps(MotorPort[] motorPort, int dps) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_DPS, motorPort, dps);
+    }
+
+    @Override
+    public void setMotorPositionKp(MotorPort[] motorPort, int kp) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_POSITION_KP, motorPort, kp);
+    }
+
+    @Override
+    public void setMotorPositionKd(MotorPort[] motorPort, int kd) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_POSITION_KD, motorPort, kd);
+    }
+
+    @Override
+    public void setMotorDpsKp(MotorPort[] motorPort, int kp) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_DPS_KP, motorPort, kp);
+    }
+
+    @Override
+    public void setMotorDpsKd(MotorPort[] motorPort, int kd) throws IOException {
+        sendPorts(RemoteProtocol.SET_MOTOR_DPS_KD, motorPort, kd);
+    }
+
+    @Override
+    public void setMotorLimits(MotorPort[] motorPort, int power, int dps) throws IOException {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.put((byte) mask(motorPort));
+            Varint.putSigned(request, power);
+            Varint.putSigned(request, dps);
+            call(RemoteProtocol.SET_MOTOR_LIMITS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setMotors(MotorBatch batch) throws IOException {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            for (MotorPort port : MOTOR_PORTS) {
+                request.put((byte) batch.getTarget(port).ordinal());
+                Varint.putSigned(request, batch.getValue(port));
+            }
+            call(RemoteProtocol.SET_MOTORS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setSensor(Sensor sensor, SensorPort port) throws IOException {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.put((byte) port.getPort());
+            Varint.put(request, sensor.getSensorTypeEnum().getInt());
+            call(RemoteProtocol.SET_SENSOR);
+            sensors[port.ordinal()] = sensor;
+            sensorFrames[port.ordinal()] = new byte[BrickPiCodec.HEADER_SIZE + sensor.getSensorTypeEnum().getPayloadSize()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Sensor> T getSensor(SensorPort port) throws IOException {
+        lock.lock();
+        try {
+            Sensor sensor = sensors[port.ordinal()];
+            if (sensor == null) {
+                throw new IOException("Sensor not initialized on " + port);
+            }
+            RemoteProtocol.begin(request);
+            request.put((byte) port.getPort());
+            call(RemoteProtocol.GET_SENSOR);
+            readSensor(port, sensor);
+            return (T) sensor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Update a sensor from the frame in the response.
+     *
+     * @return false if the server had no frame for the sensor.
+     */
+    private boolean readSensor(SensorPort port, Sensor sensor) throws IOException {
+        byte[] frame = sensorFrames[port.ordinal()];
+        int length = response.get() & 0xFF;
+        if (length != frame.length) {
+            response.position(response.position() + length);
+            return false;
+        }
+        response.get(frame);
+        sensor.processResult(frame);
+        return true;
+    }
+
+    @Override
+    public int getMotorEncoder(MotorPort motorPort) throws IOException {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.put((byte) motorPort.getPort());
+            call(RemoteProtocol.GET_MOTOR_ENCODER);
+            return (int) Varint.getSigned(response);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort) throws IOException {
+        return getMotorStatus(motorPort, new MotorStatus());
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException {
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.put((byte) motorPort.getPort());
+            call(RemoteProtocol.GET_MOTOR_STATUS);
+            getStatus(response, motorStatus);
+            return motorStatus;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void getStatus(ByteBuffer from, MotorStatus into) {
+        into.state = (int) Varint.getSigned(from);
+        into.power = (int) Varint.getSigned(from);
+        into.position = (int) Varint.getSigned(from);
+        into.dps = (int) Varint.getSigned(from);
+    }
+
+    /**
+     * Perform the sweep on the server, in one round trip.
+     */
+    @Override
+    public PortSweep sweep(PortSweep sweep) throws IOException {
+        lock.lock();
+        try {
+            int sensorMask = 0;
+            int motorMask = 0;
+            int powerMask = 0;
+            for (SensorPort port : SENSOR_PORTS) {
+                if (sweep.isSensorRead(port)) {
+                    if (sensors[port.ordinal()] == null) {
+                        throw new IOException("Sensor not initialized on " + port);
+                    }
+                    sensorMask |= port.getPort();
+                }
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                if (sweep.isMotorRead(port)) {
+                    motorMask |= port.getPort();
+                }
+                if (sweep.isMotorPowerPending(port)) {
+                    powerMask |= port.getPort();
+                }
+            }
+            RemoteProtocol.begin(request);
+            request.put((byte) sensorMask);
+            request.put((byte) motorMask);
+            request.put((byte) powerMask);
+            for (MotorPort port : MOTOR_PORTS) {
+                if (sweep.isMotorPowerPending(port)) {
+                    Varint.putSigned(request, sweep.getMotorPower(port));
+                }
+            }
+            sweep.start(System.nanoTime());
+            call(RemoteProtocol.SWEEP);
+            for (MotorPort port : MOTOR_PORTS) {
+                sweep.powerSent(port);
+            }
+            for (SensorPort port : SENSOR_PORTS) {
+                if (sweep.isSensorRead(port)) {
+                    Sensor sensor = sensors[port.ordinal()];
+                    boolean valid = response.get() != 0;
+                    valid &= readSensor(port, sensor);
+                    sweep.sensorRead(port, sensor, valid);
+                }
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                if (sweep.isMotorRead(port)) {
+                    boolean valid = response.get() != 0;
+                    getStatus(response, sweep.getMotorStatus(port));
+                    sweep.motorRead(port, valid);
+                }
+            }
+            sweep.end(System.nanoTime());
+            return sweep;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Have the server stream a sweep of every configured port at a fixed
+     * rate, replacing any previous subscription.
+     *
+     * @param period the time between sweeps, zero for as fast as the
+     * BrickPi can be read.
+     * @param unit the unit of period.
+     * @throws IOException if the subscription failed.
+     */
+    public void subscribe(long period, TimeUnit unit) throws IOException {
+        unsubscribe();
+        DatagramChannel udp = DatagramChannel.open();
+        InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+        udp.bind(new InetSocketAddress(local.getAddress(), 0));
+        telemetry = udp;
+        Thread thread = new Thread(() -> receiveTelemetry(udp), "BrickPi Telemetry");
+        thread.setDaemon(true);
+        thread.start();
+        lock.lock();
+        try {
+            RemoteProtocol.begin(request);
+            request.putShort((short) ((InetSocketAddress) udp.getLocalAddress()).getPort());
+            Varint.put(request, unit.toMicros(period));
+            call(RemoteProtocol.SUBSCRIBE);
+        } catch (IOException ex) {
+            unsubscribe();
+            throw ex;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the telemetry stream.
+     */
+    public void unsubscribe() throws IOException {
+        DatagramChannel udp = telemetry;
+        telemetry = null;
+        if (udp == null) {
+            return;
+        }
+        udp.close();
+        if (channel.isOpen()) {
+            lock.lock();
+            try {
+                RemoteProtocol.begin(request);
+                call(RemoteProtocol.UNSUBSCRIBE);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void receiveTelemetry(DatagramChannel udp) {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(TelemetryFrame.MAX_ENCODED);
+        boolean synced = false;
+        try {
+            while (true) {
+                datagram.clear();
+                udp.receive(datagram);
+                datagram.flip();
+                bytesReceived.addAndGet(datagram.remaining());
+                long expected = received.getSequence() + 1;
+                if (!received.decode(datagram)) {
+                    // a delta without the frame before it, wait for a key
+                    if (synced) {
+                        synced = false;
+                        framesLost.incrementAndGet();
+                    }
+                    continue;
+                }
+                if (synced && received.getSequence() != expected) {
+                    framesLost.addAndGet(received.getSequence() - expected);
+                }
+                synced = true;
+                framesReceived.incrementAndGet();
+                synchronized (latest) {
+                    received.copyTo(latest);
+                }
+                hasTelemetry = true;
+                for (TelemetryListener listener : listeners) {
+                    try {
+                        listener.telemetryReceived(received);
+                    } catch (RuntimeException ex) {
+                        LOGGER.error("Telemetry listener failed", ex);
+                    }
+                }
+            }
+        } catch (AsynchronousCloseException ex) {
+            // unsubscribed
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Telemetry failed", ex);
+        }
+    }
+
+    /**
+     * Copy the latest telemetry frame.
+     *
+     * @param into the frame to copy into.
+     * @return false if no frame has been received.
+     */
+    public boolean copyTelemetry(TelemetryFrame into) {
+        synchronized (latest) {
+            latest.copyTo(into);
+        }
+        return hasTelemetry;
+    }
+
+    public void addTelemetryListener(TelemetryListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTelemetryListener(TelemetryListener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    /**
+     * Returns the telemetry bytes received, not counting the UDP and IP
+     * headers.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the number of telemetry frames lost or dropped waiting for a
+     * key frame.
+     */
+    public long getFramesLost() {
+        return framesLost.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            unsubscribe();
+        } finally {
+            channel.close();
+        }
+    }
+}
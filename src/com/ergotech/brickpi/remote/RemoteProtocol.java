@@ -0,0 +1,142 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.remote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.ergotech.brickpi.protocol.Varint;
+
+/**
+ * The wire format between {@link BrickPiServer} and {@link RemoteBrickPi}.
+ *
+ * Commands go over TCP, one at a time, each as
+ * <pre>
+ * OPCODE  LENGTH(2 bytes, big endian)  payload[LENGTH]
+ * </pre>
+ * and are answered as
+ * <pre>
+ * STATUS  LENGTH(2 bytes, big endian)  payload[LENGTH]
+ * </pre>
+ * where the payload of an ERROR is the message in UTF-8. Integers in the
+ * payloads are {@link Varint}s, signed ones zigzag encoded, and ports are
+ * sent as their bit masks.
+ *
+ * Telemetry goes over UDP, one {@link TelemetryFrame} per datagram.
+ */
+public final class RemoteProtocol {
+
+    /**
+     * The default TCP port of the server.
+     */
+    public static final int DEFAULT_PORT = 5454;
+
+    /**
+     * The largest payload of a command or response.
+     */
+    public static final int MAX_PAYLOAD = 0xFFFF;
+
+    static final int HEADER_SIZE = 3;
+
+    static final byte INITIALIZE_MOTOR = 1;
+    static final byte SET_MOTOR = 2;
+    static final byte SET_MOTOR_POSITION = 3;
+    static final byte SET_MOTOR_POSITION_RELATIVE = 4;
+    static final byte SET_MOTOR_ENCODER_OFFSET = 5;
+    static final byte SET_SENSOR = 6;
+    static final byte GET_SENSOR = 7;
+    static final byte GET_MOTOR_ENCODER = 8;
+    static final byte GET_MOTOR_STATUS = 9;
+    static final byte SWEEP = 10;
+    static final byte SUBSCRIBE = 11;
+    static final byte UNSUBSCRIBE = 12;
+    static final byte SET_MOTOR_DPS = 13;
+    static final byte SET_MOTOR_POSITION_KP = 14;
+    static final byte SET_MOTOR_POSITION_KD = 15;
+    static final byte SET_MOTOR_DPS_KP = 16;
+    static final byte SET_MOTOR_DPS_KD = 17;
+    static final byte SET_MOTOR_LIMITS = 18;
+    static final byte SET_MOTORS = 19;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private RemoteProtocol() {
+    }
+
+    /**
+     * Start a message in a buffer, leaving room for the header.
+     */
+    static void begin(ByteBuffer buffer) {
+        buffer.clear();
+        buffer.position(HEADER_SIZE);
+    }
+
+    /**
+     * Fill in the header of a message begun with begin, and write it.
+     */
+    static void send(WritableByteChannel channel, ByteBuffer buffer, byte code) throws IOException {
+        int length = buffer.position() - HEADER_SIZE;
+        buffer.put(0, code);
+        buffer.putShort(1, (short) length);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read a whole message into a buffer, leaving the buffer positioned at
+     * the start of the payload and limited to its end.
+     *
+     * @return the opcode or status.
+     * @throws EOFException if the connection closed between messages.
+     */
+    static byte receive(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(HEADER_SIZE);
+        readFully(channel, buffer);
+        int length = buffer.getShort(1) & 0xFFFF;
+        buffer.limit(HEADER_SIZE + length);
+        readFully(channel, buffer);
+        buffer.position(HEADER_SIZE);
+        return buffer.get(0);
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Write an error response.
+     */
+    static void sendError(WritableByteChannel channel, ByteBuffer buffer, String message) throws IOException {
+        begin(buffer);
+        byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        buffer.put(text, 0, Math.min(text.length, buffer.remaining()));
+        send(channel, buffer, ERROR);
+    }
+
+    /**
+     * Returns the message of an error response.
+     */
+    static String errorMessage(ByteBuffer buffer) {
+        byte[] text = new byte[buffer.remaining()];
+        buffer.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
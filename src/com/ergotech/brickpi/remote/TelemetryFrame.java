@@ -0,0 +1,282 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.protocol.BrickPiCodec;
+import com.ergotech.brickpi.protocol.Varint;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * The result of one sweep of every port, as streamed by the server. The
+ * values are held as a fixed row of fields and encoded against the previous
+ * frame: only the fields that changed are sent, each as a zigzag varint of
+ * the difference. A key frame is encoded against zero and stands alone, so
+ * that a receiver that missed a frame can start again.
+ * <pre>
+ * KIND  SEQUENCE  CHANGED(varint bit mask of fields)  delta...
+ * </pre>
+ */
+public final class TelemetryFrame {
+
+    static final byte KEY_FRAME = 1;
+    static final byte DELTA_FRAME = 2;
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+
+    private static final int TIME = 0;
+    private static final int MOTOR_BASE = 1;
+    private static final int MOTOR_VALID = 0;
+    private static final int MOTOR_STATE = 1;
+    private static final int MOTOR_POWER = 2;
+    private static final int MOTOR_POSITION = 3;
+    private static final int MOTOR_DPS = 4;
+    private static final int MOTOR_FIELDS = 5;
+    private static final int SENSOR_BASE = MOTOR_BASE + MOTOR_PORTS.length * MOTOR_FIELDS;
+    private static final int SENSOR_VALID = 0;
+    private static final int SENSOR_TYPE = 1;
+    private static final int SENSOR_STATE = 2;
+    private static final int SENSOR_RAW = 3;
+    private static final int SENSOR_FIELDS = 4;
+
+    /**
+     * The number of fields in a frame.
+     */
+    public static final int FIELDS = SENSOR_BASE + SENSOR_PORTS.length * SENSOR_FIELDS;
+
+    /**
+     * The longest encoding of a frame.
+     */
+    public static final int MAX_ENCODED = 1 + (2 + FIELDS) * Varint.MAX_LENGTH;
+
+    private final long[] values = new long[FIELDS];
+    private long sequence;
+    private final byte[] sensorFrame = new byte[BrickPiCodec.DATA_INDEX + 2 + 8];
+
+    /**
+     * Returns the number of the frame, counting from zero.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns the time of the sweep, System.nanoTime on the server divided
+     * by 1000.
+     */
+    public long getTime() {
+        return values[TIME];
+    }
+
+    public void setTime(long micros) {
+        values[TIME] = micros;
+    }
+
+    private static int motor(MotorPort port, int field) {
+        return MOTOR_BASE + port.ordinal() * MOTOR_FIELDS + field;
+    }
+
+    private static int sensor(SensorPort port, int field) {
+        return SENSOR_BASE + port.ordinal() * SENSOR_FIELDS + field;
+    }
+
+    /**
+     * Whether the motor was read in this sweep. Otherwise its values are
+     * from the last frame in which it was.
+     */
+    public boolean isValid(MotorPort port) {
+        return values[motor(port, MOTOR_VALID)] != 0;
+    }
+
+    public int getMotorState(MotorPort port) {
+        return (int) values[motor(port, MOTOR_STATE)];
+    }
+
+    public int getMotorPower(MotorPort port) {
+        return (int) values[motor(port, MOTOR_POWER)];
+    }
+
+    /**
+     * Returns the encoder position in degrees.
+     */
+    public int getMotorPosition(MotorPort port) {
+        return (int) values[motor(port, MOTOR_POSITION)];
+    }
+
+    /**
+     * Returns the speed in degrees per second.
+     */
+    public int getMotorDps(MotorPort port) {
+        return (int) values[motor(port, MOTOR_DPS)];
+    }
+
+    /**
+     * Fill a motor status from the frame.
+     *
+     * @return into.
+     */
+    public MotorStatus getMotorStatus(MotorPort port, MotorStatus into) {
+        into.state = getMotorState(port);
+        into.power = getMotorPower(port);
+        into.position = getMotorPosition(port);
+        into.dps = getMotorDps(port);
+        return into;
+    }
+
+    /**
+     * Record a motor read.
+     *
+     * @param status the status read, ignored if not valid.
+     */
+    public void setMotor(MotorPort port, boolean valid, MotorStatus status) {
+        values[motor(port, MOTOR_VALID)] = valid ? 1 : 0;
+        if (valid) {
+            values[motor(port, MOTOR_STATE)] = status.state;
+            values[motor(port, MOTOR_POWER)] = status.power;
+            values[motor(port, MOTOR_POSITION)] = status.position;
+            values[motor(port, MOTOR_DPS)] = status.dps;
+        }
+    }
+
+    /**
+     * Whether the sensor was read in this sweep. Otherwise its values are
+     * from the last frame in which it was.
+     */
+    public boolean isValid(SensorPort port) {
+        return values[sensor(port, SENSOR_VALID)] != 0;
+    }
+
+    /**
+     * Returns the sensor type reported by the BrickPi.
+     */
+    public int getSensorType(SensorPort port) {
+        return (int) values[sensor(port, SENSOR_TYPE)];
+    }
+
+    /**
+     * Returns the sensor state, see Sensor.SENSOR_STATE.
+     */
+    public int getSensorState(SensorPort port) {
+        return (int) values[sensor(port, SENSOR_STATE)];
+    }
+
+    /**
+     * Returns up to the first eight value bytes of the sensor, big endian.
+     */
+    public long getSensorRaw(SensorPort port) {
+        return values[sensor(port, SENSOR_RAW)];
+    }
+
+    /**
+     * Record a sensor read from its GET_SENSOR response.
+     *
+     * @param frame the response, ignored if not valid.
+     * @param valueLength the number of value bytes in the response.
+     */
+    public void setSensor(SensorPort port, boolean valid, byte[] frame, int valueLength) {
+        values[sensor(port, SENSOR_VALID)] = valid ? 1 : 0;
+        if (valid) {
+            values[sensor(port, SENSOR_TYPE)] = BrickPiCodec.decodeSensorType(frame);
+            values[sensor(port, SENSOR_STATE)] = BrickPiCodec.decodeSensorState(frame);
+            values[sensor(port, SENSOR_RAW)] = BrickPiCodec.decodeSensorRaw(frame, valueLength);
+        }
+    }
+
+    /**
+     * Update a sensor from the frame, as if it had been read locally.
+     *
+     * @param port the port.
+     * @param sensor the sensor configured on the port.
+     * @return false if the port was not read in this sweep.
+     * @throws IOException if the sensor rejects the values.
+     */
+    public boolean applyTo(SensorPort port, Sensor sensor) throws IOException {
+        if (!isValid(port)) {
+            return false;
+        }
+        int valueLength = Math.min(Math.max(sensor.getSensorTypeEnum().getPayloadSize() - 2, 0), 8);
+        BrickPiCodec.encodeSensorResponse(sensorFrame, getSensorType(port), getSensorState(port),
+                getSensorRaw(port), valueLength);
+        sensor.processResult(sensorFrame);
+        return true;
+    }
+
+    /**
+     * Copy this frame.
+     */
+    public void copyTo(TelemetryFrame into) {
+        into.sequence = sequence;
+        System.arraycopy(values, 0, into.values, 0, FIELDS);
+    }
+
+    /**
+     * Encode this frame.
+     *
+     * @param into the buffer, with at least MAX_ENCODED remaining.
+     * @param previous the frame sent before this one, or null for a key
+     * frame.
+     */
+    public void encode(ByteBuffer into, TelemetryFrame previous) {
+        into.put(previous == null ? KEY_FRAME : DELTA_FRAME);
+        Varint.put(into, sequence);
+        long changed = 0;
+        for (int i = 0; i < FIELDS; i++) {
+            if (values[i] != (previous == null ? 0 : previous.values[i])) {
+                changed |= 1L << i;
+            }
+        }
+        Varint.put(into, changed);
+        for (int i = 0; i < FIELDS; i++) {
+            if ((changed & (1L << i)) != 0) {
+                Varint.putSigned(into, values[i] - (previous == null ? 0 : previous.values[i]));
+            }
+        }
+    }
+
+    /**
+     * Decode a frame in place: a key frame replaces this frame, a delta
+     * frame is applied to it.
+     *
+     * @param from the encoded frame.
+     * @return false, leaving this frame unchanged, for a delta frame that
+     * does not follow this one.
+     */
+    public boolean decode(ByteBuffer from) {
+        byte kind = from.get();
+        long next = Varint.get(from);
+        if (kind == DELTA_FRAME) {
+            if (next != sequence + 1) {
+                return false;
+            }
+        } else if (kind == KEY_FRAME) {
+            Arrays.fill(values, 0);
+        } else {
+            throw new IllegalArgumentException("Unknown frame kind " + kind);
+        }
+        sequence = next;
+        long changed = Varint.get(from);
+        for (int i = 0; i < FIELDS; i++) {
+            if ((changed & (1L << i)) != 0) {
+                values[i] += Varint.getSigned(from);
+            }
+        }
+        return true;
+    }
+}
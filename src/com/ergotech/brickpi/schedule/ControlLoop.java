@@ -0,0 +1,287 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.schedule;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.diagnostics.LatencyHistogram;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * Runs controllers in a fixed period cycle on a single thread. Each cycle
+ * is one {@link PortSweep}: the motor powers the controllers set in the
+ * previous cycle are sent and the configured ports read in the same batch,
+ * then every controller is called, in the order added, with the ports just
+ * read. A command therefore always reaches the board one period after the
+ * readings it was computed from, however long the controllers took.
+ *
+ * The thread parks until shortly before each cycle is due, then spins for
+ * the rest, so the cycles start on time despite the timer slack of a
+ * parked thread. The spin threshold trades processor time for jitter; set
+ * it to zero to only park. Cycles are due at a fixed rate: a late cycle
+ * does not move the following due times, and a cycle that runs past the
+ * next due time is an overrun. The cycle does not allocate, so the
+ * controllers should not either if the loop is to be free of collection
+ * pauses.
+ *
+ * The timing is recorded in a {@link PollStats} with a deadline of one
+ * period: the reads are the cycles, the missed deadlines the overruns and
+ * the failures the cycles whose sweep failed, for which the controllers
+ * are not called.
+ */
+public class ControlLoop implements AutoCloseable {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ControlLoop.class.getName());
+
+    /**
+     * Called on the control loop thread every cycle.
+     */
+    public interface Controller {
+
+        /**
+         * @param sweep the ports read at the start of this cycle. Motor
+         * powers set on it with setMotorPower are sent at the start of the
+         * next cycle. Valid only until the controller returns.
+         * @param cycleTime the System.nanoTime at which the cycle was due.
+         */
+        void control(PortSweep sweep, long cycleTime);
+    }
+
+    /**
+     * The default spin threshold, in nanoseconds.
+     */
+    public static final long DEFAULT_SPIN_THRESHOLD = 100000;
+
+    private static final Controller[] NONE = new Controller[0];
+
+    private final IBrickPi brickPi;
+    private final long period;
+    private final PortSweep sweep = new PortSweep();
+    private final PollStats stats;
+    private final LatencyHistogram busyTime = new LatencyHistogram();
+    private volatile Controller[] controllers = NONE;
+    private volatile long spinThreshold = DEFAULT_SPIN_THRESHOLD;
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    /**
+     * Create a control loop. The sensors to be read must already have been
+     * set on the BrickPi.
+     *
+     * @param brickPi the BrickPi to control.
+     * @param period the time between cycles.
+     * @param unit the unit of period.
+     */
+    public ControlLoop(IBrickPi brickPi, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        this.brickPi = brickPi;
+        this.period = unit.toNanos(period);
+        this.stats = new PollStats(this.period, this.period);
+    }
+
+    /**
+     * Include or exclude the sensor port in the reads of each cycle. Set
+     * the ports before starting the loop, or from a controller.
+     *
+     * @param port the sensor port.
+     * @param read true to read the port.
+     * @return this loop.
+     */
+    public ControlLoop readSensor(SensorPort port, boolean read) {
+        sweep.readSensor(port, read);
+        return this;
+    }
+
+    /**
+     * Include or exclude the status of the motor port in the reads of each
+     * cycle. Set the ports before starting the loop, or from a controller.
+     *
+     * @param port the motor port.
+     * @param read true to read the motor status.
+     * @return this loop.
+     */
+    public ControlLoop readMotor(MotorPort port, boolean read) {
+        sweep.readMotor(port, read);
+        return this;
+    }
+
+    /**
+     * Add a controller, called after the controllers already added.
+     */
+    public synchronized void addController(Controller controller) {
+        Controller[] current = controllers;
+        Controller[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = controller;
+        controllers = updated;
+    }
+
+    public synchronized void removeController(Controller controller) {
+        Controller[] current = controllers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == controller) {
+                Controller[] updated = new Controller[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                controllers = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the requested period in nanoseconds.
+     */
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Set how long before each cycle is due the thread stops parking and
+     * spins.
+     *
+     * @param spinThreshold the time in nanoseconds, zero to only park.
+     */
+    public void setSpinThreshold(long spinThreshold) {
+        this.spinThreshold = spinThreshold;
+    }
+
+    public long getSpinThreshold() {
+        return spinThreshold;
+    }
+
+    /**
+     * Returns the timing record of the cycles. The missed deadlines are the
+     * overruns.
+     */
+    public PollStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the time from the start of each cycle's sweep to the return of
+     * the last controller.
+     */
+    public LatencyHistogram getBusyTime() {
+        return busyTime;
+    }
+
+    /**
+     * Start the control loop thread, at the highest priority.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "BrickPi Control Loop");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    private void run() {
+        long due = System.nanoTime();
+        long lastStart = 0;
+        while (running) {
+            waitUntil(due);
+            if (!running) {
+                break;
+            }
+            long start = System.nanoTime();
+            stats.reads.incrementAndGet();
+            stats.lateness.record(start - due);
+            if (lastStart != 0) {
+                long achieved = start - lastStart;
+                stats.achievedPeriod.record(achieved);
+                stats.jitter.record(Math.abs(achieved - period));
+            }
+            lastStart = start;
+            boolean ok = true;
+            try {
+                brickPi.sweep(sweep);
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+                stats.failures.incrementAndGet();
+                ok = false;
+            }
+            if (ok) {
+                for (Controller controller : controllers) {
+                    try {
+                        controller.control(sweep, due);
+                    } catch (RuntimeException ex) {
+                        LOGGER.error("Controller failed", ex);
+                    }
+                }
+            }
+            long end = System.nanoTime();
+            busyTime.record(end - start);
+            due += period;
+            if (end - due > 0) {
+                stats.missedDeadlines.incrementAndGet();
+                if (end - due >= period) {
+                    // more than a period behind, drop the cycles already passed
+                    long behind = (end - due) / period;
+                    stats.skipped.addAndGet(behind);
+                    due += behind * period;
+                }
+            }
+        }
+    }
+
+    /**
+     * Park until the spin threshold before the due time, then spin.
+     */
+    private void waitUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > spinThreshold && running) {
+            LockSupport.parkNanos(this, remaining - spinThreshold);
+        }
+        while (due - System.nanoTime() > 0 && running) {
+            Thread.onSpinWait();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the control loop thread and wait for the current cycle to finish.
+     * Motor powers set by the last cycle are not sent.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.schedule;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * Polls each port at its own rate. Every sensor or motor port is scheduled
+ * with a period and a deadline; on each tick the scheduler reads only the
+ * ports that are due, as one bulk {@link PortSweep} that holds the bus, and
+ * then sleeps until the next port falls due. Ports due within the packing
+ * window of each other are read in the same tick, so ports whose periods
+ * are multiples of each other share a sweep.
+ *
+ * For each port the achieved period, the jitter (achieved less requested
+ * period), the lateness of each read against its due time and the missed
+ * deadlines are recorded in {@link PollStats}. Reads are scheduled at a
+ * fixed rate: a late read does not move the following due times.
+ *
+ * The results are in the sweep passed to the {@link PollListener}s, which
+ * are called on the scheduler thread after every tick.
+ */
+public class PollScheduler implements AutoCloseable {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(PollScheduler.class.getName());
+
+    /**
+     * Notified on the scheduler thread after each tick.
+     */
+    public interface PollListener {
+
+        /**
+         * @param sweep the sweep just performed. Only the ports that were
+         * due have been read; see PortSweep.isSensorRead and isMotorRead.
+         * Valid only until the listener returns.
+         */
+        void polled(PortSweep sweep);
+    }
+
+    /**
+     * The default packing window, in nanoseconds.
+     */
+    public static final long DEFAULT_PACKING_WINDOW = 200000;
+
+    /**
+     * The longest the scheduler sleeps without checking for changes.
+     */
+    private static final long MAX_SLEEP = 100000000;
+
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+
+    private static final class Entry {
+
+        final long period;
+        final long deadline;
+        final PollStats stats;
+        // owned by the scheduler thread
+        long nextDue;
+        long lastStart;
+        boolean started;
+        boolean due;
+
+        Entry(long period, long deadline) {
+            this.period = period;
+            this.deadline = deadline;
+            this.stats = new PollStats(period, deadline);
+        }
+    }
+
+    private final IBrickPi brickPi;
+    private final PortSweep sweep = new PortSweep();
+    private final AtomicReferenceArray<Entry> sensors = new AtomicReferenceArray<>(SENSOR_PORTS.length);
+    private final AtomicReferenceArray<Entry> motors = new AtomicReferenceArray<>(MOTOR_PORTS.length);
+    private final List<PollListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong portReads = new AtomicLong();
+    private volatile long packingWindow = DEFAULT_PACKING_WINDOW;
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    /**
+     * Create a scheduler. The sensors to be read must already have been set
+     * on the BrickPi.
+     *
+     * @param brickPi the BrickPi to poll.
+     */
+    public PollScheduler(IBrickPi brickPi) {
+        this.brickPi = brickPi;
+    }
+
+    /**
+     * Poll a sensor port, with a deadline of one period.
+     *
+     * @param port the port.
+     * @param period the time between reads.
+     * @param unit the unit of period.
+     * @return the timing record of the port.
+     */
+    public PollStats schedule(SensorPort port, long period, TimeUnit unit) {
+        return schedule(port, period, period, unit);
+    }
+
+    /**
+     * Poll a sensor port, replacing any previous schedule for the port.
+     *
+     * @param port the port.
+     * @param period the time between reads.
+     * @param deadline the time after each due time by which the read must
+     * complete.
+     * @param unit the unit of period and deadline.
+     * @return the timing record of the port.
+     */
+    public PollStats schedule(SensorPort port, long period, long deadline, TimeUnit unit) {
+        Entry entry = entry(period, deadline, unit);
+        sensors.set(port.ordinal(), entry);
+        wake();
+        return entry.stats;
+    }
+
+    /**
+     * Poll a motor port's status, with a deadline of one period.
+     *
+     * @param port the port.
+     * @param period the time between reads.
+     * @param unit the unit of period.
+     * @return the timing record of the port.
+     */
+    public PollStats schedule(MotorPort port, long period, TimeUnit unit) {
+        return schedule(port, period, period, unit);
+    }
+
+    /**
+     * Poll a motor port's status, replacing any previous schedule for the
+     * port.
+     *
+     * @param port the port.
+     * @param period the time between reads.
+     * @param deadline the time after each due time by which the read must
+     * complete.
+     * @param unit the unit of period and deadline.
+     * @return the timing record of the port.
+     */
+    public PollStats schedule(MotorPort port, long period, long deadline, TimeUnit unit) {
+        Entry entry = entry(period, deadline, unit);
+        motors.set(port.ordinal(), entry);
+        wake();
+        return entry.stats;
+    }
+
+    private static Entry entry(long period, long deadline, TimeUnit unit) {
+        if (period <= 0 || deadline <= 0) {
+            throw new IllegalArgumentException("Period and deadline must be positive");
+        }
+        return new Entry(unit.toNanos(period), unit.toNanos(deadline));
+    }
+
+    /**
+     * Stop polling a sensor port.
+     */
+    public void cancel(SensorPort port) {
+        sensors.set(port.ordinal(), null);
+    }
+
+    /**
+     * Stop polling a motor port.
+     */
+    public void cancel(MotorPort port) {
+        motors.set(port.ordinal(), null);
+    }
+
+    /**
+     * Returns the timing record of a sensor port, or null if not scheduled.
+     */
+    public PollStats getStats(SensorPort port) {
+        Entry entry = sensors.get(port.ordinal());
+        return entry == null ? null : entry.stats;
+    }
+
+    /**
+     * Returns the timing record of a motor port, or null if not scheduled.
+     */
+    public PollStats getStats(MotorPort port) {
+        Entry entry = motors.get(port.ordinal());
+        return entry == null ? null : entry.stats;
+    }
+
+    /**
+     * Set how far ahead of its due time a port may be read so that it
+     * shares a tick with a port that is already due.
+     *
+     * @param packingWindow the window in nanoseconds.
+     */
+    public void setPackingWindow(long packingWindow) {
+        this.packingWindow = packingWindow;
+    }
+
+    public long getPackingWindow() {
+        return packingWindow;
+    }
+
+    /**
+     * Returns the number of ticks, that is bulk sweeps, performed.
+     */
+    public long getTicks() {
+        return ticks.get();
+    }
+
+    /**
+     * Returns the number of port reads requested across all ticks. Each is
+     * one transfer unless it fails and is retried, which this doesn't count.
+     */
+    public long getPortReads() {
+        return portReads.get();
+    }
+
+    public void addPollListener(PollListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removePollListener(PollListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start the scheduler thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "BrickPi Scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void wake() {
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long now = System.nanoTime();
+            long horizon = now + packingWindow;
+            long earliest = now + MAX_SLEEP;
+            int due = 0;
+            for (SensorPort port : SENSOR_PORTS) {
+                Entry entry = sensors.get(port.ordinal());
+                boolean read = entry != null && isDue(entry, now, horizon);
+                sweep.readSensor(port, read);
+                if (read) {
+                    due++;
+                } else if (entry != null) {
+                    earliest = Math.min(earliest, entry.nextDue);
+                }
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                Entry entry = motors.get(port.ordinal());
+                boolean read = entry != null && isDue(entry, now, horizon);
+                sweep.readMotor(port, read);
+                if (read) {
+                    due++;
+                } else if (entry != null) {
+                    earliest = Math.min(earliest, entry.nextDue);
+                }
+            }
+            if (due == 0) {
+                LockSupport.parkNanos(this, earliest - now);
+                continue;
+            }
+            boolean ok = true;
+            try {
+                brickPi.sweep(sweep);
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+                ok = false;
+            }
+            ticks.incrementAndGet();
+            portReads.addAndGet(due);
+            long start = ok ? sweep.getStartTime() : now;
+            long end = ok ? sweep.getEndTime() : System.nanoTime();
+            for (SensorPort port : SENSOR_PORTS) {
+                Entry entry = sensors.get(port.ordinal());
+                if (entry != null && entry.due) {
+                    account(entry, start, end, ok && sweep.isValid(port));
+                }
+            }
+            for (MotorPort port : MOTOR_PORTS) {
+                Entry entry = motors.get(port.ordinal());
+                if (entry != null && entry.due) {
+                    account(entry, start, end, ok && sweep.isValid(port));
+                }
+            }
+            if (ok) {
+                for (PollListener listener : listeners) {
+                    try {
+                        listener.polled(sweep);
+                    } catch (RuntimeException ex) {
+                        LOGGER.error("Poll listener failed", ex);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isDue(Entry entry, long now, long horizon) {
+        if (!entry.started) {
+            // newly scheduled
+            entry.started = true;
+            entry.nextDue = now;
+        }
+        entry.due = entry.nextDue - horizon <= 0;
+        return entry.due;
+    }
+
+    private static void account(Entry entry, long start, long end, boolean valid) {
+        PollStats stats = entry.stats;
+        entry.due = false;
+        stats.reads.incrementAndGet();
+        if (!valid) {
+            stats.failures.incrementAndGet();
+        }
+        stats.lateness.record(start - entry.nextDue);
+        if (stats.reads.get() > 1) {
+            long achieved = start - entry.lastStart;
+            stats.achievedPeriod.record(achieved);
+            stats.jitter.record(Math.abs(achieved - entry.period));
+        }
+        entry.lastStart = start;
+        if (end - entry.nextDue > entry.deadline) {
+            stats.missedDeadlines.incrementAndGet();
+        }
+        entry.nextDue += entry.period;
+        if (end - entry.nextDue >= entry.period) {
+            // more than a period behind, drop the due times already passed
+            long behind = (end - entry.nextDue) / entry.period;
+            stats.skipped.addAndGet(behind);
+            entry.nextDue += behind * entry.period;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the scheduler thread and wait for the current tick to finish.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.schedule;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ergotech.brickpi.diagnostics.LatencyHistogram;
+
+/**
+ * The timing record of one scheduled port. All times are in nanoseconds.
+ * Updated by the scheduler thread and readable from any thread.
+ */
+public class PollStats {
+
+    private final long period;
+    private final long deadline;
+
+    final LatencyHistogram achievedPeriod = new LatencyHistogram();
+    final LatencyHistogram jitter = new LatencyHistogram();
+    final LatencyHistogram lateness = new LatencyHistogram();
+    final AtomicLong reads = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong missedDeadlines = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+
+    PollStats(long period, long deadline) {
+        this.period = period;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the requested period.
+     */
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Returns the time after each due time by which the read must complete.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the time between the starts of successive reads.
+     */
+    public LatencyHistogram getAchievedPeriod() {
+        return achievedPeriod;
+    }
+
+    /**
+     * Returns the difference between the achieved and requested period.
+     */
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Returns how long after the due time each read started. Reads packed
+     * into a slightly early transaction count as zero.
+     */
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Returns the number of reads that did not verify, or were lost to a
+     * failed transaction.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of reads completed after their deadline.
+     */
+    public long getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    /**
+     * Returns the number of due times passed over entirely because the
+     * scheduler had fallen more than a period behind.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Clear the counts and histograms.
+     */
+    public void reset() {
+        achievedPeriod.reset();
+        jitter.reset();
+        lateness.reset();
+        reads.set(0);
+        failures.set(0);
+        missedDeadlines.set(0);
+        skipped.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "reads=" + getReads() + " failures=" + getFailures()
+                + " missed=" + getMissedDeadlines() + " skipped=" + getSkipped()
+                + "\n  period " + achievedPeriod
+                + "\n  jitter " + jitter
+                + "\n  lateness " + lateness;
+    }
+}
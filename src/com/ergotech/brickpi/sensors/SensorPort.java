@@ -9,7 +9,7 @@ public enum SensorPort {
     
     S1(1),
     S2(2),
-    S3(3),
+    S3(4),
     S4(8);
 
     private final int port;
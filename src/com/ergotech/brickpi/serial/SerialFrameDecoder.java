@@ -0,0 +1,137 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a serial byte stream into frames, see {@link SerialFraming}. The
+ * decoder never blocks: it is fed whatever bytes have arrived and keeps its
+ * place between calls, so a frame may arrive in any number of pieces. The
+ * frame bytes are copied straight from the receive buffer into the array
+ * supplied by {@link #frameFor(int, int)}; nothing is allocated.
+ *
+ * Bytes outside a frame are skipped until the next SYNC.
+ */
+public abstract class SerialFrameDecoder {
+
+    private static final int SYNC = 0;
+    private static final int SEQUENCE = 1;
+    private static final int LENGTH = 2;
+    private static final int DATA = 3;
+    private static final int CHECKSUM = 4;
+
+    private int state = SYNC;
+    private int sequence;
+    private int length;
+    private int position;
+    private int sum;
+    private byte[] target;
+    private long badFrames;
+    private long skippedBytes;
+
+    /**
+     * Consume the bytes remaining in the buffer.
+     *
+     * @param buffer the bytes received.
+     */
+    public void feed(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case SYNC:
+                    if (buffer.get() == SerialFraming.SYNC) {
+                        state = SEQUENCE;
+                    } else {
+                        skippedBytes++;
+                    }
+                    break;
+                case SEQUENCE:
+                    sequence = buffer.get() & 0xFF;
+                    state = LENGTH;
+                    break;
+                case LENGTH:
+                    length = buffer.get() & 0xFF;
+                    if (length == 0) {
+                        badFrames++;
+                        state = SYNC;
+                        break;
+                    }
+                    sum = sequence + length;
+                    position = 0;
+                    target = frameFor(sequence, length);
+                    state = DATA;
+                    break;
+                case DATA:
+                    int count = Math.min(buffer.remaining(), length - position);
+                    if (target != null) {
+                        buffer.get(target, position, count);
+                        for (int i = position; i < position + count; i++) {
+                            sum += target[i];
+                        }
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            sum += buffer.get();
+                        }
+                    }
+                    position += count;
+                    if (position == length) {
+                        state = CHECKSUM;
+                    }
+                    break;
+                case CHECKSUM:
+                    boolean ok = buffer.get() == (byte) ~sum;
+                    if (!ok) {
+                        badFrames++;
+                    }
+                    byte[] frame = target;
+                    target = null;
+                    state = SYNC;
+                    if (frame != null) {
+                        frameReceived(sequence, frame, length, ok);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * Returns the array to receive a frame into, or null to discard it.
+     * Called when the header of a frame has arrived.
+     *
+     * @param sequence the sequence number of the frame.
+     * @param length the length of the frame.
+     */
+    protected abstract byte[] frameFor(int sequence, int length);
+
+    /**
+     * Called when a frame accepted by frameFor is complete.
+     *
+     * @param sequence the sequence number of the frame.
+     * @param frame the array returned by frameFor.
+     * @param length the length of the frame.
+     * @param ok false if the checksum failed, when the frame is corrupt.
+     */
+    protected abstract void frameReceived(int sequence, byte[] frame, int length, boolean ok);
+
+    /**
+     * Returns the number of frames that failed the checksum.
+     */
+    public long getBadFrames() {
+        return badFrames;
+    }
+
+    /**
+     * Returns the number of bytes skipped looking for SYNC.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+}
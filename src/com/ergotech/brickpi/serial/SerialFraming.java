@@ -0,0 +1,75 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The framing of BrickPi frames on a serial line. Each frame, request or
+ * response, is sent as
+ * <pre>
+ * SYNC  SEQUENCE  LENGTH  frame[LENGTH]  CHECKSUM
+ * </pre>
+ * where the sequence numbers the requests so that a response can be matched
+ * to its request, and to discard late responses, and the checksum is the
+ * complement of the sum of the sequence, length and frame bytes. A response
+ * carries the sequence of its request and has the same length.
+ *
+ * This framing is not spoken by any released BrickPi firmware. The original
+ * RS232 BrickPi firmware uses its own packets (address, checksum, byte
+ * count, then a message such as the bit packed values of
+ * {@link com.ergotech.brickpi.protocol.LegacyCodec}) and does not know the
+ * BrickPi3 message types carried here. The board on the other end must run
+ * firmware built to unwrap these frames and answer them as the SPI firmware
+ * would.
+ */
+public final class SerialFraming {
+
+    public static final byte SYNC = 0x55;
+
+    /**
+     * The bytes added to each frame.
+     */
+    public static final int OVERHEAD = 4;
+
+    /**
+     * The longest frame that can be sent.
+     */
+    public static final int MAX_FRAME = 255;
+
+    private SerialFraming() {
+    }
+
+    /**
+     * Returns the checksum of a frame.
+     */
+    public static byte checksum(int sequence, byte[] frame, int length) {
+        int sum = (sequence & 0xFF) + length;
+        for (int i = 0; i < length; i++) {
+            sum += frame[i];
+        }
+        return (byte) ~sum;
+    }
+
+    /**
+     * Append a framed frame to a buffer.
+     *
+     * @param into the buffer, with at least length + OVERHEAD remaining.
+     * @param sequence the sequence number, 0 to 255.
+     * @param frame the frame.
+     * @param length the length of the frame, 1 to MAX_FRAME.
+     */
+    public static void encode(ByteBuffer into, int sequence, byte[] frame, int length) {
+        into.put(SYNC);
+        into.put((byte) sequence);
+        into.put((byte) length);
+        into.put(frame, 0, length);
+        into.put(checksum(sequence, frame, length));
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.serial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.PipelinedSpiDevice;
+
+/**
+ * Experimental: a BrickPi on a serial line, for boards that only have a
+ * UART. Frames are wrapped as described in {@link SerialFraming} and written
+ * through an NIO channel as soon as they are sent; a reader thread decodes
+ * the responses as they arrive, straight into the frames waiting for them,
+ * and wakes the waiting threads. Up to the pipeline depth requests may be in
+ * flight, so the link is kept busy while earlier responses are still on the
+ * wire.
+ *
+ * The frames are BrickPi3 SPI messages in this library's own framing, so
+ * the board must run custom firmware that speaks it; see
+ * {@link SerialFraming}. A stock RS232 BrickPi will not answer.
+ *
+ * The link is used like any other device:
+ * <pre>
+ * SerialLink link = SerialLink.open("/dev/ttyAMA0", SerialLink.DEFAULT_BAUD);
+ * BrickPiSPI brickPi = new BrickPiSPI((byte)1, link);
+ * </pre>
+ */
+public class SerialLink implements PipelinedSpiDevice, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialLink.class.getName());
+
+    /**
+     * The baud rate of the BrickPi UART.
+     */
+    public static final int DEFAULT_BAUD = 500000;
+
+    /**
+     * The default number of requests in flight.
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    /**
+     * The default time to wait for a response, in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 100;
+
+    private static final int FREE = 0;
+    private static final int PENDING = 1;
+    private static final int RECEIVING = 2;
+    private static final int DONE = 3;
+    private static final int FAILED = 4;
+
+    private static final class Slot {
+
+        final AtomicInteger state = new AtomicInteger(FREE);
+        volatile int sequence = -1;
+        volatile byte[] frame;
+        volatile Thread waiter;
+    }
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final Slot[] slots;
+    private final int mask;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Condition slotFreed = sendLock.newCondition();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SerialFraming.MAX_FRAME + SerialFraming.OVERHEAD);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(4096);
+    private final Decoder decoder = new Decoder();
+    private final Thread reader;
+    // guarded by sendLock
+    private int nextSequence;
+    private volatile boolean open = true;
+    private volatile long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT);
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong lateFrames = new AtomicLong();
+
+    /**
+     * Open a serial port, set it to raw 8N1 at the baud rate, and start the
+     * link.
+     *
+     * @param port the device, eg /dev/ttyAMA0.
+     * @param baud the baud rate.
+     * @return the link.
+     * @throws IOException if the port can't be opened.
+     */
+    public static SerialLink open(String port, int baud) throws IOException {
+        configure(port, baud);
+        FileChannel in = FileChannel.open(Paths.get(port), StandardOpenOption.READ);
+        try {
+            // a separate channel for writing, a file channel holds its
+            // position lock through a blocking read.
+            FileChannel out = FileChannel.open(Paths.get(port), StandardOpenOption.WRITE);
+            return new SerialLink(in, out, DEFAULT_DEPTH);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Set the line to raw 8N1 with stty. The JDK has no access to the line
+     * settings. A failure is logged, the port may already be set up.
+     */
+    private static void configure(String port, int baud) {
+        try {
+            Process stty = new ProcessBuilder("stty", "-F", port, Integer.toString(baud),
+                    "raw", "-echo", "cs8", "-cstopb", "-parenb", "-crtscts")
+                    .redirectErrorStream(true).start();
+            if (stty.waitFor() != 0) {
+                LOGGER.warn("Unable to configure " + port + " at " + baud + " baud");
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to configure " + port + ": " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a link over a pair of channels, and start its reader thread.
+     *
+     * @param in the channel the responses are read from, blocking.
+     * @param out the channel the requests are written to.
+     * @param depth the most requests in flight, a power of two from 1 to
+     * 128.
+     */
+    public SerialLink(ReadableByteChannel in, WritableByteChannel out, int depth) {
+        if (depth < 1 || depth > 128 || Integer.bitCount(depth) != 1) {
+            throw new IllegalArgumentException("Depth must be a power of two from 1 to 128");
+        }
+        this.in = in;
+        this.out = out;
+        slots = new Slot[depth];
+        for (int i = 0; i < depth; i++) {
+            slots[i] = new Slot();
+        }
+        mask = depth - 1;
+        reader = new Thread(this::readResponses, "BrickPi Serial");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int getPipelineDepth() {
+        return slots.length;
+    }
+
+    /**
+     * Set how long to wait for each response.
+     *
+     * @param timeout the time in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    public int getTimeout() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    @Override
+    public int send(byte[] frame) throws IOException {
+        if (frame.length == 0 || frame.length > SerialFraming.MAX_FRAME) {
+            throw new IOException("Frame length " + frame.length + " can't be sent");
+        }
+        sendLock.lock();
+        try {
+            int sequence = nextSequence;
+            Slot slot = slots[sequence & mask];
+            long remaining = timeoutNanos;
+            while (slot.state.get() != FREE) {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (remaining <= 0) {
+                    throw new IOException("Serial link stalled");
+                }
+                remaining = slotFreed.awaitNanos(remaining);
+            }
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            nextSequence = (sequence + 1) & 0xFF;
+            slot.frame = frame;
+            slot.sequence = sequence;
+            slot.waiter = null;
+            slot.state.set(PENDING);
+            try {
+                sendBuffer.clear();
+                SerialFraming.encode(sendBuffer, sequence, frame, frame.length);
+                sendBuffer.flip();
+                while (sendBuffer.hasRemaining()) {
+                    out.write(sendBuffer);
+                }
+            } catch (IOException ex) {
+                release(slot);
+                throw ex;
+            }
+            framesSent.incrementAndGet();
+            return sequence;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the serial link");
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public void receive(int ticket) throws IOException {
+        Slot slot = slots[ticket & mask];
+        if (slot.sequence != ticket || slot.state.get() == FREE) {
+            throw new IOException("Unknown ticket " + ticket);
+        }
+        slot.waiter = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        int state;
+        while ((state = slot.state.get()) != DONE && state != FAILED) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !open) {
+                // give up, unless the response is already arriving
+                if (slot.state.compareAndSet(PENDING, FAILED)) {
+                    timeouts.incrementAndGet();
+                    break;
+                }
+                remaining = TimeUnit.MILLISECONDS.toNanos(1);
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+        boolean ok = slot.state.get() == DONE;
+        release(slot);
+        if (!ok) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            throw new IOException("No valid response from BrickPi to request " + ticket);
+        }
+    }
+
+    private void release(Slot slot) {
+        slot.frame = null;
+        slot.waiter = null;
+        sendLock.lock();
+        try {
+            slot.state.set(FREE);
+            slotFreed.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * One transaction, the response replacing the request in place.
+     */
+    @Override
+    public byte[] write(byte... data) throws IOException {
+        receive(send(data));
+        return data;
+    }
+
+    private void readResponses() {
+        try {
+            while (open) {
+                receiveBuffer.clear();
+                if (in.read(receiveBuffer) < 0) {
+                    break;
+                }
+                receiveBuffer.flip();
+                decoder.feed(receiveBuffer);
+            }
+        } catch (IOException ex) {
+            if (open) {
+                LOGGER.error("Serial link failed", ex);
+            }
+        } finally {
+            open = false;
+            for (Slot slot : slots) {
+                slot.state.compareAndSet(RECEIVING, FAILED);
+                wake(slot);
+            }
+        }
+    }
+
+    private static void wake(Slot slot) {
+        Thread waiter = slot.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private final class Decoder extends SerialFrameDecoder {
+
+        @Override
+        protected byte[] frameFor(int sequence, int length) {
+            Slot slot = slots[sequence & mask];
+            byte[] frame = slot.frame;
+            if (slot.sequence == sequence && frame != null && frame.length == length
+                    && slot.state.compareAndSet(PENDING, RECEIVING)) {
+                return frame;
+            }
+            lateFrames.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        protected void frameReceived(int sequence, byte[] frame, int length, boolean ok) {
+            Slot slot = slots[sequence & mask];
+            if (ok) {
+                framesReceived.incrementAndGet();
+            } else {
+                Arrays.fill(frame, (byte) 0);
+            }
+            slot.state.set(ok ? DONE : FAILED);
+            wake(slot);
+        }
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    /**
+     * Returns the number of requests that had no response in time.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of responses that arrived after their request was
+     * given up, or that matched no request.
+     */
+    public long getLateFrames() {
+        return lateFrames.get();
+    }
+
+    /**
+     * Returns the number of responses that failed the checksum.
+     */
+    public long getBadFrames() {
+        return decoder.getBadFrames();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Close the channels and fail any requests in flight.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+        try {
+            reader.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sendLock.lock();
+        try {
+            slotFreed.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] write(byte[] data, int start, int length) throws IOException {
+        return write(Arrays.copyOfRange(data, start, start + Math.min(data.length - start, length)));
+    }
+
+    @Override
+    public ByteBuffer write(ByteBuffer data) throws IOException {
+        byte[] buffer = new byte[data.remaining()];
+        data.get(buffer);
+        return ByteBuffer.wrap(write(buffer));
+    }
+
+    @Override
+    public String write(String data, Charset charset) throws IOException {
+        return new String(write(data.getBytes(charset)), charset);
+    }
+
+    @Override
+    public String write(String data, String charset) throws IOException {
+        return write(data, Charset.forName(charset));
+    }
+
+    @Override
+    public byte[] write(InputStream input) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[SerialFraming.MAX_FRAME];
+        int read;
+        while (buffer.size() < SerialFraming.MAX_FRAME
+                && (read = input.read(chunk, 0, SerialFraming.MAX_FRAME - buffer.size())) > 0) {
+            buffer.write(chunk, 0, read);
+        }
+        return write(buffer.toByteArray());
+    }
+
+    @Override
+    public int write(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = write(input);
+        output.write(buffer);
+        return buffer.length;
+    }
+
+    @Override
+    public short[] write(short[] data, int start, int length) throws IOException {
+        length = Math.min(data.length - start, length);
+        byte[] buffer = new byte[length];
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) data[start + i];
+        }
+        write(buffer);
+        short[] result = new short[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (short) (buffer[i] & 0xFF);
+        }
+        return result;
+    }
+
+    @Override
+    public short[] write(short... data) throws IOException {
+        return write(data, 0, data.length);
+    }
+}
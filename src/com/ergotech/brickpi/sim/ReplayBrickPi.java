@@ -0,0 +1,453 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.sim;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import com.ergotech.brickpi.IBrickPi;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.diagnostics.TelemetryLogReader;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.protocol.BrickPiCodec;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+
+/**
+ * A BrickPi that plays back a run recorded with a
+ * {@link com.ergotech.brickpi.diagnostics.TelemetryLog}. Every read is
+ * served from the record that was current at the same time into the run,
+ * and every command is recorded, with its time, for the test to inspect.
+ *
+ * Time is taken from a {@link VirtualClock}. The replay moves the clock on
+ * by the recorded duration of each sweep and by the mean time of a single
+ * transfer for each single read, as the board would have taken, and the
+ * code under test advances it in place of sleeping. Nothing depends on the
+ * wall clock, so a replay runs as fast as the code under test and gives the
+ * same results every time.
+ *
+ * Encoder offsets set during the replay are applied to the recorded
+ * positions, as the board would. Reading past the end of the recording
+ * throws an EOFException.
+ * <pre>
+ * VirtualClock clock = new VirtualClock();
+ * ReplayBrickPi brickPi = ReplayBrickPi.open(Paths.get("run.bptl"), clock);
+ * </pre>
+ */
+public class ReplayBrickPi implements IBrickPi {
+
+    private static final MotorPort[] MOTOR_PORTS = MotorPort.values();
+    private static final SensorPort[] SENSOR_PORTS = SensorPort.values();
+
+    /**
+     * The kinds of command recorded.
+     */
+    public enum CommandType {
+        INITIALIZE_MOTOR,
+        SET_MOTOR,
+        SET_MOTOR_POSITION,
+        SET_MOTOR_POSITION_RELATIVE,
+        SET_MOTOR_ENCODER_OFFSET,
+        SET_MOTOR_DPS,
+        SET_MOTOR_POSITION_KP,
+        SET_MOTOR_POSITION_KD,
+        SET_MOTOR_DPS_KP,
+        SET_MOTOR_DPS_KD,
+        SET_MOTOR_LIMITS,
+        SET_SENSOR
+    }
+
+    /**
+     * A command issued by the code under test.
+     */
+    public static final class Command {
+
+        /**
+         * The time into the run, in nanoseconds.
+         */
+        public final long time;
+        public final CommandType type;
+        /**
+         * The bit mask of the motor or sensor ports.
+         */
+        public final int ports;
+        /**
+         * The power, position, offset, speed, gain, motor direction ordinal
+         * or sensor type id. For SET_MOTOR_LIMITS the power limit is in the
+         * high 16 bits and the dps limit in the low 16.
+         */
+        public final int value;
+
+        Command(long time, CommandType type, int ports, int value) {
+            this.time = time;
+            this.type = type;
+            this.ports = ports;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Command)) {
+                return false;
+            }
+            Command other = (Command) obj;
+            return time == other.time && type == other.type && ports == other.ports && value == other.value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(time, type, ports, value);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.6fs %s ports=%x %d", time / 1e9, type, ports, value);
+        }
+    }
+
+    private final List<TelemetryLogReader.Record> records;
+    /**
+     * The time of each record into the run.
+     */
+    private final long[] times;
+    private final VirtualClock clock;
+    private final long clockStart;
+    private long readNanos;
+
+    private final List<Command> commands = new ArrayList<>();
+    private final Motor[] motors = new Motor[MOTOR_PORTS.length];
+    private final int[] encoderOffsets = new int[MOTOR_PORTS.length];
+    private final Sensor[] sensors = new Sensor[SENSOR_PORTS.length];
+    private final byte[][] sensorFrames = new byte[SENSOR_PORTS.length][];
+    private int cursor;
+
+    /**
+     * Replay a recorded run, starting now on the clock.
+     *
+     * @param records the records of the run, oldest first.
+     * @param clock the clock of the code under test.
+     */
+    public ReplayBrickPi(List<TelemetryLogReader.Record> records, VirtualClock clock) {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to replay");
+        }
+        this.records = records;
+        this.clock = clock;
+        this.clockStart = clock.nanoTime();
+        times = new long[records.size()];
+        long transfers = 0;
+        long busy = 0;
+        TelemetryLogReader.Record previous = records.get(0);
+        for (int i = 0; i < times.length; i++) {
+            TelemetryLogReader.Record record = records.get(i);
+            if (i > 0) {
+                long step = record.nanoTime - previous.nanoTime;
+                if (step < 0) {
+                    // a log reopened by a later process, nanoTime has a new origin
+                    step = Math.max(0, (record.epochMicros - previous.epochMicros) * 1000);
+                }
+                times[i] = times[i - 1] + step;
+            }
+            int ports = 0;
+            for (int p = 0; p < MOTOR_PORTS.length; p++) {
+                ports += record.motorValid[p] ? 1 : 0;
+            }
+            for (int p = 0; p < SENSOR_PORTS.length; p++) {
+                ports += record.sensorValid[p] ? 1 : 0;
+            }
+            if (ports > 0) {
+                transfers += ports;
+                busy += record.duration;
+            }
+            previous = record;
+        }
+        readNanos = transfers == 0 ? 0 : busy / transfers;
+    }
+
+    /**
+     * Replay a telemetry log.
+     *
+     * @param file the log.
+     * @param clock the clock of the code under test.
+     * @return the replay, starting now on the clock.
+     * @throws IOException if the log can't be read.
+     */
+    public static ReplayBrickPi open(Path file, VirtualClock clock) throws IOException {
+        return new ReplayBrickPi(TelemetryLogReader.read(file), clock);
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns the length of the recorded run in nanoseconds.
+     */
+    public long getDuration() {
+        return times[times.length - 1];
+    }
+
+    /**
+     * Returns the time into the run in nanoseconds.
+     */
+    public long getTime() {
+        return clock.nanoTime() - clockStart;
+    }
+
+    /**
+     * Whether the clock has passed the end of the recording.
+     */
+    public boolean isFinished() {
+        return getTime() > getDuration();
+    }
+
+    /**
+     * Returns the time a single read moves the clock on, by default the mean
+     * time of a transfer in the recording.
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    public void setReadNanos(long readNanos) {
+        this.readNanos = readNanos;
+    }
+
+    /**
+     * Returns the commands issued so far, oldest first.
+     */
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * Returns the record current at the clock time, moving the clock on by
+     * the given time for the read.
+     */
+    private TelemetryLogReader.Record read(long nanos) throws EOFException {
+        long time = getTime();
+        if (time > getDuration()) {
+            throw new EOFException("End of the recording at " + getDuration() / 1e9 + "s");
+        }
+        // the clock only moves forward, so this is nearly always a step or two
+        while (cursor + 1 < times.length && times[cursor + 1] <= time) {
+            cursor++;
+        }
+        clock.advance(nanos);
+        return records.get(cursor);
+    }
+
+    private void record(CommandType type, int ports, int value) {
+        commands.add(new Command(getTime(), type, ports, value));
+    }
+
+    private int mask(MotorPort[] motorPorts) throws IOException {
+        int mask = 0;
+        for (MotorPort port : motorPorts) {
+            if (motors[port.ordinal()] == null) {
+                throw new IOException("Motor not initialize");
+            }
+            mask |= port.getPort();
+        }
+        return mask;
+    }
+
+    @Override
+    public void initializeMotor(MotorPort motorPort, Motor motor) {
+        motors[motorPort.ordinal()] = motor;
+        record(CommandType.INITIALIZE_MOTOR, motorPort.getPort(), motor.getDirection().ordinal());
+    }
+
+    @Override
+    public void setMotor(MotorPort[] motorPort, int power) throws IOException {
+        record(CommandType.SET_MOTOR, mask(motorPort), power);
+    }
+
+    @Override
+    public void setMotorPosition(MotorPort[] motorPort, int position) throws IOException {
+        record(CommandType.SET_MOTOR_POSITION, mask(motorPort), position);
+    }
+
+    @Override
+    public void setMotorPositionRelative(MotorPort[] motorPort, int degrees) throws IOException {
+        record(CommandType.SET_MOTOR_POSITION_RELATIVE, mask(motorPort), degrees);
+    }
+
+    @Override
+    public void setMotorEncoderOffset(MotorPort[] motorPort, int offset) throws IOException {
+        record(CommandType.SET_MOTOR_ENCODER_OFFSET, mask(motorPort), offset);
+        for (MotorPort port : motorPort) {
+            encoderOffsets[port.ordinal()] += offset;
+        }
+    }
+
+    @Override
+    public void setMotorDps(MotorPort[] motorPort, int dps) throws IOException {
+        record(CommandType.SET_MOTOR_DPS, mask(motorPort), dps);
+    }
+
+    @Override
+    public void setMotorPositionKp(MotorPort[] motorPort, int kp) throws IOException {
+        record(CommandType.SET_MOTOR_POSITION_KP, mask(motorPort), kp);
+    }
+
+    @Override
+    public void setMotorPositionKd(MotorPort[] motorPort, int kd) throws IOException {
+        record(CommandType.SET_MOTOR_POSITION_KD, mask(motorPort), kd);
+    }
+
+    @Override
+    public void setMotorDpsKp(MotorPort[] motorPort, int kp) throws IOException {
+        record(CommandType.SET_MOTOR_DPS_KP, mask(motorPort), kp);
+    }
+
+    @Override
+    public void setMotorDpsKd(MotorPort[] motorPort, int kd) throws IOException {
+        record(CommandType.SET_MOTOR_DPS_KD, mask(motorPort), kd);
+    }
+
+    @Override
+    public void setMotorLimits(MotorPort[] motorPort, int power, int dps) throws IOException {
+        record(CommandType.SET_MOTOR_LIMITS, mask(motorPort), (power << 16) | (dps & 0xFFFF));
+    }
+
+    @Override
+    public void setMotors(MotorBatch batch) throws IOException {
+        // one command per port, all at the same time
+        for (MotorPort port : MotorPort.values()) {
+            CommandType type;
+            switch (batch.getTarget(port)) {
+                case POWER:
+                    type = CommandType.SET_MOTOR;
+                    break;
+                case DPS:
+                    type = CommandType.SET_MOTOR_DPS;
+                    break;
+                case POSITION:
+                    type = CommandType.SET_MOTOR_POSITION;
+                    break;
+                case RELATIVE:
+                    type = CommandType.SET_MOTOR_POSITION_RELATIVE;
+                    break;
+                default:
+                    continue;
+            }
+            record(type, mask(new MotorPort[] { port }), batch.getValue(port));
+        }
+    }
+
+    @Override
+    public void setSensor(Sensor sensor, SensorPort port) throws IOException {
+        record(CommandType.SET_SENSOR, port.getPort(), sensor == null ? 0 : sensor.getSensorTypeEnum().getInt());
+        sensors[port.ordinal()] = sensor;
+        sensorFrames[port.ordinal()] = sensor == null ? null
+                : new byte[BrickPiCodec.HEADER_SIZE + sensor.getSensorTypeEnum().getPayloadSize()];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Sensor> T getSensor(SensorPort port) throws IOException {
+        Sensor sensor = sensors[port.ordinal()];
+        if (sensor == null) {
+            throw new IOException("Sensor not initialized on " + port);
+        }
+        if (!replaySensor(read(readNanos), port, sensor)) {
+            throw new IOException("Sensor " + port + " not read at " + getTime() / 1e9 + "s of the recording");
+        }
+        return (T) sensor;
+    }
+
+    /**
+     * Pass a recorded sensor read to the sensor.
+     *
+     * @return false if the sensor was not read in the record.
+     */
+    private boolean replaySensor(TelemetryLogReader.Record record, SensorPort port, Sensor sensor)
+            throws IOException {
+        int index = port.ordinal();
+        if (!record.sensorValid[index]) {
+            return false;
+        }
+        byte[] frame = sensorFrames[index];
+        BrickPiCodec.encodeSensorResponse(frame, record.sensorType[index], record.sensorState[index],
+                record.sensorRaw[index], sensor.getSensorTypeEnum().getPayloadSize() - 2);
+        sensor.processResult(frame);
+        return true;
+    }
+
+    @Override
+    public int getMotorEncoder(MotorPort motorPort) throws IOException {
+        TelemetryLogReader.Record record = read(readNanos);
+        return record.motorPosition[motorPort.ordinal()] - encoderOffsets[motorPort.ordinal()];
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort) throws IOException {
+        return getMotorStatus(motorPort, new MotorStatus());
+    }
+
+    @Override
+    public MotorStatus getMotorStatus(MotorPort motorPort, MotorStatus motorStatus) throws IOException {
+        replayMotor(read(readNanos), motorPort, motorStatus);
+        return motorStatus;
+    }
+
+    private void replayMotor(TelemetryLogReader.Record record, MotorPort port, MotorStatus status) {
+        int index = port.ordinal();
+        status.state = record.motorState[index];
+        status.power = record.motorPower[index];
+        status.position = record.motorPosition[index] - encoderOffsets[index];
+        status.dps = record.motorDps[index];
+    }
+
+    /**
+     * Serve a sweep from the current record, moving the clock on by the
+     * recorded duration of the sweep. Pending powers are recorded as
+     * SET_MOTOR commands.
+     */
+    @Override
+    public PortSweep sweep(PortSweep sweep) throws IOException {
+        for (SensorPort port : SENSOR_PORTS) {
+            if (sweep.isSensorRead(port) && sensors[port.ordinal()] == null) {
+                throw new IOException("Sensor not initialized on " + port);
+            }
+        }
+        sweep.start(clock.nanoTime());
+        for (MotorPort port : MOTOR_PORTS) {
+            if (sweep.isMotorPowerPending(port)) {
+                record(CommandType.SET_MOTOR, mask(new MotorPort[] { port }), sweep.getMotorPower(port));
+                sweep.powerSent(port);
+            }
+        }
+        TelemetryLogReader.Record record = read(0);
+        clock.advance(record.duration);
+        for (SensorPort port : SENSOR_PORTS) {
+            if (sweep.isSensorRead(port)) {
+                Sensor sensor = sensors[port.ordinal()];
+                sweep.sensorRead(port, sensor, replaySensor(record, port, sensor));
+            }
+        }
+        for (MotorPort port : MOTOR_PORTS) {
+            if (sweep.isMotorRead(port)) {
+                replayMotor(record, port, sweep.getMotorStatus(port));
+                sweep.motorRead(port, record.motorValid[port.ordinal()]);
+            }
+        }
+        sweep.end(clock.nanoTime());
+        return sweep;
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.sim;
+
+import java.util.Arrays;
+
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.sensors.Sensor.SENSOR_STATE;
+
+/**
+ * An in-process simulation of the BrickPi firmware. It plugs in wherever a
+ * pi4j SpiDevice is expected, eg
+ * <code>new BrickPiSPI((byte)1, new SimulatedBrickPi(clock))</code>, and
+ * answers every BPSPI_MESSAGE_TYPE with the same framing as the board: the
+ * status 0xA5 in byte 3 and any reply data from byte 4.
+ *
+ * Each transfer costs the time taken to clock the frame out at the
+ * configured SPI rate plus a fixed per-transaction overhead. By default
+ * that time is added to a {@link VirtualClock}, so a run is limited only by
+ * the CPU; in real time mode the transfer spins for that long instead.
+ *
+ * The motors follow the commanded power, position or dps with a first order
+ * response and the encoders integrate the resulting speed. Sensor values
+ * are set by the test through {@link #setSensorValue(int, byte...)}.
+ *
+ * Frames are answered in place, the returned array is the array passed in.
+ */
+public class SimulatedBrickPi extends SimulatedSpiDevice {
+
+    /**
+     * The default SPI clock, as used by BrickPiCommunications.
+     */
+    public static final int DEFAULT_CLOCK_HZ = 500000;
+
+    /**
+     * The motor speed, in degrees per second, at full power.
+     */
+    public static final double MAX_DPS = 1050;
+
+    /**
+     * The time constant of the motor response, in seconds.
+     */
+    public static final double MOTOR_TIME_CONSTANT = 0.05;
+
+    /**
+     * Motor powers above this value float the motor.
+     */
+    public static final int MOTOR_FLOAT = 100;
+
+    /**
+     * The largest integration step in position mode, in seconds.
+     */
+    private static final double POSITION_STEP = 0.001;
+
+    private static final int MOTOR_COUNT = 4;
+    private static final int SENSOR_COUNT = 4;
+    private static final int MAX_SENSOR_VALUE = 32;
+
+    private static final int MODE_POWER = 0;
+    private static final int MODE_POSITION = 1;
+    private static final int MODE_DPS = 2;
+
+    private final VirtualClock clock;
+    private final long nanosPerByte;
+    private long transactionOverheadNanos;
+    private boolean realTime;
+
+    private int address;
+    private final byte[] id = new byte[16];
+    private String manufacturer = "Dexter Industries";
+    private String name = "BrickPi3";
+    private int hardwareVersion = 3002000;
+    private int firmwareVersion = 1004000;
+    private int led;
+    private int voltage3v3 = 3300;
+    private int voltage5v = 5000;
+    private int voltage9v = 9000;
+    private int voltageVcc = 8400;
+
+    private final int[] sensorType = new int[SENSOR_COUNT];
+    private final byte[][] sensorValue = new byte[SENSOR_COUNT][MAX_SENSOR_VALUE];
+    private final int[] sensorValueLength = new int[SENSOR_COUNT];
+
+    private final SimulatedMotor[] motors = new SimulatedMotor[MOTOR_COUNT];
+
+    private long lastUpdate;
+    private long transactions;
+    private long bytesTransferred;
+    private long busNanos;
+    private final long[] messageCounts = new long[BPSPI_MESSAGE_TYPE.values().length];
+
+    /**
+     * Create a simulated board at address 1 on a new virtual clock at the
+     * default SPI rate.
+     */
+    public SimulatedBrickPi() {
+        this(new VirtualClock());
+    }
+
+    /**
+     * Create a simulated board at address 1 at the default SPI rate.
+     *
+     * @param clock the clock to advance.
+     */
+    public SimulatedBrickPi(VirtualClock clock) {
+        this(clock, 1, DEFAULT_CLOCK_HZ);
+    }
+
+    /**
+     * Create a simulated board.
+     *
+     * @param clock the clock to advance.
+     * @param address the address the board answers to.
+     * @param clockHz the SPI clock rate used to model the transfer time.
+     */
+    public SimulatedBrickPi(VirtualClock clock, int address, int clockHz) {
+        this.clock = clock;
+        this.address = address;
+        this.nanosPerByte = 8L * 1000000000L / clockHz;
+        this.lastUpdate = clock.nanoTime();
+        for (int i = 0; i < MOTOR_COUNT; i++) {
+            motors[i] = new SimulatedMotor();
+        }
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (byte) (address * 16 + i);
+        }
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the fixed time added to every transaction, eg for chip select
+     * turnaround and the ioctl.
+     *
+     * @param transactionOverheadNanos the overhead in nanoseconds.
+     */
+    public synchronized void setTransactionOverheadNanos(long transactionOverheadNanos) {
+        this.transactionOverheadNanos = transactionOverheadNanos;
+    }
+
+    /**
+     * In real time mode each transfer spins for the modelled time against
+     * System.nanoTime as well as advancing the virtual clock.
+     *
+     * @param realTime true to spin for the transfer time.
+     */
+    public synchronized void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    public synchronized int getAddress() {
+        return address;
+    }
+
+    public synchronized int getLed() {
+        return led;
+    }
+
+    public synchronized void setVersions(int hardwareVersion, int firmwareVersion) {
+        this.hardwareVersion = hardwareVersion;
+        this.firmwareVersion = firmwareVersion;
+    }
+
+    /**
+     * Set the voltages reported by the GET_VOLTAGE messages, in millivolts.
+     */
+    public synchronized void setVoltages(int voltage3v3, int voltage5v, int voltage9v, int voltageVcc) {
+        this.voltage3v3 = voltage3v3;
+        this.voltage5v = voltage5v;
+        this.voltage9v = voltage9v;
+        this.voltageVcc = voltageVcc;
+    }
+
+    /**
+     * Set the value bytes returned for a sensor port, following the type and
+     * state bytes.
+     *
+     * @param port the port index, 0-3.
+     * @param value the raw value bytes.
+     */
+    public synchronized void setSensorValue(int port, byte... value) {
+        int length = Math.min(value.length, MAX_SENSOR_VALUE);
+        System.arraycopy(value, 0, sensorValue[port], 0, length);
+        sensorValueLength[port] = length;
+    }
+
+    /**
+     * Returns the sensor type last configured on the port, zero if none.
+     *
+     * @param port the port index, 0-3.
+     */
+    public synchronized int getSensorType(int port) {
+        return sensorType[port];
+    }
+
+    /**
+     * Returns the simulated encoder reading of the motor, as the board
+     * would report it.
+     *
+     * @param port the motor index, 0-3.
+     */
+    public synchronized int getMotorEncoder(int port) {
+        update();
+        return motors[port].encoder();
+    }
+
+    /**
+     * Returns the simulated speed of the motor in degrees per second.
+     *
+     * @param port the motor index, 0-3.
+     */
+    public synchronized double getMotorDps(int port) {
+        update();
+        return motors[port].dps;
+    }
+
+    /**
+     * Returns the clock time at which the motor last took a power,
+     * position or speed command, zero if it has had none.
+     *
+     * @param port the motor index, 0-3.
+     */
+    public synchronized long getMotorCommandTime(int port) {
+        return motors[port].commandTime;
+    }
+
+    public synchronized long getTransactions() {
+        return transactions;
+    }
+
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Returns the total modelled bus time of all transfers.
+     */
+    public synchronized long getBusNanos() {
+        return busNanos;
+    }
+
+    /**
+     * Returns the number of transactions of the given type.
+     */
+    public synchronized long getMessageCount(BPSPI_MESSAGE_TYPE type) {
+        return messageCounts[type.ordinal()];
+    }
+
+    /**
+     * Process one frame in place.
+     *
+     * @param frame the request, replaced by the response.
+     */
+    @Override
+    protected synchronized void transfer(byte[] frame) {
+        long cost = nanosPerByte * frame.length + transactionOverheadNanos;
+        if (realTime) {
+            long end = System.nanoTime() + cost;
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+        }
+        clock.advance(cost);
+        transactions++;
+        bytesTransferred += frame.length;
+        busNanos += cost;
+        update();
+
+        if (frame.length < 4) {
+            Arrays.fill(frame, (byte) 0);
+            return;
+        }
+        int target = frame[0] & 0xFF;
+        BPSPI_MESSAGE_TYPE type = BPSPI_MESSAGE_TYPE.fromInt(frame[1] & 0xFF);
+        if ((target != address && target != 0) || type == null) {
+            // nobody answers
+            Arrays.fill(frame, (byte) 0);
+            return;
+        }
+        messageCounts[type.ordinal()]++;
+        respond(type, frame);
+        frame[0] = 0;
+        frame[1] = 0;
+        frame[2] = 0;
+        frame[3] = (byte) 0xA5;
+    }
+
+    private void respond(BPSPI_MESSAGE_TYPE type, byte[] frame) {
+        int ports = frame[2] & 0x0F;
+        switch (type) {
+            case GET_MANUFACTURER:
+                putString(frame, manufacturer);
+                break;
+            case GET_NAME:
+                putString(frame, name);
+                break;
+            case GET_HARDWARE_VERSION:
+                putInt(frame, 4, hardwareVersion);
+                break;
+            case GET_FIRMWARE_VERSION:
+                putInt(frame, 4, firmwareVersion);
+                break;
+            case GET_ID:
+                System.arraycopy(id, 0, frame, 4, Math.min(id.length, frame.length - 4));
+                break;
+            case SET_LED:
+                led = frame[2];
+                break;
+            case GET_VOLTAGE_3V3:
+                putShort(frame, 4, voltage3v3);
+                break;
+            case GET_VOLTAGE_5V:
+                putShort(frame, 4, voltage5v);
+                break;
+            case GET_VOLTAGE_9V:
+                putShort(frame, 4, voltage9v);
+                break;
+            case GET_VOLTAGE_VCC:
+                putShort(frame, 4, voltageVcc);
+                break;
+            case SET_ADDRESS:
+                if (frame.length < 3 + id.length || matchesId(frame, 3)) {
+                    address = frame[2] & 0xFF;
+                }
+                break;
+            case SET_SENSOR_TYPE:
+                for (int i = 0; i < SENSOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        sensorType[i] = frame[3] & 0xFF;
+                    }
+                }
+                break;
+            case GET_SENSOR_1:
+            case GET_SENSOR_2:
+            case GET_SENSOR_3:
+            case GET_SENSOR_4:
+                putSensor(frame, type.getInt() - BPSPI_MESSAGE_TYPE.GET_SENSOR_1.getInt());
+                break;
+            case I2C_TRANSACT_1:
+            case I2C_TRANSACT_2:
+            case I2C_TRANSACT_3:
+            case I2C_TRANSACT_4:
+                // the read data comes back through GET_SENSOR, nothing to do
+                break;
+            case SET_MOTOR_POWER:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].mode = MODE_POWER;
+                        motors[i].power = frame[3];
+                        motors[i].commandTime = clock.nanoTime();
+                    }
+                }
+                break;
+            case SET_MOTOR_POSITION:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].mode = MODE_POSITION;
+                        motors[i].targetPosition = getInt(frame, 3) + motors[i].offset;
+                        motors[i].commandTime = clock.nanoTime();
+                    }
+                }
+                break;
+            case SET_MOTOR_POSITION_KP:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].positionKp = frame[3] & 0xFF;
+                    }
+                }
+                break;
+            case SET_MOTOR_POSITION_KD:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].positionKd = frame[3] & 0xFF;
+                    }
+                }
+                break;
+            case SET_MOTOR_DPS:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].mode = MODE_DPS;
+                        motors[i].targetDps = (short) getShort(frame, 3);
+                        motors[i].commandTime = clock.nanoTime();
+                    }
+                }
+                break;
+            case SET_MOTOR_DPS_KP:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].dpsKp = frame[3] & 0xFF;
+                    }
+                }
+                break;
+            case SET_MOTOR_DPS_KD:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].dpsKd = frame[3] & 0xFF;
+                    }
+                }
+                break;
+            case SET_MOTOR_LIMITS:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].powerLimit = frame[3] & 0xFF;
+                        motors[i].dpsLimit = frame.length > 5 ? getShort(frame, 4) : 0;
+                    }
+                }
+                break;
+            case OFFSET_MOTOR_ENCODER:
+                for (int i = 0; i < MOTOR_COUNT; i++) {
+                    if ((ports & (1 << i)) != 0) {
+                        motors[i].offset += getInt(frame, 3);
+                    }
+                }
+                break;
+            case GET_MOTOR_A_ENCODER:
+            case GET_MOTOR_B_ENCODER:
+            case GET_MOTOR_C_ENCODER:
+            case GET_MOTOR_D_ENCODER:
+                putInt(frame, 4, motors[type.getInt() - BPSPI_MESSAGE_TYPE.GET_MOTOR_A_ENCODER.getInt()].encoder());
+                break;
+            case GET_MOTOR_A_STATUS:
+            case GET_MOTOR_B_STATUS:
+            case GET_MOTOR_C_STATUS:
+            case GET_MOTOR_D_STATUS:
+                SimulatedMotor motor = motors[type.getInt() - BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS.getInt()];
+                putByte(frame, 4, 0);
+                putByte(frame, 5, motor.reportedPower());
+                putInt(frame, 6, motor.encoder());
+                putShort(frame, 10, (int) Math.round(motor.dps));
+                break;
+            case NONE:
+            default:
+                break;
+        }
+    }
+
+    private void putSensor(byte[] frame, int port) {
+        putByte(frame, 4, sensorType[port]);
+        putByte(frame, 5, sensorType[port] == 0
+                ? SENSOR_STATE.NOT_CONFIGURED.getInt() : SENSOR_STATE.VALID_DATA.getInt());
+        int length = Math.min(sensorValueLength[port], frame.length - 6);
+        if (length > 0) {
+            System.arraycopy(sensorValue[port], 0, frame, 6, length);
+        }
+    }
+
+    private boolean matchesId(byte[] frame, int offset) {
+        boolean zero = true;
+        boolean match = true;
+        for (int i = 0; i < id.length; i++) {
+            zero &= frame[offset + i] == 0;
+            match &= frame[offset + i] == id[i];
+        }
+        return zero || match;
+    }
+
+    /**
+     * Bring the motors up to the current clock.
+     */
+    private void update() {
+        long now = clock.nanoTime();
+        long elapsed = now - lastUpdate;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastUpdate = now;
+        double dt = elapsed / 1e9;
+        for (SimulatedMotor motor : motors) {
+            motor.update(dt);
+        }
+    }
+
+    private static void putString(byte[] frame, String value) {
+        for (int i = 0; i < value.length() && 4 + i < frame.length; i++) {
+            frame[4 + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void putByte(byte[] frame, int offset, int value) {
+        if (offset < frame.length) {
+            frame[offset] = (byte) value;
+        }
+    }
+
+    private static void putShort(byte[] frame, int offset, int value) {
+        putByte(frame, offset, value >> 8);
+        putByte(frame, offset + 1, value);
+    }
+
+    private static void putInt(byte[] frame, int offset, int value) {
+        putShort(frame, offset, value >> 16);
+        putShort(frame, offset + 2, value);
+    }
+
+    private static int getShort(byte[] frame, int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 2; i++) {
+            value = (value << 8) | (i < frame.length ? frame[i] & 0xFF : 0);
+        }
+        return value;
+    }
+
+    private static int getInt(byte[] frame, int offset) {
+        return (getShort(frame, offset) << 16) | getShort(frame, offset + 2);
+    }
+
+    /**
+     * The state of one simulated motor.
+     */
+    private static class SimulatedMotor {
+
+        int mode = MODE_POWER;
+        int power;
+        int targetPosition;
+        int targetDps;
+        int positionKp = 25;
+        int positionKd = 70;
+        int dpsKp = 25;
+        int dpsKd;
+        int powerLimit;
+        int dpsLimit;
+        int offset;
+        // when the last power, position or speed command arrived
+        long commandTime;
+
+        double position;
+        double dps;
+
+        int encoder() {
+            return (int) Math.round(position) - offset;
+        }
+
+        int reportedPower() {
+            if (mode == MODE_POWER) {
+                return power;
+            }
+            return (int) Math.round(dps * 100 / MAX_DPS);
+        }
+
+        double maxDps() {
+            double max = MAX_DPS;
+            if (powerLimit > 0 && powerLimit < 100) {
+                max = MAX_DPS * powerLimit / 100;
+            }
+            if (dpsLimit > 0 && dpsLimit < max) {
+                max = dpsLimit;
+            }
+            return max;
+        }
+
+        void update(double dt) {
+            if (mode != MODE_POSITION) {
+                step(dt);
+                return;
+            }
+            // the target speed depends on the position, so take small steps
+            double maxStep = Math.max(POSITION_STEP, dt / 1000);
+            while (dt > 0 && (position != targetPosition || dps != 0)) {
+                double stepTime = Math.min(dt, maxStep);
+                step(stepTime);
+                dt -= stepTime;
+            }
+        }
+
+        private void step(double dt) {
+            double max = maxDps();
+            double target;
+            boolean floating = false;
+            switch (mode) {
+                case MODE_POSITION:
+                    // proportional approach, scaled so the default gain
+                    // closes the gap with a 0.1s time constant
+                    target = (targetPosition - position) * 10.0 * positionKp / 25;
+                    break;
+                case MODE_DPS:
+                    target = targetDps;
+                    break;
+                default:
+                    floating = power > MOTOR_FLOAT || power < -MOTOR_FLOAT;
+                    target = floating ? 0 : power * MAX_DPS / 100;
+                    break;
+            }
+            target = Math.max(-max, Math.min(max, target));
+            double tau = floating ? MOTOR_TIME_CONSTANT * 4 : MOTOR_TIME_CONSTANT;
+            // exact solution of the first order response over the step
+            double decay = Math.exp(-dt / tau);
+            double moved = target * dt + (dps - target) * tau * (1 - decay);
+            dps = target + (dps - target) * decay;
+            if (mode == MODE_POSITION) {
+                double remaining = targetPosition - position;
+                if (Math.abs(remaining) < 0.5 
+                        || (Math.abs(moved) >= Math.abs(remaining) && Math.signum(moved) == Math.signum(remaining))) {
+                    // reached the target within this step, hold it
+                    position = targetPosition;
+                    dps = 0;
+                    return;
+                }
+            }
+            position += moved;
+        }
+    }
+}
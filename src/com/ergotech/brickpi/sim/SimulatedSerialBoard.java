@@ -0,0 +1,130 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.sim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ergotech.brickpi.serial.SerialFrameDecoder;
+import com.ergotech.brickpi.serial.SerialFraming;
+import com.pi4j.io.spi.SpiDevice;
+
+/**
+ * Serves a simulated board on the far end of a serial line, eg one side of
+ * a pseudo-terminal pair, so that a SerialLink can be tested end to end.
+ * Each request is answered as soon as it has been decoded, in order.
+ */
+public class SimulatedSerialBoard implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedSerialBoard.class.getName());
+
+    private final SpiDevice board;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(4096);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(4096);
+    private final byte[][] frames = new byte[SerialFraming.MAX_FRAME + 1][];
+    private final Decoder decoder = new Decoder();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long requests;
+
+    /**
+     * Start serving a board.
+     *
+     * @param board the board, eg a SimulatedBrickPi.
+     * @param in the channel the requests arrive on.
+     * @param out the channel the responses are written to.
+     */
+    public SimulatedSerialBoard(SpiDevice board, ReadableByteChannel in, WritableByteChannel out) {
+        this.board = board;
+        this.in = in;
+        this.out = out;
+        thread = new Thread(this::serve, "BrickPi Serial Board");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                receiveBuffer.clear();
+                if (in.read(receiveBuffer) < 0) {
+                    break;
+                }
+                receiveBuffer.flip();
+                sendBuffer.clear();
+                decoder.feed(receiveBuffer);
+                sendBuffer.flip();
+                while (sendBuffer.hasRemaining()) {
+                    out.write(sendBuffer);
+                }
+            }
+        } catch (IOException ex) {
+            if (running) {
+                LOGGER.error("Serial board failed", ex);
+            }
+        }
+    }
+
+    private final class Decoder extends SerialFrameDecoder {
+
+        @Override
+        protected byte[] frameFor(int sequence, int length) {
+            if (frames[length] == null) {
+                frames[length] = new byte[length];
+            }
+            return frames[length];
+        }
+
+        @Override
+        protected void frameReceived(int sequence, byte[] frame, int length, boolean ok) {
+            if (!ok) {
+                // no answer, the host times out
+                return;
+            }
+            try {
+                byte[] response = board.write(frame);
+                if (sendBuffer.remaining() < length + SerialFraming.OVERHEAD) {
+                    sendBuffer.flip();
+                    while (sendBuffer.hasRemaining()) {
+                        out.write(sendBuffer);
+                    }
+                    sendBuffer.clear();
+                }
+                SerialFraming.encode(sendBuffer, sequence, response, length);
+                requests++;
+            } catch (IOException ex) {
+                LOGGER.error(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests answered.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
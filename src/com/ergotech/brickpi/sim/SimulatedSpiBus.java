@@ -0,0 +1,98 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.sim;
+
+import java.util.Arrays;
+
+/**
+ * Several simulated boards stacked on one chip-select. Each frame is
+ * delivered to the board whose address is in byte 0, or to every board for
+ * address 0, one frame at a time as on the real bus. Pass the same bus to
+ * a BrickPiSPI per address:
+ * <pre>
+ * SimulatedSpiBus bus = new SimulatedSpiBus(clock, 1, 2);
+ * BrickPiSPI first = new BrickPiSPI((byte)1, bus);
+ * BrickPiSPI second = new BrickPiSPI((byte)2, bus);
+ * </pre>
+ */
+public class SimulatedSpiBus extends SimulatedSpiDevice {
+
+    private final SimulatedBrickPi[] boards;
+
+    /**
+     * Create a bus with a board at each address, all on one clock, at the
+     * default SPI rate.
+     *
+     * @param clock the clock the boards advance.
+     * @param addresses the board addresses.
+     */
+    public SimulatedSpiBus(VirtualClock clock, int... addresses) {
+        boards = new SimulatedBrickPi[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            boards[i] = new SimulatedBrickPi(clock, addresses[i], SimulatedBrickPi.DEFAULT_CLOCK_HZ);
+        }
+    }
+
+    /**
+     * Create a bus of existing boards.
+     *
+     * @param boards the boards, each with a distinct address.
+     */
+    public SimulatedSpiBus(SimulatedBrickPi... boards) {
+        this.boards = boards.clone();
+    }
+
+    /**
+     * Returns the board at an address, or null.
+     */
+    public SimulatedBrickPi getBoard(int address) {
+        for (SimulatedBrickPi board : boards) {
+            if (board.getAddress() == address) {
+                return board;
+            }
+        }
+        return null;
+    }
+
+    public int getBoardCount() {
+        return boards.length;
+    }
+
+    /**
+     * Returns the total transactions seen by all of the boards.
+     */
+    public long getTransactions() {
+        long transactions = 0;
+        for (SimulatedBrickPi board : boards) {
+            transactions += board.getTransactions();
+        }
+        return transactions;
+    }
+
+    @Override
+    protected synchronized void transfer(byte[] frame) {
+        int address = frame.length > 0 ? frame[0] & 0xFF : -1;
+        if (address == 0) {
+            // everybody hears a broadcast, the first board answers
+            byte[] request = frame.clone();
+            for (int i = boards.length - 1; i >= 0; i--) {
+                System.arraycopy(request, 0, frame, 0, frame.length);
+                boards[i].transfer(frame);
+            }
+            return;
+        }
+        SimulatedBrickPi board = getBoard(address);
+        if (board == null) {
+            // nobody answers
+            Arrays.fill(frame, (byte) 0);
+            return;
+        }
+        board.transfer(frame);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.pi4j.io.spi.SpiDevice;
+
+/**
+ * The pi4j SpiDevice overloads of the simulated devices, all reduced to an
+ * in-place {@link #transfer(byte[])}. {@link #write(byte...)} answers in the
+ * array passed in; the others copy.
+ */
+public abstract class SimulatedSpiDevice implements SpiDevice {
+
+    /**
+     * Process one frame in place.
+     *
+     * @param frame the request, replaced by the response.
+     */
+    protected abstract void transfer(byte[] frame);
+
+    @Override
+    public byte[] write(byte... data) throws IOException {
+        transfer(data);
+        return data;
+    }
+
+    @Override
+    public byte[] write(byte[] data, int start, int length) throws IOException {
+        length = Math.min(data.length - start, length);
+        byte[] buffer = Arrays.copyOfRange(data, start, start + length);
+        transfer(buffer);
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer write(ByteBuffer data) throws IOException {
+        byte[] buffer = new byte[data.remaining()];
+        data.get(buffer);
+        transfer(buffer);
+        return ByteBuffer.wrap(buffer);
+    }
+
+    @Override
+    public String write(String data, Charset charset) throws IOException {
+        byte[] buffer = data.getBytes(charset);
+        transfer(buffer);
+        return new String(buffer, charset);
+    }
+
+    @Override
+    public String write(String data, String charset) throws IOException {
+        return write(data, Charset.forName(charset));
+    }
+
+    @Override
+    public byte[] write(InputStream input) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[MAX_SUPPORTED_BYTES];
+        int read;
+        while (buffer.size() < MAX_SUPPORTED_BYTES && (read = input.read(chunk, 0, MAX_SUPPORTED_BYTES - buffer.size())) > 0) {
+            buffer.write(chunk, 0, read);
+        }
+        return write(buffer.toByteArray());
+    }
+
+    @Override
+    public int write(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = write(input);
+        output.write(buffer);
+        return buffer.length;
+    }
+
+    @Override
+    public short[] write(short[] data, int start, int length) throws IOException {
+        length = Math.min(data.length - start, length);
+        byte[] buffer = new byte[length];
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) data[start + i];
+        }
+        transfer(buffer);
+        short[] result = new short[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (short) (buffer[i] & 0xFF);
+        }
+        return result;
+    }
+
+    @Override
+    public short[] write(short... data) throws IOException {
+        return write(data, 0, data.length);
+    }
+}
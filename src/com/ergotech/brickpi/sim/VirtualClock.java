@@ -0,0 +1,68 @@
+/*
+ *  Copyright ErgoTech Systems, Inc 2014
+ *
+ * This file is made available online through a Creative Commons Attribution-ShareAlike 3.0  license.
+ * (http://creativecommons.org/licenses/by-sa/3.0/)
+ *
+ *  This is a library of functions for the RPi to communicate with the BrickPi.
+ */
+package com.ergotech.brickpi.sim;
+
+/**
+ * A nanosecond clock that only moves when it is advanced. The simulator
+ * advances it by the modelled time of each transfer, and code under test
+ * advances it in place of sleeping, so hours of robot time can run in
+ * seconds.
+ */
+public class VirtualClock {
+
+    private volatile long nanoTime;
+
+    /**
+     * Create a clock starting at zero.
+     */
+    public VirtualClock() {
+        this(0);
+    }
+
+    /**
+     * Create a clock starting at the given time.
+     *
+     * @param nanoTime the initial time in nanoseconds.
+     */
+    public VirtualClock(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Returns the current virtual time, the equivalent of System.nanoTime.
+     *
+     * @return the current time in nanoseconds.
+     */
+    public long nanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * Move the clock forward.
+     *
+     * @param nanos the number of nanoseconds to advance. Negative values are
+     * ignored.
+     */
+    public synchronized void advance(long nanos) {
+        if (nanos > 0) {
+            nanoTime += nanos;
+        }
+    }
+
+    /**
+     * Move the clock forward to the given time, if it is in the future.
+     *
+     * @param nanoTime the new time in nanoseconds.
+     */
+    public synchronized void advanceTo(long nanoTime) {
+        if (nanoTime > this.nanoTime) {
+            this.nanoTime = nanoTime;
+        }
+    }
+}
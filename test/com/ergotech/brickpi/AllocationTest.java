@@ -0,0 +1,69 @@
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+
+/**
+ * AllocationTest runs the steady state SPI transaction path against a
+ * loopback device and reports the bytes allocated per transaction once
+ * warmed up. It exits with a non-zero status if anything was allocated.
+ *
+ */
+public class AllocationTest {
+
+	public AllocationTest() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("AllocationTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = 100000;
+		if (args != null && args.length > 0) {
+			loop = Integer.parseInt(args[0]);
+		}
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, new LoopbackSpiDevice());
+		brickPi.initializeMotor(MotorPort.MA, new Motor());
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S1);
+		MotorPort[] ports = new MotorPort[] {MotorPort.MA};
+
+		// warm up, lets the frames be allocated and the JIT settle
+		runTransactions(brickPi, ports, loop);
+
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		// the JIT may still allocate once while it finishes compiling, so 
+		// take the best of a few rounds.
+		long allocated = Long.MAX_VALUE;
+		int transactions = 0;
+		for (int round = 0; round < 5; round++) {
+			long before = threads.getCurrentThreadAllocatedBytes();
+			transactions = runTransactions(brickPi, ports, loop);
+			allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+		}
+
+		System.out.println("transactions=" + transactions + " allocated=" + allocated
+				+ " bytes/transaction=" + ((double)allocated / transactions));
+		if (allocated != 0) {
+			System.exit(1);
+		}
+	}
+
+	private static int runTransactions(BrickPiSPI brickPi, MotorPort[] ports, int loop) throws IOException {
+		int checksum = 0;
+		for (int i = 0; i < loop; i++) {
+			brickPi.setMotor(ports, i % 100);
+			brickPi.setMotorPosition(ports, i);
+			checksum += brickPi.getMotorEncoder(MotorPort.MA);
+			checksum += brickPi.<EV3TouchSensor>getSensor(SensorPort.S1).getValue();
+		}
+		if (checksum == 42) {
+			System.out.println(checksum); // keep the reads live
+		}
+		return loop * 4;
+	}
+}
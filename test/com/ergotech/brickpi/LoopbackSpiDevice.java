@@ -0,0 +1,149 @@
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.pi4j.io.spi.SpiDevice;
+
+/**
+ * Answers every frame in place with the BrickPi success status. An optional
+ * busy wait per transfer stands in for the bus time, either fixed or as the
+ * frame's bytes at an SPI clock rate plus a fixed overhead. The span of one
+ * thread's transfers, from the start of its first to the end of its last,
+ * can be measured while other threads share the device, along with the
+ * number of those transfers and the bus time they were charged.
+ */
+public class LoopbackSpiDevice implements SpiDevice {
+
+	private final long transferNanos;
+	private final long nanosPerByte;
+	private volatile Thread spanThread;
+	private long spanStart;
+	private long spanEnd;
+	private long spanBusNanos;
+	private int spanFrames;
+
+	public LoopbackSpiDevice() {
+		this(0);
+	}
+
+	/**
+	 * @param transferNanos the time to spin for each transfer.
+	 */
+	public LoopbackSpiDevice(long transferNanos) {
+		this(transferNanos, 0);
+	}
+
+	/**
+	 * @param overheadNanos the time to spin for each transfer, on top of
+	 * the bytes.
+	 * @param clockHz the SPI clock the bytes are sent at, 0 for no byte
+	 * time.
+	 */
+	public LoopbackSpiDevice(long overheadNanos, int clockHz) {
+		this.transferNanos = overheadNanos;
+		this.nanosPerByte = clockHz == 0 ? 0 : 8L * 1000000000L / clockHz;
+	}
+
+	/**
+	 * Start measuring the span of the calling thread's transfers.
+	 */
+	public void startSpan() {
+		spanStart = 0;
+		spanEnd = 0;
+		spanBusNanos = 0;
+		spanFrames = 0;
+		spanThread = Thread.currentThread();
+	}
+
+	/**
+	 * Returns the time from the start of the calling thread's first transfer
+	 * since startSpan to the end of its last.
+	 */
+	public long getSpanNanos() {
+		return spanEnd - spanStart;
+	}
+
+	/**
+	 * Returns the bus time charged to the calling thread's transfers since
+	 * startSpan.
+	 */
+	public long getSpanBusNanos() {
+		return spanBusNanos;
+	}
+
+	/**
+	 * Returns the number of the calling thread's transfers since startSpan.
+	 */
+	public int getSpanFrames() {
+		return spanFrames;
+	}
+
+	@Override
+	public byte[] write(byte... data) throws IOException {
+		long cost = transferNanos + nanosPerByte * data.length;
+		long start = System.nanoTime();
+		if (cost > 0) {
+			long end = start + cost;
+			while (System.nanoTime() < end) {
+				Thread.onSpinWait();
+			}
+		}
+		if (data.length > 3) {
+			data[3] = BrickPiCommunications.SPI_STATUS_OK;
+		}
+		if (spanThread == Thread.currentThread()) {
+			if (spanStart == 0) {
+				spanStart = start;
+			}
+			spanEnd = System.nanoTime();
+			spanBusNanos += cost;
+			spanFrames++;
+		}
+		return data;
+	}
+
+	@Override
+	public byte[] write(byte[] data, int start, int length) throws IOException {
+		return write(data);
+	}
+
+	@Override
+	public String write(String data, Charset charset) throws IOException {
+		throw new IOException("Not Implemented");
+	}
+
+	@Override
+	public String write(String data, String charset) throws IOException {
+		throw new IOException("Not Implemented");
+	}
+
+	@Override
+	public ByteBuffer write(ByteBuffer data) throws IOException {
+		write(data.array());
+		return data;
+	}
+
+	@Override
+	public byte[] write(InputStream input) throws IOException {
+		throw new IOException("Not Implemented");
+	}
+
+	@Override
+	public int write(InputStream input, OutputStream output) throws IOException {
+		throw new IOException("Not Implemented");
+	}
+
+	@Override
+	public short[] write(short[] data, int start, int length) throws IOException {
+		throw new IOException("Not Implemented");
+	}
+
+	@Override
+	public short[] write(short... data) throws IOException {
+		throw new IOException("Not Implemented");
+	}
+}
@@ -0,0 +1,183 @@
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * MotorBatchBenchmark starts four simulated motors together in several ways
+ * and reports, from the board's clock, the transactions, bus time and skew
+ * between the first and last motor to take its command. Sending each motor
+ * its own command, as setMotor used to, is compared with setMotor on all
+ * four, with MB mounted counter clockwise as on a differential drive, and
+ * with a batch of four different powers. Relative moves are compared one
+ * port at a time against one batch. It exits with a non-zero status if the
+ * motors given the same command do not start on the same tick or a batch
+ * takes more messages than it has distinct commands.
+ *
+ * Only equal values share a start. The skew of a differential drive given
+ * unequal powers, which get a message each, is reported separately.
+ *
+ */
+public class MotorBatchBenchmark {
+
+	private static final MotorPort[] PORTS = MotorPort.values();
+
+	public MotorBatchBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("MotorBatchBenchmark -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int failures = 0;
+
+		Board board = new Board(false);
+		board.begin();
+		for (MotorPort port : PORTS) {
+			board.brickPi.setMotor(new MotorPort[] { port }, 60);
+		}
+		board.report("one setMotor per port");
+
+		board = new Board(false);
+		board.begin();
+		board.brickPi.setMotor(PORTS, 60);
+		failures += board.check("setMotor all", 1, true);
+
+		// these have unequal values on the wire, so only the motors with
+		// equal values start together
+		System.out.println("unequal values, started a message apart:");
+		board = new Board(true);
+		board.begin();
+		board.brickPi.setMotor(PORTS, 60);
+		failures += board.check("setMotor all, MB reversed", 2, false);
+
+		board = new Board(true);
+		MotorBatch batch = new MotorBatch();
+		batch.setPower(MotorPort.MA, 60).setPower(MotorPort.MB, 60)
+				.setDps(MotorPort.MC, 300).setDps(MotorPort.MD, 300);
+		board.begin();
+		board.brickPi.setMotors(batch);
+		failures += board.check("batch of two powers and two speeds, MB reversed", 3, false);
+
+		board = new Board(false);
+		batch.clear().setPower(MotorPort.MA, 40).setPower(MotorPort.MB, 60)
+				.setPower(MotorPort.MC, -40).setPower(MotorPort.MD, 80);
+		board.begin();
+		board.brickPi.setMotors(batch);
+		failures += board.check("batch of four powers", 4, false);
+
+		board = new Board(false, MotorPort.MA, MotorPort.MB);
+		batch.clear().setPower(MotorPort.MA, 40).setPower(MotorPort.MB, 60);
+		board.begin();
+		board.brickPi.setMotors(batch);
+		failures += board.check("differential drive turning, MA 40 MB 60", 2, false);
+
+		System.out.println("relative moves:");
+		board = new Board(false);
+		board.begin();
+		for (MotorPort port : PORTS) {
+			board.brickPi.setMotorPositionRelative(new MotorPort[] { port }, 90);
+		}
+		board.report("one setMotorPositionRelative per port");
+		failures += board.checkPositions(90);
+
+		board = new Board(false);
+		board.begin();
+		board.brickPi.setMotorPositionRelative(PORTS, 90);
+		failures += board.check("setMotorPositionRelative all", 5, true);
+		failures += board.checkPositions(90);
+
+		board = new Board(false);
+		batch.clear().setPositionRelative(MotorPort.MA, 90).setPositionRelative(MotorPort.MB, 90)
+				.setPosition(MotorPort.MC, 90).setPositionRelative(MotorPort.MD, 90);
+		board.begin();
+		board.brickPi.setMotors(batch);
+		// three encoder reads, then MC's absolute 90 is the others' encoder
+		// plus 90 from rest, so all four share one message
+		failures += board.check("batch of relative and absolute positions", 4, true);
+		failures += board.checkPositions(90);
+
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * A simulated board with its motors at rest at zero.
+	 */
+	private static class Board {
+
+		final VirtualClock clock = new VirtualClock();
+		final SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		final BrickPiSPI brickPi;
+		// the ports whose start times the skew is measured over
+		final MotorPort[] driven;
+		long transactions;
+		long busNanos;
+		long start;
+
+		Board(boolean reverseMB, MotorPort... driven) throws IOException {
+			this.driven = driven.length == 0 ? PORTS : driven;
+			brickPi = new BrickPiSPI((byte)0x01, simulator);
+			for (MotorPort port : PORTS) {
+				Motor motor = new Motor();
+				if (reverseMB && port == MotorPort.MB) {
+					motor.setDirection(Motor.Direction.COUNTER_CLOCKWISE);
+				}
+				brickPi.initializeMotor(port, motor);
+			}
+		}
+
+		void begin() {
+			transactions = simulator.getTransactions();
+			busNanos = simulator.getBusNanos();
+			start = clock.nanoTime();
+		}
+
+		long skew() {
+			long first = Long.MAX_VALUE;
+			long last = 0;
+			for (MotorPort port : driven) {
+				first = Math.min(first, simulator.getMotorCommandTime(port.ordinal()));
+				last = Math.max(last, simulator.getMotorCommandTime(port.ordinal()));
+			}
+			return last - first;
+		}
+
+		/**
+		 * @return the transactions since begin.
+		 */
+		long report(String name) {
+			long sent = simulator.getTransactions() - transactions;
+			System.out.println(String.format("%-50s transactions=%d bus=%.0fus skew=%.0fus", name, sent,
+					(simulator.getBusNanos() - busNanos) / 1e3, skew() / 1e3));
+			return sent;
+		}
+
+		int check(String name, int expected, boolean sameTick) {
+			long sent = report(name);
+			if (sent != expected || (sameTick && skew() != 0)) {
+				System.out.println("FAIL: " + name + " expected " + expected + " transactions"
+						+ (sameTick ? " on one tick" : ""));
+				return 1;
+			}
+			return 0;
+		}
+
+		int checkPositions(int position) {
+			clock.advance(2000000000L);
+			for (int i = 0; i < PORTS.length; i++) {
+				if (Math.abs(simulator.getMotorEncoder(i) - position) > 1) {
+					System.out.println("FAIL: motor " + i + " at " + simulator.getMotorEncoder(i));
+					return 1;
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.ergotech.brickpi;
+
+import java.io.EOFException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.ergotech.brickpi.diagnostics.TelemetryLog;
+import com.ergotech.brickpi.diagnostics.TelemetryLogReader;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.ReplayBrickPi;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * ReplayTest records a 30 minute field run of a simulated board, polled
+ * every 5ms on a virtual clock, into a telemetry log. It then replays the
+ * log under a small controller that polls at the same rate, checks that
+ * every sweep is served the recorded values, reports how much faster than
+ * real time the replay ran, and checks that a second replay issues exactly
+ * the same commands at the same times.
+ *
+ */
+public class ReplayTest {
+
+	private static final long PERIOD = 5000000L;
+
+	public ReplayTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("ReplayTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		long minutes = args != null && args.length > 0 ? Long.parseLong(args[0]) : 30;
+		int failures = 0;
+		Path file = Files.createTempFile("replay", ".bptl");
+
+		long t = System.nanoTime();
+		int sweeps = record(file, minutes * 60000000000L);
+		System.out.println("recorded " + minutes + " minutes, " + sweeps + " sweeps, in "
+				+ String.format("%.2fs", (System.nanoTime() - t) / 1e9));
+		List<TelemetryLogReader.Record> records = TelemetryLogReader.read(file);
+		if (records.size() != sweeps) {
+			System.out.println("FAIL: read " + records.size() + " records");
+			failures++;
+		}
+
+		List<ReplayBrickPi.Command> first = null;
+		for (int run = 0; run < 2; run++) {
+			ReplayBrickPi brickPi = new ReplayBrickPi(records, new VirtualClock());
+			t = System.nanoTime();
+			int mismatches = control(brickPi, records);
+			double seconds = (System.nanoTime() - t) / 1e9;
+			System.out.println("replay " + run + ": " + String.format("%.0fs in %.2fs, %.0fx real time",
+					brickPi.getDuration() / 1e9, seconds, brickPi.getDuration() / 1e9 / seconds)
+					+ " commands=" + brickPi.getCommands().size());
+			if (mismatches != 0) {
+				System.out.println("FAIL: " + mismatches + " sweeps not served the recorded values");
+				failures++;
+			}
+			try {
+				brickPi.getMotorEncoder(MotorPort.MA);
+				System.out.println("FAIL: read past the end");
+				failures++;
+			} catch (EOFException ex) {
+				// expected
+			}
+			if (first == null) {
+				first = brickPi.getCommands();
+			} else if (!first.equals(brickPi.getCommands())) {
+				System.out.println("FAIL: the replays issued different commands");
+				failures++;
+			}
+		}
+		if (first == null || first.size() < 10) {
+			System.out.println("FAIL: too few commands " + first);
+			failures++;
+		}
+
+		// encoder offsets apply to the recorded positions
+		ReplayBrickPi brickPi = new ReplayBrickPi(records, new VirtualClock());
+		brickPi.initializeMotor(MotorPort.MD, new Motor());
+		brickPi.setMotorEncoderOffset(new MotorPort[] { MotorPort.MD }, 100);
+		if (brickPi.getMotorEncoder(MotorPort.MD) != records.get(0).getMotorPosition(MotorPort.MD) - 100) {
+			System.out.println("FAIL: offset not applied");
+			failures++;
+		}
+
+		Files.delete(file);
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Drive a simulated board through a fixed script, logging a sweep every
+	 * PERIOD of virtual time.
+	 */
+	private static int record(Path file, long duration) throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+		}
+		PortSweep sweep = newSweep();
+		PortSnapshot snapshot = new PortSnapshot();
+		int[] powers = { 60, -40, 0, 100 };
+		int sweeps = 0;
+		try (TelemetryLog log = new TelemetryLog(file, 32 << 20, true)) {
+			long start = clock.nanoTime();
+			while (clock.nanoTime() - start < duration) {
+				long seconds = (clock.nanoTime() - start) / 1000000000L;
+				sweep.setMotorPower(MotorPort.MA, powers[(int)(seconds / 2 % powers.length)]);
+				sweep.setMotorPower(MotorPort.MB, powers[(int)(seconds / 5 % powers.length)] / 2);
+				simulator.setSensorValue(SensorPort.S1.ordinal(), (byte)(seconds / 3 % 2));
+				snapshot.start(clock.nanoTime());
+				brickPi.sweep(sweep);
+				for (MotorPort port : MotorPort.values()) {
+					snapshot.motorRead(port.ordinal(), sweep.isValid(port), sweep.getMotorStatus(port));
+				}
+				for (SensorPort port : SensorPort.values()) {
+					EV3TouchSensor touch = sweep.getSensor(port);
+					snapshot.sensorRead(port.ordinal(), sweep.isValid(port), simulator.getSensorType(port.ordinal()),
+							0, touch.getValue(), touch.getValue());
+				}
+				snapshot.end(clock.nanoTime());
+				log.append(snapshot);
+				sweeps++;
+				clock.advance(PERIOD);
+			}
+		}
+		return sweeps;
+	}
+
+	/**
+	 * The code under test: MB follows half of MA, and MC is sent to MA's
+	 * position whenever S1 is pressed.
+	 *
+	 * @return the number of sweeps that did not match the recording.
+	 */
+	private static int control(ReplayBrickPi brickPi, List<TelemetryLogReader.Record> records) throws Exception {
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+		}
+		VirtualClock clock = brickPi.getClock();
+		PortSweep sweep = newSweep();
+		int mismatches = 0;
+		int lastPower = 0;
+		int lastTouch = 0;
+		for (int i = 0; !brickPi.isFinished(); i++) {
+			brickPi.sweep(sweep);
+			TelemetryLogReader.Record record = records.get(Math.min(i, records.size() - 1));
+			EV3TouchSensor touch = sweep.getSensor(SensorPort.S1);
+			int position = sweep.getMotorStatus(MotorPort.MA).position;
+			if (position != record.getMotorPosition(MotorPort.MA)
+					|| touch.getValue() != record.getSensorValue(SensorPort.S1)) {
+				mismatches++;
+			}
+			int error = position / 2 - sweep.getMotorStatus(MotorPort.MB).position;
+			int power = Math.max(-100, Math.min(100, error / 4));
+			if (power != lastPower) {
+				sweep.setMotorPower(MotorPort.MB, power);
+				lastPower = power;
+			}
+			if (touch.getValue() == 1 && lastTouch == 0) {
+				brickPi.setMotorPosition(new MotorPort[] { MotorPort.MC }, position);
+			}
+			lastTouch = touch.getValue();
+			clock.advance(PERIOD);
+		}
+		return mismatches;
+	}
+
+	private static PortSweep newSweep() {
+		PortSweep sweep = new PortSweep();
+		for (SensorPort port : SensorPort.values()) {
+			sweep.readSensor(port, true);
+		}
+		for (MotorPort port : MotorPort.values()) {
+			sweep.readMotor(port, true);
+		}
+		return sweep;
+	}
+}
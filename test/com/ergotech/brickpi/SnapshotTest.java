@@ -0,0 +1,109 @@
+package com.ergotech.brickpi;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * SnapshotTest runs the update thread against a simulated BrickPi with all
+ * four motors driven forward, while reader threads copy the port snapshot
+ * as fast as they can. The motors are read in port order, so in any
+ * consistent copy MA &lt;= MB &lt;= MC &lt;= MD; a copy mixing two polls breaks
+ * that. Reports the copies/second and the bytes allocated by the readers,
+ * and exits with a non-zero status on a torn copy, an allocation, or a
+ * missed listener call.
+ *
+ */
+public class SnapshotTest {
+
+	public SnapshotTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("SnapshotTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		final long duration = args != null && args.length > 0 ? Long.parseLong(args[0]) : 3000;
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		final BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S3);
+		simulator.setSensorValue(SensorPort.S3.ordinal(), (byte)1);
+		brickPi.setMotor(MotorPort.values(), 50);
+
+		final AtomicLong updates = new AtomicLong();
+		brickPi.addUpdateListener(new BrickPiUpdateListener() {
+			@Override
+			public <T extends BrickPiCommunications> void updateReceived(T source) {
+				updates.incrementAndGet();
+			}
+		});
+		brickPi.setUpdateDelay(1);
+
+		final com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final AtomicLong copies = new AtomicLong();
+		final AtomicLong torn = new AtomicLong();
+		final AtomicLong allocated = new AtomicLong();
+		final long end = System.nanoTime() + duration * 1000000L;
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread(() -> {
+				PortSnapshot mine = new PortSnapshot();
+				MotorPort[] motors = MotorPort.values();
+				long count = 0;
+				long lastPoll = 0;
+				long before = 0;
+				while (System.nanoTime() < end) {
+					if (count == 100000) {
+						// warmed up
+						before = threadBean.getCurrentThreadAllocatedBytes();
+					}
+					brickPi.getPortSnapshot().copyTo(mine);
+					count++;
+					if (mine.getPollCount() == 0) {
+						continue;
+					}
+					boolean bad = mine.getPollCount() < lastPoll
+							|| !mine.isValid(SensorPort.S3) || mine.getSensorValue(SensorPort.S3) != 1;
+					for (int m = 1; m < motors.length; m++) {
+						bad |= !mine.isValid(motors[m]) 
+								|| mine.getMotorPosition(motors[m - 1]) > mine.getMotorPosition(motors[m]);
+					}
+					if (bad) {
+						torn.incrementAndGet();
+					}
+					lastPoll = mine.getPollCount();
+				}
+				allocated.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - before);
+				copies.addAndGet(count);
+			}, "reader-" + r);
+			readers[r].start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		brickPi.setUpdateDelay(0);
+		Thread.sleep(50);
+		PortSnapshot last = new PortSnapshot();
+		brickPi.getPortSnapshot().copyTo(last);
+
+		System.out.println("polls=" + last.getPollCount() + " listener calls=" + updates.get()
+				+ " copies/s=" + (copies.get() / (duration / 1000.0))
+				+ " torn=" + torn.get() + " reader bytes allocated=" + allocated.get());
+		System.out.println("MA=" + last.getMotorPosition(MotorPort.MA) + " MD=" + last.getMotorPosition(MotorPort.MD)
+				+ " dps=" + last.getMotorDps(MotorPort.MA));
+		if (torn.get() != 0 || allocated.get() != 0 || last.getPollCount() == 0
+				|| updates.get() != last.getPollCount()) {
+			System.out.println("FAIL");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+}
@@ -0,0 +1,155 @@
+package com.ergotech.brickpi;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+
+/**
+ * SweepBenchmark compares reading all four sensors and all four motor
+ * statuses one call at a time with a single bulk sweep, and reports
+ * sweeps/second for each and the spread from the start of the first read
+ * to the end of the last. By default each transfer costs its bytes at the
+ * 500kHz SPI clock plus 10us of driver and chip select overhead, as on the
+ * board.
+ *
+ * The BrickPi answers one message per transfer, so on plain SPI the bulk
+ * path makes the same eight transfers and the rates should be level; the
+ * bulk path also feeds each motor's speed estimate. Each path's time per
+ * frame is split into the bus time charged to the transfer and the rest,
+ * the CPU and any wait for the bus, which shows that nearly all of it is
+ * the bus. What the sweep buys is holding the bus: the second round runs
+ * with another thread setting a motor power as fast as it can, whose
+ * transfers land between the per-call reads and spread them out, but not
+ * between the reads of a sweep.
+ *
+ * Arguments: loop count, overhead per transfer in ns, SPI clock in Hz (0
+ * for no byte time, which leaves only the CPU cost of each path).
+ *
+ */
+public class SweepBenchmark {
+
+	public SweepBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("SweepBenchmark -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = 150;
+		long overheadNanos = 10000;
+		int clockHz = 500000;
+		if (args != null && args.length > 0) {
+			loop = Integer.parseInt(args[0]);
+		}
+		if (args != null && args.length > 1) {
+			overheadNanos = Long.parseLong(args[1]);
+		}
+		if (args != null && args.length > 2) {
+			clockHz = Integer.parseInt(args[2]);
+		}
+		LoopbackSpiDevice device = new LoopbackSpiDevice(overheadNanos, clockHz);
+		final BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, device);
+		PortSweep sweep = new PortSweep();
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+			sweep.readMotor(port, true);
+		}
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+			sweep.readSensor(port, true);
+		}
+
+		run(brickPi, device, sweep, loop, "alone");
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread other = new Thread(() -> {
+			MotorPort[] ports = { MotorPort.MD };
+			try {
+				for (int power = 0; running.get(); power = (power + 1) % 100) {
+					brickPi.setMotor(ports, power);
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		});
+		other.start();
+		run(brickPi, device, sweep, loop, "with another caller");
+		running.set(false);
+		other.join();
+		System.out.println("loop=" + loop + " overheadNanos=" + overheadNanos + " clockHz=" + clockHz);
+	}
+
+	private static void run(BrickPiSPI brickPi, LoopbackSpiDevice device, PortSweep sweep, int loop, String name)
+			throws IOException {
+		int ignore = 2;
+		double perCall = 0;
+		double swept = 0;
+		double perCallSpread = 0;
+		double sweptSpread = 0;
+		// bus nanos and frames, per-call then bulk
+		long[] bus = new long[2];
+		long[] frames = new long[2];
+		long[] time = new long[2];
+		for (int i = 0; i < ignore + 5; i++) {
+			long spread = 0;
+			long callBus = 0;
+			long callFrames = 0;
+			long t = System.nanoTime();
+			for (int j = 0; j < loop; j++) {
+				device.startSpan();
+				for (SensorPort port : SensorPort.values()) {
+					brickPi.getSensor(port);
+				}
+				for (MotorPort port : MotorPort.values()) {
+					brickPi.getMotorStatus(port);
+				}
+				spread += device.getSpanNanos();
+				callBus += device.getSpanBusNanos();
+				callFrames += device.getSpanFrames();
+			}
+			long callTime = System.nanoTime() - t;
+			long callSpread = spread;
+			spread = 0;
+			long sweepBus = 0;
+			long sweepFrames = 0;
+			t = System.nanoTime();
+			for (int j = 0; j < loop; j++) {
+				device.startSpan();
+				brickPi.sweep(sweep);
+				spread += device.getSpanNanos();
+				sweepBus += device.getSpanBusNanos();
+				sweepFrames += device.getSpanFrames();
+			}
+			long sweepTime = System.nanoTime() - t;
+			if (i >= ignore) {
+				bus[0] += callBus;
+				bus[1] += sweepBus;
+				frames[0] += callFrames;
+				frames[1] += sweepFrames;
+				time[0] += callTime;
+				time[1] += sweepTime;
+				perCall += loop / (callTime / 1e9);
+				swept += loop / (sweepTime / 1e9);
+				perCallSpread += (double) callSpread / loop;
+				sweptSpread += (double) spread / loop;
+			}
+		}
+		System.out.println(String.format("%-20s per-call sweeps/s=%.0f spread=%.0fus %s", name, perCall / 5,
+				perCallSpread / 5 / 1e3, perFrame(loop, time[0], bus[0], frames[0])));
+		System.out.println(String.format("%-20s bulk sweeps/s=%.0f spread=%.0fus %s", name, swept / 5,
+				sweptSpread / 5 / 1e3, perFrame(loop, time[1], bus[1], frames[1])));
+	}
+
+	/**
+	 * Describe the frames of five rounds of the loop, and their time split
+	 * into bus time and the rest.
+	 */
+	private static String perFrame(int loop, long time, long bus, long frames) {
+		return String.format("frames/sweep=%.0f per frame: bus=%.1fus rest=%.1fus",
+				frames / 5.0 / loop, bus / 1e3 / frames, (time - bus) / 1e3 / frames);
+	}
+
+}
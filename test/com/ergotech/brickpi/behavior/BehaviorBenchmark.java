@@ -0,0 +1,88 @@
+package com.ergotech.brickpi.behavior;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * BehaviorBenchmark starts increasing numbers of behaviours, each polling a
+ * simulated BrickPi and sleeping, and reports the heap and platform threads
+ * used per behaviour, and the time to cancel the group. Pass "platform" as
+ * the second argument to run the behaviours on platform threads instead.
+ *
+ */
+public class BehaviorBenchmark {
+
+	public BehaviorBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("BehaviorBenchmark -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int max = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		boolean platform = args != null && args.length > 1 && args[1].equals("platform");
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		brickPi.initializeMotor(MotorPort.MA, new Motor());
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S1);
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long baseHeap = usedHeap(memory);
+		int baseThreads = threads.getThreadCount();
+		System.out.println("behaviours  heap/behaviour  platform threads  calls/s  cancel ms");
+		for (int count = max / 8; count <= max; count *= 2) {
+			AtomicLong calls = new AtomicLong();
+			BehaviorGroup group = platform
+					? new BehaviorGroup("bench", Thread.ofPlatform().daemon())
+					: new BehaviorGroup("bench");
+			for (int i = 0; i < count; i++) {
+				final int index = i;
+				group.start("behaviour-" + i, () -> {
+					while (true) {
+						if ((index & 1) == 0) {
+							brickPi.getSensor(SensorPort.S1);
+						} else {
+							brickPi.getMotorEncoder(MotorPort.MA);
+						}
+						calls.incrementAndGet();
+						Thread.sleep(20);
+					}
+				});
+			}
+			Thread.sleep(1000);
+			long start = calls.get();
+			long t = System.nanoTime();
+			Thread.sleep(1000);
+			double rate = (calls.get() - start) / ((System.nanoTime() - t) / 1e9);
+			long heap = usedHeap(memory) - baseHeap;
+			int platformThreads = threads.getThreadCount() - baseThreads;
+			t = System.nanoTime();
+			group.close();
+			long cancel = System.nanoTime() - t;
+			if (group.getFailure() != null) {
+				System.out.println("FAIL: " + group.getFailure());
+				System.exit(1);
+			}
+			System.out.println(String.format("%10d %12.0fB %17d %8.0f %10.1f", count,
+					(double)heap / count, platformThreads, rate, cancel / 1e6));
+		}
+	}
+
+	private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,65 @@
+package com.ergotech.brickpi.behavior;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BehaviorGroupTest checks how a behaviour that ends with an
+ * InterruptedException is counted. Cancelling the group interrupts its
+ * sleeping behaviours, which must not count as failures; an interrupt from
+ * outside the group, before any cancel, must be recorded as the behaviour's
+ * failure and cancel the rest of the group.
+ *
+ */
+public class BehaviorGroupTest {
+
+	public BehaviorGroupTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("BehaviorGroupTest -----");
+		int failures = 0;
+
+		try (BehaviorGroup group = new BehaviorGroup("cancel")) {
+			CountDownLatch started = new CountDownLatch(2);
+			for (int i = 0; i < 2; i++) {
+				group.start("sleeper " + i, () -> {
+					started.countDown();
+					Thread.sleep(60000);
+				});
+			}
+			started.await();
+			group.cancel();
+			if (!group.join(5, TimeUnit.SECONDS) || group.getFailure() != null) {
+				System.out.println("FAIL: cancel recorded " + group.getFailure());
+				failures++;
+			}
+		}
+
+		try (BehaviorGroup group = new BehaviorGroup("stray")) {
+			CountDownLatch started = new CountDownLatch(2);
+			Thread stray = group.start("stray", () -> {
+				started.countDown();
+				Thread.sleep(60000);
+			});
+			group.start("bystander", () -> {
+				started.countDown();
+				Thread.sleep(60000);
+			});
+			started.await();
+			stray.interrupt();
+			if (!group.join(5, TimeUnit.SECONDS) || !(group.getFailure() instanceof InterruptedException)
+					|| !group.isCancelled()) {
+				System.out.println("FAIL: stray interrupt recorded " + group.getFailure()
+						+ " cancelled=" + group.isCancelled());
+				failures++;
+			}
+		}
+
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+}
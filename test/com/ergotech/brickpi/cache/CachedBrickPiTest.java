@@ -0,0 +1,293 @@
+package com.ergotech.brickpi.cache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.diagnostics.BusStatistics;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * CachedBrickPiTest puts the read cache in front of a simulated board on a
+ * virtual clock. It checks that reads within the age are served without a
+ * transaction and older ones are read, that a status read or sweep
+ * refreshes the encoder and an offset or new sensor marks it stale, and
+ * that relative moves from a fresh encoder skip the four encoder reads the
+ * board makes on its own. Four threads then share a port, and must make
+ * one read per miss between them, and the hit path must not allocate. A
+ * command that lands while a sweep is under way must leave its port stale.
+ * The statistics are checked directly and through JMX.
+ *
+ */
+public class CachedBrickPiTest {
+
+	private static final long MS = 1000000L;
+	private static final MotorPort[] PORTS = MotorPort.values();
+
+	public CachedBrickPiTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("CachedBrickPiTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int failures = 0;
+
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		CachedBrickPi cache = newCache(simulator, clock);
+		ReadCacheStatistics statistics = cache.getStatistics();
+		MotorPort[] ma = { MotorPort.MA };
+
+		cache.setMotor(ma, 50);
+		clock.advance(100 * MS);
+		long transactions = simulator.getTransactions();
+		int first = cache.getMotorEncoder(MotorPort.MA, 5 * MS);
+		clock.advance(MS);
+		int second = cache.getMotorEncoder(MotorPort.MA, 5 * MS);
+		cache.setDefaultMaxAge(5, TimeUnit.MILLISECONDS);
+		int third = cache.getMotorEncoder(MotorPort.MA);
+		failures += check("three reads within the age", simulator, transactions, 1,
+				first == second && second == third && statistics.getEncoderHits() == 2);
+
+		cache.setDefaultMaxAge(0, TimeUnit.MILLISECONDS);
+		clock.advance(5 * MS);
+		transactions = simulator.getTransactions();
+		int later = cache.getMotorEncoder(MotorPort.MA, 5 * MS);
+		failures += check("a read past the age", simulator, transactions, 1, later > first);
+
+		transactions = simulator.getTransactions();
+		MotorStatus status = cache.getMotorStatus(MotorPort.MA, new MotorStatus(), 0);
+		int encoder = cache.getMotorEncoder(MotorPort.MA, MS);
+		MotorStatus again = cache.getMotorStatus(MotorPort.MA, new MotorStatus(), MS);
+		failures += check("a status read refreshes the encoder", simulator, transactions, 1,
+				encoder == status.position && again.position == status.position && again.power == status.power);
+
+		transactions = simulator.getTransactions();
+		cache.setMotor(ma, 0);
+		cache.getMotorStatus(MotorPort.MA, status, MS);
+		failures += check("a command marks the status stale", simulator, transactions, 2, status.power == 0);
+
+		transactions = simulator.getTransactions();
+		cache.setMotorEncoderOffset(ma, 1000);
+		cache.getMotorEncoder(MotorPort.MA, MS);
+		failures += check("an offset marks the encoder stale", simulator, transactions, 2, true);
+
+		cache.setSensor(new EV3TouchSensor(), SensorPort.S1);
+		simulator.setSensorValue(0, (byte)1);
+		transactions = simulator.getTransactions();
+		EV3TouchSensor touch = cache.getSensor(SensorPort.S1, 5 * MS);
+		EV3TouchSensor cached = cache.getSensor(SensorPort.S1, 5 * MS);
+		cache.setSensor(new EV3TouchSensor(), SensorPort.S1);
+		EV3TouchSensor replaced = cache.getSensor(SensorPort.S1, 5 * MS);
+		failures += check("sensor reads", simulator, transactions, 3,
+				touch == cached && replaced != touch && statistics.getSensorHits() == 1);
+
+		// the motors settle, then a sweep fills every slot, one frame a port
+		clock.advance(1000 * MS);
+		PortSweep sweep = new PortSweep();
+		for (MotorPort port : PORTS) {
+			sweep.readMotor(port, true);
+		}
+		transactions = simulator.getTransactions();
+		cache.sweep(sweep);
+		for (MotorPort port : PORTS) {
+			cache.getMotorEncoder(port, 5 * MS);
+		}
+		failures += check("a sweep fills the encoders", simulator, transactions, PORTS.length, true);
+
+		int[] origins = new int[PORTS.length];
+		for (int i = 0; i < PORTS.length; i++) {
+			origins[i] = simulator.getMotorEncoder(i);
+		}
+		transactions = simulator.getTransactions();
+		// MA has moved, so it takes its own position message
+		cache.setMotorPositionRelative(PORTS, 90, 5 * MS);
+		failures += check("a relative move from the cache", simulator, transactions, 2, statistics.getRelativeHits() == 4);
+		failures += checkPositions(simulator, clock, origins, 90);
+
+		transactions = simulator.getTransactions();
+		cache.setMotorPositionRelative(PORTS, 90, 0);
+		failures += check("a relative move reading the encoders", simulator, transactions, 2 + PORTS.length, true);
+		failures += checkPositions(simulator, clock, origins, 180);
+
+		failures += checkSweepRace();
+		failures += checkThreads();
+		failures += checkAllocation();
+
+		String name = "CachedBrickPiTest";
+		statistics.register(name);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(BusStatistics.DOMAIN + ":type=ReadCache,name=" + ObjectName.quote(name));
+		long hits = (Long) server.getAttribute(objectName, "Hits");
+		double ratio = (Double) server.getAttribute(objectName, "HitRatio");
+		System.out.println(statistics);
+		if (hits != statistics.getHits() || hits == 0 || ratio <= 0 || ratio >= 1
+				|| statistics.getMaxAgeMicros() > 5000) {
+			System.out.println("FAIL: statistics hits=" + hits + " ratio=" + ratio);
+			failures++;
+		}
+		server.invoke(objectName, "reset", null, null);
+		statistics.unregister();
+		if (statistics.getHits() != 0 || statistics.getMisses() != 0 || server.isRegistered(objectName)) {
+			System.out.println("FAIL: statistics not reset and unregistered");
+			failures++;
+		}
+
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static CachedBrickPi newCache(SimulatedBrickPi simulator, VirtualClock clock) throws IOException {
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		CachedBrickPi cache = new CachedBrickPi(brickPi, 0, TimeUnit.NANOSECONDS, clock::nanoTime);
+		for (MotorPort port : PORTS) {
+			cache.initializeMotor(port, new Motor());
+		}
+		return cache;
+	}
+
+	private static int check(String name, SimulatedBrickPi simulator, long transactions, long expected, boolean ok) {
+		long sent = simulator.getTransactions() - transactions;
+		System.out.println(String.format("%-40s transactions=%d", name, sent));
+		if (sent != expected || !ok) {
+			System.out.println("FAIL: " + name + " expected " + expected + " transactions");
+			return 1;
+		}
+		return 0;
+	}
+
+	private static int checkPositions(SimulatedBrickPi simulator, VirtualClock clock, int[] origins, int degrees) {
+		clock.advance(2000 * MS);
+		for (int i = 0; i < PORTS.length; i++) {
+			if (Math.abs(simulator.getMotorEncoder(i) - origins[i] - degrees) > 1) {
+				System.out.println("FAIL: motor " + i + " moved " + (simulator.getMotorEncoder(i) - origins[i]));
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * A power command that lands after a sweep's transfer but before the
+	 * sweep keeps its readings must not be undone by them.
+	 */
+	private static int checkSweepRace() throws IOException {
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		final MotorPort[] ma = { MotorPort.MA };
+		final CachedBrickPi[] cache = new CachedBrickPi[1];
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator) {
+			@Override
+			public PortSweep sweep(PortSweep sweep) throws IOException {
+				super.sweep(sweep);
+				cache[0].setMotor(ma, 30);
+				return sweep;
+			}
+		};
+		cache[0] = new CachedBrickPi(brickPi, 5, TimeUnit.MILLISECONDS, clock::nanoTime);
+		cache[0].initializeMotor(MotorPort.MA, new Motor());
+		PortSweep sweep = new PortSweep();
+		sweep.readMotor(MotorPort.MA, true);
+		cache[0].sweep(sweep);
+		long transactions = simulator.getTransactions();
+		MotorStatus status = cache[0].getMotorStatus(MotorPort.MA, new MotorStatus());
+		return check("a command during a sweep", simulator, transactions, 1,
+				sweep.getMotorStatus(MotorPort.MA).power == 0 && status.power == 30);
+	}
+
+	/**
+	 * Four threads read one encoder with a 1ms age while the clock moves
+	 * 100us a read; every miss must be a single transaction.
+	 */
+	private static int checkThreads() throws Exception {
+		final VirtualClock clock = new VirtualClock();
+		final SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		final CachedBrickPi cache = newCache(simulator, clock);
+		final int loop = 20000;
+		final IOException[] error = new IOException[1];
+		Thread[] threads = new Thread[4];
+		long transactions = simulator.getTransactions();
+		for (int t = 0; t < threads.length; t++) {
+			final boolean ticker = t == 0;
+			threads[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < loop; i++) {
+						if (ticker) {
+							clock.advance(MS / 10);
+						}
+						cache.getMotorEncoder(MotorPort.MA, MS);
+					}
+				} catch (IOException ex) {
+					error[0] = ex;
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		ReadCacheStatistics statistics = cache.getStatistics();
+		long sent = simulator.getTransactions() - transactions;
+		System.out.println("4 threads: " + statistics);
+		if (error[0] != null || statistics.getHits() + statistics.getMisses() != 4L * loop
+				|| sent != statistics.getEncoderMisses() || statistics.getHitRatio() < 0.8
+				|| statistics.getAges().getMax() > MS) {
+			System.out.println("FAIL: " + sent + " transactions shared between the threads, " + error[0]);
+			return 1;
+		}
+		return 0;
+	}
+
+	private static int checkAllocation() throws IOException {
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		CachedBrickPi cache = newCache(simulator, clock);
+		cache.setSensor(new EV3TouchSensor(), SensorPort.S1);
+		MotorStatus status = new MotorStatus();
+		long age = TimeUnit.SECONDS.toNanos(1000);
+		// fill the slots and let the JIT settle
+		runHits(cache, status, age, 100000);
+
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = Long.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			long before = threads.getCurrentThreadAllocatedBytes();
+			runHits(cache, status, age, 100000);
+			allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+		}
+		System.out.println("hits allocated=" + allocated);
+		if (allocated != 0) {
+			System.out.println("FAIL: the hit path allocates");
+			return 1;
+		}
+		return 0;
+	}
+
+	private static void runHits(CachedBrickPi cache, MotorStatus status, long age, int loop) throws IOException {
+		int checksum = 0;
+		for (int i = 0; i < loop; i++) {
+			checksum += cache.getMotorEncoder(MotorPort.MA, age);
+			checksum += cache.getMotorStatus(MotorPort.MB, status, age).position;
+			checksum += cache.<EV3TouchSensor>getSensor(SensorPort.S1, age).getValue();
+		}
+		if (checksum == 42) {
+			System.out.println(checksum); // keep the reads live
+		}
+	}
+}
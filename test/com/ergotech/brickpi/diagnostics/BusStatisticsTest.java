@@ -0,0 +1,221 @@
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Pipe;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.BrickPiSerial;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.serial.SerialLink;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.SimulatedSerialBoard;
+
+/**
+ * BusStatisticsTest sweeps a simulated board that fails every seventh
+ * transfer, over SPI and over a pipelined serial link, and checks the
+ * transfers, errors and retries counted per message type, as read through
+ * the platform MBean server. It checks that reads are retried only when
+ * enabled, that commands are never retried, that reset clears every message
+ * type, and that recording does not allocate.
+ *
+ */
+public class BusStatisticsTest {
+
+	private static final int FAIL_EVERY = 7;
+
+	/**
+	 * A board whose responses fail to verify every so often, once enabled.
+	 */
+	private static class FlakyBrickPi extends SimulatedBrickPi {
+
+		private volatile int failEvery;
+		private int transfers;
+
+		@Override
+		protected synchronized void transfer(byte[] frame) {
+			super.transfer(frame);
+			if (failEvery > 0 && ++transfers % failEvery == 0) {
+				frame[3] = 0;
+			}
+		}
+	}
+
+	public BusStatisticsTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("BusStatisticsTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int failures = 0;
+
+		FlakyBrickPi simulator = new FlakyBrickPi();
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		failures += run("spi", brickPi, simulator, loop);
+
+		FlakyBrickPi serialSimulator = new FlakyBrickPi();
+		Pipe toBoard = Pipe.open();
+		Pipe toHost = Pipe.open();
+		SimulatedSerialBoard board = new SimulatedSerialBoard(serialSimulator, toBoard.source(), toHost.sink());
+		SerialLink link = new SerialLink(toHost.source(), toBoard.sink(), SerialLink.DEFAULT_DEPTH);
+		failures += run("serial", new BrickPiSerial((byte)0x01, link), serialSimulator, loop);
+		board.close();
+
+		// recording allocates nothing once every message type has been seen
+		simulator.failEvery = 0;
+		brickPi.setReadRetries(2);
+		PortSweep sweep = newSweep();
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++) {
+			long before = threads.getCurrentThreadAllocatedBytes();
+			for (int i = 0; i < loop; i++) {
+				brickPi.sweep(sweep);
+			}
+			allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+		}
+		System.out.println("allocated=" + allocated);
+		if (allocated != 0) {
+			System.out.println("FAIL: allocated " + allocated + " bytes");
+			failures++;
+		}
+
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static int run(String name, BrickPiSPI brickPi, FlakyBrickPi simulator, int loop) throws Exception {
+		int failures = 0;
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+		}
+		BusStatistics statistics = brickPi.getBusStatistics();
+		statistics.register(name);
+		statistics.reset();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName all = new ObjectName(BusStatistics.DOMAIN + ":type=BusStatistics,name=" + ObjectName.quote(name) + ",message=ALL");
+		ObjectName status = new ObjectName(BusStatistics.DOMAIN + ":type=BusStatistics,name=" + ObjectName.quote(name)
+				+ ",message=" + BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS);
+
+		// without retries every failure is reported
+		simulator.failEvery = FAIL_EVERY;
+		PortSweep sweep = newSweep();
+		int invalid = sweeps(brickPi, sweep, loop);
+		long count = (Long) server.getAttribute(all, "Count");
+		long errors = (Long) server.getAttribute(all, "Errors");
+		System.out.println(name + " no retries: invalid=" + invalid + " " + statistics.getAll());
+		if (count != 8L * loop || errors != count / FAIL_EVERY || invalid != errors
+				|| (Long) server.getAttribute(all, "Retries") != 0) {
+			System.out.println("FAIL: count=" + count + " errors=" + errors + " invalid=" + invalid);
+			failures++;
+		}
+		long total = 0;
+		for (BPSPI_MESSAGE_TYPE type : BPSPI_MESSAGE_TYPE.values()) {
+			total += statistics.get(type).getCount();
+		}
+		if (total != count || (Long) server.getAttribute(status, "Count") != loop) {
+			System.out.println("FAIL: " + total + " transfers by type of " + count);
+			failures++;
+		}
+		double p50 = (Double) server.getAttribute(status, "P50Micros");
+		double p99 = (Double) server.getAttribute(status, "P99Micros");
+		double p999 = (Double) server.getAttribute(status, "P999Micros");
+		double max = (Double) server.getAttribute(status, "MaxMicros");
+		System.out.println(name + " " + BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS
+				+ String.format(" p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", p50, p99, p999, max));
+		if (!(p50 > 0 && p50 <= p99 && p99 <= p999 && p999 <= max)) {
+			System.out.println("FAIL: percentiles out of order");
+			failures++;
+		}
+
+		// the reset operation of the totals clears every message type
+		server.invoke(all, "reset", null, null);
+		if (statistics.getAll().getCount() != 0 || statistics.get(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS).getCount() != 0
+				|| statistics.getAll().getErrors() != 0) {
+			System.out.println("FAIL: not reset " + statistics);
+			failures++;
+		}
+
+		// with retries every read recovers, and every failure is retried once
+		brickPi.setReadRetries(2);
+		invalid = sweeps(brickPi, sweep, loop);
+		errors = statistics.getAll().getErrors();
+		long retries = statistics.getAll().getRetries();
+		System.out.println(name + " retries: invalid=" + invalid + " " + statistics.getAll());
+		if (invalid != 0 || errors == 0 || retries != errors
+				|| statistics.getAll().getCount() != 8L * loop + retries) {
+			System.out.println("FAIL: invalid=" + invalid + " errors=" + errors + " retries=" + retries);
+			failures++;
+		}
+
+		// commands are not retried
+		statistics.reset();
+		MotorPort[] ports = { MotorPort.MA };
+		int rejected = 0;
+		for (int i = 0; i < 100; i++) {
+			try {
+				brickPi.setMotor(ports, i % 100);
+			} catch (IOException ex) {
+				rejected++;
+			}
+		}
+		MessageStatistics setMotor = statistics.get(BPSPI_MESSAGE_TYPE.SET_MOTOR_POWER);
+		if (rejected == 0 || setMotor.getErrors() != rejected || setMotor.getRetries() != 0
+				|| setMotor.getCount() != 100) {
+			System.out.println("FAIL: commands " + setMotor);
+			failures++;
+		}
+		simulator.failEvery = 0;
+		statistics.unregister();
+		if (server.isRegistered(all)) {
+			System.out.println("FAIL: still registered");
+			failures++;
+		}
+		return failures;
+	}
+
+	private static PortSweep newSweep() {
+		PortSweep sweep = new PortSweep();
+		for (SensorPort port : SensorPort.values()) {
+			sweep.readSensor(port, true);
+		}
+		for (MotorPort port : MotorPort.values()) {
+			sweep.readMotor(port, true);
+		}
+		return sweep;
+	}
+
+	/**
+	 * @return the number of ports not read.
+	 */
+	private static int sweeps(BrickPiSPI brickPi, PortSweep sweep, int loop) throws IOException {
+		int invalid = 0;
+		for (int i = 0; i < loop; i++) {
+			brickPi.sweep(sweep);
+			for (SensorPort port : SensorPort.values()) {
+				invalid += sweep.isValid(port) ? 0 : 1;
+			}
+			for (MotorPort port : MotorPort.values()) {
+				invalid += sweep.isValid(port) ? 0 : 1;
+			}
+		}
+		return invalid;
+	}
+}
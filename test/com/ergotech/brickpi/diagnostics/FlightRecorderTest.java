@@ -0,0 +1,115 @@
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.protocol.BrickPiCodec;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * FlightRecorderTest makes one encoder read of a simulated board fail and
+ * checks that the flight recorder dumps itself on the error, then decodes
+ * the dump with FlightRecordDecoder: the failed read must be the last frame,
+ * the only one flagged, and described by its message type. An explicit dump
+ * must read back with the same frames.
+ *
+ */
+public class FlightRecorderTest {
+
+	/**
+	 * A board whose next response fails to verify, once asked.
+	 */
+	private static class FailingBrickPi extends SimulatedBrickPi {
+
+		private volatile boolean failNext;
+
+		@Override
+		protected synchronized void transfer(byte[] frame) {
+			super.transfer(frame);
+			if (failNext) {
+				failNext = false;
+				frame[BrickPiCodec.STATUS_INDEX] = 0;
+			}
+		}
+	}
+
+	public FlightRecorderTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("FlightRecorderTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		FailingBrickPi board = new FailingBrickPi();
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, board);
+		brickPi.initializeMotor(MotorPort.MA, new Motor());
+		SpiFlightRecorder recorder = brickPi.getFlightRecorder();
+		Path directory = Files.createTempDirectory("flight");
+		recorder.setDumpDirectory(directory);
+		int failures = 0;
+		try {
+			for (int i = 0; i < 3; i++) {
+				brickPi.getMotorEncoder(MotorPort.MA);
+			}
+			board.failNext = true;
+			brickPi.getMotorEncoder(MotorPort.MA);
+
+			// the dump is written on a background thread
+			File[] dumps = null;
+			for (int wait = 0; wait < 50; wait++) {
+				dumps = directory.toFile().listFiles((dir, name) -> name.endsWith(".bpfr"));
+				if (dumps != null && dumps.length > 0 && dumps[0].length() > 0) {
+					break;
+				}
+				Thread.sleep(100);
+			}
+			if (dumps == null || dumps.length != 1) {
+				System.out.println("FAIL: no dump written on the error");
+				System.exit(1);
+			}
+			List<FlightRecordDecoder.Frame> frames = FlightRecordDecoder.read(dumps[0].toPath());
+			FlightRecordDecoder.Frame last = frames.get(frames.size() - 1);
+			String description = FlightRecordDecoder.describe(last.request, last.request.length);
+			System.out.println("frames=" + frames.size() + " failed: " + description);
+			BPSPI_MESSAGE_TYPE encoder = BrickPiCodec.getEncoderMessage(MotorPort.MA);
+			if (!last.error || last.getMessageType() != encoder || !description.startsWith(encoder.name())) {
+				System.out.println("FAIL: last frame " + last);
+				failures++;
+			}
+			if (last.sequence != recorder.getFrameCount() - 1) {
+				System.out.println("FAIL: last frame #" + last.sequence + " of " + recorder.getFrameCount());
+				failures++;
+			}
+			for (FlightRecordDecoder.Frame frame : frames) {
+				if (frame.error && frame != last) {
+					System.out.println("FAIL: flagged " + frame);
+					failures++;
+				}
+			}
+
+			Path file = directory.resolve("explicit.bpfr");
+			int count = recorder.dump(file);
+			List<FlightRecordDecoder.Frame> dumped = FlightRecordDecoder.read(file);
+			if (count != frames.size() || dumped.size() != count || !dumped.get(count - 1).error) {
+				System.out.println("FAIL: explicit dump of " + count + " frames read back " + dumped.size());
+				failures++;
+			}
+		} finally {
+			for (File file : directory.toFile().listFiles()) {
+				file.delete();
+			}
+			Files.delete(directory);
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+}
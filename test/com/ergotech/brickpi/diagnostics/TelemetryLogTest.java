@@ -0,0 +1,220 @@
+package com.ergotech.brickpi.diagnostics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * TelemetryLogTest logs sweeps of a simulated board with a running motor,
+ * fixed layout and compressed, and checks the cost per sweep, the bytes per
+ * record and the records read back. It then checks that a small log wraps
+ * keeping the newest records, that a reopened log continues, and that the
+ * log of a JVM that halts without closing it can be read.
+ *
+ */
+public class TelemetryLogTest {
+
+	public TelemetryLogTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		if (args != null && args.length == 2 && args[0].equals("crash")) {
+			crash(Paths.get(args[1]));
+			return;
+		}
+		System.out.println("TelemetryLogTest -----");
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int failures = 0;
+		Path directory = Files.createTempDirectory("telemetry");
+
+		BrickPiSPI brickPi = newBrickPi();
+		PortSweep sweep = newSweep();
+		for (int i = 0; i < loop; i++) {
+			brickPi.sweep(sweep);
+		}
+		long plain = sweepNanos(brickPi, sweep, loop);
+		System.out.println("no log ns/sweep=" + plain);
+
+		boolean[] modes = { false, true };
+		for (boolean compressed : modes) {
+			Path file = directory.resolve(compressed ? "compressed.bptl" : "fixed.bptl");
+			TelemetryLog log = new TelemetryLog(file, 16 << 20, compressed);
+			brickPi.setTelemetryLog(log);
+			sweepNanos(brickPi, sweep, loop);
+			long logged = sweepNanos(brickPi, sweep, loop);
+			long allocated = allocated(brickPi, sweep);
+			int position = sweep.getMotorStatus(MotorPort.MA).position;
+			brickPi.setTelemetryLog(null);
+			log.close();
+			List<TelemetryLogReader.Record> records = TelemetryLogReader.read(file);
+			System.out.println((compressed ? "compressed" : "fixed") + " ns/sweep=" + logged
+					+ " records=" + records.size()
+					+ " bytes/record=" + String.format("%.1f", log.getBytesWritten() / (double)log.getRecordCount())
+					+ " allocated=" + allocated);
+			if (records.size() != log.getRecordCount() || allocated != 0) {
+				System.out.println("FAIL: " + records.size() + " of " + log.getRecordCount() + " records");
+				failures++;
+			}
+			failures += check(records, position);
+		}
+
+		// a ring of three blocks keeps only the newest records
+		Path small = directory.resolve("small.bptl");
+		TelemetryLog log = new TelemetryLog(small, 4 * TelemetryLog.BLOCK_SIZE, false);
+		brickPi.setTelemetryLog(log);
+		for (int i = 0; i < 1000; i++) {
+			brickPi.sweep(sweep);
+		}
+		log.close();
+		List<TelemetryLogReader.Record> records = TelemetryLogReader.read(small);
+		int perBlock = (TelemetryLog.BLOCK_SIZE - TelemetryLog.BLOCK_HEADER_SIZE) / TelemetryLog.RECORD_SIZE;
+		System.out.println("wrapped records=" + records.size() + " of 1000");
+		if (records.size() <= 2 * perBlock || records.size() > 3 * perBlock) {
+			System.out.println("FAIL: wrapped to " + records.size() + " records");
+			failures++;
+		}
+		failures += check(records, sweep.getMotorStatus(MotorPort.MA).position);
+
+		// reopening continues after the newest block
+		log = new TelemetryLog(small, 4 * TelemetryLog.BLOCK_SIZE, false);
+		brickPi.setTelemetryLog(log);
+		for (int i = 0; i < 10; i++) {
+			brickPi.sweep(sweep);
+		}
+		brickPi.setTelemetryLog(null);
+		log.close();
+		records = TelemetryLogReader.read(small);
+		failures += check(records, sweep.getMotorStatus(MotorPort.MA).position);
+
+		// a JVM that halts without closing the log
+		Path crashed = directory.resolve("crashed.bptl");
+		Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"), TelemetryLogTest.class.getName(),
+				"crash", crashed.toString()).redirectErrorStream(true).start();
+		BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream()));
+		String last = output.readLine();
+		child.waitFor();
+		records = TelemetryLogReader.read(crashed);
+		System.out.println("crashed records=" + records.size() + " last MA=" + last);
+		if (records.size() != 5000) {
+			System.out.println("FAIL: " + records.size() + " records after the crash");
+			failures++;
+		}
+		failures += check(records, last == null ? Integer.MIN_VALUE : Integer.parseInt(last.trim()));
+
+		for (File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		directory.toFile().delete();
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void crash(Path file) throws IOException {
+		BrickPiSPI brickPi = newBrickPi();
+		PortSweep sweep = newSweep();
+		brickPi.setTelemetryLog(new TelemetryLog(file, 1 << 20, true));
+		for (int i = 0; i < 5000; i++) {
+			brickPi.sweep(sweep);
+		}
+		System.out.println(sweep.getMotorStatus(MotorPort.MA).position);
+		System.out.flush();
+		Runtime.getRuntime().halt(3);
+	}
+
+	private static BrickPiSPI newBrickPi() throws IOException {
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+			simulator.setSensorValue(port.ordinal(), (byte)(port.ordinal() & 1));
+		}
+		brickPi.setMotor(new MotorPort[] { MotorPort.MA }, 50);
+		return brickPi;
+	}
+
+	private static PortSweep newSweep() {
+		PortSweep sweep = new PortSweep();
+		for (SensorPort port : SensorPort.values()) {
+			sweep.readSensor(port, true);
+		}
+		for (MotorPort port : MotorPort.values()) {
+			sweep.readMotor(port, true);
+		}
+		return sweep;
+	}
+
+	private static long sweepNanos(BrickPiSPI brickPi, PortSweep sweep, int loop) throws IOException {
+		long t = System.nanoTime();
+		for (int i = 0; i < loop; i++) {
+			brickPi.sweep(sweep);
+		}
+		return (System.nanoTime() - t) / loop;
+	}
+
+	private static long allocated(BrickPiSPI brickPi, PortSweep sweep) throws IOException {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++) {
+			long before = threads.getCurrentThreadAllocatedBytes();
+			for (int i = 0; i < 1000; i++) {
+				brickPi.sweep(sweep);
+			}
+			allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+		}
+		return allocated;
+	}
+
+	/**
+	 * Check that the records are in order, that the motor only moves forward,
+	 * and that the newest record is the last sweep.
+	 */
+	private static int check(List<TelemetryLogReader.Record> records, int lastPosition) {
+		if (records.isEmpty()) {
+			System.out.println("FAIL: no records");
+			return 1;
+		}
+		TelemetryLogReader.Record previous = null;
+		for (TelemetryLogReader.Record record : records) {
+			if (!record.motorValid[MotorPort.MA.ordinal()] || !record.sensorValid[SensorPort.S4.ordinal()]
+					|| record.getSensorValue(SensorPort.S2) != 1 || record.getSensorValue(SensorPort.S3) != 0) {
+				System.out.println("FAIL: bad record " + record);
+				return 1;
+			}
+			if (previous != null && (record.nanoTime < previous.nanoTime
+					|| record.getMotorPosition(MotorPort.MA) < previous.getMotorPosition(MotorPort.MA))) {
+				System.out.println("FAIL: out of order " + previous + " then " + record);
+				return 1;
+			}
+			previous = record;
+		}
+		if (previous.getMotorPosition(MotorPort.MA) != lastPosition) {
+			System.out.println("FAIL: last MA " + previous.getMotorPosition(MotorPort.MA) + " expected " + lastPosition);
+			return 1;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,209 @@
+package com.ergotech.brickpi.motion;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * MotionMonitorTest sends simulated motors to positions on a virtual clock
+ * and reports the bus transactions per completed move, and how long after
+ * arriving the move was known to be complete, for three ways of waiting:
+ * reading the status in a tight loop, reading it every 5ms, and a
+ * MotionMonitor future. The future must take a small fraction of the tight
+ * loop's transactions and fewer than the fixed poll's on the longer moves,
+ * while completing within a few milliseconds of arriving. Two motors moving
+ * at once, a replaced move, a timeout and the monitor's own thread on the
+ * real clock are checked too.
+ *
+ */
+public class MotionMonitorTest {
+
+	private static final long MS = 1000000L;
+	private static final int[] DISTANCES = { 90, 720, 3600 };
+
+	public MotionMonitorTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("MotionMonitorTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int failures = 0;
+
+		for (int distance : DISTANCES) {
+			Board busy = new Board();
+			busy.brickPi.setMotorPosition(busy.ma, distance);
+			busy.waitPolling(distance, 0);
+			Board fixed = new Board();
+			fixed.brickPi.setMotorPosition(fixed.ma, distance);
+			fixed.waitPolling(distance, 5 * MS);
+			Board adaptive = new Board();
+			CompletableFuture<MotorStatus> move = adaptive.monitor.setMotorPosition(MotorPort.MA, distance);
+			adaptive.waitFuture(move);
+			MotorStatus status = move.getNow(null);
+
+			System.out.println(String.format("%5d degrees: tight loop %5d transactions, every 5ms %3d (+%.1fms),"
+					+ " future %3d (+%.1fms) reads=%d", distance, busy.sent(), fixed.sent(),
+					(fixed.done - busy.done) / 1e6, adaptive.sent(), (adaptive.done - busy.done) / 1e6,
+					adaptive.monitor.getReadCount()));
+			if (status == null || Math.abs(status.position - distance) > MotionMonitor.DEFAULT_TOLERANCE
+					|| adaptive.sent() * 10 > busy.sent() || (distance > 90 && adaptive.sent() >= fixed.sent())
+					|| adaptive.done - busy.done > 5 * MS || adaptive.monitor.getCompletedCount() != 1) {
+				System.out.println("FAIL: move of " + distance);
+				failures++;
+			}
+		}
+
+		// two motors, MB counter clockwise, arriving at different times
+		Board board = new Board();
+		Motor forward = new Motor();
+		board.brickPi.initializeMotor(MotorPort.MA, forward);
+		Motor reversed = new Motor();
+		reversed.setDirection(Motor.Direction.COUNTER_CLOCKWISE);
+		board.brickPi.initializeMotor(MotorPort.MB, reversed);
+		CompletableFuture<MotorStatus> ma = board.monitor.rotate(MotorPort.MA, forward, 0.5);
+		CompletableFuture<MotorStatus> mb = board.monitor.rotate(MotorPort.MB, reversed, 3);
+		board.waitFuture(CompletableFuture.allOf(ma, mb));
+		if (Math.abs(ma.get().position - 180) > 2 || Math.abs(mb.get().position + 1080) > 2
+				|| board.monitor.getPendingCount() != 0) {
+			System.out.println("FAIL: rotations ended at " + ma.get().position + " and " + mb.get().position);
+			failures++;
+		}
+
+		// a new move on the port replaces the first
+		board = new Board();
+		CompletableFuture<MotorStatus> first = board.monitor.setMotorPosition(MotorPort.MA, 3600);
+		board.clock.advance(200 * MS);
+		board.monitor.poll(board.clock.nanoTime());
+		CompletableFuture<MotorStatus> second = board.monitor.setMotorPosition(MotorPort.MA, 0);
+		board.waitFuture(second);
+		if (!first.isCancelled() || Math.abs(second.get().position) > 2) {
+			System.out.println("FAIL: replaced move");
+			failures++;
+		}
+
+		// a move that can't arrive in time
+		board = new Board();
+		board.monitor.setTimeout(100, TimeUnit.MILLISECONDS);
+		CompletableFuture<MotorStatus> late = board.monitor.setMotorPosition(MotorPort.MA, 3600);
+		board.waitFuture(late);
+		failures += expect("timeout", late, TimeoutException.class, board.clock.nanoTime() - board.start > 110 * MS);
+		board.monitor.setTimeout(0, TimeUnit.MILLISECONDS);
+
+		failures += realTime();
+
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static int expect(String name, CompletableFuture<?> future, Class<?> exception, boolean late) {
+		Throwable cause = null;
+		try {
+			future.get();
+		} catch (ExecutionException ex) {
+			cause = ex.getCause();
+		} catch (CancellationException | InterruptedException ex) {
+			cause = ex;
+		}
+		if (!exception.isInstance(cause) || late) {
+			System.out.println("FAIL: " + name + " ended with " + cause);
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * The monitor's own thread, on a board running on the real clock.
+	 */
+	private static int realTime() throws Exception {
+		VirtualClock clock = new VirtualClock() {
+			@Override
+			public long nanoTime() {
+				return System.nanoTime();
+			}
+		};
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		Motor motor = new Motor();
+		brickPi.initializeMotor(MotorPort.MA, motor);
+		brickPi.initializeMotor(MotorPort.MB, motor);
+		MotionMonitor monitor = new MotionMonitor(brickPi);
+		monitor.start();
+		long start = System.nanoTime();
+		MotorStatus status = monitor.rotate(MotorPort.MA, motor, 1).get(5, TimeUnit.SECONDS);
+		long took = System.nanoTime() - start;
+		CompletableFuture<MotorStatus> open = monitor.rotate(MotorPort.MB, motor, 10);
+		monitor.close();
+		System.out.println(String.format("own thread: one turn in %.0fms, %d reads", took / 1e6, monitor.getReadCount()));
+		if (Math.abs(status.position - 360) > 2 || !open.isCancelled()) {
+			System.out.println("FAIL: own thread ended at " + status.position);
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * A simulated board with MA initialized at rest at zero.
+	 */
+	private static class Board {
+
+		final VirtualClock clock = new VirtualClock();
+		final SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		final BrickPiSPI brickPi;
+		final MotionMonitor monitor;
+		final MotorPort[] ma = { MotorPort.MA };
+		final long transactions;
+		final long start;
+		long done;
+
+		Board() throws IOException {
+			brickPi = new BrickPiSPI((byte)0x01, simulator);
+			brickPi.initializeMotor(MotorPort.MA, new Motor());
+			monitor = new MotionMonitor(brickPi, clock::nanoTime);
+			transactions = simulator.getTransactions();
+			start = clock.nanoTime();
+		}
+
+		long sent() {
+			return simulator.getTransactions() - transactions;
+		}
+
+		/**
+		 * Read the status every period, or back to back, until the motor
+		 * has arrived.
+		 */
+		void waitPolling(int target, long period) throws IOException {
+			MotorStatus status = new MotorStatus();
+			while (true) {
+				brickPi.getMotorStatus(MotorPort.MA, status);
+				if (Math.abs(status.position - target) <= MotionMonitor.DEFAULT_TOLERANCE
+						&& Math.abs(status.dps) <= MotionMonitor.DEFAULT_SPEED_TOLERANCE) {
+					break;
+				}
+				clock.advance(period);
+			}
+			done = clock.nanoTime();
+		}
+
+		void waitFuture(CompletableFuture<?> future) {
+			while (!future.isDone()) {
+				long next = monitor.poll(clock.nanoTime());
+				if (next == MotionMonitor.IDLE) {
+					break;
+				}
+				clock.advanceTo(next);
+			}
+			done = clock.nanoTime();
+		}
+	}
+}
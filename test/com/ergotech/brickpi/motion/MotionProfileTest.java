@@ -0,0 +1,183 @@
+package com.ergotech.brickpi.motion;
+
+import java.io.IOException;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * MotionProfileTest checks the planned tables of trapezoidal and S-curve
+ * moves, long and short, forwards and backwards: that they end on the
+ * distance and stay within the speed and acceleration. It then moves
+ * simulated motors two turns on a virtual clock, one of them counter
+ * clockwise, and checks that the profiled moves stop on the target without
+ * passing it and take tens of bus transactions, where running at full
+ * power and polling every 5ms until past the target takes hundreds and
+ * overshoots. A move updated late and an abandoned move are checked too.
+ *
+ */
+public class MotionProfileTest {
+
+	private static final int MAX_DPS = 900;
+	private static final int ACCELERATION = 3000;
+	private static final long STEP = 1000000L;
+
+	public MotionProfileTest() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("MotionProfileTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int failures = 0;
+
+		int[] distances = { 720, -720, 30, -1, 5000, 0 };
+		for (MotionProfile.Shape shape : MotionProfile.Shape.values()) {
+			for (int distance : distances) {
+				failures += checkTable(MotionProfile.plan(shape, distance, MAX_DPS, ACCELERATION));
+			}
+		}
+		System.out.println(MotionProfile.plan(MotionProfile.Shape.S_CURVE, 720, MAX_DPS, ACCELERATION));
+
+		// full power until a poll finds the motor past the target, as rotate does
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		BrickPiSPI brickPi = newBrickPi(simulator);
+		MotorPort[] ma = { MotorPort.MA };
+		long transactions = simulator.getTransactions();
+		int origin = brickPi.getMotorEncoder(MotorPort.MA);
+		brickPi.setMotor(ma, 100);
+		while (brickPi.getMotorEncoder(MotorPort.MA) - origin < 720) {
+			clock.advance(5000000L);
+		}
+		brickPi.setMotor(ma, 0);
+		long polled = simulator.getTransactions() - transactions;
+		clock.advance(1000000000L);
+		int overshoot = simulator.getMotorEncoder(0) - origin - 720;
+		System.out.println("polled: transactions=" + polled + " overshoot=" + overshoot);
+
+		for (MotionProfile.Shape shape : MotionProfile.Shape.values()) {
+			MotionProfile profile = MotionProfile.plan(shape, 720, MAX_DPS, ACCELERATION);
+			for (MotorPort port : new MotorPort[] { MotorPort.MA, MotorPort.MB }) {
+				failures += checkMove(shape, port, profile, STEP, polled);
+			}
+		}
+
+		// updated every 100ms the move skips segments but still lands
+		failures += checkMove(MotionProfile.Shape.TRAPEZOIDAL, MotorPort.MC,
+				MotionProfile.plan(MotionProfile.Shape.TRAPEZOIDAL, -1000, MAX_DPS, ACCELERATION), 100000000L, polled);
+
+		// an abandoned move stops the motor short of the target
+		ProfiledMove move = new ProfiledMove(brickPi, MotorPort.MA, new Motor(),
+				MotionProfile.plan(MotionProfile.Shape.S_CURVE, 3600, MAX_DPS, ACCELERATION));
+		long next = move.start(clock.nanoTime());
+		clock.advanceTo(next + 300000000L);
+		move.update(clock.nanoTime());
+		move.stop();
+		clock.advance(500000000L);
+		if (!move.isFinished() || Math.abs(simulator.getMotorDps(0)) > 1 || move.update(clock.nanoTime()) != ProfiledMove.FINISHED
+				|| simulator.getMotorEncoder(0) >= move.getTarget()) {
+			System.out.println("FAIL: stop left the motor at " + simulator.getMotorDps(0) + " dps");
+			failures++;
+		}
+
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static BrickPiSPI newBrickPi(SimulatedBrickPi simulator) throws IOException {
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		return brickPi;
+	}
+
+	private static int checkTable(MotionProfile profile) {
+		int count = profile.getBreakpointCount();
+		int last = count - 1;
+		int sign = profile.getDistance() < 0 ? -1 : 1;
+		String problem = null;
+		if (profile.getPosition(last) != profile.getDistance() || profile.getDps(last) != 0
+				|| profile.getPositionAt(profile.getDuration() + 1) != profile.getDistance()) {
+			problem = "does not end on the distance";
+		} else if (count > 2 * MotionProfile.DEFAULT_SEGMENTS + 2) {
+			problem = count + " breakpoints";
+		} else if (Math.abs(profile.getPeakDps()) > MAX_DPS) {
+			problem = "peaks at " + profile.getPeakDps();
+		}
+		for (int i = 0; problem == null && i < last; i++) {
+			long segment = profile.getTime(i + 1) - profile.getTime(i);
+			int dps = profile.getDps(i);
+			if (segment <= 0 || dps * sign <= 0 || Math.abs(dps) > MAX_DPS + 1
+					|| (profile.getPosition(i + 1) - profile.getPosition(i)) * sign < 0) {
+				problem = "segment " + i + " " + segment + "ns at " + dps + " dps";
+			} else if (i + 1 < last) {
+				double shortest = Math.min(segment, profile.getTime(i + 2) - profile.getTime(i + 1)) / 1e9;
+				if (Math.abs(profile.getDps(i + 1) - dps) > ACCELERATION * shortest * 1.01 + 1) {
+					problem = "speed steps from " + dps + " to " + profile.getDps(i + 1);
+				}
+			}
+			if (problem == null && profile.getBreakpoint(profile.getTime(i)) != i) {
+				problem = "breakpoint " + i + " not found";
+			}
+		}
+		if (problem != null) {
+			System.out.println("FAIL: " + profile + " " + problem);
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Make a move on a fresh board, updating it every period, and check it
+	 * against the polled move.
+	 */
+	private static int checkMove(MotionProfile.Shape shape, MotorPort port, MotionProfile profile,
+			long period, long polled) throws IOException {
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		BrickPiSPI brickPi = newBrickPi(simulator);
+		Motor motor = new Motor();
+		if (port == MotorPort.MB) {
+			motor.setDirection(Motor.Direction.COUNTER_CLOCKWISE);
+		}
+		brickPi.initializeMotor(port, motor);
+		int index = port.ordinal();
+		long transactions = simulator.getTransactions();
+		ProfiledMove move = new ProfiledMove(brickPi, port, motor, profile);
+		long start = clock.nanoTime();
+		long next = move.start(start);
+		int origin = move.getTarget() - profile.getDistance() * motor.getDirectionVector();
+		double lag = 0;
+		int overshoot = 0;
+		long end = start + profile.getDuration() + 500000000L;
+		for (long tick = 1; clock.nanoTime() < end; tick++) {
+			clock.advance(STEP);
+			long now = clock.nanoTime();
+			if (tick % (period / STEP) == 0 && now >= next) {
+				next = move.update(now);
+			}
+			// in the motor's direction, forwards along the move
+			double moved = (simulator.getMotorEncoder(index) - origin) * motor.getDirectionVector();
+			double planned = profile.getPositionAt(now - start);
+			lag = Math.max(lag, Math.abs(planned - moved));
+			overshoot = Math.max(overshoot, (int)Math.round((moved - profile.getDistance()) * Integer.signum(profile.getDistance())));
+		}
+		long sent = simulator.getTransactions() - transactions;
+		int error = simulator.getMotorEncoder(index) - move.getTarget();
+		System.out.println(shape + " " + port + " " + profile.getDistance() + " every " + period / 1000000 + "ms:"
+				+ " transactions=" + sent + " commands=" + move.getCommandCount()
+				+ " duration=" + profile.getDuration() / 1000000 + "ms max lag=" + String.format("%.1f", lag)
+				+ " overshoot=" + overshoot + " error=" + error);
+		if (!move.isFinished() || Math.abs(error) > 1 || overshoot > 1 || sent > 30 || sent * 4 > polled) {
+			System.out.println("FAIL: " + shape + " move on " + port);
+			return 1;
+		}
+		return 0;
+	}
+}
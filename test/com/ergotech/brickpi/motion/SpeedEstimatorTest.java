@@ -0,0 +1,244 @@
+package com.ergotech.brickpi.motion;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * SpeedEstimatorTest feeds the estimator a motor swinging back and forth at
+ * up to 600 degrees a second, polled every 5ms with 2ms of jitter, reading
+ * whole degrees from an encoder that overflows part way through. It
+ * compares the speed with the instantaneous millisecond estimate Motor used
+ * to make, checks that the unwrapped position stays continuous, that the
+ * sign follows each reversal promptly and that updates do not allocate. It
+ * then polls a simulated board through BrickPiSPI and checks the motor's
+ * speed against the simulated one, and that initializing a motor keeps a
+ * resolution the caller set.
+ *
+ */
+public class SpeedEstimatorTest {
+
+	private static final double AMPLITUDE = 600;
+	private static final double PERIOD = 2.0;
+
+	public SpeedEstimatorTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("SpeedEstimatorTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int failures = 0;
+		Random random = new Random(3);
+
+		SpeedEstimator estimator = new SpeedEstimator();
+		// start just short of the overflow, so the encoder wraps in the first swing
+		double start = Integer.MAX_VALUE - 100.0;
+		long t0 = 1000000000L;
+		long time = t0;
+		double oldSpeed = 0;
+		int lastEncoder = 0;
+		long lastMillis = 0;
+		double estimateError = 0;
+		double oldError = 0;
+		double accelerationError = 0;
+		int samples = 0;
+		int discontinuities = 0;
+		long highest = Long.MIN_VALUE;
+		int lateReversals = 0;
+		long reversalTime = -1;
+		double lastTrue = 0;
+		for (int i = 0; i < 4000; i++) {
+			time += 5000000L + random.nextInt(4000001) - 2000000;
+			double seconds = (time - t0) / 1e9;
+			double trueSpeed = speed(seconds);
+			double truePosition = start + position(seconds);
+			long whole = Math.round(truePosition);
+			int encoder = (int)whole;
+			estimator.update(time, encoder);
+
+			// what Motor.decodeValues used to do, given the true direction
+			long millis = time / 1000000L;
+			if (i > 0 && millis != lastMillis) {
+				oldSpeed = Math.abs((double)(lastEncoder - encoder) / (millis - lastMillis) * 1000)
+						* Math.signum(trueSpeed);
+			}
+			lastEncoder = encoder;
+			lastMillis = millis;
+
+			if (estimator.getPosition() != whole) {
+				discontinuities++;
+			}
+			highest = Math.max(highest, estimator.getPosition());
+			if (Math.signum(trueSpeed) != Math.signum(lastTrue)) {
+				reversalTime = time;
+			}
+			lastTrue = trueSpeed;
+			if (i >= 20) {
+				estimateError += square(estimator.getSpeed() - trueSpeed);
+				oldError += square(oldSpeed - trueSpeed);
+				accelerationError += square(estimator.getAcceleration() - acceleration(seconds));
+				samples++;
+				// 50ms after the reversal the estimate must have turned too
+				if (reversalTime > 0 && time - reversalTime > 50000000L && Math.abs(trueSpeed) > 100
+						&& Math.signum(estimator.getSpeed()) != Math.signum(trueSpeed)) {
+					lateReversals++;
+					reversalTime = -1;
+				}
+			}
+		}
+		double rms = Math.sqrt(estimateError / samples);
+		double oldRms = Math.sqrt(oldError / samples);
+		double accelerationRms = Math.sqrt(accelerationError / samples);
+		double peakAcceleration = AMPLITUDE * 2 * Math.PI / PERIOD;
+		System.out.println(String.format("speed rms error: estimator=%.1f deg/s instantaneous ms=%.1f deg/s", rms, oldRms));
+		System.out.println(String.format("acceleration rms error=%.0f deg/s^2 of peak %.0f", accelerationRms, peakAcceleration));
+		System.out.println("highest position=" + highest + " discontinuities=" + discontinuities
+				+ " late reversals=" + lateReversals);
+		if (rms > oldRms / 2 || rms > AMPLITUDE * 0.1) {
+			System.out.println("FAIL: speed error " + rms);
+			failures++;
+		}
+		if (accelerationRms > peakAcceleration * 0.5) {
+			System.out.println("FAIL: acceleration error " + accelerationRms);
+			failures++;
+		}
+		if (discontinuities != 0 || highest <= Integer.MAX_VALUE || lateReversals != 0) {
+			System.out.println("FAIL: position or reversals");
+			failures++;
+		}
+
+		// a stalled motor reads zero, and a gap starts again
+		long stalled = estimator.getPosition();
+		for (int i = 0; i < 20; i++) {
+			time += 5000000L;
+			estimator.update(time, (int)stalled);
+		}
+		double stalledSpeed = estimator.getSpeed();
+		time += 2000000000L;
+		estimator.update(time, (int)stalled + 1000);
+		System.out.println(String.format("stalled speed=%.2f after gap valid=%b", stalledSpeed, estimator.isValid()));
+		if (Math.abs(stalledSpeed) > 5 || estimator.isValid() || estimator.getPosition() != stalled + 1000) {
+			System.out.println("FAIL: stall or gap");
+			failures++;
+		}
+
+		// the motor's speed is unknown again after a gap
+		Motor motor = new Motor();
+		motor.updateEncoder(time, 0);
+		motor.updateEncoder(time + 10000000L, 36);
+		double running = motor.getCurrentSpeed();
+		motor.updateEncoder(time + 2010000000L, 72);
+		if (running <= 0 || motor.getCurrentSpeed() != -1) {
+			System.out.println("FAIL: motor speed after gap " + motor.getCurrentSpeed());
+			failures++;
+		}
+
+		failures += allocation(estimator);
+		failures += board();
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static double speed(double seconds) {
+		return AMPLITUDE * Math.cos(2 * Math.PI * seconds / PERIOD);
+	}
+
+	private static double position(double seconds) {
+		return AMPLITUDE * PERIOD / (2 * Math.PI) * Math.sin(2 * Math.PI * seconds / PERIOD);
+	}
+
+	private static double acceleration(double seconds) {
+		return -AMPLITUDE * 2 * Math.PI / PERIOD * Math.sin(2 * Math.PI * seconds / PERIOD);
+	}
+
+	private static double square(double value) {
+		return value * value;
+	}
+
+	private static int allocation(SpeedEstimator estimator) {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long time = 0;
+		long allocated = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++) {
+			long before = threads.getCurrentThreadAllocatedBytes();
+			for (int i = 0; i < 200000; i++) {
+				time += 5000000L;
+				estimator.update(time, (i * 3) ^ (i & 8));
+			}
+			allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+		}
+		System.out.println("allocated=" + allocated);
+		if (allocated != 0) {
+			System.out.println("FAIL: allocated " + allocated + " bytes");
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Poll a simulated motor every 5ms. The motor runs on System.nanoTime,
+	 * which the polls are timed by, so a poll that is preempted reads the
+	 * position of the time it is stamped with.
+	 */
+	private static int board() throws IOException {
+		VirtualClock clock = new VirtualClock() {
+			@Override
+			public long nanoTime() {
+				return System.nanoTime();
+			}
+		};
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		Motor motor = new Motor();
+		brickPi.initializeMotor(MotorPort.MA, motor);
+		Motor geared = new Motor();
+		geared.setTicksPerRevolution(720);
+		brickPi.initializeMotor(MotorPort.MB, geared);
+		if (motor.getTicksPerRevolution() != 360 || geared.getTicksPerRevolution() != 720) {
+			System.out.println("FAIL: ticks per revolution " + motor.getTicksPerRevolution() + " and "
+					+ geared.getTicksPerRevolution());
+			return 1;
+		}
+		PortSweep sweep = new PortSweep();
+		sweep.readMotor(MotorPort.MA, true);
+		sweep.setMotorPower(MotorPort.MA, 60);
+		long start = System.nanoTime();
+		// whole degrees every 5ms are noisy, and a poll preempted between the
+		// transfer and its time stamp is off, so take the median of the last 40
+		double[] estimates = new double[40];
+		double[] rpms = new double[40];
+		for (int i = 0; i < 200; i++) {
+			long deadline = start + i * 5000000L;
+			while (System.nanoTime() < deadline) {
+				Thread.onSpinWait();
+			}
+			brickPi.sweep(sweep);
+			if (i >= 160) {
+				estimates[i - 160] = motor.getSpeedEstimator().getSpeed();
+				rpms[i - 160] = motor.getCurrentSpeed();
+			}
+		}
+		Arrays.sort(estimates);
+		Arrays.sort(rpms);
+		double estimate = (estimates[19] + estimates[20]) / 2;
+		double rpm = (rpms[19] + rpms[20]) / 2;
+		double dps = simulator.getMotorDps(0);
+		System.out.println(String.format("board dps=%.0f estimate=%.0f rpm=%.1f", dps, estimate, rpm));
+		if (Math.abs(estimate - dps) > dps * 0.05 || Math.abs(rpm - dps / 6) > dps / 120) {
+			System.out.println("FAIL: board speed");
+			return 1;
+		}
+		return 0;
+	}
+}
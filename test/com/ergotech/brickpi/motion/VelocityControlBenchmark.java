@@ -0,0 +1,145 @@
+package com.ergotech.brickpi.motion;
+
+import java.io.IOException;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * VelocityControlBenchmark drives four simulated motors, one of them set
+ * counter clockwise, through the same speed profile twice on a virtual
+ * clock. First the speed loop is closed in Java: every 5ms a sweep reads
+ * the motor statuses and sends a power correction to each motor that needs
+ * one. Then the loop is left to the firmware: each setpoint is sent once
+ * with setMotorDps and the statuses are only read at 20Hz to watch. It
+ * reports the bus transactions, bytes and bus time per second and the
+ * speed tracking error of each, and exits with a non-zero status if the
+ * firmware loop did not track as well or did not cut the transactions
+ * tenfold.
+ *
+ */
+public class VelocityControlBenchmark {
+
+	private static final int[] PROFILE = { 300, -200, 500, 0, 150, -400, 250, 0, 600, -100 };
+	private static final long STEP = 2000000000L;
+	private static final long CONTROL_PERIOD = 5000000L;
+	private static final long WATCH_PERIOD = 50000000L;
+	private static final MotorPort[] PORTS = MotorPort.values();
+
+	public VelocityControlBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("VelocityControlBenchmark -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int failures = 0;
+		double[] java = run(false);
+		double[] firmware = run(true);
+		report("java", java);
+		report("firmware", firmware);
+		System.out.println(String.format("transactions cut %.1fx, bytes cut %.1fx",
+				java[0] / firmware[0], java[1] / firmware[1]));
+		if (java[0] / firmware[0] < 10) {
+			System.out.println("FAIL: transactions cut only " + java[0] / firmware[0]);
+			failures++;
+		}
+		if (firmware[3] > java[3] * 1.5 || java[3] > 100) {
+			System.out.println("FAIL: tracking error");
+			failures++;
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void report(String name, double[] result) {
+		System.out.println(String.format("%s: transactions/s=%.0f bytes/s=%.0f bus=%.1f%% rms error=%.1f dps",
+				name, result[0], result[1], result[2] * 100, result[3]));
+	}
+
+	/**
+	 * @return the transactions per second, bytes per second, fraction of
+	 * the time the bus was busy and the rms speed error.
+	 */
+	private static double[] run(boolean firmware) throws IOException {
+		VirtualClock clock = new VirtualClock();
+		SimulatedBrickPi simulator = new SimulatedBrickPi(clock);
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		Motor[] motors = new Motor[PORTS.length];
+		PortSweep sweep = new PortSweep();
+		for (MotorPort port : PORTS) {
+			motors[port.ordinal()] = new Motor();
+			brickPi.initializeMotor(port, motors[port.ordinal()]);
+			sweep.readMotor(port, true);
+		}
+		motors[MotorPort.MB.ordinal()].setDirection(Motor.Direction.COUNTER_CLOCKWISE);
+		long transactions = simulator.getTransactions();
+		long bytes = simulator.getBytesTransferred();
+		long busNanos = simulator.getBusNanos();
+
+		double[] integral = new double[PORTS.length];
+		int[] power = new int[PORTS.length];
+		double squaredError = 0;
+		int samples = 0;
+		long start = clock.nanoTime();
+		long end = start + PROFILE.length * STEP;
+		int setpoint = Integer.MIN_VALUE;
+		for (long cycle = start; cycle < end; cycle += CONTROL_PERIOD) {
+			clock.advanceTo(cycle);
+			int target = PROFILE[(int)((cycle - start) / STEP)];
+			if (firmware) {
+				if (target != setpoint) {
+					brickPi.setMotorDps(PORTS, target);
+				}
+				if ((cycle - start) % WATCH_PERIOD == 0) {
+					brickPi.sweep(sweep);
+				}
+			} else {
+				brickPi.sweep(sweep);
+				for (MotorPort port : PORTS) {
+					int i = port.ordinal();
+					if (!sweep.isValid(port)) {
+						continue;
+					}
+					if (target != setpoint) {
+						integral[i] = 0;
+					}
+					double error = target - sweep.getMotorStatus(port).dps * motors[i].getDirectionVector();
+					integral[i] += error * CONTROL_PERIOD / 1e9;
+					double correction = target * 100.0 / SimulatedBrickPi.MAX_DPS + error * 0.05 + integral[i] * 2;
+					int next = (int)Math.round(Math.max(-100, Math.min(100, correction)));
+					if (next != power[i]) {
+						sweep.setMotorPower(port, next);
+						power[i] = next;
+					}
+				}
+			}
+			setpoint = target;
+			// skip the first 200ms of each step, when both are still getting there
+			if ((cycle - start) % STEP >= 200000000L) {
+				for (MotorPort port : PORTS) {
+					double actual = simulator.getMotorDps(port.ordinal()) * motors[port.ordinal()].getDirectionVector();
+					squaredError += (actual - target) * (actual - target);
+					samples++;
+				}
+			}
+		}
+		if (!firmware) {
+			// the corrections of the last cycle
+			brickPi.sweep(sweep.readMotor(MotorPort.MA, false));
+		}
+		double seconds = (clock.nanoTime() - start) / 1e9;
+		long sent = simulator.getTransactions() - transactions;
+		System.out.println((firmware ? "firmware" : "java") + ": " + sent + " transactions, "
+				+ simulator.getMessageCount(BPSPI_MESSAGE_TYPE.SET_MOTOR_POWER) + " power, "
+				+ simulator.getMessageCount(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS) + " dps");
+		return new double[] { sent / seconds, (simulator.getBytesTransferred() - bytes) / seconds,
+				(simulator.getBusNanos() - busNanos) / 1e9 / seconds, Math.sqrt(squaredError / samples) };
+	}
+}
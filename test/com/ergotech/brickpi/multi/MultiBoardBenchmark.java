@@ -0,0 +1,157 @@
+package com.ergotech.brickpi.multi;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedSpiBus;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * MultiBoardBenchmark stacks 1, 2 and 4 simulated boards on one bus and
+ * sweeps every port of every board, first from one thread taking each board
+ * in turn and then through BrickPiManager, which sweeps the boards on the
+ * shared bus as one batch. It reports the aggregate sweeps/second, checks
+ * that the manager is at least as fast as the sequential sweeps, and that
+ * both make the same transactions and that each unified port index reaches
+ * the right board.
+ *
+ */
+public class MultiBoardBenchmark {
+
+	private static final int ROUNDS = 40;
+
+	private static final int ATTEMPTS = 3;
+
+	/**
+	 * The timing noise allowed before the manager counts as slower.
+	 */
+	private static final double SLACK = 1.05;
+
+	public MultiBoardBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("MultiBoardBenchmark -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		// warm up
+		int failures = run(4, loop, false);
+		for (int boardCount : new int[] { 1, 2, 4 }) {
+			failures += run(boardCount, loop, true);
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static int run(int boardCount, int loop, boolean report) throws Exception {
+		int[] addresses = new int[boardCount];
+		for (int i = 0; i < boardCount; i++) {
+			addresses[i] = i + 1;
+		}
+		SimulatedSpiBus bus = new SimulatedSpiBus(new VirtualClock(), addresses);
+		BrickPiSPI[] direct = new BrickPiSPI[boardCount];
+		int failures = 0;
+		try (BrickPiManager manager = new BrickPiManager()) {
+			for (int board = 0; board < boardCount; board++) {
+				direct[board] = new BrickPiSPI((byte)addresses[board], bus);
+				manager.addBoard(direct[board]);
+			}
+			for (int motor = 0; motor < manager.getMotorPortCount(); motor++) {
+				manager.initializeMotor(motor, new Motor()).join();
+				// each motor reads back its own unified index
+				manager.setMotorEncoderOffset(motor, -motor * 1000).join();
+			}
+			for (int sensor = 0; sensor < manager.getSensorPortCount(); sensor++) {
+				manager.setSensor(sensor, new EV3TouchSensor()).join();
+				bus.getBoard(addresses[BrickPiManager.boardOf(sensor)])
+						.setSensorValue(BrickPiManager.sensorPortOf(sensor).ordinal(), (byte)(sensor & 1));
+			}
+			PortSweep[] sweeps = manager.newSweeps();
+			for (PortSweep sweep : sweeps) {
+				for (SensorPort port : SensorPort.values()) {
+					sweep.readSensor(port, true);
+				}
+				for (MotorPort port : MotorPort.values()) {
+					sweep.readMotor(port, true);
+				}
+			}
+
+			// best of many short rounds, alternating, so a slow moment
+			// doesn't decide the comparison
+			int roundLoop = Math.max(1, loop * 4 / ROUNDS);
+			long sequentialTime = Long.MAX_VALUE;
+			long managerTime = Long.MAX_VALUE;
+			long sequentialTransactions = 0;
+			long managerTransactions = 0;
+			// round 0 warms up both paths for this number of boards, and
+			// a manager that looks slower gets more rounds before failing
+			int rounds = ROUNDS;
+			for (int round = 0; round <= rounds; round++) {
+				long transactions = bus.getTransactions();
+				long t = System.nanoTime();
+				for (int i = 0; i < roundLoop; i++) {
+					for (int board = 0; board < boardCount; board++) {
+						direct[board].sweep(sweeps[board]);
+					}
+				}
+				if (round > 0) {
+					sequentialTime = Math.min(sequentialTime, System.nanoTime() - t);
+				}
+				sequentialTransactions += bus.getTransactions() - transactions;
+
+				transactions = bus.getTransactions();
+				t = System.nanoTime();
+				for (int i = 0; i < roundLoop; i++) {
+					manager.sweepAll(sweeps).join();
+				}
+				if (round > 0) {
+					managerTime = Math.min(managerTime, System.nanoTime() - t);
+				}
+				managerTransactions += bus.getTransactions() - transactions;
+				if (round == rounds && rounds < ROUNDS * ATTEMPTS && managerTime > sequentialTime * SLACK) {
+					rounds += ROUNDS;
+				}
+			}
+
+			for (int motor = 0; motor < manager.getMotorPortCount(); motor++) {
+				PortSweep sweep = sweeps[BrickPiManager.boardOf(motor)];
+				int position = sweep.getMotorStatus(BrickPiManager.motorPortOf(motor)).position;
+				if (position != motor * 1000 || manager.getMotorEncoder(motor).join() != motor * 1000) {
+					System.out.println("FAIL: motor " + motor + " read " + position);
+					failures++;
+				}
+			}
+			for (int sensor = 0; sensor < manager.getSensorPortCount(); sensor++) {
+				EV3TouchSensor touch = manager.<EV3TouchSensor>getSensor(sensor).join();
+				if (touch.getValue() != (sensor & 1)) {
+					System.out.println("FAIL: sensor " + sensor + " read " + touch.getValue());
+					failures++;
+				}
+			}
+			if (sequentialTransactions != managerTransactions) {
+				System.out.println("FAIL: " + sequentialTransactions + " sequential transactions but "
+						+ managerTransactions + " through the manager");
+				failures++;
+			}
+			if (report && managerTime > sequentialTime * SLACK) {
+				System.out.println("FAIL: manager slower than sequential, " + managerTime / 1000 + "us against "
+						+ sequentialTime / 1000 + "us");
+				failures++;
+			}
+			if (report) {
+				System.out.println("boards=" + boardCount
+						+ " sequential sweeps/s=" + (int)(roundLoop * boardCount / (sequentialTime / 1e9))
+						+ " manager sweeps/s=" + (int)(roundLoop * boardCount / (managerTime / 1e9))
+						+ " transactions/s=" + (int)(managerTransactions / (rounds + 1) / (managerTime / 1e9)));
+			}
+		}
+		return failures;
+	}
+}
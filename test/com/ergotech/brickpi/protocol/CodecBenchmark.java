@@ -0,0 +1,85 @@
+package com.ergotech.brickpi.protocol;
+
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.motion.MotorStatus;
+
+/**
+ * CodecBenchmark compares the hand-rolled motor status decoding that
+ * BrickPiSPI used to do, which shifted signed bytes and allocated a
+ * MotorStatus per call, with BrickPiCodec decoding into a reused holder.
+ * It also checks that the codec round trips negative values.
+ *
+ */
+public class CodecBenchmark {
+
+	public CodecBenchmark() {
+	}
+
+	public static void main(String[] args) {
+		System.out.println("CodecBenchmark -----");
+		int loop = 10000000;
+		if (args != null && args.length > 0) {
+			loop = Integer.parseInt(args[0]);
+		}
+		BrickPiCodec codec = new BrickPiCodec((byte)0x01);
+
+		// a status frame as the board returns it, position -200000, dps -300
+		byte[] frame = codec.encodeRead(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS);
+		frame[3] = (byte)0xA5;
+		frame[5] = (byte)-50;
+		frame[6] = (byte)0xFF;
+		frame[7] = (byte)0xFC;
+		frame[8] = (byte)0xF2;
+		frame[9] = (byte)0xC0;
+		frame[10] = (byte)0xFE;
+		frame[11] = (byte)0xD4;
+
+		MotorStatus status = BrickPiCodec.decodeMotorStatus(frame, new MotorStatus());
+		MotorStatus legacy = legacyDecode(frame);
+		System.out.println("codec  position=" + status.position + " dps=" + status.dps + " power=" + status.power);
+		System.out.println("legacy position=" + legacy.position + " dps=" + legacy.dps + " power=" + legacy.power);
+		if (status.position != -200000 || status.dps != -300 || status.power != -50) {
+			System.out.println("codec decoded incorrectly");
+			System.exit(1);
+		}
+
+		int ignore = 2;
+		double legacyTotal = 0;
+		double codecTotal = 0;
+		long checksum = 0;
+		for (int i = 0; i < ignore + 5; i++) {
+			long t = System.nanoTime();
+			for (int j = 0; j < loop; j++) {
+				frame[9] = (byte)j;
+				MotorStatus decoded = legacyDecode(frame);
+				checksum += decoded.state + decoded.power + decoded.position + decoded.dps;
+			}
+			long legacyTime = System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int j = 0; j < loop; j++) {
+				frame[9] = (byte)j;
+				MotorStatus decoded = BrickPiCodec.decodeMotorStatus(frame, status);
+				checksum += decoded.state + decoded.power + decoded.position + decoded.dps;
+			}
+			long codecTime = System.nanoTime() - t;
+			if (i >= ignore) {
+				legacyTotal += legacyTime;
+				codecTotal += codecTime;
+			}
+		}
+		System.out.println("legacy ns/decode=" + (legacyTotal / 5 / loop));
+		System.out.println("codec  ns/decode=" + (codecTotal / 5 / loop));
+		System.out.println("checksum=" + checksum);
+	}
+
+	private static MotorStatus legacyDecode(byte[] result) {
+		int state = result[4];
+		int power = result[5];
+		int position = ((result[6] << 24) | 
+						(result[7] << 16) | 
+						(result[8] << 8) | 
+						result[9]);
+		int dps = ((result[10] << 8) | result[11]);
+		return new MotorStatus(state, power, position, dps);
+	}
+}
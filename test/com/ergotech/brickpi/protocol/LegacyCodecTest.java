@@ -0,0 +1,476 @@
+package com.ergotech.brickpi.protocol;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.sensors.Sensor;
+
+/**
+ * LegacyCodecTest checks the word at a time BitStream and LegacyCodec bit
+ * for bit against the one bit at a time implementation they replace: a
+ * BitSet written a bit per loop, as Motor.encodeToValueRequest does, and
+ * the bit per loop decodeInt BrickPiCommunications used to have. Random
+ * values messages, with every sensor type including I2C and full color,
+ * are encoded by both and compared, and each decodes the other's. It then
+ * times the two.
+ *
+ */
+public class LegacyCodecTest {
+
+	private static final int START = 8;
+
+	public LegacyCodecTest() {
+	}
+
+	public static void main(String[] args) {
+		System.out.println("LegacyCodecTest -----");
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(42);
+		int failures = 0;
+
+		// single fields at every offset and length, including the last bytes
+		byte[] buffer = new byte[24];
+		byte[] expected = new byte[24];
+		for (int i = 0; i < 200000; i++) {
+			random.nextBytes(buffer);
+			System.arraycopy(buffer, 0, expected, 0, buffer.length);
+			int bits = random.nextInt(65);
+			int position = random.nextInt(buffer.length * 8 - bits + 1);
+			long value = random.nextLong();
+			if (BitStream.read(buffer, position, bits) != referenceRead(buffer, position, bits)) {
+				System.out.println("FAIL: read " + bits + " bits at " + position);
+				failures++;
+				break;
+			}
+			BitStream.write(buffer, position, bits, value);
+			referenceWrite(expected, position, bits, value);
+			if (!Arrays.equals(buffer, expected)) {
+				System.out.println("FAIL: write " + bits + " bits at " + position);
+				failures++;
+				break;
+			}
+			if (bits <= 32 && BrickPiCommunications.decodeInt(bits, buffer, position)
+					!= legacyDecodeInt(bits, buffer, position)) {
+				System.out.println("FAIL: decodeInt " + bits + " bits at " + position);
+				failures++;
+				break;
+			}
+		}
+
+		// the motor field against the BitSet encoding
+		for (int i = 0; i < 10000; i++) {
+			Motor motor = new Motor();
+			motor.setEnabled(random.nextBoolean());
+			motor.setCommandedOutput(random.nextInt(511) - 255);
+			int position = random.nextInt(100);
+			BitSet bits = new BitSet();
+			motor.encodeToValueRequest(bits, position);
+			BitStream stream = new BitStream(new byte[32], position);
+			motor.encodeToValueRequest(stream);
+			if (!Arrays.equals(Arrays.copyOf(bits.toByteArray(), 32), stream.array())
+					|| stream.position() != position + LegacyCodec.MOTOR_BITS) {
+				System.out.println("FAIL: motor " + motor.getCommandedOutput() + " at " + position);
+				failures++;
+				break;
+			}
+		}
+
+		// whole values messages
+		LegacyValues values = new LegacyValues();
+		LegacyValues decoded = new LegacyValues();
+		byte[] frame = new byte[256];
+		BitStream stream = new BitStream(frame, START);
+		int requestBits = 0;
+		int responseBits = 0;
+		for (int i = 0; i < 20000 && failures == 0; i++) {
+			randomise(values, random);
+			copyConfiguration(values, decoded);
+			for (int processor = 0; processor < 2; processor++) {
+				Arrays.fill(frame, (byte)0);
+				stream.wrap(frame, START);
+				LegacyCodec.encodeValueRequest(stream, values, processor);
+				BitSet reference = new BitSet();
+				int end = referenceRequest(reference, START, values, processor);
+				requestBits += end - START;
+				if (stream.position() != end || !Arrays.equals(Arrays.copyOf(reference.toByteArray(), frame.length), frame)) {
+					System.out.println("FAIL: request " + i + " processor " + processor);
+					failures++;
+					break;
+				}
+
+				Arrays.fill(frame, (byte)0);
+				stream.wrap(frame, START);
+				LegacyCodec.encodeValueResponse(stream, values, processor);
+				reference = new BitSet();
+				end = referenceResponse(reference, START, values, processor);
+				responseBits += end - START;
+				byte[] referenceFrame = Arrays.copyOf(reference.toByteArray(), frame.length);
+				if (stream.position() != end || !Arrays.equals(referenceFrame, frame)) {
+					System.out.println("FAIL: response " + i + " processor " + processor);
+					failures++;
+					break;
+				}
+				stream.wrap(referenceFrame, START);
+				LegacyCodec.decodeValueResponse(stream, decoded, processor);
+				if (stream.position() != end || !sameResponse(values, decoded, processor)) {
+					System.out.println("FAIL: decode " + i + " processor " + processor);
+					failures++;
+					break;
+				}
+			}
+		}
+		System.out.println("mean request bits=" + requestBits / 40000 + " response bits=" + responseBits / 40000);
+
+		failures += time(values, loop);
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static int time(LegacyValues values, int loop) {
+		// a typical robot, two motors running, touch, ultrasonic, light and full color
+		Random random = new Random(7);
+		randomise(values, random);
+		int[] types = { Sensor.TYPE_SENSOR_TOUCH, Sensor.TYPE_SENSOR_ULTRASONIC_CONT,
+				Sensor.TYPE_SENSOR_LIGHT_ON, Sensor.TYPE_SENSOR_COLOR_FULL };
+		for (int port = 0; port < LegacyValues.PORTS; port++) {
+			values.sensorType[port] = types[port];
+			values.encoderOffset[port] = 0;
+			values.encoder[port] = 100000 + port * 999;
+		}
+		byte[] frame = new byte[64];
+		BitStream stream = new BitStream(frame, START);
+		long checksum = 0;
+		double[] reference = new double[3];
+		double[] codec = new double[3];
+		for (int round = 0; round < 7; round++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < loop; i++) {
+				values.motorSpeed[0] = i & 0xFF;
+				BitSet bits = new BitSet();
+				referenceRequest(bits, START, values, 0);
+				byte[] request = bits.toByteArray();
+				checksum += request[request.length - 1];
+			}
+			long referenceRequest = System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int i = 0; i < loop; i++) {
+				values.motorSpeed[0] = i & 0xFF;
+				stream.wrap(frame, START);
+				LegacyCodec.encodeValueRequest(stream, values, 0);
+				checksum += frame[stream.byteLength() - 1];
+			}
+			long codecRequest = System.nanoTime() - t;
+
+			BitSet bits = new BitSet();
+			referenceResponse(bits, START, values, 1);
+			byte[] response = Arrays.copyOf(bits.toByteArray(), frame.length);
+			t = System.nanoTime();
+			for (int i = 0; i < loop; i++) {
+				response[2] = (byte)i;
+				checksum += referenceDecode(response, START, values, 1);
+			}
+			long referenceResponse = System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int i = 0; i < loop; i++) {
+				response[2] = (byte)i;
+				stream.wrap(response, START);
+				LegacyCodec.decodeValueResponse(stream, values, 1);
+				checksum += values.encoder[2] + values.sensor[3];
+			}
+			long codecResponse = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			for (int i = 0; i < loop; i++) {
+				checksum += legacyDecodeInt(32, response, i & 31);
+			}
+			long referenceInt = System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int i = 0; i < loop; i++) {
+				checksum += BrickPiCommunications.decodeInt(32, response, i & 31);
+			}
+			long codecInt = System.nanoTime() - t;
+			if (round >= 2) {
+				reference[0] += referenceRequest;
+				codec[0] += codecRequest;
+				reference[1] += referenceResponse;
+				codec[1] += codecResponse;
+				reference[2] += referenceInt;
+				codec[2] += codecInt;
+			}
+		}
+		String[] names = { "request", "response", "decodeInt" };
+		for (int i = 0; i < names.length; i++) {
+			System.out.println(String.format("%-9s bit at a time ns=%.1f word at a time ns=%.1f speedup=%.1fx",
+					names[i], reference[i] / 5 / loop, codec[i] / 5 / loop, reference[i] / codec[i]));
+		}
+		System.out.println("checksum=" + checksum);
+		return reference[1] > codec[1] ? 0 : 1;
+	}
+
+	private static final int[] TYPES = { Sensor.TYPE_SENSOR_RAW, Sensor.TYPE_SENSOR_LIGHT_ON,
+			Sensor.TYPE_SENSOR_TOUCH, Sensor.TYPE_SENSOR_ULTRASONIC_CONT, Sensor.TYPE_SENSOR_ULTRASONIC_SS,
+			Sensor.TYPE_SENSOR_RCX_LIGHT, Sensor.TYPE_SENSOR_COLOR_FULL, Sensor.TYPE_SENSOR_COLOR_RED,
+			Sensor.TYPE_SENSOR_COLOR_NONE, Sensor.TYPE_SENSOR_I2C, Sensor.TYPE_SENSOR_I2C_9V,
+			Sensor.TYPE_SENSOR_EV3_US_M0, Sensor.TYPE_SENSOR_EV3_COLOR_M3, Sensor.TYPE_SENSOR_EV3_GYRO_M3,
+			Sensor.TYPE_SENSOR_EV3_INFRARED_M2, Sensor.TYPE_SENSOR_EV3_TOUCH_DEBOUNCE };
+
+	private static void randomise(LegacyValues values, Random random) {
+		for (int port = 0; port < LegacyValues.PORTS; port++) {
+			values.encoderOffset[port] = random.nextInt(3) == 0 ? 0 : randomEncoder(random);
+			values.motorSpeed[port] = random.nextInt(601) - 300;
+			values.motorEnable[port] = random.nextBoolean();
+			values.sensorType[port] = TYPES[random.nextInt(TYPES.length)];
+			values.i2cDevices[port] = random.nextInt(LegacyValues.I2C_DEVICES + 1);
+			for (int device = 0; device < LegacyValues.I2C_DEVICES; device++) {
+				values.i2cSame[port][device] = random.nextInt(4) == 0;
+				values.i2cWrite[port][device] = random.nextInt(LegacyValues.I2C_BYTES);
+				values.i2cRead[port][device] = random.nextInt(LegacyValues.I2C_BYTES);
+				random.nextBytes(values.i2cOut[port][device]);
+				random.nextBytes(values.i2cIn[port][device]);
+			}
+			values.encoder[port] = randomEncoder(random);
+			int bits = LegacyCodec.sensorBits(values.sensorType[port]);
+			if (bits < 0) {
+				bits = values.i2cDevices[port];
+			} else if (values.sensorType[port] == Sensor.TYPE_SENSOR_COLOR_FULL) {
+				bits = 3;
+			}
+			values.sensor[port] = random.nextLong() & (bits == 64 ? -1L : (1L << bits) - 1);
+			for (int i = 0; i < LegacyValues.COLOR_COMPONENTS; i++) {
+				values.sensorArray[port][i] = random.nextInt(1024);
+			}
+		}
+	}
+
+	private static int randomEncoder(Random random) {
+		int magnitude = random.nextInt(LegacyCodec.MAX_ENCODER + 1) >>> random.nextInt(31);
+		return random.nextBoolean() ? -magnitude : magnitude;
+	}
+
+	private static void copyConfiguration(LegacyValues from, LegacyValues to) {
+		for (int port = 0; port < LegacyValues.PORTS; port++) {
+			to.sensorType[port] = from.sensorType[port];
+			to.i2cDevices[port] = from.i2cDevices[port];
+			System.arraycopy(from.i2cRead[port], 0, to.i2cRead[port], 0, LegacyValues.I2C_DEVICES);
+		}
+	}
+
+	private static boolean sameResponse(LegacyValues a, LegacyValues b, int processor) {
+		for (int port = processor * 2; port < processor * 2 + 2; port++) {
+			if (a.encoder[port] != b.encoder[port] || a.sensor[port] != b.sensor[port]) {
+				return false;
+			}
+			if (a.sensorType[port] == Sensor.TYPE_SENSOR_COLOR_FULL
+					&& !Arrays.equals(a.sensorArray[port], b.sensorArray[port])) {
+				return false;
+			}
+			for (int device = 0; device < a.i2cDevices[port]; device++) {
+				if ((a.sensor[port] & (1 << device)) != 0 && (a.sensorType[port] == Sensor.TYPE_SENSOR_I2C
+						|| a.sensorType[port] == Sensor.TYPE_SENSOR_I2C_9V)) {
+					int length = a.i2cRead[port][device];
+					if (!Arrays.equals(a.i2cIn[port][device], 0, length, b.i2cIn[port][device], 0, length)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	// the bit at a time implementation, as the firmware's AddBits and GetBits
+
+	private static int addBits(BitSet message, int position, int bits, long value) {
+		for (int i = 0; i < bits; i++) {
+			message.set(position++, ((value >>> i) & 1) == 1);
+		}
+		return position;
+	}
+
+	private static long getBits(byte[] message, int position, int bits) {
+		long value = 0;
+		for (int i = bits - 1; i >= 0; i--) {
+			int location = position + i;
+			value = (value << 1) | ((message[location / 8] >> (location % 8)) & 1);
+		}
+		return value;
+	}
+
+	private static long referenceRead(byte[] buffer, int position, int bits) {
+		return getBits(buffer, position, bits);
+	}
+
+	private static void referenceWrite(byte[] buffer, int position, int bits, long value) {
+		for (int i = 0; i < bits; i++) {
+			int location = position + i;
+			if (((value >>> i) & 1) != 0) {
+				buffer[location / 8] |= (byte)(1 << (location % 8));
+			} else {
+				buffer[location / 8] &= (byte)~(1 << (location % 8));
+			}
+		}
+	}
+
+	/**
+	 * BrickPiCommunications.decodeInt before it read words.
+	 */
+	private static int legacyDecodeInt(int bitLength, byte[] incoming, int startingBitLocation) {
+		int value = 0;
+		while (bitLength-- > 0) {
+			value <<= 1;
+			int location = bitLength + startingBitLocation;
+			boolean set = ((incoming[location / 8] & (1 << (location % 8))) != 0);
+			if (set) {
+				value |= 1;
+			}
+		}
+		return value;
+	}
+
+	private static int bitsNeeded(long value) {
+		int bits = 0;
+		while (value != 0) {
+			value >>>= 1;
+			bits++;
+		}
+		return bits;
+	}
+
+	private static boolean isI2c(int type) {
+		return type == Sensor.TYPE_SENSOR_I2C || type == Sensor.TYPE_SENSOR_I2C_9V;
+	}
+
+	private static int referenceRequest(BitSet message, int position, LegacyValues values, int processor) {
+		for (int port = processor * 2; port < processor * 2 + 2; port++) {
+			int offset = values.encoderOffset[port];
+			if (offset == 0) {
+				position = addBits(message, position, 1, 0);
+			} else {
+				position = addBits(message, position, 1, 1);
+				int direction = offset < 0 ? 1 : 0;
+				long magnitude = Math.abs((long)offset);
+				int needed = bitsNeeded(magnitude) + 1;
+				position = addBits(message, position, 5, needed);
+				position = addBits(message, position, needed, (magnitude << 1) | direction);
+			}
+		}
+		for (int port = processor * 2; port < processor * 2 + 2; port++) {
+			int speed = values.motorSpeed[port];
+			int direction = 0;
+			if (speed < 0) {
+				direction = 1;
+				speed = -speed;
+			}
+			if (speed > 255) {
+				speed = 255;
+			}
+			position = addBits(message, position, 10, ((speed & 0xFF) << 2) | (direction << 1)
+					| (values.motorEnable[port] ? 1 : 0));
+		}
+		for (int port = processor * 2; port < processor * 2 + 2; port++) {
+			if (isI2c(values.sensorType[port])) {
+				for (int device = 0; device < values.i2cDevices[port]; device++) {
+					if (!values.i2cSame[port][device]) {
+						position = addBits(message, position, 4, values.i2cWrite[port][device]);
+						position = addBits(message, position, 4, values.i2cRead[port][device]);
+						for (int i = 0; i < values.i2cWrite[port][device]; i++) {
+							position = addBits(message, position, 8, values.i2cOut[port][device][i]);
+						}
+					}
+				}
+			}
+		}
+		return position;
+	}
+
+	private static int referenceResponse(BitSet message, int position, LegacyValues values, int processor) {
+		int[] used = new int[2];
+		long[] words = new long[2];
+		for (int i = 0; i < 2; i++) {
+			int encoder = values.encoder[processor * 2 + i];
+			words[i] = (Math.abs((long)encoder) << 1) | (encoder < 0 ? 1 : 0);
+			used[i] = bitsNeeded(words[i]);
+			position = addBits(message, position, 5, used[i]);
+		}
+		for (int i = 0; i < 2; i++) {
+			position = addBits(message, position, used[i], words[i]);
+		}
+		for (int port = processor * 2; port < processor * 2 + 2; port++) {
+			int type = values.sensorType[port];
+			if (type == Sensor.TYPE_SENSOR_COLOR_FULL) {
+				position = addBits(message, position, 3, values.sensor[port]);
+				for (int i = 0; i < LegacyValues.COLOR_COMPONENTS; i++) {
+					position = addBits(message, position, 10, values.sensorArray[port][i]);
+				}
+			} else if (isI2c(type)) {
+				position = addBits(message, position, values.i2cDevices[port], values.sensor[port]);
+				for (int device = 0; device < values.i2cDevices[port]; device++) {
+					if ((values.sensor[port] & (1 << device)) != 0) {
+						for (int i = 0; i < values.i2cRead[port][device]; i++) {
+							position = addBits(message, position, 8, values.i2cIn[port][device][i]);
+						}
+					}
+				}
+			} else {
+				position = addBits(message, position, referenceSensorBits(type), values.sensor[port]);
+			}
+		}
+		return position;
+	}
+
+	private static int referenceSensorBits(int type) {
+		if (type == Sensor.TYPE_SENSOR_TOUCH) {
+			return 1;
+		}
+		if (type == Sensor.TYPE_SENSOR_ULTRASONIC_CONT || type == Sensor.TYPE_SENSOR_ULTRASONIC_SS) {
+			return 8;
+		}
+		if (type == Sensor.TYPE_SENSOR_EV3_COLOR_M3 || type == Sensor.TYPE_SENSOR_EV3_GYRO_M3
+				|| type == Sensor.TYPE_SENSOR_EV3_INFRARED_M2) {
+			return 32;
+		}
+		if (type >= Sensor.TYPE_SENSOR_EV3_US_M0 && type <= Sensor.TYPE_SENSOR_EV3_TOUCH_DEBOUNCE) {
+			return 16;
+		}
+		return 10;
+	}
+
+	/**
+	 * Decode the non-I2C response fields a bit at a time, returning a
+	 * checksum of them.
+	 */
+	private static long referenceDecode(byte[] message, int position, LegacyValues values, int processor) {
+		int[] used = new int[2];
+		long checksum = 0;
+		for (int i = 0; i < 2; i++) {
+			used[i] = (int)getBits(message, position, 5);
+			position += 5;
+		}
+		for (int i = 0; i < 2; i++) {
+			long word = getBits(message, position, used[i]);
+			position += used[i];
+			checksum += (word & 1) != 0 ? -(word >> 1) : word >> 1;
+		}
+		for (int port = processor * 2; port < processor * 2 + 2; port++) {
+			int type = values.sensorType[port];
+			if (type == Sensor.TYPE_SENSOR_COLOR_FULL) {
+				checksum += getBits(message, position, 3);
+				position += 3;
+				for (int i = 0; i < LegacyValues.COLOR_COMPONENTS; i++) {
+					checksum += getBits(message, position, 10);
+					position += 10;
+				}
+			} else {
+				int bits = referenceSensorBits(type);
+				checksum += getBits(message, position, bits);
+				position += bits;
+			}
+		}
+		return checksum;
+	}
+}
@@ -0,0 +1,203 @@
+package com.ergotech.brickpi.queue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.motion.MotorStatus;
+import com.ergotech.brickpi.sensors.Sensor;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.SensorType;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * AsyncTest submits batches of independent requests to a simulated BrickPi
+ * through AsyncBrickPi, without waiting between them, then checks the
+ * results and reports the batches/second. The blocking adapter is timed
+ * over the same batch for comparison. A stop submitted after a go for the
+ * same motor must leave the motor stopped, though it overtakes the go.
+ * Requests that wait together must go to the board in one sweep, and a
+ * port array changed after it was submitted must not change the request.
+ *
+ */
+public class AsyncTest {
+
+	private static final AtomicInteger SWEEPS = new AtomicInteger();
+
+	public AsyncTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("AsyncTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		AsyncBrickPi async = new AsyncBrickPi(new BrickPiSPI((byte)0x01, simulator) {
+			@Override
+			public PortSweep sweep(PortSweep sweep) throws IOException {
+				SWEEPS.incrementAndGet();
+				return super.sweep(sweep);
+			}
+		});
+		QueuedBrickPi blocking = new QueuedBrickPi(async);
+		MotorPort[] motors = MotorPort.values();
+		for (MotorPort port : motors) {
+			async.initializeMotor(port, new Motor());
+		}
+		async.setSensor(new EV3TouchSensor(), SensorPort.S2);
+		simulator.setSensorValue(SensorPort.S2.ordinal(), (byte)1);
+		async.setMotorEncoderOffset(new MotorPort[] { MotorPort.MC }, -90).join();
+		MotorStatus[] status = new MotorStatus[motors.length];
+		for (int i = 0; i < status.length; i++) {
+			status[i] = new MotorStatus();
+		}
+
+		int failures = 0;
+		List<CompletableFuture<MotorStatus>> pending = new ArrayList<>();
+		long t = System.nanoTime();
+		for (int i = 0; i < loop; i++) {
+			CompletableFuture<EV3TouchSensor> touch = async.getSensor(SensorPort.S2);
+			CompletableFuture<Integer> encoder = async.getMotorEncoder(MotorPort.MC);
+			for (int m = 0; m < motors.length; m++) {
+				pending.add(async.getMotorStatus(motors[m], status[m]));
+			}
+			if (touch.join().getValue() != 1 || encoder.join() != 90) {
+				failures++;
+			}
+			for (int m = 0; m < motors.length; m++) {
+				if (pending.get(m).join() != status[m]) {
+					failures++;
+				}
+			}
+			pending.clear();
+		}
+		long asyncTime = System.nanoTime() - t;
+
+		t = System.nanoTime();
+		for (int i = 0; i < loop; i++) {
+			EV3TouchSensor touch = blocking.getSensor(SensorPort.S2);
+			if (touch.getValue() != 1 || blocking.getMotorEncoder(MotorPort.MC) != 90) {
+				failures++;
+			}
+			for (int m = 0; m < motors.length; m++) {
+				blocking.getMotorStatus(motors[m], status[m]);
+			}
+		}
+		long blockingTime = System.nanoTime() - t;
+		System.out.println("async batches/s=" + (loop / (asyncTime / 1e9)));
+		System.out.println("blocking batches/s=" + (loop / (blockingTime / 1e9)));
+
+		failures += checkStopOrder(async);
+		failures += checkBatching(async);
+
+		async.close();
+		try {
+			async.getMotorEncoder(MotorPort.MA).join();
+			System.out.println("FAIL: request after close completed");
+			failures++;
+		} catch (CompletionException ex) {
+			// expected
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Hold the I/O thread in a sensor read while a go for MA and MB and
+	 * then a stop for MA queue behind it. The stop runs first, and the go
+	 * must then only drive MB.
+	 */
+	private static int checkStopOrder(AsyncBrickPi async) throws InterruptedException {
+		CountDownLatch release = holdIoThread(async, SensorPort.S3);
+		CompletableFuture<Void> go = async.setMotor(new MotorPort[] { MotorPort.MA, MotorPort.MB }, 50);
+		CompletableFuture<Void> stop = async.setMotor(new MotorPort[] { MotorPort.MA }, 0);
+		release.countDown();
+		go.join();
+		stop.join();
+		int ma = async.getMotorStatus(MotorPort.MA).join().power;
+		int mb = async.getMotorStatus(MotorPort.MB).join().power;
+		System.out.println("stop after go: MA power=" + ma + " MB power=" + mb);
+		if (ma != 0 || mb != 50) {
+			System.out.println("FAIL: the stop ran before the go");
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Hold the I/O thread in a sensor read while a power change for MD and
+	 * reads of S2 and every motor queue behind it. They must go out in one
+	 * sweep, and the caller overwriting its port array must not move the
+	 * power change to MA.
+	 */
+	private static int checkBatching(AsyncBrickPi async) throws InterruptedException {
+		CountDownLatch release = holdIoThread(async, SensorPort.S4);
+		int before = SWEEPS.get();
+		MotorPort[] ports = { MotorPort.MD };
+		CompletableFuture<Void> go = async.setMotor(ports, 30);
+		ports[0] = MotorPort.MA;
+		CompletableFuture<EV3TouchSensor> touch = async.getSensor(SensorPort.S2);
+		List<CompletableFuture<MotorStatus>> status = new ArrayList<>();
+		for (MotorPort port : MotorPort.values()) {
+			status.add(async.getMotorStatus(port));
+		}
+		release.countDown();
+		go.join();
+		int failures = 0;
+		if (touch.join().getValue() != 1) {
+			System.out.println("FAIL: S2 read " + touch.join().getValue());
+			failures++;
+		}
+		int ma = status.get(MotorPort.MA.ordinal()).join().power;
+		int md = status.get(MotorPort.MD.ordinal()).join().power;
+		int sweeps = SWEEPS.get() - before;
+		System.out.println("batched: sweeps=" + sweeps + " MA power=" + ma + " MD power=" + md);
+		if (sweeps != 1) {
+			System.out.println("FAIL: the waiting requests took " + sweeps + " sweeps");
+			failures++;
+		}
+		if (ma != 0 || md != 30) {
+			System.out.println("FAIL: the power change went to the wrong port");
+			failures++;
+		}
+		return failures;
+	}
+
+	/**
+	 * Set a sensor whose read blocks, read it and wait until the I/O thread
+	 * is inside the read.
+	 *
+	 * @return the latch that lets the read finish.
+	 */
+	private static CountDownLatch holdIoThread(AsyncBrickPi async, SensorPort port) throws InterruptedException {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		async.setSensor(new Sensor(SensorType.EV3_TOUCH) {
+			@Override
+			public void processResult(byte[] message) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, port).join();
+		async.getSensor(port);
+		entered.await();
+		return release;
+	}
+}
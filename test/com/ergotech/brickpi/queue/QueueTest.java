@@ -0,0 +1,147 @@
+package com.ergotech.brickpi.queue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * QueueTest drives a simulated BrickPi from three threads at once, a
+ * sensor reader, a motor controller and an override that stops the motors,
+ * through a QueuedBrickPi, and reports the calls/second and the wait time
+ * of each priority lane. It then closes a queue under load, and every call
+ * in flight must return or fail rather than wait forever.
+ *
+ */
+public class QueueTest {
+
+	public QueueTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("QueueTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		final int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		BrickPiSPI target = new BrickPiSPI((byte)0x01, simulator);
+		final QueuedBrickPi brickPi = new QueuedBrickPi(target);
+		final MotorPort[] motors = { MotorPort.MA, MotorPort.MB };
+		for (MotorPort port : motors) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S1);
+		simulator.setSensorValue(SensorPort.S1.ordinal(), (byte)1);
+
+		final AtomicLong failures = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread vision = new Thread(() -> run(start, failures, () -> {
+			for (int i = 0; i < loop; i++) {
+				EV3TouchSensor sensor = brickPi.getSensor(SensorPort.S1);
+				if (sensor == null || sensor.getValue() != 1) {
+					failures.incrementAndGet();
+				}
+			}
+		}), "vision");
+		Thread control = new Thread(() -> run(start, failures, () -> {
+			for (int i = 0; i < loop; i++) {
+				brickPi.setMotor(motors, (i % 200) - 100 == 0 ? 50 : (i % 200) - 100);
+				brickPi.getMotorEncoder(MotorPort.MA);
+			}
+		}), "control");
+		Thread override = new Thread(() -> run(start, failures, () -> {
+			for (int i = 0; i < loop / 10; i++) {
+				brickPi.setMotor(motors, 0);
+			}
+		}), "override");
+		vision.start();
+		control.start();
+		override.start();
+		long t = System.nanoTime();
+		start.countDown();
+		vision.join();
+		control.join();
+		override.join();
+		t = System.nanoTime() - t;
+
+		BrickPiCommandQueue queue = brickPi.getQueue();
+		long calls = 0;
+		for (CommandPriority priority : CommandPriority.values()) {
+			calls += queue.getExecuted(priority);
+			System.out.println(priority + " executed=" + queue.getExecuted(priority)
+					+ " maxDepth=" + queue.getMaxDepth(priority)
+					+ " avgWait=" + queue.getAverageWaitNanos(priority) / 1000.0 + "us"
+					+ " maxWait=" + queue.getMaxWaitNanos(priority) / 1000.0 + "us");
+		}
+		System.out.println("calls/s=" + (calls / (t / 1e9)) + " spi transactions=" + simulator.getTransactions());
+		brickPi.close();
+		try {
+			brickPi.getMotorEncoder(MotorPort.MA);
+			System.out.println("FAIL: call after close succeeded");
+			System.exit(1);
+		} catch (IOException ex) {
+			// expected
+		}
+		failures.addAndGet(closeUnderLoad());
+		if (failures.get() != 0) {
+			System.out.println("FAIL: " + failures.get() + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Four threads read an encoder until the queue fails them; close it
+	 * while they do, several times over.
+	 */
+	private static int closeUnderLoad() throws Exception {
+		for (int round = 0; round < 50; round++) {
+			BrickPiSPI target = new BrickPiSPI((byte)0x01, new SimulatedBrickPi());
+			final QueuedBrickPi brickPi = new QueuedBrickPi(target);
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread(() -> {
+					try {
+						while (true) {
+							brickPi.getMotorEncoder(MotorPort.MA);
+						}
+					} catch (IOException ex) {
+						// closed
+					}
+				});
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+			Thread.sleep(2);
+			brickPi.close();
+			for (Thread thread : threads) {
+				thread.join(5000);
+				if (thread.isAlive()) {
+					System.out.println("FAIL: a call was left waiting after close in round " + round);
+					return 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private interface Body {
+		void run() throws IOException;
+	}
+
+	private static void run(CountDownLatch start, AtomicLong failures, Body body) {
+		try {
+			start.await();
+			body.run();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			failures.incrementAndGet();
+		}
+	}
+}
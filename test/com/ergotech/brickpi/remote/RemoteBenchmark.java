@@ -0,0 +1,233 @@
+package com.ergotech.brickpi.remote;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.MotorBatch;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.diagnostics.LatencyHistogram;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * RemoteBenchmark serves a simulated BrickPi over localhost, checks the
+ * values read back through the remote proxy, measures the command round
+ * trip, then subscribes to telemetry while one motor runs and reports the
+ * frames per second and the bytes per frame, key frames against deltas.
+ * Malformed requests sent straight to the server must be answered with an
+ * error, on a connection that stays usable.
+ *
+ */
+public class RemoteBenchmark {
+
+	public RemoteBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("RemoteBenchmark -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int failures = 0;
+
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		simulator.setRealTime(true);
+		BrickPiServer server = new BrickPiServer(new BrickPiSPI((byte)0x01, simulator), 0);
+		RemoteBrickPi brickPi = new RemoteBrickPi("localhost", server.getPort());
+		failures += checkMalformed(server);
+
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+		}
+		brickPi.setMotorEncoderOffset(new MotorPort[] { MotorPort.MC }, -90);
+		if (brickPi.getMotorEncoder(MotorPort.MC) != 90) {
+			System.out.println("FAIL: MC encoder " + brickPi.getMotorEncoder(MotorPort.MC));
+			failures++;
+		}
+		// a batch crosses as one call and the motors given the same speed share a message
+		long dpsMessages = simulator.getMessageCount(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS);
+		brickPi.setMotors(new MotorBatch().setDps(MotorPort.MB, 0).setDps(MotorPort.MD, 0));
+		if (simulator.getMessageCount(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS) != dpsMessages + 1) {
+			System.out.println("FAIL: batch sent " + (simulator.getMessageCount(BPSPI_MESSAGE_TYPE.SET_MOTOR_DPS) - dpsMessages)
+					+ " speed messages");
+			failures++;
+		}
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+			simulator.setSensorValue(port.ordinal(), (byte)(port.ordinal() & 1));
+		}
+		EV3TouchSensor touch = brickPi.getSensor(SensorPort.S2);
+		if (touch.getValue() != 1) {
+			System.out.println("FAIL: S2 read " + touch.getValue());
+			failures++;
+		}
+
+		PortSweep sweep = new PortSweep();
+		for (SensorPort port : SensorPort.values()) {
+			sweep.readSensor(port, true);
+		}
+		for (MotorPort port : MotorPort.values()) {
+			sweep.readMotor(port, true);
+		}
+		brickPi.sweep(sweep);
+		failures += check(sweep);
+
+		LatencyHistogram latency = new LatencyHistogram();
+		for (int i = 0; i < loop; i++) {
+			long t = System.nanoTime();
+			brickPi.getMotorEncoder(MotorPort.MB);
+			latency.record(System.nanoTime() - t);
+		}
+		System.out.println("command round trip " + latency);
+		long t = System.nanoTime();
+		for (int i = 0; i < loop; i++) {
+			brickPi.sweep(sweep);
+		}
+		System.out.println("remote sweeps/s=" + (int)(loop / ((System.nanoTime() - t) / 1e9)));
+		failures += check(sweep);
+
+		brickPi.setMotor(new MotorPort[] { MotorPort.MA }, 50);
+		long[] periods = { 0, 1000 };
+		for (long period : periods) {
+			long framesSent = server.getFramesSent();
+			long bytesSent = server.getBytesSent();
+			long framesReceived = brickPi.getFramesReceived();
+			long bytesReceived = brickPi.getBytesReceived();
+			long lost = brickPi.getFramesLost();
+			t = System.nanoTime();
+			brickPi.subscribe(period, TimeUnit.MICROSECONDS);
+			Thread.sleep(2000);
+			brickPi.unsubscribe();
+			double seconds = (System.nanoTime() - t) / 1e9;
+			framesSent = server.getFramesSent() - framesSent;
+			bytesSent = server.getBytesSent() - bytesSent;
+			framesReceived = brickPi.getFramesReceived() - framesReceived;
+			bytesReceived = brickPi.getBytesReceived() - bytesReceived;
+			System.out.println("telemetry period=" + period + "us frames/s=" + (int)(framesReceived / seconds)
+					+ " sent=" + framesSent + " received=" + framesReceived
+					+ " lost=" + (brickPi.getFramesLost() - lost)
+					+ " bytes/frame=" + String.format("%.1f", bytesReceived / (double)Math.max(framesReceived, 1)));
+			if (framesReceived == 0 || bytesSent == 0) {
+				System.out.println("FAIL: no telemetry");
+				failures++;
+			}
+		}
+
+		TelemetryFrame frame = new TelemetryFrame();
+		if (!brickPi.copyTelemetry(frame)) {
+			System.out.println("FAIL: no telemetry frame");
+			failures++;
+		} else {
+			if (!frame.isValid(MotorPort.MC) || frame.getMotorPosition(MotorPort.MC) != 90) {
+				System.out.println("FAIL: telemetry MC " + frame.getMotorPosition(MotorPort.MC));
+				failures++;
+			}
+			if (frame.getMotorPosition(MotorPort.MA) <= 0) {
+				System.out.println("FAIL: telemetry MA " + frame.getMotorPosition(MotorPort.MA));
+				failures++;
+			}
+			EV3TouchSensor remote = new EV3TouchSensor();
+			for (SensorPort port : SensorPort.values()) {
+				if (!frame.applyTo(port, remote) || remote.getValue() != (port.ordinal() & 1)) {
+					System.out.println("FAIL: telemetry " + port + " read " + remote.getValue());
+					failures++;
+				}
+			}
+			// the same frame, sent as a key frame and as a delta against itself
+			ByteBuffer buffer = ByteBuffer.allocate(TelemetryFrame.MAX_ENCODED);
+			frame.encode(buffer, null);
+			int keySize = buffer.position();
+			TelemetryFrame previous = new TelemetryFrame();
+			frame.copyTo(previous);
+			frame.setSequence(frame.getSequence() + 1);
+			frame.setTime(frame.getTime() + 1000);
+			buffer.clear();
+			frame.encode(buffer, previous);
+			System.out.println("key frame bytes=" + keySize + " idle delta bytes=" + buffer.position());
+			buffer.flip();
+			if (!previous.decode(buffer) || previous.getTime() != frame.getTime()
+					|| previous.getMotorPosition(MotorPort.MC) != 90) {
+				System.out.println("FAIL: delta did not decode");
+				failures++;
+			}
+		}
+
+		brickPi.close();
+		server.close();
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * A bad motor direction and a sweep of a sensor that was never set,
+	 * then a good request on the same connection.
+	 */
+	private static int checkMalformed(BrickPiServer server) throws Exception {
+		int failures = 0;
+		ByteBuffer request = ByteBuffer.allocate(RemoteProtocol.HEADER_SIZE + RemoteProtocol.MAX_PAYLOAD);
+		ByteBuffer response = ByteBuffer.allocate(RemoteProtocol.HEADER_SIZE + RemoteProtocol.MAX_PAYLOAD);
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			RemoteProtocol.begin(request);
+			request.put((byte) MotorPort.MA.getPort());
+			request.put((byte) 7);
+			RemoteProtocol.send(channel, request, RemoteProtocol.INITIALIZE_MOTOR);
+			byte status = RemoteProtocol.receive(channel, response);
+			String error = status == RemoteProtocol.ERROR ? RemoteProtocol.errorMessage(response) : null;
+			System.out.println("bad direction: " + error);
+			if (error == null || !error.contains("direction")) {
+				failures++;
+			}
+
+			RemoteProtocol.begin(request);
+			request.put((byte) SensorPort.S1.getPort());
+			request.put((byte) 0);
+			request.put((byte) 0);
+			RemoteProtocol.send(channel, request, RemoteProtocol.SWEEP);
+			status = RemoteProtocol.receive(channel, response);
+			error = status == RemoteProtocol.ERROR ? RemoteProtocol.errorMessage(response) : null;
+			System.out.println("sweep of an unset sensor: " + error);
+			if (error == null || !error.contains("not initialized")) {
+				failures++;
+			}
+
+			RemoteProtocol.begin(request);
+			request.put((byte) MotorPort.MA.getPort());
+			RemoteProtocol.send(channel, request, RemoteProtocol.GET_MOTOR_ENCODER);
+			if (RemoteProtocol.receive(channel, response) != RemoteProtocol.OK) {
+				failures++;
+			}
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: malformed requests");
+		}
+		return failures;
+	}
+
+	private static int check(PortSweep sweep) {
+		int failures = 0;
+		for (SensorPort port : SensorPort.values()) {
+			EV3TouchSensor touch = sweep.getSensor(port);
+			if (!sweep.isValid(port) || touch.getValue() != (port.ordinal() & 1)) {
+				System.out.println("FAIL: " + port + " read " + touch.getValue());
+				failures++;
+			}
+		}
+		for (MotorPort port : MotorPort.values()) {
+			if (!sweep.isValid(port) || sweep.getMotorStatus(port).position != (port == MotorPort.MC ? 90 : 0)) {
+				System.out.println("FAIL: " + port + " read " + sweep.getMotorStatus(port).position);
+				failures++;
+			}
+		}
+		return failures;
+	}
+}
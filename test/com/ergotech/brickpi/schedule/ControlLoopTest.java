@@ -0,0 +1,172 @@
+package com.ergotech.brickpi.schedule;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.diagnostics.LatencyHistogram;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.VirtualClock;
+
+/**
+ * ControlLoopTest holds a simulated motor at 300 degrees a second with a
+ * 1kHz velocity loop, first from a ScheduledExecutorService at a fixed rate
+ * and then from a ControlLoop, and reports the period jitter of each. It
+ * checks that the control loop usually starts its cycles within a few
+ * microseconds and with less jitter than the executor, that the motor
+ * reaches the speed, that each cycle's command and read share one sweep and
+ * that the cycles do not allocate.
+ *
+ */
+public class ControlLoopTest {
+
+	private static final double TARGET = 300;
+
+	public ControlLoopTest() {
+	}
+
+	/**
+	 * The simulated motors run in real time.
+	 */
+	private static class WallClock extends VirtualClock {
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	}
+
+	/**
+	 * Feed forward with a little proportional and integral correction from
+	 * the speed the board reports.
+	 */
+	private static class SpeedController implements ControlLoop.Controller {
+
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		double integral;
+		long cycles;
+		long commands;
+		long allocatedFrom;
+		long allocated = Long.MAX_VALUE;
+
+
+		@Override
+		public void control(PortSweep sweep, long cycleTime) {
+			cycles++;
+			// the least allocated over windows of 400 cycles, once warmed up
+			if (cycles >= 1000 && cycles % 400 == 0) {
+				long now = threads.getCurrentThreadAllocatedBytes();
+				if (allocatedFrom != 0) {
+					allocated = Math.min(allocated, now - allocatedFrom);
+				}
+				allocatedFrom = now;
+			}
+			if (!sweep.isValid(MotorPort.MA)) {
+				return;
+			}
+			double error = TARGET - sweep.getMotorStatus(MotorPort.MA).dps;
+			integral += error * 0.001;
+			double power = TARGET / SimulatedBrickPi.MAX_DPS * 100 + error * 0.02 + integral * 0.5;
+			sweep.setMotorPower(MotorPort.MA, (int)Math.round(Math.max(-100, Math.min(100, power))));
+			commands++;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("ControlLoopTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		long duration = args != null && args.length > 0 ? Long.parseLong(args[0]) : 4000;
+		int failures = 0;
+
+		// the same work from a scheduled executor
+		SimulatedBrickPi simulator = new SimulatedBrickPi(new WallClock());
+		BrickPiSPI brickPi = newBrickPi(simulator);
+		SpeedController executorController = new SpeedController();
+		PortSweep sweep = new PortSweep().readMotor(MotorPort.MA, true);
+		LatencyHistogram executorJitter = new LatencyHistogram();
+		long[] last = new long[1];
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleAtFixedRate(() -> {
+			long start = System.nanoTime();
+			if (last[0] != 0) {
+				executorJitter.record(Math.abs(start - last[0] - 1000000L));
+			}
+			last[0] = start;
+			try {
+				brickPi.sweep(sweep);
+				executorController.control(sweep, start);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}, 0, 1, TimeUnit.MILLISECONDS);
+		Thread.sleep(duration);
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+		brickPi.setMotor(new MotorPort[] { MotorPort.MA }, 0);
+		System.out.println("executor jitter " + executorJitter);
+
+		simulator = new SimulatedBrickPi(new WallClock());
+		BrickPiSPI controlled = newBrickPi(simulator);
+		SpeedController controller = new SpeedController();
+		ControlLoop loop = new ControlLoop(controlled, 1, TimeUnit.MILLISECONDS);
+		loop.readMotor(MotorPort.MA, true);
+		loop.addController(controller);
+		loop.start();
+		Thread.sleep(duration);
+		loop.close();
+		PollStats stats = loop.getStats();
+		long status = simulator.getMessageCount(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS);
+		long power = simulator.getMessageCount(BPSPI_MESSAGE_TYPE.SET_MOTOR_POWER);
+		double dps = simulator.getMotorDps(0);
+		System.out.println("control loop " + stats);
+		System.out.println("  busy " + loop.getBusyTime());
+		System.out.println(String.format("dps=%.0f cycles=%d commands=%d status reads=%d power commands=%d allocated=%d",
+				dps, controller.cycles, controller.commands, status, power, controller.allocated));
+
+		// the tail depends on what else the machine is doing, so check the median
+		long median = stats.getJitter().getValueAtPercentile(50);
+		if (stats.getLateness().getValueAtPercentile(50) > 20000 || median > executorJitter.getValueAtPercentile(50)) {
+			System.out.println("FAIL: jitter p50 " + median);
+			failures++;
+		}
+		if (stats.getMissedDeadlines() > stats.getReads() / 5 || stats.getFailures() != 0
+				|| Math.abs(stats.getReads() - duration) > duration / 5) {
+			System.out.println("FAIL: " + stats.getReads() + " cycles");
+			failures++;
+		}
+		if (Math.abs(dps - TARGET) > TARGET / 10) {
+			System.out.println("FAIL: speed " + dps);
+			failures++;
+		}
+		// every command but the last was sent with the following cycle's read
+		if (status != controller.cycles || power != controller.commands - 1) {
+			System.out.println("FAIL: commands not sent with the reads");
+			failures++;
+		}
+		if (controller.allocated != 0) {
+			System.out.println("FAIL: allocated " + controller.allocated);
+			failures++;
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static BrickPiSPI newBrickPi(SimulatedBrickPi simulator) throws IOException {
+		simulator.setRealTime(true);
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		brickPi.initializeMotor(MotorPort.MA, new Motor());
+		return brickPi;
+	}
+}
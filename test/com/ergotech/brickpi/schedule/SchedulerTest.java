@@ -0,0 +1,75 @@
+package com.ergotech.brickpi.schedule;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiConstants.BPSPI_MESSAGE_TYPE;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+
+/**
+ * SchedulerTest polls a simulated BrickPi with two wheel encoders at 500Hz,
+ * two touch sensors at 50Hz and a third sensor at 20Hz, and reports the
+ * achieved period, jitter and lateness of each. It exits with a non-zero
+ * status if a port was read at the wrong rate or the slower ports did not
+ * share the encoder ticks.
+ *
+ */
+public class SchedulerTest {
+
+	public SchedulerTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("SchedulerTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		long duration = args != null && args.length > 0 ? Long.parseLong(args[0]) : 3000;
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		BrickPiSPI brickPi = new BrickPiSPI((byte)0x01, simulator);
+		brickPi.initializeMotor(MotorPort.MA, new Motor());
+		brickPi.initializeMotor(MotorPort.MB, new Motor());
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S1);
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S2);
+		brickPi.setSensor(new EV3TouchSensor(), SensorPort.S4);
+
+		PollScheduler scheduler = new PollScheduler(brickPi);
+		PollStats encoderA = scheduler.schedule(MotorPort.MA, 2, TimeUnit.MILLISECONDS);
+		PollStats encoderB = scheduler.schedule(MotorPort.MB, 2, TimeUnit.MILLISECONDS);
+		PollStats touch1 = scheduler.schedule(SensorPort.S1, 20, TimeUnit.MILLISECONDS);
+		PollStats touch2 = scheduler.schedule(SensorPort.S2, 20, TimeUnit.MILLISECONDS);
+		PollStats ranger = scheduler.schedule(SensorPort.S4, 50, TimeUnit.MILLISECONDS);
+		scheduler.start();
+		Thread.sleep(duration);
+		scheduler.close();
+
+		System.out.println("MA " + encoderA);
+		System.out.println("MB " + encoderB);
+		System.out.println("S1 " + touch1);
+		System.out.println("S2 " + touch2);
+		System.out.println("S4 " + ranger);
+		System.out.println("ticks=" + scheduler.getTicks() + " reads=" + scheduler.getPortReads()
+				+ " sensor transactions=" + (simulator.getMessageCount(BPSPI_MESSAGE_TYPE.GET_SENSOR_1)
+						+ simulator.getMessageCount(BPSPI_MESSAGE_TYPE.GET_SENSOR_4))
+				+ " status transactions=" + simulator.getMessageCount(BPSPI_MESSAGE_TYPE.GET_MOTOR_A_STATUS));
+
+		boolean ok = near(encoderA.getReads(), duration / 2)
+				&& near(encoderB.getReads(), duration / 2)
+				&& near(touch1.getReads(), duration / 20)
+				&& near(ranger.getReads(), duration / 50)
+				// the slower ports ride on the encoder ticks
+				&& scheduler.getTicks() <= encoderA.getReads()
+				&& encoderA.getFailures() == 0 && touch1.getFailures() == 0;
+		System.out.println(ok ? "OK" : "FAIL");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean near(long actual, long expected) {
+		return Math.abs(actual - expected) <= expected / 10 + 1;
+	}
+}
@@ -0,0 +1,199 @@
+package com.ergotech.brickpi.serial;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.ergotech.brickpi.BrickPiCommunications;
+import com.ergotech.brickpi.BrickPiSPI;
+import com.ergotech.brickpi.BrickPiSerial;
+import com.ergotech.brickpi.PortSweep;
+import com.ergotech.brickpi.diagnostics.LatencyHistogram;
+import com.ergotech.brickpi.motion.Motor;
+import com.ergotech.brickpi.motion.MotorPort;
+import com.ergotech.brickpi.sensors.SensorPort;
+import com.ergotech.brickpi.sensors.ev3.EV3TouchSensor;
+import com.ergotech.brickpi.sim.SimulatedBrickPi;
+import com.ergotech.brickpi.sim.SimulatedSerialBoard;
+
+/**
+ * SerialTest drives a simulated board over a pseudo-terminal pair, as a
+ * serial BrickPi would be, checks the values read back, and compares the
+ * sweep throughput and single request latency with the pipeline off and on
+ * against the SPI path. The pseudo-terminals are joined by a small python
+ * relay; without python it falls back to in-process pipes.
+ *
+ */
+public class SerialTest {
+
+	private static final String RELAY =
+			"import os,pty,tty,select,sys\n"
+			+ "a,sa=pty.openpty()\n"
+			+ "b,sb=pty.openpty()\n"
+			+ "tty.setraw(sa)\n"
+			+ "tty.setraw(sb)\n"
+			+ "print(os.ttyname(sa))\n"
+			+ "print(os.ttyname(sb))\n"
+			+ "sys.stdout.flush()\n"
+			+ "while True:\n"
+			+ "  r=select.select([a,b,0],[],[])[0]\n"
+			+ "  if 0 in r and not os.read(0,1): break\n"
+			+ "  if a in r: os.write(b,os.read(a,4096))\n"
+			+ "  if b in r: os.write(a,os.read(b,4096))\n";
+
+	public SerialTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("SerialTest -----");
+		BrickPiCommunications.DEBUG_LEVEL = 0;
+		int loop = args != null && args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int failures = 0;
+
+		Process relay = null;
+		String host = null;
+		String device = null;
+		try {
+			relay = new ProcessBuilder("python3", "-c", RELAY).start();
+			BufferedReader names = new BufferedReader(new InputStreamReader(relay.getInputStream()));
+			host = names.readLine();
+			device = names.readLine();
+		} catch (IOException ex) {
+			System.out.println("no pseudo-terminals (" + ex.getMessage() + "), using pipes");
+		}
+
+		SimulatedBrickPi simulator = new SimulatedBrickPi();
+		ReadableByteChannel[] channels = new ReadableByteChannel[2];
+		WritableByteChannel[] writers = new WritableByteChannel[2];
+		if (host != null && device != null) {
+			System.out.println("host=" + host + " board=" + device);
+			channels[1] = FileChannel.open(Paths.get(device), StandardOpenOption.READ);
+			writers[1] = FileChannel.open(Paths.get(device), StandardOpenOption.WRITE);
+		} else {
+			Pipe toBoard = Pipe.open();
+			Pipe toHost = Pipe.open();
+			channels[0] = toHost.source();
+			writers[0] = toBoard.sink();
+			channels[1] = toBoard.source();
+			writers[1] = toHost.sink();
+		}
+		SimulatedSerialBoard board = new SimulatedSerialBoard(simulator, channels[1], writers[1]);
+
+		double[] serialRate = new double[2];
+		int[] depths = { 1, SerialLink.DEFAULT_DEPTH };
+		for (int d = 0; d < depths.length; d++) {
+			SerialLink link;
+			if (host != null) {
+				link = depths[d] == SerialLink.DEFAULT_DEPTH ? SerialLink.open(host, SerialLink.DEFAULT_BAUD)
+						: new SerialLink(FileChannel.open(Paths.get(host), StandardOpenOption.READ),
+								FileChannel.open(Paths.get(host), StandardOpenOption.WRITE), depths[d]);
+			} else {
+				link = new SerialLink(channels[0], writers[0], depths[d]);
+			}
+			BrickPiSerial brickPi = new BrickPiSerial((byte)0x01, link);
+			failures += configure(brickPi, simulator);
+			PortSweep sweep = newSweep();
+			failures += check(brickPi.sweep(sweep));
+			serialRate[d] = sweeps(brickPi, sweep, loop);
+			failures += check(sweep);
+			LatencyHistogram latency = latency(brickPi, loop);
+			System.out.println("serial depth=" + depths[d] + " sweeps/s=" + (int)serialRate[d]
+					+ " request " + latency);
+			if (link.getTimeouts() != 0 || link.getBadFrames() != 0 || link.getLateFrames() != 0) {
+				System.out.println("FAIL: timeouts=" + link.getTimeouts() + " bad=" + link.getBadFrames()
+						+ " late=" + link.getLateFrames());
+				failures++;
+			}
+			if (host != null) {
+				link.close();
+			}
+		}
+
+		BrickPiSPI spi = new BrickPiSPI((byte)0x01, new SimulatedBrickPi());
+		configure(spi, null);
+		PortSweep sweep = newSweep();
+		double spiRate = sweeps(spi, sweep, loop);
+		System.out.println("spi sweeps/s=" + (int)spiRate + " request " + latency(spi, loop));
+		System.out.println("pipelining speedup=" + String.format("%.2f", serialRate[1] / serialRate[0]));
+
+		board.close();
+		if (relay != null) {
+			relay.getOutputStream().close();
+			relay.destroy();
+		}
+		if (failures != 0) {
+			System.out.println("FAIL: " + failures + " bad results");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static int configure(BrickPiSPI brickPi, SimulatedBrickPi simulator) throws IOException {
+		for (MotorPort port : MotorPort.values()) {
+			brickPi.initializeMotor(port, new Motor());
+			// start from zero, the board may have been used before
+			brickPi.setMotorEncoderOffset(new MotorPort[] { port }, brickPi.getMotorEncoder(port));
+		}
+		brickPi.setMotorEncoderOffset(new MotorPort[] { MotorPort.MC }, -90);
+		for (SensorPort port : SensorPort.values()) {
+			brickPi.setSensor(new EV3TouchSensor(), port);
+			if (simulator != null) {
+				simulator.setSensorValue(port.ordinal(), (byte)(port.ordinal() & 1));
+			}
+		}
+		return brickPi.getMotorEncoder(MotorPort.MC) == 90 ? 0 : 1;
+	}
+
+	private static PortSweep newSweep() {
+		PortSweep sweep = new PortSweep();
+		for (SensorPort port : SensorPort.values()) {
+			sweep.readSensor(port, true);
+		}
+		for (MotorPort port : MotorPort.values()) {
+			sweep.readMotor(port, true);
+		}
+		return sweep;
+	}
+
+	private static int check(PortSweep sweep) {
+		int failures = 0;
+		for (SensorPort port : SensorPort.values()) {
+			EV3TouchSensor touch = sweep.getSensor(port);
+			if (!sweep.isValid(port) || touch.getValue() != (port.ordinal() & 1)) {
+				System.out.println("FAIL: " + port + " read " + touch.getValue());
+				failures++;
+			}
+		}
+		for (MotorPort port : MotorPort.values()) {
+			if (!sweep.isValid(port) || sweep.getMotorStatus(port).position != (port == MotorPort.MC ? 90 : 0)) {
+				System.out.println("FAIL: " + port + " read " + sweep.getMotorStatus(port).position);
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	private static double sweeps(BrickPiSPI brickPi, PortSweep sweep, int loop) throws IOException {
+		long t = System.nanoTime();
+		for (int i = 0; i < loop; i++) {
+			brickPi.sweep(sweep);
+		}
+		return loop / ((System.nanoTime() - t) / 1e9);
+	}
+
+	private static LatencyHistogram latency(BrickPiSPI brickPi, int loop) throws IOException {
+		LatencyHistogram latency = new LatencyHistogram();
+		for (int i = 0; i < loop; i++) {
+			long t = System.nanoTime();
+			brickPi.getMotorEncoder(MotorPort.MB);
+			latency.record(System.nanoTime() - t);
+		}
+		return latency;
+	}
+}